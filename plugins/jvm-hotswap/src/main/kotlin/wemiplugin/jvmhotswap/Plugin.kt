@@ -3,7 +3,9 @@ package wemiplugin.jvmhotswap
 import org.slf4j.LoggerFactory
 import wemi.*
 import wemi.KeyDefaults.inProjectDependencies
+import wemi.boot.CLI
 import wemi.collections.toMutable
+import wemi.run.superviseProcess
 import wemi.util.*
 import java.io.DataOutputStream
 import java.io.IOException
@@ -90,63 +92,66 @@ object JvmHotswap {
                     // Start the process
                     // Separate process output from Wemi output
                     println()
-                    val process = processBuilder.start()
-
-                    val agentSocket = try {
-                        server.accept()
-                    } catch (e: IOException) {
-                        throw WemiException("Failure when waiting for agent to connect on port $port", e)
-                    }
-                    val outputStream = DataOutputStream(agentSocket.getOutputStream())
-
-                    while (!process.waitFor(2, TimeUnit.SECONDS)) {
-                        // Process is still running, check filesystem for changes
-                        val newSourceSnapshot = snapshotFiles(sources.matchingLocatedFiles(), sourceIncluded)
-                        if (snapshotsAreEqual(newSourceSnapshot, sourceSnapshot)) {
-                            // No changes
-                            continue
+                    val process = superviseProcess(processBuilder, "HotswapRun")
+
+                    // Interrupt stops the process, not Wemi
+                    CLI.forwardSignalsTo(process) {
+                        val agentSocket = try {
+                            server.accept()
+                        } catch (e: IOException) {
+                            throw WemiException("Failure when waiting for agent to connect on port $port", e)
                         }
-                        sourceSnapshot = newSourceSnapshot
-
-                        // Recompile
-                        val newClasspathSnapshot = try {
-                            Keys.internalClasspath.forceExpireNow(Keys.compile)
-                            snapshotFiles(Keys.internalClasspath.get(), classpathIncluded)
-                        } catch (e: WemiException.CompilationException) {
-                            LOG.info("Can't swap: {}", e.message)
-                            continue
-                        }
-
-                        var changeCount = 0
+                        val outputStream = DataOutputStream(agentSocket.getOutputStream())
 
-                        // We can't do anything about added classes (those should get picked up automatically),
-                        // nor removed classes. So just detect what has changed and recompile it.
-                        for ((key, value) in classpathSnapshot) {
-                            if (value == null) {
+                        while (!process.waitFor(2, TimeUnit.SECONDS)) {
+                            // Process is still running, check filesystem for changes
+                            val newSourceSnapshot = snapshotFiles(sources.matchingLocatedFiles(), sourceIncluded)
+                            if (snapshotsAreEqual(newSourceSnapshot, sourceSnapshot)) {
+                                // No changes
                                 continue
                             }
-                            val newHash = newClasspathSnapshot[key] ?: continue
-                            if (!MessageDigest.isEqual(value, newHash)) {
-                                // This file changed!
-                                outputStream.writeUTF(key.file.absolutePath)
-                                changeCount++
+                            sourceSnapshot = newSourceSnapshot
+
+                            // Recompile
+                            val newClasspathSnapshot = try {
+                                Keys.internalClasspath.forceExpireNow(Keys.compile)
+                                snapshotFiles(Keys.internalClasspath.get(), classpathIncluded)
+                            } catch (e: WemiException.CompilationException) {
+                                LOG.info("Can't swap: {}", e.message)
+                                continue
                             }
-                        }
 
-                        if (changeCount > 0) {
-                            outputStream.writeUTF("")
-                        }
+                            var changeCount = 0
+
+                            // We can't do anything about added classes (those should get picked up automatically),
+                            // nor removed classes. So just detect what has changed and recompile it.
+                            for ((key, value) in classpathSnapshot) {
+                                if (value == null) {
+                                    continue
+                                }
+                                val newHash = newClasspathSnapshot[key] ?: continue
+                                if (!MessageDigest.isEqual(value, newHash)) {
+                                    // This file changed!
+                                    outputStream.writeUTF(key.file.absolutePath)
+                                    changeCount++
+                                }
+                            }
+
+                            if (changeCount > 0) {
+                                outputStream.writeUTF("")
+                            }
 
-                        classpathSnapshot = newClasspathSnapshot
+                            classpathSnapshot = newClasspathSnapshot
 
-                        if (changeCount == 1) {
-                            LOG.info("Swapped 1 class")
-                        } else if (changeCount > 1) {
-                            LOG.info("Swapped {} classes", changeCount)
+                            if (changeCount == 1) {
+                                LOG.info("Swapped 1 class")
+                            } else if (changeCount > 1) {
+                                LOG.info("Swapped {} classes", changeCount)
+                            }
                         }
-                    }
 
-                    process.exitValue()
+                        process.waitFor()
+                    }
                 }
             }
         }
@@ -174,6 +174,10 @@ val runArguments
     inline get() = wemi.Keys.runArguments
 val run
     inline get() = wemi.Keys.run
+val runClassDataSharing
+    inline get() = wemi.Keys.runClassDataSharing
+val classDataSharingArchive
+    inline get() = wemi.Keys.classDataSharingArchive
 val runMain
     inline get() = wemi.Keys.runMain
 
@@ -181,6 +185,22 @@ val testParameters
     inline get() = wemi.Keys.testParameters
 val test
     inline get() = wemi.Keys.test
+val testForks
+    inline get() = wemi.Keys.testForks
+val testFailFast
+    inline get() = wemi.Keys.testFailFast
+val testWorker
+    inline get() = wemi.Keys.testWorker
+val testImpactAnalysis
+    inline get() = wemi.Keys.testImpactAnalysis
+val testResultCache
+    inline get() = wemi.Keys.testResultCache
+val testHistory
+    inline get() = wemi.Keys.testHistory
+val testDiscoveryCache
+    inline get() = wemi.Keys.testDiscoveryCache
+val testInProcess
+    inline get() = wemi.Keys.testInProcess
 
 val archiveOutputFile
     inline get() = wemi.Keys.archiveOutputFile
@@ -192,6 +212,10 @@ val archiveDokkaInterface
     inline get() = wemi.Keys.archiveDokkaInterface
 val archive
     inline get() = wemi.Keys.archive
+val archiveCompressionLevel
+    inline get() = wemi.Keys.archiveCompressionLevel
+val archiveCompressionThreads
+    inline get() = wemi.Keys.archiveCompressionThreads
 
 val publishMetadata
     inline get() = wemi.Keys.publishMetadata
@@ -208,12 +232,22 @@ val assemblyRenameFunction
     inline get() = wemi.Keys.assemblyRenameFunction
 val assemblyMapFilter
     inline get() = wemi.Keys.assemblyMapFilter
+val assemblyStreamMapFilter
+    inline get() = wemi.Keys.assemblyStreamMapFilter
 val assemblyPrependData
     inline get() = wemi.Keys.assemblyPrependData
 val assemblyOutputFile
     inline get() = wemi.Keys.assemblyOutputFile
+val assemblyIncremental
+    inline get() = wemi.Keys.assemblyIncremental
+val assemblyShrink
+    inline get() = wemi.Keys.assemblyShrink
+val assemblyShrinkRoots
+    inline get() = wemi.Keys.assemblyShrinkRoots
 val assembly
     inline get() = wemi.Keys.assembly
+val assemblyClassDataSharingArchive
+    inline get() = wemi.Keys.assemblyClassDataSharingArchive
 
 // Build script directive annotations
 typealias BuildDependency = wemi.boot.BuildDependency
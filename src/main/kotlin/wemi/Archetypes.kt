@@ -85,9 +85,11 @@ object Archetypes {
         Keys.runOptions set KeyDefaults.RunOptions
         Keys.run set KeyDefaults.Run
         Keys.runMain set KeyDefaults.RunMain
+        Keys.classDataSharingArchive set KeyDefaults.ClassDataSharingArchive
 
         Keys.testParameters set KeyDefaults.TestParameters
         Keys.test set KeyDefaults.Test
+        Keys.testHistory set KeyDefaults.TestHistory
 
         Keys.archiveOutputFile set { Keys.buildDirectory.get() / "${Keys.projectName.get()}-${Keys.projectVersion.get()}.jar" }
 
@@ -104,6 +106,7 @@ object Archetypes {
         }
         Keys.assemblyOutputFile set { Keys.buildDirectory.get() / (Keys.projectName.get() + "-" + Keys.projectVersion.get() + "-assembly.jar") }
         Keys.assembly set KeyDefaults.Assembly
+        Keys.assemblyClassDataSharingArchive set KeyDefaults.AssemblyClassDataSharingArchive
     }
 
     //region Primary Archetypes
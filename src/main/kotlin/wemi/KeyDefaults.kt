@@ -27,8 +27,23 @@ import wemi.documentation.DokkaOptions
 import wemi.publish.InfoNode
 import wemi.test.TEST_LAUNCHER_MAIN_CLASS
 import wemi.test.TestParameters
+import wemi.test.TestProgress
+import wemi.test.TestDiscoveryCache
+import wemi.test.TestHistory
+import wemi.test.TestImpact
 import wemi.test.TestReport
+import wemi.test.findTopLevelClasses
 import wemi.test.handleProcessForTesting
+import wemi.test.handleShardedProcessesForTesting
+import wemi.test.handleTestWorker
+import wemi.test.handleTestsInProcess
+import wemi.test.loadCachedTestReport
+import wemi.test.loadTestHistory
+import wemi.test.shardTestClasses
+import wemi.test.storeCachedTestReport
+import wemi.test.storeTestHistory
+import wemi.test.testImpactEnvironment
+import wemi.test.testResultFingerprint
 import wemi.util.*
 import wemi.util.CliStatusDisplay.Companion.withStatus
 import java.io.BufferedReader
@@ -102,9 +117,10 @@ object KeyDefaults {
         val repositories = Keys.repositories.get()
         val libraryDependencies = Keys.libraryDependencies.get()
         val libraryDependencyProjectMapper = Keys.libraryDependencyProjectMapper.get()
+        val concurrentLookup = Keys.concurrentRepositoryLookup.get()
 
         val resolved = LinkedHashMap<DependencyId, ResolvedDependency>()
-        val complete = resolveDependencies(resolved, libraryDependencies, repositories, libraryDependencyProjectMapper)
+        val complete = resolveDependencies(resolved, libraryDependencies, repositories, libraryDependencyProjectMapper, concurrentLookup)
         Partial(resolved, complete)
     }
 
@@ -137,6 +153,16 @@ object KeyDefaults {
         if (!resolved.complete) {
             throw WemiException("Failed to resolve all artifacts\n${resolved.value.prettyPrint(Keys.libraryDependencies.get().map { it.dependencyId })}", showStacktrace = false)
         }
+        // Resolution only resolves the dependency graph, artifacts are retrieved now
+        for (missing in resolved.value.values.retrieveArtifacts()) {
+            val classifier = missing.id.classifier
+            if (classifier.endsWith(SourcesClassifier) || classifier.endsWith(JavadocClassifier)) {
+                // Those are often not published, no need to fail
+                ClasspathResolution_LOG.debug("{} is not available", missing.id)
+            } else {
+                throw WemiException("Failed to retrieve artifact of ${missing.id} from ${missing.resolvedFrom}", showStacktrace = false)
+            }
+        }
         for ((_, resolvedDependency) in resolved.value) {
             result.add(LocatedPath(resolvedDependency.artifact?.path ?: continue))
         }
@@ -421,9 +447,8 @@ object KeyDefaults {
         options
     }
 
-    /** Implements the launch of JVM for [Run] and [RunMain]. */
-    private fun EvalScope.doRun(mainClass:String):Int {
-        val javaExecutable = Keys.javaExecutable.get()
+    /** Classpath used by [Run] and [RunMain], external classpath is first, so that it can be archived by class data sharing. */
+    private fun EvalScope.runClasspath():Collection<Path> {
         val classpathEntries = LinkedHashSet<Path>()
         for (locatedFile in Keys.externalClasspath.get()) {
             classpathEntries.add(locatedFile.classpathEntry)
@@ -431,17 +456,53 @@ object KeyDefaults {
         for (locatedFile in Keys.internalClasspath.get()) {
             classpathEntries.add(locatedFile.classpathEntry)
         }
+        return classpathEntries
+    }
+
+    /**
+     * Class data sharing archive for running [mainClass] with [classpath].
+     * Archives are stored in the cache directory, by the fingerprint of the archived classpath,
+     * and created by a training run with [Keys.runArguments], when missing.
+     */
+    private fun EvalScope.classDataSharingArchive(mainClass:String, classpath:Collection<Path>):Path? {
+        val javaExecutable = Keys.javaExecutable.get()
+        val archivedClasspath = wemi.run.classDataSharingClasspath(classpath)
+        if (archivedClasspath.isEmpty()) {
+            return null
+        }
+
+        val fingerprint = wemi.run.classDataSharingFingerprint(javaExecutable, archivedClasspath, mainClass)
+        val archive = Keys.cacheDirectory.get() / "class-data-sharing" / "$fingerprint.jsa"
+        if (archive.exists() || wemi.run.createClassDataSharingArchive(javaExecutable, Keys.runDirectory.get(), classpath,
+                        mainClass, Keys.runOptions.get(), Keys.runArguments.get(), archive,
+                        Keys.classDataSharingTrainingTimeout.get().toLong())) {
+            return archive
+        }
+        return null
+    }
+
+    /** Implements the launch of JVM for [Run] and [RunMain]. */
+    private fun EvalScope.doRun(mainClass:String):Int {
+        val javaExecutable = Keys.javaExecutable.get()
+        val classpathEntries = runClasspath()
         val directory = Keys.runDirectory.get()
-        val options = Keys.runOptions.get()
+        var options = Keys.runOptions.get()
         val arguments = Keys.runArguments.get()
 
+        if (Keys.runClassDataSharing.get()) {
+            val archive = classDataSharingArchive(mainClass, classpathEntries)
+            if (archive != null) {
+                options = wemi.run.classDataSharingOptions(archive) + options
+            }
+        }
+
         val processBuilder = wemi.run.prepareJavaProcess(javaExecutable, directory, classpathEntries,
                 mainClass, options, arguments)
 
         // Separate process output from Wemi output
         return CLI.MessageDisplay.withStatus(false) {
             println()
-            val process = processBuilder.start()
+            val process = wemi.run.superviseProcess(processBuilder, "Run")
             val result = CLI.forwardSignalsTo(process) { process.waitFor() }
             println()
             result
@@ -464,6 +525,19 @@ object KeyDefaults {
         }
     }
 
+    val ClassDataSharingArchive: Value<Path?> = {
+        using(Configurations.running) {
+            val archive = classDataSharingArchive(Keys.mainClass.get(), runClasspath())
+            if (archive != null) {
+                expiresWith(archive)
+            } else {
+                // Try again, unless the failure is remembered
+                expiresNow()
+            }
+            archive
+        }
+    }
+
     val TestParameters: Value<TestParameters> = {
         val testParameters = wemi.test.TestParameters()
         testParameters.select.classpathRoots.add(Keys.outputClassesDirectory.get().absolutePath)
@@ -475,6 +549,21 @@ object KeyDefaults {
         testParameters
     }
 
+    private val TEST_LOG = LoggerFactory.getLogger("Test")
+
+    /** Name of the files in which the test data of this project are cached, unique for its test classes. */
+    private fun EvalScope.testCacheName(): String {
+        return using(Configurations.testing) {
+            val testClasses = Keys.outputClassesDirectory.get().absolutePath
+            "${scope.scopeProject().name.toSafeFileName('_')}-${Integer.toHexString(testClasses.hashCode())}"
+        }
+    }
+
+    val TestHistory: Value<TestHistory> = {
+        expiresNow()
+        loadTestHistory(Keys.cacheDirectory.get() / "test-history" / "${testCacheName()}.json")
+    }
+
     val Test: Value<TestReport> = {
         using(Configurations.testing) {
             val javaExecutable = Keys.javaExecutable.get()
@@ -489,14 +578,113 @@ object KeyDefaults {
             classpathEntries.addAll(externalClasspath)
             classpathEntries.addAll(WemiRuntimeClasspath)
 
-            val processBuilder = wemi.run.prepareJavaProcess(
-                    javaExecutable, directory, classpathEntries,
-                    TEST_LAUNCHER_MAIN_CLASS, options, emptyList())
-
             val testParameters = Keys.testParameters.get(*input) // Input passthrough
+            val testRoots = testParameters.select.classpathRoots.map { Paths.get(it) }
+            val testCacheName = testCacheName()
+
+            // Report of the previous successful run is valid, when nothing has changed since
+            val resultCacheFile = Keys.cacheDirectory.get() / "test-results" / "$testCacheName.bin"
+            val resultFingerprint = if (Keys.testResultCache.get()) {
+                testResultFingerprint(javaExecutable, options, testParameters, externalClasspath + WemiRuntimeClasspath, internalClasspath)
+            } else null
+            val cachedReport = if (resultFingerprint != null && read("rerun", "Run the tests even when their result is cached", BooleanValidator, true) != true) {
+                loadCachedTestReport(resultCacheFile, resultFingerprint)
+            } else null
+
+            // Run only affected tests, only when tests are discovered in whole classpath roots
+            val impact = if (cachedReport == null && Keys.testImpactAnalysis.get() && testParameters.select.isEmpty()) {
+                val environment = testImpactEnvironment(javaExecutable, options, testParameters, externalClasspath + WemiRuntimeClasspath, internalClasspath)
+                val stateFile = Keys.cacheDirectory.get() / "test-impact" / "$testCacheName.bin"
+                TestImpact.analyze(stateFile, environment, internalClasspath, testRoots)
+            } else null
+            val affectedClasses = impact?.affectedClasses
+
+            // Classes which are known to not contain tests don't have to be discovered again
+            val discovery = if (cachedReport == null && Keys.testDiscoveryCache.get() && testParameters.select.isEmpty()) {
+                val environment = testImpactEnvironment(javaExecutable, options, testParameters, externalClasspath + WemiRuntimeClasspath, emptyList())
+                TestDiscoveryCache.load(Keys.cacheDirectory.get() / "test-discovery" / "$testCacheName.bin", environment, internalClasspath)
+            } else null
+
+            // Top-level classes which can run, only when tests are discovered in whole classpath roots
+            val testClasses = if (cachedReport == null && testParameters.select.isEmpty()) {
+                findTopLevelClasses(testRoots).filterKeys { className ->
+                    (affectedClasses == null || className in affectedClasses)
+                            && (discovery == null || discovery.mayHaveTests(className))
+                }
+            } else null
+
+            val history = Keys.testHistory.get()
+
+            // Split test classes between forks
+            val forks = Keys.testForks.get()
+            val shards = if (testClasses != null && forks > 1) {
+                shardTestClasses(testClasses, forks, history.durations())
+            } else emptyList()
+
+            /* Classpath roots are still scanned, so that tests in nested classes are found,
+             * but only the classes in classNames (and their nested classes) are discovered.
+             * Classes which had tests in the previous runs are executed first, in the order of history
+             * (failed and slow tests first), the rest are found by the scan and executed after them. */
+            fun selectClasses(classNames: Collection<String>): TestParameters {
+                val parameters = testParameters.copy()
+                parameters.filter.topLevelClasses.addAll(classNames)
+                history.executionOrder(classNames).filterTo(parameters.select.firstClasses) { className ->
+                    className in history.classes && testParameters.filter.includesClass(className)
+                }
+                return parameters
+            }
+
+            val runParameters = if (testClasses != null && (affectedClasses != null || discovery != null || history.classes.isNotEmpty())) {
+                selectClasses(testClasses.keys)
+            } else testParameters
+
+            fun testProcess(): ProcessBuilder {
+                return wemi.run.prepareJavaProcess(
+                        javaExecutable, directory, classpathEntries,
+                        TEST_LAUNCHER_MAIN_CLASS, options, emptyList())
+            }
+
+            val useTestWorker = Keys.testWorker.get()
+            val useInProcess = Keys.testInProcess.get()
+            val progress = TestProgress(Keys.testFailFast.get())
+            val report = (try {
+                if (cachedReport != null) {
+                    TEST_LOG.info("Nothing has changed since the last successful test run, using its cached report")
+                    cachedReport
+                } else if (affectedClasses != null && affectedClasses.isEmpty()) {
+                    TEST_LOG.info("No tests are affected by changes since the last successful test run")
+                    TestReport()
+                } else if (shards.size <= 1 && useInProcess) {
+                    handleTestsInProcess(externalClasspath + WemiRuntimeClasspath, internalClasspath, runParameters, progress)
+                } else if (shards.size <= 1 && useTestWorker) {
+                    handleTestWorker(scope.scopeProject().name, javaExecutable, directory, externalClasspath + WemiRuntimeClasspath,
+                            options, internalClasspath, runParameters, progress)
+                } else if (shards.size <= 1) {
+                    handleProcessForTesting(testProcess(), runParameters, progress)
+                } else {
+                    handleShardedProcessesForTesting(shards.map { shardClasses ->
+                        testProcess() to selectClasses(shardClasses)
+                    }, progress)
+                }
+            } finally {
+                progress.end()
+            }) ?: throw WemiException("Test execution failed, see logs for more information", showStacktrace = false)
+
+            if (cachedReport == null) {
+                history.record(report)
+                storeTestHistory(Keys.cacheDirectory.get() / "test-history" / "$testCacheName.json", history)
+            }
+            if (discovery != null && testClasses != null && !progress.stopped) {
+                discovery.record(testClasses.keys, report)
+            }
 
-            val report = handleProcessForTesting(processBuilder, testParameters)
-                    ?: throw WemiException("Test execution failed, see logs for more information", showStacktrace = false)
+            if (cachedReport == null && report.processExitCode() == Main.EXIT_CODE_SUCCESS) {
+                impact?.testsSucceeded()
+                // Only reports of all tests are cached
+                if (resultFingerprint != null && affectedClasses == null) {
+                    storeCachedTestReport(resultCacheFile, resultFingerprint, report)
+                }
+            }
 
             expiresNow()
             report
@@ -518,7 +706,9 @@ object KeyDefaults {
                         Keys.assemblyMapFilter.get(),
                         outputFile,
                         NoPrependData,
-                        compress = true)
+                        compress = true,
+                        compressionLevel = Keys.archiveCompressionLevel.get(),
+                        compressionThreads = Keys.archiveCompressionThreads.get())
 
                 expiresWith(outputFile)
                 outputFile
@@ -544,7 +734,9 @@ object KeyDefaults {
                         DefaultAssemblyMapFilter,
                         outputFile,
                         NoPrependData,
-                        compress = true)
+                        compress = true,
+                        compressionLevel = Keys.archiveCompressionLevel.get(),
+                        compressionThreads = Keys.archiveCompressionThreads.get())
 
                 expiresWith(outputFile)
                 outputFile
@@ -567,7 +759,9 @@ object KeyDefaults {
                         DefaultAssemblyMapFilter,
                         outputFile,
                         NoPrependData,
-                        compress = true)
+                        compress = true,
+                        compressionLevel = Keys.archiveCompressionLevel.get(),
+                        compressionThreads = Keys.archiveCompressionThreads.get())
 
                 expiresWith(outputFile)
                 outputFile
@@ -634,7 +828,9 @@ object KeyDefaults {
                         DefaultAssemblyMapFilter,
                         outputFile,
                         NoPrependData,
-                        compress = true)
+                        compress = true,
+                        compressionLevel = Keys.archiveCompressionLevel.get(),
+                        compressionThreads = Keys.archiveCompressionThreads.get())
 
                 expiresWith(outputFile)
                 outputFile
@@ -757,7 +953,9 @@ object KeyDefaults {
                         DefaultAssemblyMapFilter,
                         outputFile,
                         NoPrependData,
-                        compress = true)
+                        compress = true,
+                        compressionLevel = Keys.archiveCompressionLevel.get(),
+                        compressionThreads = Keys.archiveCompressionThreads.get())
 
                 expiresWith(outputFile)
                 outputFile
@@ -852,7 +1050,9 @@ object KeyDefaults {
                         DefaultAssemblyMapFilter,
                         outputFile,
                         NoPrependData,
-                        compress = true)
+                        compress = true,
+                        compressionLevel = Keys.archiveCompressionLevel.get(),
+                        compressionThreads = Keys.archiveCompressionThreads.get())
 
                 expiresWith(outputFile)
                 outputFile
@@ -1045,7 +1245,7 @@ object KeyDefaults {
 
     val Assembly: Value<Path> = {
         using(assembling) {
-            AssemblyOperation().use { assemblyOperation ->
+            AssemblyOperation(zipIndexCache = Keys.cacheDirectory.get() / "zip-index").use { assemblyOperation ->
                 // Load data
                 for (file in Keys.internalClasspath.get()) {
                     assemblyOperation.addSource(file, true, extractJarEntries = false)
@@ -1060,7 +1260,14 @@ object KeyDefaults {
                         Keys.assemblyMapFilter.get(),
                         outputFile,
                         Keys.assemblyPrependData.get(),
-                        compress = true)
+                        compress = true,
+                        streamMapFilter = Keys.assemblyStreamMapFilter.get(),
+                        compressionLevel = Keys.archiveCompressionLevel.get(),
+                        compressionThreads = Keys.archiveCompressionThreads.get(),
+                        incremental = Keys.assemblyIncremental.get(),
+                        shrinkRoots = if (Keys.assemblyShrink.get()) {
+                            Keys.assemblyShrinkRoots.get() + listOfNotNull(Keys.mainClass.getOrElse(null))
+                        } else null)
 
                 expiresWith(outputFile)
 
@@ -1068,4 +1275,32 @@ object KeyDefaults {
             }
         }
     }
+
+    val AssemblyClassDataSharingArchive: Value<Path?> = {
+        val jar = Keys.assembly.get()
+        val archive = jar.resolveSibling("${jar.name}.jsa")
+        val failedMarker = jar.resolveSibling("${jar.name}.jsa.failed")
+        if (failedMarker.exists() && failedMarker.lastModifiedMillis() < jar.lastModifiedMillis()) {
+            // Jar has changed since then, try again
+            Files.deleteIfExists(failedMarker)
+        }
+
+        val result = if (archive.exists() && archive.lastModifiedMillis() >= jar.lastModifiedMillis()) {
+            archive
+        } else if (wemi.run.createClassDataSharingArchive(Keys.javaExecutable.get(), Keys.runDirectory.get(), listOf(jar),
+                        Keys.mainClass.get(), Keys.runOptions.get(), Keys.runArguments.get(), archive,
+                        Keys.classDataSharingTrainingTimeout.get().toLong())) {
+            archive
+        } else {
+            Files.deleteIfExists(archive)
+            null
+        }
+
+        expiresWith(jar)
+        if (result == null) {
+            // Try again, unless the failure is remembered
+            expiresNow()
+        }
+        result
+    }
 }
\ No newline at end of file
@@ -1,7 +1,9 @@
 package wemi
 
 import wemi.assembly.AssemblyMapFilter
+import wemi.assembly.AssemblyStreamMapFilter
 import wemi.assembly.DefaultAssemblyMapFilter
+import wemi.assembly.DefaultAssemblyStreamMapFilter
 import wemi.assembly.MergeStrategyChooser
 import wemi.assembly.RenameFunction
 import wemi.compile.CompilerFlags
@@ -13,10 +15,12 @@ import wemi.documentation.DokkaOptions
 import wemi.publish.ArtifactEntry
 import wemi.publish.InfoNode
 import wemi.test.TestParameters
+import wemi.test.TestHistory
 import wemi.test.TestReport
 import wemi.test.prettyPrint
 import wemi.util.*
 import java.nio.file.Path
+import java.util.zip.Deflater
 import javax.tools.JavaCompiler
 
 /**
@@ -58,6 +62,7 @@ object Keys {
     val repositories by key<Set<Repository>>("Repositories to be used when resolving dependencies", defaultValue = emptySet())
     val libraryDependencies by key<Set<Dependency>>("Libraries that the project depends on", defaultValue = emptySet())
     val libraryDependencyProjectMapper by key<(Dependency) -> Dependency>("Function applied to ProjectDependencies encountered while resolving. Used for example when retrieving sources.", defaultValue = { it })
+    val concurrentRepositoryLookup by key<Boolean>("Query all remote repositories at the same time when resolving release library dependencies, instead of one after another", defaultValue = false)
     val resolvedLibraryDependencies by key<Partial<Map<DependencyId, ResolvedDependency>>>("Libraries that the project depends on and were resolved. Resolution may not have been successful.", prettyPrinter = { resolved ->
         resolved.value.prettyPrint(null)
     })
@@ -83,16 +88,29 @@ object Keys {
     val runOptions by key<List<String>>("Options given to 'java' when running the project", defaultValue = emptyList())
     val runArguments by key<List<String>>("Options given to the application when running the project", defaultValue = emptyList())
     val run by key<Int>("Compile and run the project, return exit code")
+    val runClassDataSharing by key<Boolean>("Start run and runMain with class data sharing archive of the external classpath, created by a training run with runArguments when missing, to speed up the start of the JVM", defaultValue = false)
+    val classDataSharingArchive by key<Path?>("Class data sharing archive for running mainClass, created by a training run with runArguments when missing or out of date, null if it could not be created")
+    val classDataSharingTrainingTimeout by key<Int>("Seconds after which the training run, which records classes for the class data sharing archive, is stopped", defaultValue = 60)
     val runMain by key<Int>("Compile and run the project, take the main class from the input (key 'main'), return exit code", inputKeys = arrayOf("main" to "Main class to run"))
 
     val testParameters by key<TestParameters>("Parameters for the test key. By default discovers all tests in the test sources.", inputKeys = arrayOf("class" to "Include classes, whose fully classified name match this regex"))
     val test by key<TestReport>("Run the tests (through the JUnit Platform by default)", prettyPrinter = { it.prettyPrint() })
+    val testForks by key<Int>("How many JVMs run the tests at the same time, test classes are split between them", defaultValue = 1)
+    val testFailFast by key<Int>("Stop running the tests after this many tests failed, 0 to always run all tests", defaultValue = 0)
+    val testImpactAnalysis by key<Boolean>("Run only tests affected by changes of project classes since the last successful test run, the report then contains only those tests. All tests run when libraries, resources or test parameters change.", defaultValue = false)
+    val testResultCache by key<Boolean>("Return the cached report of the previous successful test run when nothing the tests depend on has changed, instead of running them again. Use rerun=true input to run them anyway.", defaultValue = false)
+    val testHistory by key<TestHistory>("Durations and statuses of the previous test runs, used to run the tests which failed or which are slow first and to split the tests between testForks evenly")
+    val testDiscoveryCache by key<Boolean>("Remember which test classes contain tests, so that only those and the changed classes have to be loaded by JUnit to discover the tests", defaultValue = false)
+    val testInProcess by key<Boolean>("Run the tests inside the Wemi process, in an isolated class loader which keeps library classes loaded between test runs, instead of starting a new JVM. Output of each test is captured in its report. runOptions and runDirectory are not used and the tests can't be stopped by testFailFast. Not used when testForks split the tests.", defaultValue = false)
+    val testWorker by key<Boolean>("Keep the JVM which runs the tests alive between test runs, so that library classes don't have to be loaded again, useful in interactive sessions. Not used when testForks split the tests.", defaultValue = false)
 
     val archiveOutputFile by key<Path>("File to which archive should be saved to")
     val archiveJavadocOptions by key<List<String>>("Options when archiving Javadoc")
     val archiveDokkaOptions by key<DokkaOptions>("Options when archiving Dokka")
     val archiveDokkaInterface by key<DokkaInterface>("Dokka instance used when creating documentation")
     val archive by key<Path?>("Archive project's output and return path to the created file, if any")
+    val archiveCompressionLevel by key<Int>("Deflate compression level (0-9, -1 for default) used when creating archives, including assembly", defaultValue = Deflater.DEFAULT_COMPRESSION)
+    val archiveCompressionThreads by key<Int>("How many archive entries can be compressed at the same time. Does not change the created archive.", defaultValue = Runtime.getRuntime().availableProcessors())
 
     val publishMetadata by key<InfoNode>("Meta information that should be published together with archives by 'publish'")
     val publishRepository by key<Repository>("Repository to which the archives are published")
@@ -103,7 +121,12 @@ object Keys {
     val assemblyMergeStrategy by key<MergeStrategyChooser>("Function for determining which merge strategy should be used when multiple files at the same path are encountered during assembly")
     val assemblyRenameFunction by key<RenameFunction>("Function for renaming assembled duplicate files for which merge strategy is Rename. Paths after rename must not conflict, rules are not recursive.")
     val assemblyMapFilter by key<AssemblyMapFilter>("Function that allows to control what gets into the resulting archive on a fine grained level.", defaultValue = DefaultAssemblyMapFilter)
+    val assemblyStreamMapFilter by key<AssemblyStreamMapFilter>("Like assemblyMapFilter, but works with streams, so it does not need to hold whole files in memory. Applied after assemblyMapFilter.", defaultValue = DefaultAssemblyStreamMapFilter)
     val assemblyPrependData by key<ByteArray>("Data to prepend to the jar created by assembly task", defaultValue = ByteArray(0))
     val assemblyOutputFile by key<Path>("File to which assembled jar should be saved")
+    val assemblyIncremental by key<Boolean>("Reuse compressed entries of the previous assembly output, when their content did not change", defaultValue = false)
+    val assemblyShrink by key<Boolean>("Remove classes which are not reachable from mainClass, service implementations and assemblyShrinkRoots from the assembly", defaultValue = false)
+    val assemblyShrinkRoots by key<Set<String>>("Class name patterns of classes which are always kept by assemblyShrink, for example those used through reflection ('com.example.*' for classes of a package, 'com.example.**' including subpackages)", defaultValue = emptySet())
     val assembly by key<Path>("Assembly the project and its dependencies into a fat jar")
+    val assemblyClassDataSharingArchive by key<Path?>("Create class data sharing archive for the assembled jar next to it (<jar>.jsa) by a training run of mainClass with runArguments. Used by PREPEND_SCRIPT_EXEC_JAR_CDS. Null if it could not be created")
 }
@@ -7,12 +7,22 @@ import wemi.WemiException
 import wemi.util.*
 import java.io.BufferedOutputStream
 import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.nio.charset.StandardCharsets
 import java.nio.file.Files
 import java.nio.file.Path
-import java.util.jar.JarOutputStream
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 import java.util.zip.CRC32
-import java.util.zip.ZipEntry
+import java.util.zip.Deflater
 import java.util.zip.ZipFile
 
 /**
@@ -21,6 +31,16 @@ import java.util.zip.ZipFile
 val PREPEND_SCRIPT_EXEC_JAR: ByteArray = "#!/usr/bin/env sh\nexec java -jar \"$0\" \"$@\"\n"
         .toByteArray(Charsets.UTF_8)
 
+/**
+ * Like [PREPEND_SCRIPT_EXEC_JAR], but uses class data sharing archive next to the jar,
+ * created by [wemi.Keys.assemblyClassDataSharingArchive], if it exists.
+ * The jar is launched by its absolute path, because the archive is tied to it.
+ */
+val PREPEND_SCRIPT_EXEC_JAR_CDS: ByteArray = ("#!/usr/bin/env sh\n" +
+        "JAR=\"$(cd \"$(dirname \"$0\")\" && pwd)/$(basename \"$0\")\"\n" +
+        "exec java -XX:+UnlockDiagnosticVMOptions -XX:SharedArchiveFile=\"\$JAR.jsa\" -Xshare:auto -jar \"\$JAR\" \"$@\"\n")
+        .toByteArray(Charsets.UTF_8)
+
 private val LOG = LoggerFactory.getLogger("Assembly")
 
 /**
@@ -78,11 +98,24 @@ val DefaultRenameFunction: RenameFunction = { root, name ->
 /**
  * Function gets the in-archive path and source of the data.
  * It may then choose to perform any transformation or filtering, by returning null.
+ *
+ * Data of each entry is loaded into memory, so for large archives [AssemblyStreamMapFilter] should be preferred.
  */
 typealias AssemblyMapFilter = (path:String, source: AssemblySource) -> ByteArray?
 
 val DefaultAssemblyMapFilter:AssemblyMapFilter = { _, source -> source.data }
 
+/**
+ * Like [AssemblyMapFilter], but does not need to hold the data in memory.
+ * Function gets the in-archive path and source of the data and returns the source that should be used instead,
+ * for example [AssemblySource.mapStream], or null to discard it.
+ *
+ * Returning the same source keeps the entry unchanged, so it may be copied without recompression.
+ */
+typealias AssemblyStreamMapFilter = (path:String, source: AssemblySource) -> AssemblySource?
+
+val DefaultAssemblyStreamMapFilter:AssemblyStreamMapFilter = { _, source -> source }
+
 /**
  * Prepend data to use, when no data should be prepended.
  *
@@ -90,12 +123,73 @@ val DefaultAssemblyMapFilter:AssemblyMapFilter = { _, source -> source.data }
  */
 val NoPrependData = ByteArray(0)
 
+/** How many merges should [AssemblyOperation.resolve] do in a single task, at least */
+private const val MERGES_PER_TASK = 16
+
+private const val LF = '\n'.toByte()
+private const val CR = '\r'.toByte()
+private val LINE_ENDING_LF = byteArrayOf(LF)
+private val LINE_ENDING_CR = byteArrayOf(CR)
+private val LINE_ENDING_CRLF = byteArrayOf(CR, LF)
+
+/** Line of [data] from [start] to [end] (exclusive), equal to lines with the same bytes. */
+private class ByteLine(val data: ByteArray, val start: Int, val end: Int) {
+
+    private val hash: Int = run {
+        var hash = 1
+        for (i in start until end) {
+            hash = 31 * hash + data[i]
+        }
+        hash
+    }
+
+    override fun hashCode(): Int = hash
+
+    override fun equals(other: Any?): Boolean {
+        if (other !is ByteLine || other.hash != hash || other.end - other.start != end - start) {
+            return false
+        }
+        for (i in 0 until end - start) {
+            if (data[start + i] != other.data[other.start + i]) {
+                return false
+            }
+        }
+        return true
+    }
+}
+
+/** Entry of [AssemblyOperation.assembly] waiting to be written, either copied from [rawEntry] or [compressed]. */
+private class PendingEntry(val path: String, val source: AssemblySource, val rawEntry: RawZipEntry?, val compressed: Future<EntryCompressor>?)
+
+/** Holds [buffer] with data of a single entry, compressed, if [compress], with given [level]. */
+private class EntryCompressor(compress: Boolean, level: Int) : Closeable {
+    val buffer = EntryBuffer()
+    private val deflater = if (compress) Deflater(level, true) else null
+
+    /** Load [buffer] with data from [stream] and close it */
+    fun load(stream: InputStream) {
+        stream.use { buffer.load(it, deflater) }
+    }
+
+    /** Load [buffer] with content of the [file] */
+    fun load(file: Path) {
+        buffer.loadFile(file, deflater)
+    }
+
+    override fun close() {
+        deflater?.end()
+        buffer.close()
+    }
+}
+
 /**
  * Represents a packing operation. Contains internal list of sources, to which elements can be added via
  * [addSource]. Actual assembling is invoked via [assembly] and is safe to do multiple times (with same or added sources)
  * if needed. [close] should be called when [AssemblyOperation] is no longer needed.
+ *
+ * @param zipIndexCache directory in which indices of added jars are cached (see [cachedZipIndex]), null to not cache them
  */
-class AssemblyOperation : Closeable {
+class AssemblyOperation(private val zipIndexCache: Path? = null) : Closeable {
 
     private fun normalizeZipPath(path: String): String {
         return path.replace('\\', '/').removePrefix("/")
@@ -107,24 +201,53 @@ class AssemblyOperation : Closeable {
     fun addSource(locatedPath: LocatedPath, own: Boolean, extractJarEntries: Boolean = true) {
         val file = locatedPath.file
         if (extractJarEntries && file.name.pathHasExtension("jar")) {
-            // Add jar entries
-            val zip = ZipFile(file.toFile(), ZipFile.OPEN_READ, StandardCharsets.UTF_8)
+            // Add jar entries, the jar itself is opened only when data of some entry is needed
+            val zip = ZipSourceFile(file)
             filesToClose.add(zip)
+            val lastModified = file.lastModified.toMillis()
+
+            val index = try {
+                cachedZipIndex(file, zipIndexCache) { zip.channel() }
+            } catch (e: IOException) {
+                LOG.debug("Failed to read zip index of {}, reading it as ZipFile", file, e)
+                addZipFileSource(file, own)
+                return
+            }
 
-            for (entry in zip.entries()) {
-                if (entry.isDirectory) continue
+            for (entry in index) {
+                if (entry.name.endsWith('/')) continue
 
                 val path = normalizeZipPath(entry.name)
-                loadedSources.getOrPut(path) { ArrayList() }.add(
-                        AssemblySource(file.absolutePath + '?' + path, file, file.lastModified.toMillis(), own) {
-                            zip.getInputStream(entry).use { it.readBytes(entry.size.toInt()) }
-                        })
+                val rawEntry = RawZipEntry(zip, entry)
+
+                loadedSources.getOrPut(path) { ArrayList() }.add(if (entry.canCopyRaw) {
+                    AssemblySource(file, lastModified, own, rawEntry)
+                } else {
+                    // Let ZipFile deal with it, or fail
+                    AssemblySource(file.absolutePath + '?' + path, file, lastModified, own, null) {
+                        val zipFile = zip.zipFile()
+                        zipFile.getInputStream(zipFile.getEntry(entry.name))
+                    }
+                })
             }
         } else {
             // Add file entry
-            loadedSources.getOrPut(normalizeZipPath(locatedPath.path)) { ArrayList() }.add(AssemblySource(locatedPath.toString(), file, file.lastModified.toMillis(), own) {
+            loadedSources.getOrPut(normalizeZipPath(locatedPath.path)) { ArrayList() }.add(AssemblySource(locatedPath.toString(), file, file.lastModified.toMillis(), own, file))
+        }
+    }
+
+    /** Add entries of zip [file], which can't be read by [readZipIndex], through [ZipFile]. */
+    private fun addZipFileSource(file: Path, own: Boolean) {
+        val zip = ZipFile(file.toFile(), ZipFile.OPEN_READ, StandardCharsets.UTF_8)
+        filesToClose.add(zip)
+        val lastModified = file.lastModified.toMillis()
 
-                Files.readAllBytes(file)
+        for (entry in zip.entries()) {
+            if (entry.isDirectory) continue
+
+            val path = normalizeZipPath(entry.name)
+            loadedSources.getOrPut(path) { ArrayList() }.add(AssemblySource(file.absolutePath + '?' + path, file, lastModified, own, null) {
+                zip.getInputStream(entry)
             })
         }
     }
@@ -133,13 +256,248 @@ class AssemblyOperation : Closeable {
         loadedSources.getOrPut(normalizeZipPath(path)) { ArrayList() }.add(AssemblySource("(custom $path)", null, -1L, own, data))
     }
 
+    /** Compute CRC-32 and size of the data of [source]. Returns it as a [ZipIndexEntry] with [path], without location. */
+    private fun checksum(path: String, source: AssemblySource): ZipIndexEntry {
+        val crc = CRC32()
+        val buffer = ByteArray(8192)
+        var size = 0L
+        source.openStream().use { stream ->
+            while (true) {
+                val read = stream.read(buffer)
+                if (read < 0) {
+                    break
+                }
+                crc.update(buffer, 0, read)
+                size += read
+            }
+        }
+        return ZipIndexEntry(path, ZIP_STORED, 0, crc.value, size, size, -1L)
+    }
+
+    /**
+     * Describe everything that affects the content of the archive created by [assembly] from [assemblySources].
+     * Sources are described by their content checksum, or by path, size and modification time of their file,
+     * which is cheaper to obtain.
+     *
+     * @return null if the archive can't be described, because it is created by arbitrary functions
+     */
+    private fun assemblyInputs(assemblySources: Map<String, AssemblySource>,
+                               mapFilter: AssemblyMapFilter, streamMapFilter: AssemblyStreamMapFilter,
+                               prependData: ByteArray, compress: Boolean, compressionLevel: Int): AssemblyInputs? {
+        if (mapFilter !== DefaultAssemblyMapFilter || streamMapFilter !== DefaultAssemblyStreamMapFilter) {
+            return null
+        }
+
+        val entries = ArrayList<String>(assemblySources.size)
+        for ((path, source) in assemblySources) {
+            if (path.contains('\t') || path.contains('\n') || path.contains('\r')) {
+                return null
+            }
+
+            val rawEntry = source.rawEntry
+            val contentFile = source.contentFile
+            val fingerprint = if (rawEntry != null) {
+                "${rawEntry.entry.crc} ${rawEntry.entry.size}"
+            } else if (contentFile != null) {
+                "${contentFile.absolutePath} ${Files.size(contentFile)} ${contentFile.lastModified.toMillis()}"
+            } else {
+                val checksum = checksum(path, source)
+                "${checksum.crc} ${checksum.size}"
+            }
+            entries.add("$path\t$fingerprint")
+        }
+
+        return AssemblyInputs("$compress $compressionLevel ${prependData.size} ${crc32(prependData)}", entries)
+    }
+
+    /**
+     * Do the merges planned by [resolve], [threads] at the same time.
+     * Merges of different paths are independent, so the result does not depend on the order in which they are done.
+     * @return merged sources, in the same order as [paths], null where the merge failed
+     */
+    private fun mergeAll(paths: List<String>, strategies: List<MergeStrategy>, sources: List<List<AssemblySource>>,
+                         threads: Int): Array<AssemblySource?> {
+        val results = arrayOfNulls<AssemblySource>(paths.size)
+        // Each task merges every tasks-th path, small merges are not worth the overhead of a task
+        val tasks = Math.min(threads, (paths.size + MERGES_PER_TASK - 1) / MERGES_PER_TASK)
+
+        fun mergeTask(first: Int, step: Int) {
+            var i = first
+            while (i < paths.size) {
+                results[i] = merge(paths[i], strategies[i], sources[i])
+                i += step
+            }
+        }
+
+        if (tasks <= 1) {
+            mergeTask(0, 1)
+            return results
+        }
+
+        val futures = (1 until tasks).map { first -> WorkerPool.submit<Unit> { mergeTask(first, tasks) } }
+        try {
+            mergeTask(0, tasks)
+        } finally {
+            for (future in futures) {
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        }
+        return results
+    }
+
+    /**
+     * Merge [dataList] at [path] with [strategy], which is [MergeStrategy.Lines], [MergeStrategy.UniqueLines]
+     * or [MergeStrategy.Deduplicate].
+     * @return merged source or null if they can't be merged (errors are logged)
+     */
+    private fun merge(path: String, strategy: MergeStrategy, dataList: List<AssemblySource>): AssemblySource? {
+        return when (strategy) {
+            MergeStrategy.Lines, MergeStrategy.UniqueLines -> mergeLines(strategy, dataList)
+            MergeStrategy.Deduplicate -> {
+                var hasError = false
+                for (i in 1..dataList.lastIndex) {
+                    // Entries of zip files have known checksums, only other content has to be compared
+                    val firstEntry = dataList[0].rawEntry?.entry
+                    val otherEntry = dataList[i].rawEntry?.entry
+                    val same = if (firstEntry != null && otherEntry != null) {
+                        firstEntry.crc == otherEntry.crc && firstEntry.size == otherEntry.size
+                    } else {
+                        sameContent(dataList[0], dataList[i])
+                    }
+
+                    if (!same) {
+                        LOG.error("Content for path {} given by {} is not the same as the content provided by {}", path, dataList[0], dataList[i])
+                        hasError = true
+                    }
+                }
+
+                if (hasError) null else dataList[0]
+            }
+            else -> throw IllegalArgumentException("Can't merge $strategy")
+        }
+    }
+
+    /** Line based merge, without decoding the data from UTF-8 (which is not needed, because it is ASCII compatible). */
+    private fun mergeLines(strategy: MergeStrategy, dataList: List<AssemblySource>): AssemblySource {
+        val lines: MutableCollection<ByteLine> = if (strategy != MergeStrategy.UniqueLines) ArrayList() else LinkedHashSet()
+        var lineEnding: ByteArray? = null
+
+        for (assemblySource in dataList) {
+            val data = assemblySource.data
+            var crlf = false
+            var lf = false
+            var cr = false
+
+            var lineStart = 0
+            var i = 0
+            while (i < data.size) {
+                val b = data[i]
+                if (b == LF) {
+                    lf = true
+                    lines.add(ByteLine(data, lineStart, i))
+                    i += 1
+                    lineStart = i
+                } else if (b == CR) {
+                    lines.add(ByteLine(data, lineStart, i))
+                    if (i + 1 < data.size && data[i + 1] == LF) {
+                        crlf = true
+                        i += 2
+                    } else {
+                        cr = true
+                        i += 1
+                    }
+                    lineStart = i
+                } else {
+                    i += 1
+                }
+            }
+            // Last line, if not terminated (there is no empty trailing line)
+            if (lineStart < data.size) {
+                lines.add(ByteLine(data, lineStart, data.size))
+            }
+
+            // First source with line endings decides which are used
+            if (lineEnding == null) {
+                lineEnding = if (crlf) LINE_ENDING_CRLF else if (lf) LINE_ENDING_LF else if (cr) LINE_ENDING_CR else null
+            }
+        }
+
+        val ending = lineEnding ?: LINE_ENDING_LF
+        var totalLength = 0
+        for (line in lines) {
+            totalLength += line.end - line.start + ending.size
+        }
+
+        val result = ByteArray(totalLength)
+        var position = 0
+        for (line in lines) {
+            val length = line.end - line.start
+            System.arraycopy(line.data, line.start, result, position, length)
+            position += length
+            System.arraycopy(ending, 0, result, position, ending.size)
+            position += ending.size
+        }
+
+        return AssemblySource(strategy.name, null, lastModifiedOf(dataList), false, result)
+    }
+
+    /** Time of the newest of merged [sources], so that the merged entry is the same when they are, or -1 if unknown. */
+    private fun lastModifiedOf(sources: List<AssemblySource>): Long {
+        var lastModified = -1L
+        for (source in sources) {
+            lastModified = maxOf(lastModified, source.lastModifiedMs)
+        }
+        return lastModified
+    }
+
+    /** Compare data of [first] and [second] source, without loading them into memory. */
+    private fun sameContent(first: AssemblySource, second: AssemblySource): Boolean {
+        val firstBuffer = ByteArray(8192)
+        val secondBuffer = ByteArray(8192)
+
+        fun InputStream.readBlock(buffer: ByteArray): Int {
+            var length = 0
+            while (length < buffer.size) {
+                val read = read(buffer, length, buffer.size - length)
+                if (read < 0) {
+                    break
+                }
+                length += read
+            }
+            return length
+        }
+
+        first.openStream().use { firstStream ->
+            second.openStream().use { secondStream ->
+                do {
+                    val firstLength = firstStream.readBlock(firstBuffer)
+                    val secondLength = secondStream.readBlock(secondBuffer)
+                    if (firstLength != secondLength) {
+                        return false
+                    }
+                    for (i in 0 until firstLength) {
+                        if (firstBuffer[i] != secondBuffer[i]) {
+                            return false
+                        }
+                    }
+                } while (firstLength == firstBuffer.size)
+            }
+        }
+        return true
+    }
+
     /**
      * Resolve duplicates and return sources that should be assembled into the resulting archive.
      * Used by [assembly].
      * [mergeStrategy] and [renameFunction] are used iff [addSource] has added duplicate entries,
      * to resolve how they should be handled.
      */
-    fun resolve(mergeStrategy: MergeStrategyChooser, renameFunction: RenameFunction): MutableMap<String, AssemblySource>? {
+    fun resolve(mergeStrategy: MergeStrategyChooser, renameFunction: RenameFunction,
+                threads: Int = Runtime.getRuntime().availableProcessors()): MutableMap<String, AssemblySource>? {
         // Trim duplicates
         val assemblySources = LinkedHashMap<String, AssemblySource>()
 
@@ -148,6 +506,11 @@ class AssemblyOperation : Closeable {
         // Renaming has to be done later, because it is not yet known which paths are clean for renaming
         val sourcesToBeRenamed = LinkedHashMap<String, ArrayList<AssemblySource>>()
 
+        // Merges which read the data are planned and done later, see merge
+        val plannedPaths = ArrayList<String>()
+        val plannedStrategies = ArrayList<MergeStrategy>()
+        val plannedSources = ArrayList<List<AssemblySource>>()
+
         for ((path, dataList) in loadedSources) {
             if (dataList.size == 1) {
                 val single = dataList[0]
@@ -210,22 +573,8 @@ class AssemblyOperation : Closeable {
                     hasError = true
                 }
                 MergeStrategy.Concatenate -> {
-                    var totalLength = 0
-                    val data = Array(dataList.size) { i ->
-                        val loaded = dataList[i].data
-                        totalLength += loaded.size
-                        loaded
-                    }
-
-                    val concatenated = ByteArray(totalLength)
-                    var pointer = 0
-                    for (d in data) {
-                        System.arraycopy(d, 0, concatenated, pointer, d.size)
-                        pointer += d.size
-                    }
-
                     if (LOG.isDebugEnabled) {
-                        LOG.debug("Including {} concatenated items ({} bytes total)", dataList.size, totalLength)
+                        LOG.debug("Including {} concatenated items", dataList.size)
                         var i = 1
                         for (source in dataList) {
                             LOG.debug("\t{}) {}", i, source)
@@ -233,47 +582,24 @@ class AssemblyOperation : Closeable {
                         }
                     }
 
-                    assemblySources[path] = AssemblySource(strategy.name, null, System.currentTimeMillis(), false, concatenated)
-                }
-                MergeStrategy.Lines, MergeStrategy.UniqueLines -> {
-                    val lineEndings = arrayOf("\r\n", "\n", "\r")
-                    val lines: MutableCollection<String> = if (strategy != MergeStrategy.UniqueLines) ArrayList() else LinkedHashSet()
-                    var lineEnding: String? = null
-                    var totalLength = 0
-                    var lineEndingsInconsistent = false
-
-                    for (assemblySource in dataList) {
-                        val sourceString = String(assemblySource.data, Charsets.UTF_8)
-                        val sourceLines = sourceString.split(*lineEndings)
-                        if (!lineEndingsInconsistent && sourceLines.size > 1) {
-                            // If line endings are inconsistent, or there are none, don't bother searching
-                            for (le in lineEndings) {
-                                if (sourceString.contains(le)) {
-                                    if (lineEnding == null) {
-                                        lineEnding = le
-                                    } else if (lineEnding != le) {
-                                        lineEndingsInconsistent = true
-                                    }
-                                    break
-                                }
-                            }
-                        }
-                        // Add all lines (except empty trailing newline)
-                        for (i in 0 until sourceLines.size - if (sourceLines.last().isEmpty()) 1 else 0) {
-                            lines.add(sourceLines[i].apply { totalLength += length })
-                        }
-                    }
+                    // Sources are opened one after another, only when the previous one is exhausted
+                    assemblySources[path] = AssemblySource(strategy.name, null, lastModifiedOf(dataList), false, null) {
+                        SequenceInputStream(object : Enumeration<InputStream> {
+                            private var next = 0
 
-                    if (lineEnding == null) {
-                        lineEnding = "\n"
-                    }
+                            override fun hasMoreElements(): Boolean = next < dataList.size
 
-                    val result = StringBuilder(totalLength + lines.size * lineEnding.length)
-                    for (line in lines) {
-                        result.append(line).append(lineEnding)
+                            override fun nextElement(): InputStream = dataList[next++].openStream()
+                        })
                     }
-
-                    assemblySources[path] = AssemblySource(strategy.name, null, System.currentTimeMillis(), false, result.toString().toByteArray(Charsets.UTF_8))
+                }
+                MergeStrategy.Lines, MergeStrategy.UniqueLines, MergeStrategy.Deduplicate -> {
+                    // These need to read the data, so they are done later, all at the same time.
+                    // First source holds the place, so that the order of entries is kept.
+                    assemblySources[path] = dataList[0]
+                    plannedPaths.add(path)
+                    plannedStrategies.add(strategy)
+                    plannedSources.add(dataList)
                 }
                 MergeStrategy.Discard -> {
                     if (LOG.isDebugEnabled) {
@@ -285,24 +611,23 @@ class AssemblyOperation : Closeable {
                         }
                     }
                 }
-                MergeStrategy.Deduplicate -> {
-                    val data = Array(dataList.size) { i -> dataList[i].data }
-
-                    for (i in 1..data.lastIndex) {
-                        if (!data[0].contentEquals(data[i])) {
-                            LOG.error("Content for path {} given by {} is not the same as the content provided by {}", path, dataList[0], dataList[i])
-                            hasError = true
-                        }
-                    }
-
-                    assemblySources[path] = dataList[0]
-                }
                 MergeStrategy.Rename -> {
                     sourcesToBeRenamed[path] = dataList
                 }
             }
         }
 
+        // Do planned merges
+        val merged = mergeAll(plannedPaths, plannedStrategies, plannedSources, threads)
+        for (i in plannedPaths.indices) {
+            val mergedSource = merged[i]
+            if (mergedSource == null) {
+                hasError = true
+            } else {
+                assemblySources[plannedPaths[i]] = mergedSource
+            }
+        }
+
         // Resolve those that should be renamed
         if (sourcesToBeRenamed.isNotEmpty()) {
             for ((path, dataList) in sourcesToBeRenamed) {
@@ -348,63 +673,265 @@ class AssemblyOperation : Closeable {
      * [prependData] will be prepended to the jar, but not in accordance with zip file format. `java` can still
      * read those files, but other tools do not.
      *
+     * Data is streamed from the sources to the [outputFile], so only a constant amount of memory is needed,
+     * unless [mapFilter] or some [MergeStrategy] needs to hold it.
+     *
+     * @param mapFilter applied first, see [AssemblyMapFilter]
+     * @param streamMapFilter applied to the result of [mapFilter], see [AssemblyStreamMapFilter]
+     * @param compressionLevel of [Deflater], used when [compress]ing
+     * @param compressionThreads how many entries can be compressed at the same time. The result does not depend on this.
+     * @param incremental reuse compressed entries of the previous [outputFile], whose content did not change.
+     * Previous output is described by a manifest file, stored next to it (see [assemblyManifestFile]).
+     * @param shrinkRoots when not null, classes not reachable from these class name patterns (and other roots,
+     * see [shrinkAssemblySources]) are not included, removed classes are listed in [assemblyShrinkMappingFile]
+     *
+     * When the [outputFile] was already created with the same sources and settings, it is not written again.
+     * Inputs of the [outputFile] are stored next to it for this purpose (see [assemblyInputsFile]).
+     * This is not possible with custom [mapFilter] or [streamMapFilter].
      * @see resolve
      * @throws WemiException on failure
      */
-    fun assembly(mergeStrategy: MergeStrategyChooser, renameFunction: RenameFunction, mapFilter:AssemblyMapFilter, outputFile: Path, prependData: ByteArray, compress: Boolean) {
+    fun assembly(mergeStrategy: MergeStrategyChooser, renameFunction: RenameFunction, mapFilter:AssemblyMapFilter,
+                 outputFile: Path, prependData: ByteArray, compress: Boolean,
+                 streamMapFilter: AssemblyStreamMapFilter = DefaultAssemblyStreamMapFilter,
+                 compressionLevel: Int = Deflater.DEFAULT_COMPRESSION, compressionThreads: Int = 1,
+                 incremental: Boolean = false, shrinkRoots: Collection<String>? = null) {
         val assemblySources = resolve(mergeStrategy, renameFunction)
                 ?: throw WemiException("assembly task failed", showStacktrace = false)
 
-        BufferedOutputStream(Files.newOutputStream(outputFile)).use { out ->
+        if (shrinkRoots != null) {
+            shrinkAssemblySources(assemblySources, shrinkRoots, assemblyShrinkMappingFile(outputFile))
+        }
+
+        val inputsFile = assemblyInputsFile(outputFile)
+        val inputs = assemblyInputs(assemblySources, mapFilter, streamMapFilter, prependData, compress, compressionLevel)
+        // Previous output is read while the new one is being written, so the new one is written to a different file
+        val manifestFile = assemblyManifestFile(outputFile)
+        val previousManifest = if (incremental) {
+            readAssemblyManifest(manifestFile)?.takeIf { it.describes(outputFile, compress, compressionLevel) }
+        } else null
+
+        // Skip only if the next incremental assembly will be possible
+        if (inputs != null && (!incremental || previousManifest != null) && assemblyInputsMatch(inputsFile, inputs, outputFile)) {
+            LOG.debug("{} is up to date", outputFile)
+            return
+        }
+        Files.deleteIfExists(inputsFile)
+        Files.deleteIfExists(manifestFile)
+
+        var previousOutput: ZipSourceFile? = null
+        if (previousManifest != null) {
+            try {
+                previousOutput = ZipSourceFile(outputFile).apply { channel() }
+            } catch (e: IOException) {
+                LOG.debug("Failed to open previous assembly output {}", outputFile, e)
+            }
+        }
+        val writtenFile = if (previousOutput == null) outputFile else outputFile.resolveSibling("${outputFile.name}.wemi-part")
+        val writtenEntries = LinkedHashMap<String, ZipIndexEntry>()
+
+        try {
+            writeAssembly(assemblySources, mapFilter, streamMapFilter, writtenFile, prependData, compress,
+                    compressionLevel, compressionThreads, previousManifest, previousOutput, writtenEntries)
+        } catch (e: Throwable) {
+            if (writtenFile != outputFile) {
+                try {
+                    Files.deleteIfExists(writtenFile)
+                } catch (ignored: IOException) {
+                }
+            }
+            throw e
+        } finally {
+            previousOutput?.close()
+        }
+
+        if (writtenFile != outputFile) {
+            Files.move(writtenFile, outputFile, StandardCopyOption.REPLACE_EXISTING)
+        }
+        if (inputs != null) {
+            writeAssemblyInputs(inputsFile, inputs, outputFile)
+        }
+        if (incremental) {
+            writeAssemblyManifest(manifestFile, AssemblyManifest(compress, compressionLevel,
+                    Files.size(outputFile), outputFile.lastModified.toMillis(), writtenEntries))
+        }
+    }
+
+    /** Implementation of [assembly], which writes resolved [assemblySources] to [outputFile]
+     * and stores the written entries to [writtenEntries]. */
+    private fun writeAssembly(assemblySources: Map<String, AssemblySource>,
+                              mapFilter: AssemblyMapFilter, streamMapFilter: AssemblyStreamMapFilter,
+                              outputFile: Path, prependData: ByteArray, compress: Boolean,
+                              compressionLevel: Int, compressionThreads: Int,
+                              previousManifest: AssemblyManifest?, previousOutput: ZipSourceFile?,
+                              writtenEntries: MutableMap<String, ZipIndexEntry>) {
+        val outChannel = FileChannel.open(outputFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+        BufferedOutputStream(Channels.newOutputStream(outChannel)).use { out ->
             if (prependData.isNotEmpty()) {
                 out.write(prependData)
             }
 
-            val jarOut = JarOutputStream(out)
+            // Entries which are not compressed and entries copied from other files are transferred directly to outChannel
+            val zipOut = ZipWriter(out, outChannel)
+            // Entries from other archives, which already have the right compression method and are not modified,
+            // are copied directly, without decompressing and compressing them again.
+            // There is no point in deflating with no compression, such entries are stored instead.
+            val rawMethod = if (compress && compressionLevel != Deflater.NO_COMPRESSION) ZIP_DEFLATED else ZIP_STORED
+            var rawEntries = 0
+            var reusedEntries = 0
+
+            // Entries are compressed independently of each other, so they can be compressed in parallel
+            // and the result is the same as if they were compressed one after another.
+            // Up to compressionThreads entries are compressed at the same time, while the entries before them are written.
+            val pending = ArrayDeque<PendingEntry>()
+            var pendingCompressions = 0
+            val idleCompressors = ArrayList<EntryCompressor>()
+            val compressors = ArrayList<EntryCompressor>()
+
+            fun writePendingEntry() {
+                val pendingEntry = pending.removeFirst()
+                val path = pendingEntry.path
+                val source = pendingEntry.source
+                val rawEntry = pendingEntry.rawEntry
+
+                if (rawEntry != null) {
+                    val entry = rawEntry.entry
+                    val channel = rawEntry.zip.channel()
+                    val offset = zipOut.writeEntry(path, source.lastModifiedMs, entry.method, entry.crc, entry.size, entry.compressedSize,
+                            channel, entry.dataOffset(channel))
+                    writtenEntries[path] = ZipIndexEntry(path, entry.method, 0, entry.crc, entry.compressedSize, entry.size, prependData.size + offset)
+                    if (rawEntry.zip === previousOutput) {
+                        reusedEntries++
+                    } else {
+                        rawEntries++
+                    }
 
-            val crc: CRC32? = if (compress) null else CRC32()
+                    if (LOG.isDebugEnabled) {
+                        LOG.debug("Copying entry {} ({} bytes) from {}", path, entry.size, source)
+                    }
+                } else {
+                    val compressor = try {
+                        pendingEntry.compressed!!.get()
+                    } catch (e: ExecutionException) {
+                        throw e.cause ?: e
+                    }
+                    pendingCompressions--
+
+                    val entryBuffer = compressor.buffer
+                    val storedFile = entryBuffer.storedFile
+                    val offset = if (storedFile != null) {
+                        zipOut.writeEntry(path, source.lastModifiedMs, rawMethod, entryBuffer.crcValue, entryBuffer.size, entryBuffer.compressedSize,
+                                storedFile, 0L)
+                    } else {
+                        zipOut.writeEntry(path, source.lastModifiedMs, rawMethod, entryBuffer.crcValue, entryBuffer.size, entryBuffer.compressedSize) { entryOut ->
+                            entryBuffer.writeTo(entryOut)
+                        }
+                    }
+                    writtenEntries[path] = ZipIndexEntry(path, rawMethod, 0, entryBuffer.crcValue, entryBuffer.compressedSize, entryBuffer.size, prependData.size + offset)
+                    idleCompressors.add(compressor)
 
-            for ((path, source) in assemblySources) {
-                val data = mapFilter(path, source)
-                if (data == null) {
                     if (LOG.isDebugEnabled) {
-                        LOG.debug("Filtered out entry {} from {}", path, source)
+                        LOG.debug("Writing out entry {} ({} bytes) from {}", path, entryBuffer.size, source)
                     }
-                    continue
                 }
+            }
 
-                val entry = ZipEntry(path)
-                if (compress) {
-                    entry.method = ZipEntry.DEFLATED
-                    entry.size = data.size.toLong()
-                    // compressed size and crc unknown
-                } else {
-                    entry.method = ZipEntry.STORED
-                    entry.size = data.size.toLong()
-                    entry.compressedSize = entry.size
-                    crc!!.update(data)
-                    entry.crc = crc.value
-                    crc.reset()
-                }
+            try {
+                for ((path, originalSource) in assemblySources) {
+                    var source = originalSource
+                    if (mapFilter !== DefaultAssemblyMapFilter) {
+                        val data = mapFilter(path, source)
+                        if (data == null) {
+                            if (LOG.isDebugEnabled) {
+                                LOG.debug("Filtered out entry {} from {}", path, source)
+                            }
+                            continue
+                        }
+
+                        val originalEntry = source.rawEntry?.entry
+                        if (originalEntry == null || originalEntry.size != data.size.toLong() || originalEntry.crc != crc32(data)) {
+                            source = AssemblySource(source.toString(), source.sourceFile, source.lastModifiedMs, source.own, data)
+                        }
+                    }
 
-                if (source.lastModifiedMs != -1L) {
-                    entry.time = source.lastModifiedMs
+                    val mappedSource = streamMapFilter(path, source)
+                    if (mappedSource == null) {
+                        if (LOG.isDebugEnabled) {
+                            LOG.debug("Filtered out entry {} from {}", path, source)
+                        }
+                        continue
+                    }
+
+                    var rawEntry = if (mappedSource === originalSource) {
+                        mappedSource.rawEntry?.takeIf { it.entry.method == rawMethod }
+                    } else null
+
+                    if (rawEntry == null && previousOutput != null) {
+                        // Reuse the entry of the previous output, if it has the same content
+                        val previousEntry = previousManifest?.entries?.get(path)
+                        if (previousEntry != null && previousEntry.method == rawMethod) {
+                            val checksum = mappedSource.rawEntry?.entry ?: checksum(path, mappedSource)
+                            if (checksum.crc == previousEntry.crc && checksum.size == previousEntry.size) {
+                                rawEntry = RawZipEntry(previousOutput, previousEntry)
+                            }
+                        }
+                    }
+
+                    if (rawEntry != null) {
+                        pending.addLast(PendingEntry(path, mappedSource, rawEntry, null))
+                    } else {
+                        val compressor = if (idleCompressors.isEmpty()) {
+                            EntryCompressor(rawMethod == ZIP_DEFLATED, compressionLevel).also { compressors.add(it) }
+                        } else idleCompressors.removeAt(idleCompressors.lastIndex)
+
+                        val contentFile = mappedSource.contentFile
+                        val compression = if (contentFile != null) {
+                            FutureTask<EntryCompressor> {
+                                compressor.load(contentFile)
+                                compressor
+                            }
+                        } else {
+                            // Stream is opened here, because it may run arbitrary code
+                            val stream = mappedSource.openStream()
+                            FutureTask<EntryCompressor> {
+                                compressor.load(stream)
+                                compressor
+                            }
+                        }
+                        if (compressionThreads > 1) {
+                            WorkerPool.execute(compression)
+                        } else {
+                            compression.run()
+                        }
+                        pending.addLast(PendingEntry(path, mappedSource, null, compression))
+                        pendingCompressions++
+                    }
+
+                    // Write what can be written
+                    while (pending.isNotEmpty() && (pendingCompressions >= compressionThreads || pending.peekFirst().compressed?.isDone != false)) {
+                        writePendingEntry()
+                    }
                 }
 
-                jarOut.putNextEntry(entry)
-                jarOut.write(data)
-                jarOut.closeEntry()
+                while (pending.isNotEmpty()) {
+                    writePendingEntry()
+                }
 
-                if (LOG.isDebugEnabled) {
-                    LOG.debug("Writing out entry {} ({} bytes) from {}", path, data.size, source)
+                zipOut.finish()
+            } finally {
+                // Wait for compressions which are still running, if this failed
+                for (pendingEntry in pending) {
+                    try {
+                        pendingEntry.compressed?.get()
+                    } catch (ignored: Exception) {
+                    }
+                }
+                for (compressor in compressors) {
+                    compressor.close()
                 }
             }
 
-            jarOut.finish()
-            jarOut.flush()
-            jarOut.close()
-
-            LOG.debug("{} entries written", assemblySources.size)
+            LOG.debug("{} entries written ({} copied without recompression, {} reused from previous output)", zipOut.entryCount, rawEntries, reusedEntries)
         }
     }
 
@@ -0,0 +1,104 @@
+package wemi.assembly
+
+import org.slf4j.LoggerFactory
+import wemi.util.lastModified
+import wemi.util.name
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+private val LOG = LoggerFactory.getLogger("AssemblyInputs")
+
+/**
+ * Describes inputs of an archive created by [AssemblyOperation.assembly], so that it does not have to be written again,
+ * when they did not change.
+ *
+ * @param settings which affect the content of the archive, in any form
+ * @param entries of the archive, each is the path of the entry, tab and fingerprint of its source
+ */
+internal class AssemblyInputs(val settings: String, val entries: List<String>)
+
+private const val INPUTS_HEADER = "wemi-assembly-inputs 1"
+
+/** File with [AssemblyInputs] of the archive at [outputFile]. */
+internal fun assemblyInputsFile(outputFile: Path): Path {
+    return outputFile.resolveSibling("${outputFile.name}.inputs")
+}
+
+/**
+ * Check that [inputsFile] (written by [writeAssemblyInputs]) stores the same [inputs]
+ * and that the [outputFile] was not changed since.
+ *
+ * The [outputFile] is verified by its size, modification time and by the number of entries in its central directory.
+ */
+internal fun assemblyInputsMatch(inputsFile: Path, inputs: AssemblyInputs, outputFile: Path): Boolean {
+    if (!Files.exists(inputsFile) || !Files.exists(outputFile)) {
+        return false
+    }
+
+    try {
+        Files.newBufferedReader(inputsFile, Charsets.UTF_8).use { reader ->
+            if (reader.readLine() != INPUTS_HEADER) {
+                return false
+            }
+            val output = reader.readLine()?.split(' ') ?: return false
+            if (output.size != 2
+                    || output[0].toLong() != Files.size(outputFile)
+                    || output[1].toLong() != outputFile.lastModified.toMillis()) {
+                LOG.debug("{} was changed", outputFile)
+                return false
+            }
+            if (reader.readLine() != inputs.settings) {
+                LOG.debug("Settings of {} changed", outputFile)
+                return false
+            }
+            for (entry in inputs.entries) {
+                val storedEntry = reader.readLine()
+                if (storedEntry != entry) {
+                    LOG.debug("Inputs of {} changed: {} -> {}", outputFile, storedEntry, entry)
+                    return false
+                }
+            }
+            if (reader.readLine() != null) {
+                LOG.debug("Inputs of {} changed: some entries were removed", outputFile)
+                return false
+            }
+        }
+
+        val entryCount = FileChannel.open(outputFile, StandardOpenOption.READ).use { readZipIndex(it).size }
+        if (entryCount != inputs.entries.size) {
+            LOG.debug("{} is damaged, it has {} entries instead of {}", outputFile, entryCount, inputs.entries.size)
+            return false
+        }
+        return true
+    } catch (e: Exception) {
+        LOG.debug("Failed to check assembly inputs {}", inputsFile, e)
+        return false
+    }
+}
+
+/**
+ * Write the [inputs] of [outputFile] to [inputsFile].
+ * Failure is not fatal, next assembly will just not be skipped.
+ */
+internal fun writeAssemblyInputs(inputsFile: Path, inputs: AssemblyInputs, outputFile: Path) {
+    try {
+        Files.newBufferedWriter(inputsFile, Charsets.UTF_8).use { writer ->
+            writer.append(INPUTS_HEADER).append('\n')
+            writer.append(Files.size(outputFile).toString()).append(' ')
+                    .append(outputFile.lastModified.toMillis().toString()).append('\n')
+            writer.append(inputs.settings).append('\n')
+            for (entry in inputs.entries) {
+                writer.append(entry).append('\n')
+            }
+        }
+    } catch (e: IOException) {
+        LOG.warn("Failed to write assembly inputs {}", inputsFile, e)
+        try {
+            Files.deleteIfExists(inputsFile)
+        } catch (ignored: IOException) {
+        }
+    }
+}
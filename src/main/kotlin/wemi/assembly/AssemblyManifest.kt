@@ -0,0 +1,117 @@
+package wemi.assembly
+
+import org.slf4j.LoggerFactory
+import wemi.util.lastModified
+import wemi.util.name
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+
+private val LOG = LoggerFactory.getLogger("AssemblyManifest")
+
+/**
+ * Describes entries of an archive created by [AssemblyOperation.assembly], so that their compressed data
+ * can be reused by the next incremental assembly, if their content does not change.
+ *
+ * Entries are identified by their path and their content by CRC-32 and size of the uncompressed data.
+ *
+ * @param outputSize size of the archive file, to check that the archive was not changed since
+ * @param outputModifiedMs last modification time of the archive file, to check that the archive was not changed since
+ */
+internal class AssemblyManifest(val compress: Boolean, val compressionLevel: Int,
+                                val outputSize: Long, val outputModifiedMs: Long,
+                                val entries: Map<String, ZipIndexEntry>) {
+
+    /** Check that [file] is the archive described by this manifest and that it was created with the same settings. */
+    fun describes(file: Path, compress: Boolean, compressionLevel: Int): Boolean {
+        if (this.compress != compress || (compress && this.compressionLevel != compressionLevel)) {
+            return false
+        }
+        return try {
+            Files.size(file) == outputSize && file.lastModified.toMillis() == outputModifiedMs
+        } catch (e: IOException) {
+            false
+        }
+    }
+}
+
+private const val MANIFEST_HEADER = "wemi-assembly-manifest 1"
+
+/** File with [AssemblyManifest] of the archive at [outputFile]. */
+internal fun assemblyManifestFile(outputFile: Path): Path {
+    return outputFile.resolveSibling("${outputFile.name}.manifest")
+}
+
+/**
+ * Load manifest written by [writeAssemblyManifest].
+ * @return null if it does not exist or is invalid
+ */
+internal fun readAssemblyManifest(manifestFile: Path): AssemblyManifest? {
+    if (!Files.exists(manifestFile)) {
+        return null
+    }
+
+    try {
+        Files.newBufferedReader(manifestFile, Charsets.UTF_8).use { reader ->
+            if (reader.readLine() != MANIFEST_HEADER) {
+                return null
+            }
+            val settings = reader.readLine()?.split(' ') ?: return null
+            if (settings.size != 4) {
+                return null
+            }
+
+            val entries = HashMap<String, ZipIndexEntry>()
+            while (true) {
+                val line = reader.readLine() ?: break
+                val parts = line.split('\t')
+                if (parts.size != 6) {
+                    return null
+                }
+                val path = parts[0]
+                entries[path] = ZipIndexEntry(path, parts[1].toInt(), 0,
+                        parts[2].toLong(), parts[4].toLong(), parts[3].toLong(), parts[5].toLong())
+            }
+
+            return AssemblyManifest(settings[0].toBoolean(), settings[1].toInt(), settings[2].toLong(), settings[3].toLong(), entries)
+        }
+    } catch (e: Exception) {
+        LOG.debug("Failed to read assembly manifest {}", manifestFile, e)
+        return null
+    }
+}
+
+/**
+ * Write the [manifest] to [manifestFile].
+ * Failure is not fatal, next assembly will just not be incremental.
+ */
+internal fun writeAssemblyManifest(manifestFile: Path, manifest: AssemblyManifest) {
+    try {
+        Files.newBufferedWriter(manifestFile, Charsets.UTF_8).use { writer ->
+            writer.append(MANIFEST_HEADER).append('\n')
+            writer.append(manifest.compress.toString()).append(' ')
+                    .append(manifest.compressionLevel.toString()).append(' ')
+                    .append(manifest.outputSize.toString()).append(' ')
+                    .append(manifest.outputModifiedMs.toString()).append('\n')
+
+            for ((path, entry) in manifest.entries) {
+                if (path.contains('\t') || path.contains('\n') || path.contains('\r')) {
+                    // Can't be stored, will be always compressed again
+                    continue
+                }
+                writer.append(path).append('\t')
+                        .append(entry.method.toString()).append('\t')
+                        .append(entry.crc.toString()).append('\t')
+                        .append(entry.size.toString()).append('\t')
+                        .append(entry.compressedSize.toString()).append('\t')
+                        .append(entry.localHeaderOffset.toString()).append('\n')
+            }
+        }
+    } catch (e: IOException) {
+        LOG.warn("Failed to write assembly manifest {}", manifestFile, e)
+        try {
+            Files.deleteIfExists(manifestFile)
+        } catch (ignored: IOException) {
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package wemi.assembly
 
+import wemi.util.absolutePath
+import java.io.ByteArrayInputStream
+import java.io.Closeable
+import java.io.InputStream
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.ZipFile
 
 /** Used by [wemi.Keys.assemblyMergeStrategy] and [wemi.Keys.assemblyRenameFunction] as a representation of data source.
- * Most fields are internally cached. */
+ * Data is not held in memory, unless given directly, it is loaded from its source each time it is needed. */
 class AssemblySource private constructor(
-        /** Debug name of the source */
-        private val name:String,
+        /** Debug name of the source, derived from [rawEntry] if null */
+        private val name:String?,
         /** File from which the data somehow originated, if any.
          * This is just a hint, for example for [wemi.Keys.assemblyRenameFunction].
          * File may even be a directory, archive, etc.*/
@@ -14,34 +23,103 @@ class AssemblySource private constructor(
         /** Time of last modification. -1 if unknown */
         val lastModifiedMs: Long,
         /** Is this from the [wemi.Keys.internalClasspath]? */
-        val own: Boolean) {
+        val own: Boolean,
+        private val inMemoryData:ByteArray?,
+        private val streamOpener:(() -> InputStream)?,
+        /** Zip entry from which the data come unchanged, if any */
+        internal val rawEntry:RawZipEntry?,
+        /** File whose whole content are the data, if any */
+        internal val contentFile:Path?) {
 
     constructor(name:String, sourceFile:Path?, lastModifiedMs:Long, own:Boolean, data:ByteArray)
-            : this (name, sourceFile, lastModifiedMs, own) {
-        this._data = data
-    }
+            : this (name, sourceFile, lastModifiedMs, own, data, null, null, null)
 
     constructor(name:String, sourceFile:Path?, lastModifiedMs:Long, own:Boolean, loadData:() -> ByteArray)
-            : this (name, sourceFile, lastModifiedMs, own) {
-        this.dataRetriever = loadData
-    }
+            : this (name, sourceFile, lastModifiedMs, own, null, { ByteArrayInputStream(loadData()) }, null, null)
+
+    /** Data is streamed by [openStream], and if [rawEntry] is not null, they are the data of that zip entry */
+    internal constructor(name:String, sourceFile:Path?, lastModifiedMs:Long, own:Boolean, rawEntry:RawZipEntry?, openStream:() -> InputStream)
+            : this (name, sourceFile, lastModifiedMs, own, null, openStream, rawEntry, null)
+
+    /** Data is the data of the [rawEntry] */
+    internal constructor(sourceFile:Path?, lastModifiedMs:Long, own:Boolean, rawEntry:RawZipEntry)
+            : this (null, sourceFile, lastModifiedMs, own, null, null, rawEntry, null)
 
-    private var _data:ByteArray? = null
-    private var dataRetriever:(() -> ByteArray)? = null
+    /** Data is the content of the [contentFile] */
+    internal constructor(name:String, sourceFile:Path?, lastModifiedMs:Long, own:Boolean, contentFile:Path)
+            : this (name, sourceFile, lastModifiedMs, own, null, null, null, contentFile)
 
     /**
-     * Lazily loaded data of the source that should be included in the assembled archive
+     * Open a new stream with the data of the source that should be included in the assembled archive.
+     * Caller is responsible for closing it.
+     */
+    fun openStream(): InputStream {
+        return if (inMemoryData != null) {
+            ByteArrayInputStream(inMemoryData)
+        } else if (streamOpener != null) {
+            streamOpener.invoke()
+        } else if (contentFile != null) {
+            Files.newInputStream(contentFile)
+        } else {
+            rawEntry!!.openStream()
+        }
+    }
+
+    /**
+     * Data of the source that should be included in the assembled archive.
+     * Loaded each time it is accessed, so [openStream] should be preferred for large sources.
      */
     val data: ByteArray
-        get() {
-            var result = _data
-            if (result == null) {
-                result = dataRetriever!!()
-                _data = result
-                dataRetriever = null
+        get() = inMemoryData ?: openStream().use { it.readBytes() }
+
+    /**
+     * Create a source with data of this source, transformed by [transform].
+     * Useful in [AssemblyStreamMapFilter]. Data is transformed each time it is needed, it is not held in memory.
+     */
+    fun mapStream(transform:(InputStream) -> InputStream):AssemblySource {
+        return AssemblySource("$this (mapped)", sourceFile, lastModifiedMs, own, null) { transform(openStream()) }
+    }
+
+    override fun toString(): String = name ?: "${rawEntry!!.zip.file.absolutePath}?${rawEntry.entry.name}"
+}
+
+/** Zip file whose entries are used as [AssemblySource]s. It is opened only when data of some entry is needed. */
+internal class ZipSourceFile(val file:Path) : Closeable {
+
+    private var channel:FileChannel? = null
+
+    /** Channel of the [file], opened on first use */
+    fun channel():FileChannel {
+        synchronized(this) {
+            return channel ?: FileChannel.open(file, StandardOpenOption.READ).also { channel = it }
+        }
+    }
+
+    private var zipFile:ZipFile? = null
+
+    /** The [file] opened as [ZipFile], for entries which can't be read through [channel] */
+    fun zipFile():ZipFile {
+        synchronized(this) {
+            return zipFile ?: ZipFile(file.toFile(), ZipFile.OPEN_READ, StandardCharsets.UTF_8).also { zipFile = it }
+        }
+    }
+
+    override fun close() {
+        synchronized(this) {
+            try {
+                channel?.close()
+            } finally {
+                channel = null
+                zipFile?.close()
+                zipFile = null
             }
-            return result
         }
+    }
+}
+
+/** Entry of a [zip] file */
+internal class RawZipEntry(val zip:ZipSourceFile, val entry:ZipIndexEntry) {
 
-    override fun toString(): String = name
-}
\ No newline at end of file
+    /** Open stream with uncompressed data of the entry */
+    fun openStream():InputStream = entry.openStream(zip.channel())
+}
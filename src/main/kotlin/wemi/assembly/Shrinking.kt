@@ -0,0 +1,199 @@
+package wemi.assembly
+
+import org.slf4j.LoggerFactory
+import wemi.util.forEachReferencedClass
+import wemi.util.name
+import wemi.util.readConstantPoolStrings
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.*
+import java.util.jar.Attributes
+import java.util.jar.Manifest
+
+private val LOG = LoggerFactory.getLogger("Shrinking")
+
+/** File with the list of entries removed from the archive at [outputFile] by [shrinkAssemblySources]. */
+internal fun assemblyShrinkMappingFile(outputFile: Path): Path {
+    return outputFile.resolveSibling("${outputFile.name}.shrink-mapping")
+}
+
+/**
+ * Remove classes, which are not reachable from given roots, from [sources].
+ *
+ * Roots are classes matched by [rootPatterns], `Main-Class` of `META-INF/MANIFEST.MF` and all classes listed in
+ * `META-INF/services` files. Class is reachable when it is a root or when its name is mentioned in the constant pool
+ * of a reachable class, either directly (class references, string constants) or in a type descriptor.
+ * This is deliberately conservative, classes used only through computed reflection must be listed in [rootPatterns].
+ *
+ * Only classes are removed, other resources are kept, because it is not possible to tell whether they are used.
+ * `package-info` classes are kept when any class of their package is kept.
+ *
+ * @param rootPatterns fully qualified class names, `com.example.*` matches all classes of the package,
+ * `com.example.**` also classes of its subpackages
+ * @param mappingFile to which the removed entries are listed, with their size and source
+ * @return true if the [sources] were shrunk, false if shrinking was not possible (and [sources] were not modified)
+ */
+internal fun shrinkAssemblySources(sources: MutableMap<String, AssemblySource>, rootPatterns: Collection<String>, mappingFile: Path): Boolean {
+    // Class name in internal form -> paths of its class files (there may be more of them in multi-release jars)
+    val classes = HashMap<String, ArrayList<String>>()
+    for (path in sources.keys) {
+        val className = classNameOfPath(path) ?: continue
+        classes.getOrPut(className) { ArrayList(1) }.add(path)
+    }
+
+    val reachable = HashSet<String>()
+    val queue = ArrayDeque<String>()
+    fun reach(className: String) {
+        if (className in classes && reachable.add(className)) {
+            queue.add(className)
+        }
+    }
+
+    // Roots
+    val matchers = rootPatterns.map { classNameMatcher(it) }
+    for (className in classes.keys) {
+        if (matchers.any { it(className) }) {
+            reach(className)
+        }
+    }
+    for ((path, source) in sources) {
+        try {
+            if (path.startsWith("META-INF/services/") && path.indexOf('/', "META-INF/services/".length) == -1) {
+                source.openStream().bufferedReader(Charsets.UTF_8).useLines { lines ->
+                    for (line in lines) {
+                        val className = line.substringBefore('#').trim()
+                        if (className.isNotEmpty()) {
+                            reach(className.replace('.', '/'))
+                        }
+                    }
+                }
+            } else if (path.equals("META-INF/MANIFEST.MF", ignoreCase = true)) {
+                val mainClass = source.openStream().use { Manifest(it) }.mainAttributes.getValue(Attributes.Name.MAIN_CLASS)
+                if (mainClass != null) {
+                    reach(mainClass.trim().replace('.', '/'))
+                }
+            }
+        } catch (e: IOException) {
+            LOG.warn("Failed to read {} from {}, assembly will not be shrunk", path, source, e)
+            return false
+        }
+    }
+
+    if (reachable.isEmpty()) {
+        LOG.warn("No root classes found, assembly will not be shrunk")
+        return false
+    }
+
+    // Walk
+    while (queue.isNotEmpty()) {
+        val className = queue.removeFirst()
+        for (path in classes[className]!!) {
+            val source = sources[path]!!
+            try {
+                source.openStream().use { stream ->
+                    readConstantPoolStrings(stream) { constant -> forEachReferencedClass(constant, classes, ::reach) }
+                }
+            } catch (e: IOException) {
+                LOG.warn("Failed to read class {} from {}, assembly will not be shrunk", path, source, e)
+                return false
+            }
+        }
+    }
+
+    // Keep package-info of packages which are used
+    val reachablePackages = reachable.mapTo(HashSet()) { it.substringBeforeLast('/', "") }
+    for (className in classes.keys) {
+        if (className.endsWith("/package-info") && className.substringBeforeLast('/') in reachablePackages) {
+            reachable.add(className)
+        }
+    }
+
+    // Remove
+    var removedClasses = 0
+    val removed = ArrayList<String>()
+    for ((className, paths) in classes) {
+        if (className !in reachable) {
+            removedClasses++
+            removed.addAll(paths)
+        }
+    }
+    removed.sort()
+
+    var removedBytes = 0L
+    try {
+        Files.newBufferedWriter(mappingFile, Charsets.UTF_8).use { mapping ->
+            mapping.append("# Entries removed by shrinking, with their uncompressed size and source\n")
+            for (path in removed) {
+                val source = sources.remove(path)!!
+                val size = sourceSize(source)
+                removedBytes += size
+                mapping.append(path).append('\t').append(size.toString()).append('\t').append(source.toString()).append('\n')
+            }
+        }
+    } catch (e: IOException) {
+        LOG.warn("Failed to write shrink mapping to {}", mappingFile, e)
+        for (path in removed) {
+            sources.remove(path)
+        }
+    }
+
+    LOG.info("Shrinking removed {} of {} classes, saving {} bytes (uncompressed), removed classes are listed in {}",
+            removedClasses, classes.size, removedBytes, mappingFile)
+    return true
+}
+
+/** @return name of the class in internal form, whose class file is at [path], or null if it is not a class file */
+private fun classNameOfPath(path: String): String? {
+    if (!path.endsWith(".class")) {
+        return null
+    }
+    var name = path.substring(0, path.length - ".class".length)
+    if (name.startsWith("META-INF/versions/")) {
+        // Multi-release jar, META-INF/versions/<version>/<class>
+        val versionEnd = name.indexOf('/', "META-INF/versions/".length)
+        if (versionEnd == -1) {
+            return null
+        }
+        name = name.substring(versionEnd + 1)
+    } else if (name.startsWith("META-INF/")) {
+        return null
+    }
+    if (name == "module-info" || name.isEmpty()) {
+        // Always kept
+        return null
+    }
+    return name
+}
+
+/** Create a matcher of internal class names from a class name pattern (see [shrinkAssemblySources]). */
+private fun classNameMatcher(pattern: String): (String) -> Boolean {
+    val internal = pattern.trim().replace('.', '/')
+    if (internal.endsWith("/**")) {
+        val prefix = internal.removeSuffix("**")
+        return { name -> name.startsWith(prefix) }
+    } else if (internal.endsWith("/*")) {
+        val prefix = internal.removeSuffix("*")
+        return { name -> name.startsWith(prefix) && name.indexOf('/', prefix.length) == -1 }
+    } else {
+        return { name -> name == internal }
+    }
+}
+
+/** Uncompressed size of the [source] data. */
+private fun sourceSize(source: AssemblySource): Long {
+    source.rawEntry?.let { return it.entry.size }
+
+    val buffer = ByteArray(8192)
+    var size = 0L
+    source.openStream().use { stream ->
+        while (true) {
+            val read = stream.read(buffer)
+            if (read < 0) {
+                break
+            }
+            size += read
+        }
+    }
+    return size
+}
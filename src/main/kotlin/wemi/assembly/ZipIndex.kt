@@ -0,0 +1,260 @@
+package wemi.assembly
+
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import java.util.zip.ZipException
+
+/**
+ * Entry of a zip file, as described by its central directory.
+ *
+ * @param localHeaderOffset absolute position of the local file header in the archive file
+ */
+internal class ZipIndexEntry(
+        val name: String,
+        /** [java.util.zip.ZipEntry.STORED] or [java.util.zip.ZipEntry.DEFLATED] (or something unsupported) */
+        val method: Int,
+        /** General purpose bit flags */
+        val flags: Int,
+        val crc: Long,
+        val compressedSize: Long,
+        val size: Long,
+        val localHeaderOffset: Long) {
+
+    /** Entry data can be copied verbatim to another archive, without decompressing it */
+    val canCopyRaw: Boolean
+        get() = (method == ZIP_STORED || method == ZIP_DEFLATED) && (flags and ZIP_FLAG_ENCRYPTED) == 0
+
+    /** Absolute position of the (possibly compressed) entry data in the archive file */
+    fun dataOffset(channel: FileChannel): Long {
+        val header = readFully(channel, localHeaderOffset, LOC_HEADER_SIZE)
+        if (header.getInt(0) != LOC_SIGNATURE) {
+            throw ZipException("Invalid local header of $name")
+        }
+        val nameLength = header.getShort(26).toInt() and 0xFFFF
+        val extraLength = header.getShort(28).toInt() and 0xFFFF
+        return localHeaderOffset + LOC_HEADER_SIZE + nameLength + extraLength
+    }
+
+    /** Open stream with uncompressed data of this entry. Must be [canCopyRaw]. */
+    fun openStream(channel: FileChannel): InputStream {
+        val data = ChannelRangeInputStream(channel, dataOffset(channel), compressedSize)
+        return when (method) {
+            ZIP_STORED -> data
+            ZIP_DEFLATED -> ZipInflaterInputStream(data)
+            else -> throw ZipException("Unsupported compression method $method of $name")
+        }
+    }
+
+    override fun toString(): String = name
+}
+
+/** Reads [length] bytes from [channel], starting at [position], without changing the position of the [channel]. */
+private class ChannelRangeInputStream(private val channel: FileChannel, private var position: Long, length: Long) : InputStream() {
+
+    private val end = position + length
+
+    override fun read(): Int {
+        val single = ByteArray(1)
+        return if (read(single, 0, 1) <= 0) -1 else single[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        val remaining = end - position
+        if (remaining <= 0L) {
+            return -1
+        }
+        val read = channel.read(ByteBuffer.wrap(b, off, Math.min(len.toLong(), remaining).toInt()), position)
+        if (read < 0) {
+            throw ZipException("Unexpected end of zip file")
+        }
+        position += read
+        return read
+    }
+
+    override fun skip(n: Long): Long {
+        val skipped = Math.max(Math.min(n, end - position), 0L)
+        position += skipped
+        return skipped
+    }
+
+    override fun available(): Int = Math.min(end - position, Int.MAX_VALUE.toLong()).toInt()
+}
+
+/** Inflates raw deflate data of zip entries, the same way [java.util.zip.ZipFile] does. */
+private class ZipInflaterInputStream(input: InputStream) : InflaterInputStream(input, Inflater(true), 8192) {
+    private var eof = false
+    private var closed = false
+
+    override fun fill() {
+        if (eof) {
+            throw EOFException("Unexpected end of ZLIB input stream")
+        }
+        len = `in`.read(buf, 0, buf.size)
+        if (len == -1) {
+            // Inflater in nowrap mode needs one extra dummy byte at the end
+            buf[0] = 0
+            len = 1
+            eof = true
+        }
+        inf.setInput(buf, 0, len)
+    }
+
+    override fun close() {
+        if (!closed) {
+            closed = true
+            super.close()
+            inf.end()
+        }
+    }
+}
+
+internal const val ZIP_STORED = 0
+internal const val ZIP_DEFLATED = 8
+internal const val ZIP_FLAG_ENCRYPTED = 1
+internal const val ZIP_FLAG_UTF8 = 1 shl 11
+
+internal const val LOC_SIGNATURE = 0x04034b50
+internal const val LOC_HEADER_SIZE = 30
+internal const val CEN_SIGNATURE = 0x02014b50
+internal const val CEN_HEADER_SIZE = 46
+internal const val END_SIGNATURE = 0x06054b50
+internal const val END_HEADER_SIZE = 22
+internal const val ZIP64_END_SIGNATURE = 0x06064b50
+internal const val ZIP64_END_HEADER_SIZE = 56
+internal const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+internal const val ZIP64_LOCATOR_SIZE = 20
+internal const val ZIP64_EXTRA_ID = 0x0001
+internal const val ZIP64_MAGIC = 0xFFFFFFFFL
+internal const val ZIP64_MAGIC_COUNT = 0xFFFF
+
+private fun readFully(channel: FileChannel, position: Long, length: Int): ByteBuffer {
+    val buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+    var pos = position
+    while (buffer.hasRemaining()) {
+        val read = channel.read(buffer, pos)
+        if (read < 0) {
+            throw ZipException("Unexpected end of zip file")
+        }
+        pos += read
+    }
+    buffer.flip()
+    return buffer
+}
+
+/**
+ * Read the central directory of the zip file opened in [channel].
+ * Archives with data prepended before the zip content (such as self-executing jars) are supported
+ * and the offsets are adjusted accordingly.
+ *
+ * @throws IOException when the file can't be read or is not a valid zip file
+ */
+internal fun readZipIndex(channel: FileChannel): List<ZipIndexEntry> {
+    val fileSize = channel.size()
+    if (fileSize < END_HEADER_SIZE) {
+        throw ZipException("File is too small to be a zip")
+    }
+
+    // Find end of central directory record, it is followed by a comment of up to 0xFFFF bytes
+    val tailSize = Math.min(fileSize, (END_HEADER_SIZE + 0xFFFF).toLong()).toInt()
+    val tailStart = fileSize - tailSize
+    val tail = readFully(channel, tailStart, tailSize)
+    var endPosition = -1
+    for (i in tailSize - END_HEADER_SIZE downTo 0) {
+        if (tail.getInt(i) == END_SIGNATURE && i + END_HEADER_SIZE + (tail.getShort(i + 20).toInt() and 0xFFFF) == tailSize) {
+            endPosition = i
+            break
+        }
+    }
+    if (endPosition == -1) {
+        throw ZipException("End of central directory not found")
+    }
+
+    var entryCount = (tail.getShort(endPosition + 10).toInt() and 0xFFFF).toLong()
+    var centralSize = tail.getInt(endPosition + 12).toLong() and 0xFFFFFFFFL
+    var centralOffset = tail.getInt(endPosition + 16).toLong() and 0xFFFFFFFFL
+    var centralEnd = tailStart + endPosition
+
+    val locatorPosition = endPosition - ZIP64_LOCATOR_SIZE
+    if (locatorPosition >= 0 && tail.getInt(locatorPosition) == ZIP64_LOCATOR_SIGNATURE) {
+        val zip64EndOffset = tail.getLong(locatorPosition + 8)
+        // Zip64 end record is right before the locator, offset may be shifted by prepended data
+        val zip64EndPosition = tailStart + locatorPosition - ZIP64_END_HEADER_SIZE
+        val zip64End = readFully(channel, zip64EndPosition, ZIP64_END_HEADER_SIZE)
+        if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+            throw ZipException("Invalid zip64 end of central directory record (at $zip64EndOffset)")
+        }
+        entryCount = zip64End.getLong(32)
+        centralSize = zip64End.getLong(40)
+        centralOffset = zip64End.getLong(48)
+        centralEnd = zip64EndPosition
+    }
+
+    // Data prepended to the archive shift everything by this amount
+    val shift = centralEnd - centralSize - centralOffset
+    if (shift < 0 || centralSize > Int.MAX_VALUE) {
+        throw ZipException("Invalid central directory")
+    }
+
+    val central = readFully(channel, centralOffset + shift, centralSize.toInt())
+    val entries = ArrayList<ZipIndexEntry>(Math.min(entryCount, 0xFFFFL).toInt())
+    var pos = 0
+    while (pos + CEN_HEADER_SIZE <= central.limit()) {
+        if (central.getInt(pos) != CEN_SIGNATURE) {
+            throw ZipException("Invalid central directory header")
+        }
+        val flags = central.getShort(pos + 8).toInt() and 0xFFFF
+        val method = central.getShort(pos + 10).toInt() and 0xFFFF
+        val crc = central.getInt(pos + 16).toLong() and 0xFFFFFFFFL
+        var compressedSize = central.getInt(pos + 20).toLong() and 0xFFFFFFFFL
+        var size = central.getInt(pos + 24).toLong() and 0xFFFFFFFFL
+        val nameLength = central.getShort(pos + 28).toInt() and 0xFFFF
+        val extraLength = central.getShort(pos + 30).toInt() and 0xFFFF
+        val commentLength = central.getShort(pos + 32).toInt() and 0xFFFF
+        var localHeaderOffset = central.getInt(pos + 42).toLong() and 0xFFFFFFFFL
+
+        val nameBytes = ByteArray(nameLength)
+        central.position(pos + CEN_HEADER_SIZE)
+        central.get(nameBytes)
+        // Names are always treated as UTF-8, same as the ZipFile in AssemblyOperation.addSource
+        val name = String(nameBytes, StandardCharsets.UTF_8)
+
+        // Zip64 extra field holds only those values, which overflowed
+        var extraPos = pos + CEN_HEADER_SIZE + nameLength
+        val extraEnd = extraPos + extraLength
+        while (extraPos + 4 <= extraEnd) {
+            val id = central.getShort(extraPos).toInt() and 0xFFFF
+            val length = central.getShort(extraPos + 2).toInt() and 0xFFFF
+            if (id == ZIP64_EXTRA_ID) {
+                var valuePos = extraPos + 4
+                if (size == ZIP64_MAGIC) {
+                    size = central.getLong(valuePos)
+                    valuePos += 8
+                }
+                if (compressedSize == ZIP64_MAGIC) {
+                    compressedSize = central.getLong(valuePos)
+                    valuePos += 8
+                }
+                if (localHeaderOffset == ZIP64_MAGIC) {
+                    localHeaderOffset = central.getLong(valuePos)
+                }
+                break
+            }
+            extraPos += 4 + length
+        }
+
+        entries.add(ZipIndexEntry(name, method, flags, crc, compressedSize, size, localHeaderOffset + shift))
+        pos += CEN_HEADER_SIZE + nameLength + extraLength + commentLength
+    }
+
+    return entries
+}
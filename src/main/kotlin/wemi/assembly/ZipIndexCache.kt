@@ -0,0 +1,107 @@
+package wemi.assembly
+
+import org.slf4j.LoggerFactory
+import wemi.util.absolutePath
+import wemi.util.lastModified
+import wemi.util.name
+import wemi.util.toSafeFileName
+import wemi.util.writeFileAtomically
+import java.io.*
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+
+private val LOG = LoggerFactory.getLogger("ZipIndexCache")
+
+private const val INDEX_MAGIC = 0x5A494458 // ZIDX
+private const val INDEX_VERSION = 1
+
+/**
+ * Read the central directory of zip [file], like [readZipIndex].
+ *
+ * When [cacheDirectory] is given, the index is stored there and loaded the next time, if the [file]
+ * still has the same path, size and modification time. This is much faster for large library jars,
+ * which rarely change, but are assembled often.
+ *
+ * @param channel provides opened channel of the [file], called only when the index is not cached
+ * @throws IOException when the index can't be read from the [file]
+ */
+internal fun cachedZipIndex(file: Path, cacheDirectory: Path?, channel: () -> FileChannel): List<ZipIndexEntry> {
+    if (cacheDirectory == null) {
+        return readZipIndex(channel())
+    }
+
+    val path = file.absolutePath
+    val size = Files.size(file)
+    val modified = file.lastModified.toMillis()
+    val indexFile = cacheDirectory.resolve("${file.name.toSafeFileName('_')}-${Integer.toHexString(path.hashCode())}.idx")
+
+    loadZipIndex(indexFile, path, size, modified)?.let { return it }
+
+    val index = readZipIndex(channel())
+    storeZipIndex(indexFile, path, size, modified, index)
+    return index
+}
+
+/** Load index stored by [storeZipIndex], if it exists and describes the same file. */
+private fun loadZipIndex(indexFile: Path, path: String, size: Long, modified: Long): List<ZipIndexEntry>? {
+    if (!Files.exists(indexFile)) {
+        return null
+    }
+
+    try {
+        DataInputStream(BufferedInputStream(Files.newInputStream(indexFile), 64 * 1024)).use { input ->
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION
+                    || input.readUTF() != path || input.readLong() != size || input.readLong() != modified) {
+                return null
+            }
+
+            val count = input.readInt()
+            val entries = ArrayList<ZipIndexEntry>(count)
+            for (i in 0 until count) {
+                val name = input.readUTF()
+                val method = input.readUnsignedShort()
+                val flags = input.readUnsignedShort()
+                val crc = input.readInt().toLong() and 0xFFFFFFFFL
+                val compressedSize = input.readLong()
+                val entrySize = input.readLong()
+                val localHeaderOffset = input.readLong()
+                entries.add(ZipIndexEntry(name, method, flags, crc, compressedSize, entrySize, localHeaderOffset))
+            }
+            return entries
+        }
+    } catch (e: IOException) {
+        LOG.debug("Failed to load zip index {}", indexFile, e)
+        return null
+    }
+}
+
+/**
+ * Store [index] to [indexFile]. It is written to a temporary file first,
+ * so that other processes never see it half-written. Failure is not fatal.
+ */
+private fun storeZipIndex(indexFile: Path, path: String, size: Long, modified: Long, index: List<ZipIndexEntry>) {
+    try {
+        writeFileAtomically(indexFile) { tempFile ->
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024)).use { out ->
+                out.writeInt(INDEX_MAGIC)
+                out.writeInt(INDEX_VERSION)
+                out.writeUTF(path)
+                out.writeLong(size)
+                out.writeLong(modified)
+                out.writeInt(index.size)
+                for (entry in index) {
+                    out.writeUTF(entry.name)
+                    out.writeShort(entry.method)
+                    out.writeShort(entry.flags)
+                    out.writeInt(entry.crc.toInt())
+                    out.writeLong(entry.compressedSize)
+                    out.writeLong(entry.size)
+                    out.writeLong(entry.localHeaderOffset)
+                }
+            }
+        }
+    } catch (e: IOException) {
+        LOG.debug("Failed to store zip index {}", indexFile, e)
+    }
+}
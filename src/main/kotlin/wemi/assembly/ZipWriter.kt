@@ -0,0 +1,492 @@
+package wemi.assembly
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.*
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+
+/**
+ * Minimal zip archive writer, which, unlike [java.util.zip.ZipOutputStream], accepts already compressed entry data.
+ * This allows to copy entries between archives without decompressing and compressing them again.
+ *
+ * Entries are written in the order in which they are added, with the same headers that would
+ * [java.util.jar.JarOutputStream] write (without data descriptors, as sizes are always known beforehand).
+ * Zip64 extensions are used only when needed.
+ *
+ * Written offsets are relative to the position of [out] when this writer was created,
+ * so arbitrary data can be written to [out] before it, for example [AssemblyOperation.assembly]'s `prependData`.
+ *
+ * @param channel into which the [out] writes, if any. When given, data from files are transferred to it directly,
+ * without copying them through the heap.
+ */
+internal class ZipWriter(private val out: OutputStream, private val channel: FileChannel? = null) {
+
+    private class CentralEntry(val name: ByteArray, val method: Int, val dosTime: Long,
+                               val crc: Long, val compressedSize: Long, val size: Long, val localHeaderOffset: Long, val extra: ByteArray)
+
+    private val central = ArrayList<CentralEntry>()
+    private val header = HeaderBuilder()
+    private var written = 0L
+    private var finished = false
+
+    /** Amount of entries written so far */
+    val entryCount: Int
+        get() = central.size
+
+    /**
+     * Write entry, whose data is already compressed with given [method].
+     *
+     * @param timeMs modification time of the entry, -1 for current time
+     * @param method [ZIP_STORED] or [ZIP_DEFLATED]
+     * @param crc of the uncompressed data
+     * @param size of the uncompressed data
+     * @param data compressed with [method] ([size] bytes for [ZIP_STORED])
+     * @return offset of the local header of the written entry
+     */
+    fun writeEntry(name: String, timeMs: Long, method: Int, crc: Long, size: Long,
+                   data: ByteArray, dataOffset: Int = 0, dataLength: Int = data.size): Long {
+        return writeEntry(name, timeMs, method, crc, size, dataLength.toLong()) { out ->
+            out.write(data, dataOffset, dataLength)
+        }
+    }
+
+    /**
+     * Write entry, whose data is already compressed with given [method], using [writeData],
+     * which must write exactly [compressedSize] bytes.
+     * @return offset of the local header of the written entry
+     */
+    fun writeEntry(name: String, timeMs: Long, method: Int, crc: Long, size: Long,
+                   compressedSize: Long, writeData: (OutputStream) -> Unit): Long {
+        if (finished) {
+            throw IllegalStateException("Already finished")
+        }
+        val nameBytes = name.toByteArray(StandardCharsets.UTF_8)
+        val dosTime = javaToDosTime(if (timeMs == -1L) System.currentTimeMillis() else timeMs)
+        val localHeaderOffset = written
+
+        val zip64Sizes = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC
+        // Jar files are recognized by this (empty) extra field in the first entry
+        val localExtra = HeaderBuilder()
+        if (central.isEmpty()) {
+            localExtra.short(JAR_MAGIC).short(0)
+        }
+        if (zip64Sizes) {
+            localExtra.short(ZIP64_EXTRA_ID).short(16).long(size).long(compressedSize)
+        }
+        val localExtraBytes = localExtra.toByteArray()
+
+        header.reset()
+        header.int(LOC_SIGNATURE)
+        header.short(versionNeeded(method, zip64Sizes))
+        header.short(ZIP_FLAG_UTF8)
+        header.short(method)
+        header.int(dosTime)
+        header.int(crc)
+        header.int(if (zip64Sizes) ZIP64_MAGIC else compressedSize)
+        header.int(if (zip64Sizes) ZIP64_MAGIC else size)
+        header.short(nameBytes.size)
+        header.short(localExtraBytes.size)
+        header.bytes(nameBytes)
+        header.bytes(localExtraBytes)
+        write(header)
+        writeData(out)
+        written += compressedSize
+
+        // Central directory extra field contains only those values which overflow
+        val centralExtra = HeaderBuilder()
+        if (central.isEmpty()) {
+            centralExtra.short(JAR_MAGIC).short(0)
+        }
+        if (zip64Sizes || localHeaderOffset >= ZIP64_MAGIC) {
+            val zip64 = HeaderBuilder()
+            if (size >= ZIP64_MAGIC) zip64.long(size)
+            if (compressedSize >= ZIP64_MAGIC) zip64.long(compressedSize)
+            if (localHeaderOffset >= ZIP64_MAGIC) zip64.long(localHeaderOffset)
+            val zip64Bytes = zip64.toByteArray()
+            centralExtra.short(ZIP64_EXTRA_ID).short(zip64Bytes.size).bytes(zip64Bytes)
+        }
+        central.add(CentralEntry(nameBytes, method, dosTime, crc, compressedSize, size, localHeaderOffset, centralExtra.toByteArray()))
+        return localHeaderOffset
+    }
+
+    /**
+     * Write entry, whose data is already compressed with given [method],
+     * by copying [compressedSize] bytes from [source], starting at [sourcePosition].
+     * @return offset of the local header of the written entry
+     */
+    fun writeEntry(name: String, timeMs: Long, method: Int, crc: Long, size: Long,
+                   compressedSize: Long, source: FileChannel, sourcePosition: Long): Long {
+        return writeEntry(name, timeMs, method, crc, size, compressedSize) { out ->
+            transfer(source, sourcePosition, compressedSize, out)
+        }
+    }
+
+    private fun transfer(source: FileChannel, position: Long, count: Long, out: OutputStream) {
+        val target = channel
+        if (target == null) {
+            val buffer = ByteBuffer.allocate(8192)
+            var remaining = count
+            var sourcePosition = position
+            while (remaining > 0L) {
+                buffer.clear()
+                buffer.limit(Math.min(buffer.capacity().toLong(), remaining).toInt())
+                val read = source.read(buffer, sourcePosition)
+                if (read < 0) {
+                    throw IOException("Unexpected end of file")
+                }
+                out.write(buffer.array(), 0, read)
+                sourcePosition += read
+                remaining -= read
+            }
+            return
+        }
+
+        // Data are appended to the channel, after everything that was written to out
+        out.flush()
+        var transferred = 0L
+        while (transferred < count) {
+            val length = source.transferTo(position + transferred, count - transferred, target)
+            if (length <= 0L && position + transferred >= source.size()) {
+                throw IOException("Unexpected end of file")
+            }
+            transferred += length
+        }
+    }
+
+    /** Write the central directory. Does not close [out]. */
+    fun finish() {
+        if (finished) {
+            return
+        }
+        finished = true
+
+        val centralOffset = written
+        for (entry in central) {
+            val zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC || entry.localHeaderOffset >= ZIP64_MAGIC
+            header.reset()
+            header.int(CEN_SIGNATURE)
+            header.short(versionNeeded(entry.method, zip64))
+            header.short(versionNeeded(entry.method, zip64))
+            header.short(ZIP_FLAG_UTF8)
+            header.short(entry.method)
+            header.int(entry.dosTime)
+            header.int(entry.crc)
+            header.int(Math.min(entry.compressedSize, ZIP64_MAGIC))
+            header.int(Math.min(entry.size, ZIP64_MAGIC))
+            header.short(entry.name.size)
+            header.short(entry.extra.size)
+            header.short(0) // Comment length
+            header.short(0) // Disk number
+            header.short(0) // Internal attributes
+            header.int(0) // External attributes
+            header.int(Math.min(entry.localHeaderOffset, ZIP64_MAGIC))
+            header.bytes(entry.name)
+            header.bytes(entry.extra)
+            write(header)
+        }
+        val centralSize = written - centralOffset
+        val entryCount = central.size.toLong()
+
+        header.reset()
+        if (entryCount >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            val zip64EndOffset = written
+            header.int(ZIP64_END_SIGNATURE)
+            header.long((ZIP64_END_HEADER_SIZE - 12).toLong())
+            header.short(ZIP_VERSION_ZIP64)
+            header.short(ZIP_VERSION_ZIP64)
+            header.int(0) // This disk
+            header.int(0) // Disk with central directory
+            header.long(entryCount)
+            header.long(entryCount)
+            header.long(centralSize)
+            header.long(centralOffset)
+
+            header.int(ZIP64_LOCATOR_SIGNATURE)
+            header.int(0) // Disk with zip64 end record
+            header.long(zip64EndOffset)
+            header.int(1) // Total disks
+        }
+        header.int(END_SIGNATURE)
+        header.short(0) // This disk
+        header.short(0) // Disk with central directory
+        header.short(Math.min(entryCount, ZIP64_MAGIC_COUNT.toLong()).toInt())
+        header.short(Math.min(entryCount, ZIP64_MAGIC_COUNT.toLong()).toInt())
+        header.int(Math.min(centralSize, ZIP64_MAGIC))
+        header.int(Math.min(centralOffset, ZIP64_MAGIC))
+        header.short(0) // Comment length
+        write(header)
+        out.flush()
+    }
+
+    private fun write(header: HeaderBuilder) {
+        header.writeTo(out)
+        written += header.size()
+    }
+
+    /** Little-endian header writing utility */
+    private class HeaderBuilder : ByteArrayOutputStream(64) {
+        fun short(value: Int): HeaderBuilder {
+            write(value and 0xFF)
+            write((value ushr 8) and 0xFF)
+            return this
+        }
+
+        fun int(value: Long): HeaderBuilder {
+            short((value and 0xFFFF).toInt())
+            short(((value ushr 16) and 0xFFFF).toInt())
+            return this
+        }
+
+        fun int(value: Int): HeaderBuilder = int(value.toLong() and 0xFFFFFFFFL)
+
+        fun long(value: Long): HeaderBuilder {
+            int(value and 0xFFFFFFFFL)
+            int(value ushr 32)
+            return this
+        }
+
+        fun bytes(value: ByteArray): HeaderBuilder {
+            write(value, 0, value.size)
+            return this
+        }
+    }
+
+    private companion object {
+        const val JAR_MAGIC = 0xCAFE
+        const val ZIP_VERSION_STORED = 10
+        const val ZIP_VERSION_DEFLATED = 20
+        const val ZIP_VERSION_ZIP64 = 45
+
+        fun versionNeeded(method: Int, zip64: Boolean): Int {
+            return when {
+                zip64 -> ZIP_VERSION_ZIP64
+                method == ZIP_DEFLATED -> ZIP_VERSION_DEFLATED
+                else -> ZIP_VERSION_STORED
+            }
+        }
+
+        /** Convert time to MS-DOS format, in local time zone, the same way [java.util.zip.ZipEntry.setTime] does */
+        fun javaToDosTime(timeMs: Long): Long {
+            val calendar = Calendar.getInstance()
+            calendar.timeInMillis = timeMs
+            val year = calendar.get(Calendar.YEAR)
+            if (year < 1980) {
+                return (1L shl 21) or (1L shl 16)
+            }
+            return ((year - 1980).toLong() shl 25) or
+                    ((calendar.get(Calendar.MONTH) + 1).toLong() shl 21) or
+                    (calendar.get(Calendar.DAY_OF_MONTH).toLong() shl 16) or
+                    (calendar.get(Calendar.HOUR_OF_DAY).toLong() shl 11) or
+                    (calendar.get(Calendar.MINUTE).toLong() shl 5) or
+                    (calendar.get(Calendar.SECOND).toLong() shr 1)
+        }
+    }
+}
+
+/**
+ * Compressed (or stored) data of a single entry for [ZipWriter], when its size is not known beforehand.
+ * Up to [memoryLimit] bytes are kept in memory, rest is stored in a temporary file,
+ * so any amount of data can be processed with constant memory.
+ *
+ * Can be reused for multiple entries, but holds data of only one at a time.
+ */
+internal class EntryBuffer(private val memoryLimit: Int = 1 shl 20) : Closeable {
+
+    private val memory = ByteArray(Math.min(memoryLimit, 64 * 1024))
+    private var memoryBuffer = memory
+    private var memorySize = 0
+    private var spillFile: Path? = null
+    private var spill: FileChannel? = null
+    private var spillSize = 0L
+    private val buffer = ByteArray(8192)
+    private val crc = CRC32()
+
+    /** CRC32 of the uncompressed data */
+    var crcValue = 0L
+        private set
+    /** Size of the uncompressed data */
+    var size = 0L
+        private set
+    /** Size of the data, as [writeTo] writes them */
+    val compressedSize: Long
+        get() = if (storedFile != null) size else memorySize + spillSize
+
+    /** When the data were loaded by [loadFile] and are not compressed, they are not loaded and this is the file with them */
+    var storedFile: FileChannel? = null
+        private set
+
+    /** Load all data from [input] and compress them with [deflater] (`nowrap` mode), or store them, if null.
+     * [deflater] is reset afterwards. Previous data are discarded. */
+    fun load(input: InputStream, deflater: Deflater?) {
+        reset()
+
+        while (true) {
+            val read = input.read(buffer)
+            if (read < 0) {
+                break
+            }
+            crc.update(buffer, 0, read)
+            size += read
+
+            if (deflater == null) {
+                append(buffer, 0, read)
+            } else {
+                deflater.setInput(buffer, 0, read)
+                drain(deflater)
+            }
+        }
+
+        if (deflater != null) {
+            deflater.finish()
+            drain(deflater)
+            deflater.reset()
+        }
+        crcValue = crc.value
+    }
+
+    /**
+     * Like [load], but loads the content of [file]. Large files are memory mapped.
+     * If not compressed, the data are not copied and [storedFile] should be written instead, it is closed with this buffer.
+     */
+    fun loadFile(file: Path, deflater: Deflater?) {
+        reset()
+        val channel = FileChannel.open(file, StandardOpenOption.READ)
+        var keepOpen = false
+        try {
+            val fileSize = channel.size()
+            if (fileSize < MAP_THRESHOLD) {
+                Channels.newInputStream(channel).use { load(it, deflater) }
+                return
+            }
+
+            var position = 0L
+            while (position < fileSize) {
+                val mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(fileSize - position, MAP_CHUNK))
+                position += mapped.remaining()
+
+                if (deflater == null) {
+                    crc.update(mapped)
+                } else {
+                    while (mapped.hasRemaining()) {
+                        val length = Math.min(mapped.remaining(), buffer.size)
+                        mapped.get(buffer, 0, length)
+                        crc.update(buffer, 0, length)
+                        deflater.setInput(buffer, 0, length)
+                        drain(deflater)
+                    }
+                }
+            }
+            size = position
+
+            if (deflater != null) {
+                deflater.finish()
+                drain(deflater)
+                deflater.reset()
+            } else {
+                storedFile = channel
+                keepOpen = true
+            }
+            crcValue = crc.value
+        } finally {
+            if (!keepOpen) {
+                channel.close()
+            }
+        }
+    }
+
+    private fun reset() {
+        storedFile?.close()
+        storedFile = null
+        memorySize = 0
+        spillSize = 0L
+        spill?.truncate(0L)
+        crc.reset()
+        size = 0L
+    }
+
+    private val deflated = ByteArray(8192)
+
+    private fun drain(deflater: Deflater) {
+        while (true) {
+            val length = deflater.deflate(deflated)
+            if (length > 0) {
+                append(deflated, 0, length)
+            } else if (deflater.needsInput() || deflater.finished()) {
+                break
+            }
+        }
+    }
+
+    private fun append(data: ByteArray, offset: Int, length: Int) {
+        if (spillSize == 0L && memorySize + length <= memoryLimit) {
+            if (memorySize + length > memoryBuffer.size) {
+                memoryBuffer = memoryBuffer.copyOf(Math.min(memoryLimit, Math.max(memoryBuffer.size * 2, memorySize + length)))
+            }
+            System.arraycopy(data, offset, memoryBuffer, memorySize, length)
+            memorySize += length
+            return
+        }
+
+        var channel = spill
+        if (channel == null) {
+            val file = Files.createTempFile("wemi-assembly", ".part")
+            spillFile = file
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)
+            spill = channel
+        }
+        val byteBuffer = ByteBuffer.wrap(data, offset, length)
+        while (byteBuffer.hasRemaining()) {
+            spillSize += channel.write(byteBuffer, spillSize)
+        }
+    }
+
+    /** Write the loaded (compressed) data, unless they are in [storedFile] */
+    fun writeTo(out: OutputStream) {
+        out.write(memoryBuffer, 0, memorySize)
+        val channel = spill ?: return
+        var position = 0L
+        val byteBuffer = ByteBuffer.wrap(buffer)
+        while (position < spillSize) {
+            byteBuffer.clear()
+            byteBuffer.limit(Math.min(byteBuffer.capacity().toLong(), spillSize - position).toInt())
+            val read = channel.read(byteBuffer, position)
+            if (read < 0) {
+                throw IOException("Temporary file $spillFile was truncated")
+            }
+            out.write(buffer, 0, read)
+            position += read
+        }
+    }
+
+    override fun close() {
+        storedFile?.close()
+        storedFile = null
+        spill?.close()
+        spill = null
+        spillFile?.let { Files.deleteIfExists(it) }
+        spillFile = null
+    }
+}
+
+/** Files of at least this size are memory mapped by [EntryBuffer.loadFile] */
+private const val MAP_THRESHOLD = 1L shl 20
+/** Maximum size of a single mapping of [EntryBuffer.loadFile] */
+private const val MAP_CHUNK = 64L shl 20
+
+/** Compute CRC32 of [data], for [ZipWriter]. */
+internal fun crc32(data: ByteArray): Long {
+    val crc = CRC32()
+    crc.update(data)
+    return crc.value
+}
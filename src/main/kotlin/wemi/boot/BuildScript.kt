@@ -279,6 +279,9 @@ class BuildScriptInfo internal constructor(
             // TODO Is this logged properly & nicely?
             return false
         }
+        if (resolved.values.retrieveArtifacts().isNotEmpty()) {
+            return false
+        }
         for ((_, r) in resolved) {
             _managedDependencies.add(r.artifact?.path ?: continue)
         }
@@ -11,6 +11,7 @@ import org.jline.utils.AttributedStyle
 import org.slf4j.LoggerFactory
 import wemi.*
 import wemi.Binding
+import wemi.run.SupervisedProcess
 import wemi.util.*
 import wemi.util.CliStatusDisplay.Companion.withStatus
 import java.io.IOException
@@ -62,8 +63,17 @@ object CLI {
      * This is not always possible, so take this only as a hint.
      * (Currently handles only SIGINT on a best effort basis, where it actually attempts to stop the process) */
     fun <T>forwardSignalsTo(process:Process, during:()->T):T {
+        return forwardInterrupt({ process.destroy() }, during)
+    }
+
+    /** Same as [forwardSignalsTo], for processes started by [wemi.run.superviseProcess]. */
+    fun <T>forwardSignalsTo(process:SupervisedProcess, during:()->T):T {
+        return forwardInterrupt({ process.destroy() }, during)
+    }
+
+    private fun <T>forwardInterrupt(destroy:()->Unit, during:()->T):T {
         val previousInterrupt = Terminal.handle(org.jline.terminal.Terminal.Signal.INT) {
-            process.destroy()
+            destroy()
         }
         try {
             return during()
@@ -72,6 +82,14 @@ object CLI {
         }
     }
 
+    /**
+     * Show [progress] of the currently evaluated key after it, in the status message.
+     * Null to hide it. Can be called from any thread.
+     */
+    internal fun showProgress(progress:String?) {
+        KeyEvaluationStatusListener.setProgress(progress)
+    }
+
     internal val MessageDisplay: CliStatusDisplay? by lazy {
         if (WemiColorOutputSupported) {
             // If terminal doesn't support color, it probably doesn't support ANSI codes
@@ -222,6 +240,7 @@ object CLI {
         private val messageBuilder = AttributedStringBuilder()
         private val stack = ArrayList<Int>()
         private val importantPrefix:Int
+        private var progress:String? = null
 
         init {
             messageBuilder.style(STATUS_META_STYLE)
@@ -229,6 +248,7 @@ object CLI {
             importantPrefix = messageBuilder.length
         }
 
+        @Synchronized
         override fun keyEvaluationStarted(fromScope: Scope, key: Key<*>) {
             stack.add(messageBuilder.length)
             if (stack.size > 1) {
@@ -240,6 +260,7 @@ object CLI {
             update()
         }
 
+        @Synchronized
         private fun pop() {
             if (stack.size > 0) {
                 messageBuilder.setLength(stack.removeAt(stack.size - 1))
@@ -247,8 +268,25 @@ object CLI {
             }
         }
 
+        @Synchronized
+        fun setProgress(progress:String?) {
+            this.progress = progress
+            update()
+        }
+
         private fun update() {
-            MessageDisplay?.setMessage(messageBuilder.toAttributedString(), importantPrefix)
+            val progress = progress
+            if (progress == null) {
+                MessageDisplay?.setMessage(messageBuilder.toAttributedString(), importantPrefix)
+            } else {
+                val message = AttributedStringBuilder()
+                message.append(messageBuilder.toAttributedString())
+                message.style(STATUS_META_STYLE)
+                message.append(STATUS_INFIX)
+                message.style(AttributedStyle.DEFAULT)
+                message.append(progress)
+                MessageDisplay?.setMessage(message.toAttributedString(), importantPrefix)
+            }
         }
 
         override fun <V> keyEvaluationSucceeded(binding: Binding<V>, result: V) {
@@ -330,6 +330,7 @@ class ArtifactPath(val path:Path, val originalUrl:URL, data:ByteArray?) {
  * Data retrieved by resolving a dependency.
  *
  * If successful, contains information about transitive [dependencies] and holds artifacts that were found.
+ * Artifacts may be retrieved lazily, only when they are first needed, see [artifact].
  */
 class ResolvedDependency private constructor(
         /** That was being resolved */
@@ -342,17 +343,50 @@ class ResolvedDependency private constructor(
         val hasError: Boolean,
         /** May contain a message explaining why did the dependency failed to resolve, if [hasError] */
         val log: CharSequence,
-        /** If the artifact has been resolved to a file in a local filesystem, it is here. */
-        val artifact:ArtifactPath?
+        artifact:ArtifactPath?,
+        artifactRetriever:(() -> ArtifactPath?)?
 ) : JsonWritable {
 
     /** Error constructor */
     constructor(id:DependencyId, log:CharSequence, resolvedFrom:Repository? = null)
-            : this(id, emptyList(), resolvedFrom, true, log, null)
+            : this(id, emptyList(), resolvedFrom, true, log, null, null)
 
     /** Success constructor */
     constructor(id:DependencyId, dependencies:List<Dependency>, resolvedFrom:Repository, artifact:ArtifactPath)
-            :this(id, dependencies, resolvedFrom, false, "", artifact)
+            :this(id, dependencies, resolvedFrom, false, "", artifact, null)
+
+    /** Success constructor, which retrieves the [artifact] with [retrieveArtifact] only when it is first needed */
+    constructor(id:DependencyId, dependencies:List<Dependency>, resolvedFrom:Repository, retrieveArtifact:() -> ArtifactPath?)
+            :this(id, dependencies, resolvedFrom, false, "", null, retrieveArtifact)
+
+    private var _artifact:ArtifactPath? = artifact
+    private var artifactRetriever:(() -> ArtifactPath?)? = artifactRetriever
+
+    /** If the artifact has been resolved to a file in a local filesystem, it is here.
+     * When the artifact has not been retrieved yet, it is retrieved now, which may block.
+     * @see retrieveArtifacts to retrieve artifacts of multiple dependencies at the same time */
+    val artifact:ArtifactPath?
+        get() = synchronized(this) {
+            val retriever = artifactRetriever
+            if (retriever != null) {
+                _artifact = retriever()
+                artifactRetriever = null
+            }
+            _artifact
+        }
+
+    /** [artifact], but only if it was already retrieved */
+    private val retrievedArtifact:ArtifactPath?
+        get() = synchronized(this) { if (artifactRetriever == null) _artifact else null }
+
+    /** `true` if [artifact] still has to be retrieved */
+    val artifactPending:Boolean
+        get() = synchronized(this) { artifactRetriever != null }
+
+    /** `true` if this dependency resolved successfully, but its [artifact] could not be retrieved.
+     * Retrieves the [artifact], if needed. */
+    val artifactMissing:Boolean
+        get() = !hasError && artifact == null
 
     override fun JsonWriter.write() {
         writeObject {
@@ -361,6 +395,8 @@ class ResolvedDependency private constructor(
             field("resolvedFrom", resolvedFrom)
             field("hasError", hasError)
             field("log", log.toString())
+            // Do not retrieve the artifact just to serialize it
+            val artifact = retrievedArtifact
             if (artifact != null) {
                 field("artifact", artifact.path)
             }
@@ -376,6 +412,8 @@ class ResolvedDependency private constructor(
         if (log.isNotEmpty()) {
             result.append(", log=").append(log)
         }
+        // Do not retrieve the artifact just to print it
+        val artifact = retrievedArtifact
         if (artifact != null) {
             result.append(", artifact=").append(artifact.path)
         }
@@ -1,20 +1,25 @@
 package wemi.dependency
 
 import org.slf4j.LoggerFactory
-import wemi.util.directorySynchronized
+import wemi.util.WorkerPool
 import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.TimeUnit
 
 /**
  * Utility method to [resolveDependencies] dependencies and retrieve their [artifacts].
  *
- * If any dependency fails to resolve, returns null.
+ * If any dependency fails to resolve or its artifact can't be retrieved, returns null.
  */
 fun resolveDependencyArtifacts(projects: Collection<Dependency>, repositories: Collection<Repository>): List<Path>? {
     val resolved = mutableMapOf<DependencyId, ResolvedDependency>()
     val ok = resolveDependencies(resolved, projects, repositories)
 
-    if (!ok) {
+    if (!ok || resolved.values.retrieveArtifacts().isNotEmpty()) {
         return null
     }
 
@@ -26,58 +31,71 @@ fun resolveDependencyArtifacts(projects: Collection<Dependency>, repositories: C
  * Skips those without artifact. Does not check error status or anything else.
  */
 fun Map<DependencyId, ResolvedDependency>.artifacts(): List<Path> {
+    values.retrieveArtifacts()
     return mapNotNull { it.value.artifact?.path }
 }
 
+/**
+ * Retrieve [ResolvedDependency.artifact]s which were not retrieved yet, all at the same time.
+ * Should be used before iterating over artifacts of many dependencies, which would retrieve them one after another.
+ *
+ * @return dependencies whose artifact could not be retrieved (see [ResolvedDependency.artifactMissing])
+ */
+fun Collection<ResolvedDependency>.retrieveArtifacts(): List<ResolvedDependency> {
+    val pending = filter { it.artifactPending }
+    if (pending.size > 1) {
+        LOG.debug("Retrieving {} artifacts", pending.size)
+        val retrievals = pending.map { dependency -> WorkerPool.submit<Unit> { dependency.artifact } }
+        for ((i, retrieval) in retrievals.withIndex()) {
+            try {
+                retrieval.get()
+            } catch (e: ExecutionException) {
+                LOG.warn("Failed to retrieve artifact of {}", pending[i].id, e.cause)
+            }
+        }
+    }
+    return filter { it.artifactMissing }
+}
+
 /**
  * Resolve [dependencies] and store what was resolved in [resolved].
  * Resolution is done using [repositories] and using [DependencyId.preferredRepository] and its cache, if any.
- * Actually resolved dependencies can be at any point modified with [mapper].
+ * Actually resolved dependencies can be at any point modified with [mapper], which may be called from other threads.
  *
  * This is the entry point to dependency resolution.
+ * Only the dependency graph is resolved, artifacts are retrieved when first needed (see [retrieveArtifacts]).
  *
+ * @param concurrentLookup query all remote repositories for release dependencies at the same time, instead of one by one
  * @return true if all [dependencies] resolve correctly without error
  */
 fun resolveDependencies(resolved: MutableMap<DependencyId, ResolvedDependency>, dependencies: Collection<Dependency>,
-                        repositories: Collection<Repository>, mapper: ((Dependency) -> Dependency) = { it }): Boolean {
+                        repositories: Collection<Repository>, mapper: ((Dependency) -> Dependency) = { it },
+                        concurrentLookup:Boolean = false): Boolean {
     // Sort repositories
     val sorted = ArrayList<Repository>(repositories)
     sorted.sortWith(REPOSITORY_COMPARATOR)
 
-    // Lock repositories
-    val directoriesToLock = HashSet<Path>()
-    for (repository in repositories) {
-        directoriesToLock.add(repository.cache?.directoryPath() ?: continue)
-    }
+    // Cache repositories are not locked as a whole, only individual artifacts are locked (see retrievalLockFile)
+    // when they are being retrieved, so that multiple processes can resolve different artifacts at the same time
+    val dependencyStack = ArrayList<DependencyId>()
+    val exclusionStack = ArrayList<DependencyExclusion>()
 
-    fun <Result> locked(iterator:Iterator<Path>, action:()->Result):Result {
-        return if (!iterator.hasNext()) {
-            action()
-        } else {
-            val directory = iterator.next()
-            directorySynchronized(directory, {
-                // On wait
-                LOG.info("Waiting for lock on {}", directory)
-            }) {
-                locked(iterator, action)
-            }
-        }
-    }
+    val snapshots = SnapshotPrefetch(sorted, mapper)
+    snapshots.prefetch(dependencies.map { mapper(it).dependencyId }, resolved)
 
-    return locked(directoriesToLock.iterator()) {
-        val dependencyStack = ArrayList<DependencyId>()
-        val exclusionStack = ArrayList<DependencyExclusion>()
-
-        var ok = true
+    var ok = true
+    try {
         for (project in dependencies) {
-            if (!doResolveArtifacts(dependencyStack, exclusionStack, resolved, project, sorted, mapper)) {
+            if (!doResolveArtifacts(dependencyStack, exclusionStack, resolved, project, sorted, mapper, concurrentLookup, snapshots)) {
                 ok = false
             }
             assert(dependencyStack.isEmpty())
             assert(exclusionStack.isEmpty())
         }
-        ok
+    } finally {
+        snapshots.cancel()
     }
+    return ok
 }
 
 // -------------------------------- Internal ------------------------------
@@ -107,13 +125,27 @@ private val REPOSITORY_COMPARATOR = Comparator<Repository> { o1, o2 ->
  *
  * Does not resolve transitively.
  * When resolution fails, returns ResolvedDependency with [ResolvedDependency.hasError] = true.
+ *
+ * @param concurrentLookup when the [dependencyId] is not a snapshot, all remote repositories are probed
+ * for the POM at the same time (see [probeM2Repository]), after the local repositories were tried.
+ * Dependency is then resolved in the first repository whose probe finds it, the probe keeps the POM in the cache.
  */
-internal fun resolveSingleDependency(dependencyId: DependencyId, repositories: SortedRepositories): ResolvedDependency {
+internal fun resolveSingleDependency(dependencyId: DependencyId, repositories: SortedRepositories, concurrentLookup:Boolean = false): ResolvedDependency {
     var log: StringBuilder? = null
     val startTime = System.nanoTime()
 
     LOG.debug("Resolving {}", dependencyId)
 
+    fun noteTried(repository: Repository) {
+        val sb = log ?: StringBuilder()
+        if (sb.isEmpty()) {
+            sb.append("tried: ").append(repository.name)
+        } else {
+            sb.append(", ").append(repository.name)
+        }
+        log = sb
+    }
+
     fun resolveInRepository(repository: Repository?): ResolvedDependency? {
         if (repository == null) {
             return null
@@ -125,13 +157,7 @@ internal fun resolveSingleDependency(dependencyId: DependencyId, repositories: S
             LOG.debug("Resolution success {} ({} ms)", resolved, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime))
             return resolved
         } else {
-            val sb = log ?: StringBuilder()
-            if (sb.isEmpty()) {
-                sb.append("tried: ").append(repository.name)
-            } else {
-                sb.append(", ").append(repository.name)
-            }
-            log = sb
+            noteTried(repository)
         }
 
         return null
@@ -143,15 +169,79 @@ internal fun resolveSingleDependency(dependencyId: DependencyId, repositories: S
         return preferred
     }
 
-    // Try ordered repositories
-    for (repository in repositories) {
-        // Skip preferred repositories as those were already tried
-        if (repository == dependencyId.preferredRepository
-                || repository == dependencyId.preferredRepository?.cache) {
-            continue
+    // Skip preferred repositories as those were already tried
+    val remainingRepositories = repositories.filter { repository ->
+        repository != dependencyId.preferredRepository
+                && repository != dependencyId.preferredRepository?.cache
+    }
+
+    val probing = concurrentLookup && !dependencyId.isSnapshot && remainingRepositories.count { !it.local } > 1
+    if (!probing) {
+        // Try ordered repositories
+        for (repository in remainingRepositories) {
+            resolveInRepository(repository)?.let { return it }
+        }
+    } else {
+        // Local repositories are cheap to check, so they are still tried first.
+        // Release only repositories skip the dependency right away, so they don't need probes either.
+        val probedRepositories = ArrayList<Repository>()
+        for (repository in remainingRepositories) {
+            if (!repository.local && repository.releases) {
+                probedRepositories.add(repository)
+            } else {
+                resolveInRepository(repository)?.let { return it }
+            }
+        }
+
+        // Probe remote repositories at the same time, the first one which has it wins
+        val completedProbes = LinkedBlockingQueue<Int>()
+        val probes = probedRepositories.mapIndexed { i, repository ->
+            WorkerPool.submit<Boolean> {
+                try {
+                    probeM2Repository(dependencyId, repository)
+                } finally {
+                    completedProbes.add(i)
+                }
+            }
         }
 
-        resolveInRepository(repository)?.let { return it }
+        try {
+            val pending = ArrayList<Int>()
+            var remaining = probes.size
+            while (remaining > 0) {
+                // Wait for the next probe and take those which completed meanwhile,
+                // so that when more probes succeed at once, the first repository in order is preferred
+                pending.add(completedProbes.take())
+                completedProbes.drainTo(pending)
+                remaining -= pending.size
+                pending.sort()
+
+                for (i in pending) {
+                    val repository = probedRepositories[i]
+                    val present = try {
+                        probes[i].get()
+                    } catch (e: ExecutionException) {
+                        LOG.debug("Probing {} for {} failed", repository, dependencyId, e.cause)
+                        // Try it the normal way
+                        true
+                    }
+
+                    if (!present) {
+                        LOG.debug("Probe for {} in {} found nothing", dependencyId, repository)
+                        noteTried(repository)
+                        continue
+                    }
+
+                    resolveInRepository(repository)?.let { return it }
+                }
+                pending.clear()
+            }
+        } finally {
+            // Stop probes which are no longer needed
+            for (probe in probes) {
+                probe.cancel(true)
+            }
+        }
     }
 
     // Fail
@@ -159,6 +249,80 @@ internal fun resolveSingleDependency(dependencyId: DependencyId, repositories: S
     return ResolvedDependency(dependencyId, log ?: "no repositories to search in")
 }
 
+/**
+ * Resolves snapshot dependencies ahead of [doResolveArtifacts], on the [WorkerPool].
+ *
+ * Cached snapshots must be checked for changes with a request to each repository that may have them
+ * (see [resolveInM2Repository], which checks the snapshot metadata first), so all known snapshots are checked
+ * at the same time. When a snapshot is resolved, its snapshot dependencies are prefetched as well, so the whole
+ * snapshot part of the graph, which is reachable from the prefetched dependencies, is checked without waiting
+ * for the sequential resolution to get there. Release dependencies are not prefetched, because they don't need
+ * any requests when they are cached, their snapshot dependencies are prefetched when the resolution reaches them.
+ *
+ * Exclusions are not known here, so an excluded snapshot may be checked needlessly.
+ * Results of the prefetch are the same as of [resolveSingleDependency], because snapshots are never probed.
+ */
+private class SnapshotPrefetch(private val repositories: SortedRepositories, private val mapper: (Dependency) -> Dependency) {
+
+    /** Snapshots which are being resolved, with the [DependencyId] through which they were requested. */
+    private val prefetched = ConcurrentHashMap<DependencyId, Pair<DependencyId, Future<ResolvedDependency>>>()
+
+    /** Start resolving snapshots among [dependencies] which are not yet [resolved] nor prefetched. */
+    fun prefetch(dependencies: Collection<DependencyId>, resolved: Map<DependencyId, ResolvedDependency>) {
+        for (dependencyId in dependencies) {
+            if (dependencyId.isSnapshot && dependencyId !in resolved) {
+                prefetch(dependencyId)
+            }
+        }
+    }
+
+    private fun prefetch(dependencyId: DependencyId) {
+        if (prefetched.containsKey(dependencyId)) {
+            return
+        }
+        val resolution = FutureTask<ResolvedDependency> {
+            val resolved = resolveSingleDependency(dependencyId, repositories)
+            // May be called from any thread, so it does not get the resolved map
+            for (transitive in resolved.dependencies) {
+                val transitiveId = mapper(transitive).dependencyId
+                if (transitiveId.isSnapshot) {
+                    prefetch(transitiveId)
+                }
+            }
+            resolved
+        }
+        if (prefetched.putIfAbsent(dependencyId, dependencyId to resolution) == null) {
+            LOG.debug("Prefetching {}", dependencyId)
+            WorkerPool.execute(resolution)
+        }
+    }
+
+    /**
+     * Wait for the prefetched resolution of [dependencyId], if any.
+     * @return what [resolveSingleDependency] would return for [dependencyId], or null if it was not prefetched
+     */
+    fun take(dependencyId: DependencyId): ResolvedDependency? {
+        val (prefetchedId, resolution) = prefetched[dependencyId] ?: return null
+        if (prefetchedId.preferredRepository != dependencyId.preferredRepository) {
+            // Resolved in different order of repositories
+            return null
+        }
+        return try {
+            resolution.get()
+        } catch (e: ExecutionException) {
+            LOG.debug("Failed to prefetch {}", dependencyId, e.cause)
+            null
+        }
+    }
+
+    /** Stop prefetching of snapshots which were not needed, for example because they were excluded. */
+    fun cancel() {
+        for ((_, resolution) in prefetched.values) {
+            resolution.cancel(false)
+        }
+    }
+}
+
 /**
  * Resolves artifacts for [dependency], using [resolveSingleDependency],
  * and artifacts for transitive dependencies by calling itself.
@@ -168,13 +332,16 @@ internal fun resolveSingleDependency(dependencyId: DependencyId, repositories: S
  * @param resolved cache for already resolved dependencies
  * @param repositories to use
  * @param mapper to modify which dependency is actually resolved
+ * @param concurrentLookup see [resolveSingleDependency]
+ * @param snapshots prefetch of snapshot dependencies, which are resolved ahead
  * @return true if all dependencies resolved without error
  */
 private fun doResolveArtifacts(dependencyStack:ArrayList<DependencyId>,
                                exclusionStack:ArrayList<DependencyExclusion>,
                                resolved: MutableMap<DependencyId, ResolvedDependency>,
                                dependency: Dependency, repositories: SortedRepositories,
-                               mapper: (Dependency) -> Dependency): Boolean {
+                               mapper: (Dependency) -> Dependency, concurrentLookup: Boolean,
+                               snapshots: SnapshotPrefetch): Boolean {
 
     val (dependencyId, exclusions) = mapper(dependency)
 
@@ -210,26 +377,30 @@ private fun doResolveArtifacts(dependencyStack:ArrayList<DependencyId>,
                     && dependencyId.preferredRepository != null)) {
         // Either nothing is resolved, or we now know a different repository to look in,
         // so we might be more successful now. (Of course error is already in the result, so it won't count)
-        resolvedProject = resolveSingleDependency(dependencyId, repositories)
+        resolvedProject = (if (resolvedProject == null) snapshots.take(dependencyId) else null)
+                ?: resolveSingleDependency(dependencyId, repositories, concurrentLookup)
         resolved[dependencyId] = resolvedProject
     }
 
     // Push
     exclusionStack.addAll(exclusions)
 
-    var ok = !resolvedProject.hasError
-    for (transitiveDependency in resolvedProject.dependencies) {
+    val transitiveDependencies = resolvedProject.dependencies.filter { transitiveDependency ->
         val excluded = exclusionStack.any { rule ->
             if (rule.excludes(transitiveDependency.dependencyId)) {
                 LOG.debug("Excluded {} with rule {} (dependency of {})", transitiveDependency.dependencyId, rule, dependencyId)
                 true
             } else false
         }
+        !excluded
+    }
 
-        if (!excluded) {
-            if (!doResolveArtifacts(dependencyStack, exclusionStack, resolved, transitiveDependency, repositories, mapper)) {
-                ok = false
-            }
+    snapshots.prefetch(transitiveDependencies.map { mapper(it).dependencyId }, resolved)
+
+    var ok = !resolvedProject.hasError
+    for (transitiveDependency in transitiveDependencies) {
+        if (!doResolveArtifacts(dependencyStack, exclusionStack, resolved, transitiveDependency, repositories, mapper, concurrentLookup, snapshots)) {
+            ok = false
         }
     }
 
@@ -20,10 +20,11 @@ import java.net.URL
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption
-import java.nio.file.StandardOpenOption
 import java.nio.file.attribute.BasicFileAttributes
 import java.nio.file.attribute.FileTime
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.TimeUnit
 import kotlin.collections.HashMap
 
@@ -64,16 +65,34 @@ fun resolveInM2Repository(dependencyId: DependencyId, repository: Repository, re
     when (resolvedDependencyId.type) {
         "jar", "bundle" -> { // TODO Should osgi bundles have different handling?
             val jarPath = artifactPath(resolvedDependencyId.group, resolvedDependencyId.name, resolvedDependencyId.version, resolvedDependencyId.classifier, "jar", resolvedDependencyId.snapshotVersion)
-            val retrieved = retrieveFile(repository, jarPath, snapshot)
+            val retrieveJar = {
+                // Unique snapshot files never change
+                val retrieved = retrieveArtifactFile(jarPath, snapshot, snapshot && resolvedDependencyId.snapshotVersion.isEmpty(), repository, repositories)
+                if (retrieved == null) {
+                    LOG.warn("Failed to retrieve jar at '{}' in {} or other repositories", jarPath, repository)
+                } else {
+                    // Purge retrieved data, storing it would only create a memory leak, as the value is rarely used,
+                    // can always be lazily loaded and the size of all dependencies can be quite big.
+                    retrieved.data = null
+                }
+                retrieved
+            }
 
-            if (retrieved == null) {
-                LOG.warn("Failed to retrieve jar at '{}' in {}", jarPath, repository)
-                return ResolvedDependency(resolvedDependencyId, "Failed to retrieve jar", repository)
+            // Only the graph is resolved here, jar is retrieved when it is first needed.
+            // Sources and documentation are often missing and slow to find out about, so start looking for them right away.
+            val classifier = resolvedDependencyId.classifier
+            return if (classifier.endsWith(SourcesClassifier) || classifier.endsWith(JavadocClassifier)) {
+                val prefetch = WorkerPool.submit<ArtifactPath?> { retrieveJar() }
+                ResolvedDependency(resolvedDependencyId, pom.dependencies, repository) {
+                    try {
+                        prefetch.get()
+                    } catch (e: ExecutionException) {
+                        LOG.warn("Failed to retrieve jar at '{}' in {}", jarPath, repository, e.cause)
+                        null
+                    }
+                }
             } else {
-                // Purge retrieved data, storing it would only create a memory leak, as the value is rarely used,
-                // can always be lazily loaded and the size of all dependencies can be quite big.
-                retrieved.data = null
-                return ResolvedDependency(resolvedDependencyId, pom.dependencies, repository, retrieved)
+                ResolvedDependency(resolvedDependencyId, pom.dependencies, repository, retrieveJar)
             }
         }
         else -> {
@@ -83,6 +102,31 @@ fun resolveInM2Repository(dependencyId: DependencyId, repository: Repository, re
     }
 }
 
+/**
+ * Retrieve artifact file at [path] from the [repository] in which its POM was found.
+ * When it is not there (for example when only the POM is in the local repository),
+ * the other [repositories] are tried, in order, like the resolution would try them.
+ *
+ * @param snapshot whether the artifact belongs to a snapshot dependency
+ * @param changing whether the file may change in the repository, see [retrieveFile]
+ */
+private fun retrieveArtifactFile(path:String, snapshot:Boolean, changing:Boolean,
+                                 repository:Repository, repositories:List<Repository>):ArtifactPath? {
+    retrieveFile(repository, path, changing)?.let { return it }
+
+    for (otherRepository in repositories) {
+        if (otherRepository === repository
+                || (snapshot && !otherRepository.snapshots)
+                || (!snapshot && !otherRepository.releases)) {
+            continue
+        }
+        val retrieved = retrieveFile(otherRepository, path, changing) ?: continue
+        LOG.debug("Artifact '{}' is not in {}, retrieved it from {}", path, repository, otherRepository)
+        return retrieved
+    }
+    return null
+}
+
 private val WEBB = Webb(null).apply {
     // NOTE: When User-Agent is not set, it defaults to "Java/<version>" and some servers (Sonatype Nexus)
     // then return gutted version of some resources (at least maven-metadata.xml) for which the checksums don't match
@@ -109,6 +153,8 @@ private fun httpGet(url:URL, ifModifiedSince:Long = -1): Request {
 
 private sealed class DownloadResult {
     object Failure:DownloadResult()
+    /** Remote repository reported that the file does not exist */
+    object NotFound:DownloadResult()
     object UseCache:DownloadResult()
     class Success(val remoteLastModifiedTime:Long, val remoteArtifactData:ByteArray, val checksums:Array<String?>, val checksumMismatches:Int):DownloadResult()
 }
@@ -130,6 +176,7 @@ private fun retrieveFileDownloadAndVerify(repositoryArtifactUrl: URL, cacheContr
     } catch (e: WebbException) {
         if (e.cause is FileNotFoundException) {
             LOG.debug("Failed to retrieve '{}', file not found", repositoryArtifactUrl)
+            return DownloadResult.NotFound
         } else {
             LOG.debug("Failed to retrieve '{}'", repositoryArtifactUrl, e)
         }
@@ -138,6 +185,9 @@ private fun retrieveFileDownloadAndVerify(repositoryArtifactUrl: URL, cacheContr
 
     if (snapshot && response.statusCode == 304 /* Not modified */) {
         return DownloadResult.UseCache
+    } else if (response.statusCode == 404 /* Not found */ || response.statusCode == 410 /* Gone */) {
+        LOG.debug("Failed to retrieve '{}' - status code {}", repositoryArtifactUrl, response.statusCode)
+        return DownloadResult.NotFound
     } else if (!response.isSuccess) {
         LOG.debug("Failed to retrieve '{}' - status code {}", repositoryArtifactUrl, response.statusCode)
         return DownloadResult.Failure
@@ -208,17 +258,21 @@ private fun retrieveFile(repository: Repository, path: String, snapshot:Boolean,
             1. Yes: Return it, done
             2. No: Note the last modification time for cache control
         2. Yes && !snapshot: Return it, done
-        3. No: Continue
+        3. No: Was it recently not found in the remote? (Repository.missingCacheSeconds)
+            1. Yes: Fail
+            2. No: Continue
+    (Steps 3 to 6 are done while holding a lock of the file (see retrievalLockFile), cache is checked again after locking)
     3. Download remote path to memory (possibly with cache control from 2.1), note response time
         1. Skipped, cache valid: Return cache local path, done
         2. Succeeded: continue
-        3. Failed: Fail
+        3. Not found: Remember that it is missing (if there is no cache), Fail
+        4. Failed: Fail
     4. Download checksums one by one and verify
         1. All checksums 404: Warn, continue
         2. Any checksum mismatch: Warn, fail, try again! (if repository allows to ignore checksums, do not fail completely)
         3. All checksums match (or 404): continue
     5. Store downloaded checksums locally
-    6. Store downloaded artifact locally, overwriting existing if it is known that it exists (2.1)
+    6. Store downloaded artifact locally (through a temporary file, which is then atomically renamed)
     7. Done
      */
 
@@ -247,32 +301,112 @@ private fun retrieveFile(repository: Repository, path: String, snapshot:Boolean,
     // This will not fail, due to constraints imposed by repository.cache initializer
     val cacheRepositoryRoot = repository.cache?.url ?: throw AssertionError("non local repository does not have cache repository")
     val cacheFile = (cacheRepositoryRoot / cachePath).toPath() ?: throw AssertionError("cache repository URL is not valid Path")
-    var cacheFileExists = false
 
     // Step 2: check local cache
-    var cacheControlMs:Long = -1
+    val cacheState = checkCacheFile(cacheFile, snapshot, repository)
+    when (cacheState) {
+        CacheState.Invalid -> return null
+        CacheState.Fresh -> return ArtifactPath(cacheFile, repositoryArtifactUrl, null)
+        CacheState.Missing -> {
+            if (isKnownMissing(repository, path, snapshot)) {
+                LOG.debug("Not retrieving '{}' from {}, it was recently not found there", path, repository)
+                return null
+            }
+        }
+        is CacheState.Stale -> {}
+    }
+
+    // Steps 3 to 6 are done while holding the lock of the artifact,
+    // so that concurrent processes do not download the same file at the same time,
+    // but can (mostly) retrieve different artifacts simultaneously
+    val cacheRepositoryPath = cacheRepositoryRoot.toPath() ?: throw AssertionError("cache repository URL is not valid Path")
+    return fileSynchronized(retrievalLockFile(cacheRepositoryPath, cachePath), {
+        // On wait
+        LOG.info("Waiting for lock on {}", cacheFile.parent)
+    }) {
+        // Check again, other process might have retrieved it while we were waiting for the lock
+        val lockedCacheState = checkCacheFile(cacheFile, snapshot, repository)
+        when (lockedCacheState) {
+            CacheState.Invalid -> null
+            CacheState.Fresh -> ArtifactPath(cacheFile, repositoryArtifactUrl, null)
+            CacheState.Missing -> retrieveFileLocked(repository, path, snapshot, cachePath, cacheFile, -1)
+            is CacheState.Stale -> retrieveFileLocked(repository, path, snapshot, cachePath, cacheFile, lockedCacheState.lastModifiedMs)
+        }
+    }
+}
+
+/** Each cache repository has 2^[RETRIEVAL_LOCK_BITS] lock files, see [retrievalLockFile]. */
+private const val RETRIEVAL_LOCK_BITS = 6
+
+/**
+ * Lock file to hold while the file at [cachePath] is retrieved into the cache repository at [cacheRepositoryRoot].
+ * Files of one artifact (in one directory) always share the lock. Other artifacts are spread over a fixed set
+ * of lock files in the cache repository root, selected by the hash of their directory, so that no lock files
+ * are created in the artifact directories and the amount of locks does not grow with the amount of artifacts.
+ * [String.hashCode] is specified, so all processes select the same lock file.
+ */
+internal fun retrievalLockFile(cacheRepositoryRoot: Path, cachePath: String): Path {
+    val artifactDirectory = cachePath.substringBeforeLast('/', "")
+    // Fibonacci hashing, similar paths differ mostly in the low bits of their hash code
+    val stripe = (artifactDirectory.hashCode() * -0x61c88647) ushr (32 - RETRIEVAL_LOCK_BITS)
+    return cacheRepositoryRoot / ".wemi-locks" / "$stripe.lock"
+}
+
+/**
+ * Snapshot files in cache which were verified to be up to date with their remote repository in this session,
+ * mapped to the time of the verification, as [System.currentTimeMillis].
+ * Modification time of the cached file is the modification time in the remote repository, so it can't be used for this.
+ */
+private val VERIFIED_SNAPSHOT_FILES = ConcurrentHashMap<Path, Long>()
+
+/** State of a cached file, as determined by [checkCacheFile]. */
+private sealed class CacheState {
+    /** File is not in the cache */
+    object Missing:CacheState()
+    /** File can't be used (for example, it is a directory) */
+    object Invalid:CacheState()
+    /** Cached file can be used as is */
+    object Fresh:CacheState()
+    /** Cached file is a snapshot which should be checked for changes */
+    class Stale(val lastModifiedMs:Long):CacheState()
+}
+
+/** Step 2 of [retrieveFile] */
+private fun checkCacheFile(cacheFile:Path, snapshot:Boolean, repository:Repository):CacheState {
     try {
         LOG.debug("Checking local artifact cache: {}", cacheFile)
         val attributes = Files.readAttributes<BasicFileAttributes>(cacheFile, BasicFileAttributes::class.java)
         if (attributes.isDirectory) {
             LOG.warn("Local artifact cache is a directory: {}", cacheFile)
-            return null
+            return CacheState.Invalid
         }
         if (!snapshot) {
             LOG.trace("Using local artifact cache (not snapshot): {}", cacheFile)
-            return ArtifactPath(cacheFile, repositoryArtifactUrl, null)
+            return CacheState.Fresh
         }
         val modified = attributes.lastModifiedTime().toMillis()
-        if (modified + TimeUnit.SECONDS.toMillis(repository.snapshotUpdateDelaySeconds) > System.currentTimeMillis()) {
+        val verified = maxOf(modified, VERIFIED_SNAPSHOT_FILES[cacheFile] ?: -1L)
+        if (verified + TimeUnit.SECONDS.toMillis(repository.snapshotUpdateDelaySeconds) > System.currentTimeMillis()) {
             LOG.trace("Using local artifact cache (snapshot still fresh): {}", cacheFile)
-            return ArtifactPath(cacheFile, repositoryArtifactUrl, null)
+            return CacheState.Fresh
         }
 
-        cacheFileExists = true
-        cacheControlMs = modified
+        return CacheState.Stale(modified)
     } catch (fileDoesNotExist: IOException) {
         LOG.trace("Local artifact cache does not exist: {}", cacheFile, fileDoesNotExist)
+        return CacheState.Missing
     }
+}
+
+/**
+ * Steps 3 to 6 of [retrieveFile], done while holding the [retrievalLockFile] of [cacheFile].
+ *
+ * @param cacheControlMs last modification time of the existing stale [cacheFile], -1 if it does not exist
+ */
+private fun retrieveFileLocked(repository: Repository, path: String, snapshot:Boolean, cachePath:String, cacheFile:Path, cacheControlMs:Long): ArtifactPath? {
+    val repositoryArtifactUrl = repository.url / path
+    val cacheRepositoryRoot = repository.cache!!.url
+    val cacheFileExists = cacheControlMs != -1L
 
     // Step 3 & 4: download from remote to memory and verify checksums
     LOG.info("Retrieving file '{}' from {}", path, repository)
@@ -280,12 +414,19 @@ private fun retrieveFile(repository: Repository, path: String, snapshot:Boolean,
     // Download may fail, or checksums may fail, so try multiple times
     var downloadFileSuccess:DownloadResult.Success? = null
     val retries = 3
-    for (downloadTry in 1 .. retries) {
+    download@for (downloadTry in 1 .. retries) {
         val downloadFileResult = retrieveFileDownloadAndVerify(repositoryArtifactUrl, cacheControlMs, snapshot)
         when (downloadFileResult) {
             DownloadResult.Failure -> return null
+            DownloadResult.NotFound -> {
+                if (!cacheFileExists) {
+                    markKnownMissing(repository, path, snapshot)
+                }
+                return null
+            }
             DownloadResult.UseCache -> {
                 LOG.trace("Using local artifact cache (snapshot not modified): {}", cacheFile)
+                VERIFIED_SNAPSHOT_FILES[cacheFile] = System.currentTimeMillis()
                 return ArtifactPath(cacheFile, repositoryArtifactUrl, null)
             }
             is DownloadResult.Success -> {
@@ -293,6 +434,7 @@ private fun retrieveFile(repository: Repository, path: String, snapshot:Boolean,
                 if (mismatches > 0) {
                     if (downloadTry < retries) {
                         LOG.warn("Retrying download after {} checksum(s) mismatched", mismatches)
+                        continue@download
                     } else if (repository.tolerateChecksumMismatch) {
                         LOG.warn("Settling on download with {} mismatched checksum(s)", mismatches)
                     } else {
@@ -301,11 +443,19 @@ private fun retrieveFile(repository: Repository, path: String, snapshot:Boolean,
                     }
                 }
                 downloadFileSuccess = downloadFileResult
+                break@download
             }
         }
     }
-    downloadFileSuccess!!
+    return storeDownloadedFile(repositoryArtifactUrl, cachePath, cacheFile, snapshot, downloadFileSuccess!!, cacheRepositoryRoot)
+}
 
+/**
+ * Steps 5 and 6 of [retrieveFile], store [downloadFileSuccess] of [repositoryArtifactUrl] into the [cacheFile],
+ * while holding a lock on its directory.
+ */
+private fun storeDownloadedFile(repositoryArtifactUrl:URL, cachePath:String, cacheFile:Path, snapshot:Boolean,
+                                downloadFileSuccess:DownloadResult.Success, cacheRepositoryRoot:URL): ArtifactPath? {
     // Step 5: Store downloaded checksums locally
     Files.createDirectories(cacheFile.parent)
     var validChecksums = 0
@@ -313,8 +463,12 @@ private fun retrieveFile(repository: Repository, path: String, snapshot:Boolean,
         checksum ?: continue
         val checksumCachePath = cachePath + CHECKSUMS[i].suffix
         val filePath = (cacheRepositoryRoot / checksumCachePath).toPath() ?: throw AssertionError("cache repository checksum path is not a valid path")
-        filePath.writeText(checksum)
-        validChecksums++
+        try {
+            writeCacheFileAtomically(filePath, checksum.toByteArray(Charsets.UTF_8), -1)
+            validChecksums++
+        } catch (e: IOException) {
+            LOG.warn("Failed to save checksum {} to cache", filePath, e)
+        }
     }
     if (validChecksums == 0) {
         LOG.warn("No checksums found for {}, can't verify its correctness", repositoryArtifactUrl)
@@ -323,32 +477,94 @@ private fun retrieveFile(repository: Repository, path: String, snapshot:Boolean,
     // Step 6: Store downloaded artifact
     val remoteArtifactData: ByteArray = downloadFileSuccess.remoteArtifactData
     try {
-        val openOptions =
-                if (cacheFileExists) {
-                    arrayOf(StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
-                } else {
-                    arrayOf(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
-                }
-        Files.newOutputStream(cacheFile, *openOptions).use {
-            it.write(remoteArtifactData, 0, remoteArtifactData.size)
+        writeCacheFileAtomically(cacheFile, remoteArtifactData, if (snapshot) downloadFileSuccess.remoteLastModifiedTime else -1)
+        if (snapshot) {
+            VERIFIED_SNAPSHOT_FILES[cacheFile] = System.currentTimeMillis()
         }
         LOG.debug("Artifact from {} cached successfully", repositoryArtifactUrl)
     } catch (e: IOException) {
         LOG.warn("Failed to save artifact from {} to cache in {}", repositoryArtifactUrl, cacheFile, e)
         return null
     }
-    if (snapshot) {
-        try {
-            Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(downloadFileSuccess.remoteLastModifiedTime))
-        } catch (e: IOException) {
-            LOG.warn("Failed to change artifact's '{}' modify time, snapshot cache control may be slightly off", cacheFile, e)
-        }
-    }
 
     // Done
     return ArtifactPath(cacheFile, repositoryArtifactUrl, remoteArtifactData)
 }
 
+/**
+ * Write [data] into [file], see [writeFileAtomically].
+ *
+ * @param lastModifiedMs to set as the last modified time of the [file], if not negative
+ */
+private fun writeCacheFileAtomically(file:Path, data:ByteArray, lastModifiedMs:Long) {
+    writeFileAtomically(file) { temporaryFile ->
+        Files.newOutputStream(temporaryFile).use {
+            it.write(data, 0, data.size)
+        }
+        if (lastModifiedMs >= 0) {
+            try {
+                Files.setLastModifiedTime(temporaryFile, FileTime.fromMillis(lastModifiedMs))
+            } catch (e: IOException) {
+                LOG.warn("Failed to change artifact's '{}' modify time, snapshot cache control may be slightly off", file, e)
+            }
+        }
+    }
+}
+
+/**
+ * Check whether [repository] holds the POM of release [dependencyId], with valid checksums.
+ * When it does, the downloaded POM is stored in the cache of the [repository], like [retrieveFile] would,
+ * so that the following resolution in the [repository] does not download it again. Thread safe.
+ *
+ * Used to query multiple repositories at the same time, see [resolveSingleDependency].
+ */
+internal fun probeM2Repository(dependencyId: DependencyId, repository: Repository): Boolean {
+    if (dependencyId.isSnapshot || !repository.releases) {
+        return false
+    }
+    val pomPath = pomPath(dependencyId.group, dependencyId.name, dependencyId.version, dependencyId.snapshotVersion)
+
+    if (repository.local) {
+        val localFile = (repository.url / pomPath).toPath() ?: return false
+        return Files.isRegularFile(localFile)
+    }
+
+    val cacheRepositoryRoot = repository.cache?.url ?: return false
+    val cacheFile = (cacheRepositoryRoot / pomPath).toPath() ?: return false
+    if (Files.isRegularFile(cacheFile)) {
+        // retrieveFile would use it as well
+        return true
+    }
+
+    if (isKnownMissing(repository, pomPath, false)) {
+        return false
+    }
+
+    val repositoryPomUrl = repository.url / pomPath
+    val result = retrieveFileDownloadAndVerify(repositoryPomUrl, -1, false)
+    return when (result) {
+        DownloadResult.NotFound -> {
+            markKnownMissing(repository, pomPath, false)
+            false
+        }
+        DownloadResult.Failure, DownloadResult.UseCache -> false
+        is DownloadResult.Success -> {
+            if (result.checksumMismatches > 0 && !repository.tolerateChecksumMismatch) {
+                // Let the resolution retry the download
+                return true
+            }
+            val cacheRepositoryPath = cacheRepositoryRoot.toPath() ?: return false
+            fileSynchronized(retrievalLockFile(cacheRepositoryPath, pomPath)) {
+                // Other process might have retrieved it while we were waiting for the lock
+                if (!Files.isRegularFile(cacheFile)) {
+                    storeDownloadedFile(repositoryPomUrl, pomPath, cacheFile, false, result, cacheRepositoryRoot)
+                }
+            }
+            true
+        }
+    }
+}
+
 private fun retrieveRawPom(dependencyId: DependencyId,
                            repository: Repository,
                            repositories: List<Repository>,
@@ -418,41 +634,61 @@ private fun resolveRawPom(pomUrl:URL, pomData:ByteArray,
 
 
 /** Retrieve raw pom file for given [dependencyId] in [repository].
- * If [snapshot] and it is unique snapshot, it resolves maven-metadata.xml and returns the pom for the newest version. */
+ * If [snapshot] and it is unique snapshot, it resolves maven-metadata.xml and returns the pom for the newest version.
+ * Remote repositories are asked for the maven-metadata.xml first, because they usually have unique snapshots,
+ * and the metadata is checked with a conditional request, while the pom of the newest version never changes.
+ * That way, checking an unchanged snapshot takes one request, without asking for a non-unique pom that isn't there. */
 private fun retrievePom(repository:Repository, dependencyId:DependencyId, snapshot:Boolean):Failable<Pair<ArtifactPath, DependencyId>, ResolvedDependency> {
     LOG.trace("Retrieving pom at '{}' for {}", repository, dependencyId)
-    val retrievedPom = retrieveFile(repository, pomPath(dependencyId.group, dependencyId.name, dependencyId.version, dependencyId.snapshotVersion), snapshot)
+    val latestSnapshot = snapshot && dependencyId.snapshotVersion.isEmpty()
+
+    var uniqueSnapshotPom:Failable<Pair<ArtifactPath, DependencyId>, ResolvedDependency>? = null
+    if (latestSnapshot && !repository.local) {
+        uniqueSnapshotPom = retrieveUniqueSnapshotPom(repository, dependencyId)
+        if (uniqueSnapshotPom.successful) {
+            return uniqueSnapshotPom
+        }
+    }
+
+    // Unique snapshot files never change
+    val retrievedPom = retrieveFile(repository, pomPath(dependencyId.group, dependencyId.name, dependencyId.version, dependencyId.snapshotVersion), latestSnapshot)
     if (retrievedPom != null) {
         return Failable.success(retrievedPom to dependencyId)
     }
-    if (snapshot && dependencyId.snapshotVersion.isEmpty()) {
-        // Query for maven-metadata.xml (https://github.com/strongbox/strongbox/wiki/Maven-Metadata)
-        val mavenMetadataPath = mavenMetadataPath(dependencyId, null)
-        val mavenMetadataCachePath = mavenMetadataPath(dependencyId, repository)
-        val metadataFileArtifact = retrieveFile(repository, mavenMetadataPath, true, mavenMetadataCachePath)
-                ?: return Failable.failure(ResolvedDependency(dependencyId, "Failed to resolve snapshot metadata", repository))
-        val metadataBuilder = MavenMetadataBuildingXMLHandler.buildFrom(metadataFileArtifact)
-        val snapshotVersion = metadataBuilder.use({ metadata ->
-            val timestamp = metadata.versioningSnapshotTimestamp
-                    ?: return Failable.failure(ResolvedDependency(dependencyId, "Failed to parse metadata xml: timestamp is missing", repository))
-            val buildNumber = metadata.versioningSnapshotBuildNumber
-            "$timestamp-$buildNumber"
-        }, { log ->
-            return Failable.failure(ResolvedDependency(dependencyId, "Failed to parse metadata xml: $log", repository))
-        })
+    if (latestSnapshot) {
+        return uniqueSnapshotPom ?: retrieveUniqueSnapshotPom(repository, dependencyId)
+    }
 
-        LOG.info("Resolving {} in {} with snapshot version {}", dependencyId, repository, snapshotVersion)
+    return Failable.failure(ResolvedDependency(dependencyId, "Failed to resolve pom xml", repository))
+}
+
+/** Retrieve raw pom file of the newest unique snapshot version of [dependencyId] in [repository],
+ * according to its maven-metadata.xml. */
+private fun retrieveUniqueSnapshotPom(repository:Repository, dependencyId:DependencyId):Failable<Pair<ArtifactPath, DependencyId>, ResolvedDependency> {
+    // Query for maven-metadata.xml (https://github.com/strongbox/strongbox/wiki/Maven-Metadata)
+    val mavenMetadataPath = mavenMetadataPath(dependencyId, null)
+    val mavenMetadataCachePath = mavenMetadataPath(dependencyId, repository)
+    val metadataFileArtifact = retrieveFile(repository, mavenMetadataPath, true, mavenMetadataCachePath)
+            ?: return Failable.failure(ResolvedDependency(dependencyId, "Failed to resolve snapshot metadata", repository))
+    val metadataBuilder = MavenMetadataBuildingXMLHandler.buildFrom(metadataFileArtifact)
+    val snapshotVersion = metadataBuilder.use({ metadata ->
+        val timestamp = metadata.versioningSnapshotTimestamp
+                ?: return Failable.failure(ResolvedDependency(dependencyId, "Failed to parse metadata xml: timestamp is missing", repository))
+        val buildNumber = metadata.versioningSnapshotBuildNumber
+        "$timestamp-$buildNumber"
+    }, { log ->
+        return Failable.failure(ResolvedDependency(dependencyId, "Failed to parse metadata xml: $log", repository))
+    })
 
-        val newRetrievedPom = retrieveFile(repository, pomPath(dependencyId.group, dependencyId.name, dependencyId.version, snapshotVersion), snapshot)
+    LOG.info("Resolving {} in {} with snapshot version {}", dependencyId, repository, snapshotVersion)
 
-        if (newRetrievedPom != null) {
-            return Failable.success(newRetrievedPom to dependencyId.copy(snapshotVersion = snapshotVersion))
-        }
+    val newRetrievedPom = retrieveFile(repository, pomPath(dependencyId.group, dependencyId.name, dependencyId.version, snapshotVersion), false)
 
-        return Failable.failure(ResolvedDependency(dependencyId, "Failed to resolve pom xml for deduced snapshot version \"$snapshotVersion\"", repository))
+    if (newRetrievedPom != null) {
+        return Failable.success(newRetrievedPom to dependencyId.copy(snapshotVersion = snapshotVersion))
     }
 
-    return Failable.failure(ResolvedDependency(dependencyId, "Failed to resolve pom xml", repository))
+    return Failable.failure(ResolvedDependency(dependencyId, "Failed to resolve pom xml for deduced snapshot version \"$snapshotVersion\"", repository))
 }
 
 private fun resolvePom(rawPom:RawPom, repository: Repository, repositories: List<Repository>): Failable<Pom, String> {
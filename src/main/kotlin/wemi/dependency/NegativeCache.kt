@@ -0,0 +1,176 @@
+package wemi.dependency
+
+import org.slf4j.LoggerFactory
+import wemi.util.fileSynchronized
+import wemi.util.name
+import wemi.util.toPath
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.TimeUnit
+
+private val LOG = LoggerFactory.getLogger("NegativeCache")
+
+/**
+ * Remembers which files were not found in a remote [Repository], so that the lookup is not repeated
+ * until [Repository.missingCacheSeconds] pass.
+ *
+ * Stored in the [Repository.cache] directory, in a file named after the [Repository.name], see [negativeCacheFile].
+ * File format is a simple list of lines `<time of miss in ms> <path>`, newer lines override older ones.
+ * The file is only changed while holding its own lock file (see [fileSynchronized]), so that lookups of other files
+ * in the cache repository are not blocked. Deleting the file forgets all misses, even in running Wemi processes.
+ */
+private class NegativeCache(private val file: Path, private val maxAgeMs: Long) {
+
+    private val lockFile = file.resolveSibling("${file.name}.lock")
+
+    /** path -> time of the last miss in ms, guarded by itself */
+    private val misses = HashMap<String, Long>()
+
+    /** Load the [file], remove entries older than [maxAgeMs] and rewrite the file, if it has enough garbage. */
+    fun loadAndCompact() {
+        if (!Files.exists(file)) {
+            return
+        }
+
+        try {
+            fileSynchronized(lockFile) {
+                compactLocked()
+            }
+        } catch (e: IOException) {
+            LOG.warn("Failed to load negative cache from {}", file, e)
+        }
+    }
+
+    private fun compactLocked() {
+        val lines = try {
+            Files.readAllLines(file, Charsets.UTF_8)
+        } catch (e: IOException) {
+            LOG.warn("Failed to load negative cache from {}", file, e)
+            return
+        }
+
+        val loaded = HashMap<String, Long>()
+        for (line in lines) {
+            val separator = line.indexOf(' ')
+            if (separator <= 0) {
+                continue
+            }
+            val time = line.substring(0, separator).toLongOrNull() ?: continue
+            loaded[line.substring(separator + 1)] = time
+        }
+        LOG.trace("Loaded {} negative cache entries from {}", loaded.size, file)
+
+        val now = System.currentTimeMillis()
+        loaded.values.removeIf { time -> time > now || now - time >= maxAgeMs }
+        synchronized(misses) {
+            misses.putAll(loaded)
+        }
+
+        if (loaded.size * 2 >= lines.size) {
+            // Not worth it
+            return
+        }
+
+        try {
+            if (loaded.isEmpty()) {
+                Files.deleteIfExists(file)
+            } else {
+                Files.newBufferedWriter(file, Charsets.UTF_8).use { writer ->
+                    for ((path, time) in loaded) {
+                        writer.append(time.toString()).append(' ').append(path).append('\n')
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            LOG.debug("Failed to compact negative cache in {}", file, e)
+        }
+    }
+
+    fun isMissing(path: String): Boolean {
+        val time = synchronized(misses) { misses[path] } ?: return false
+        val now = System.currentTimeMillis()
+        // Entries from the future are not trusted
+        if (time > now || now - time >= maxAgeMs) {
+            return false
+        }
+        if (!Files.exists(file)) {
+            // Deleted to forget the misses
+            synchronized(misses) {
+                misses.clear()
+            }
+            return false
+        }
+        return true
+    }
+
+    fun markMissing(path: String) {
+        val now = System.currentTimeMillis()
+        synchronized(misses) {
+            misses[path] = now
+        }
+
+        try {
+            fileSynchronized(lockFile) {
+                Files.newBufferedWriter(file, Charsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND).use { writer ->
+                    writer.append(now.toString()).append(' ').append(path).append('\n')
+                }
+            }
+        } catch (e: IOException) {
+            LOG.debug("Failed to store negative cache entry to {}", file, e)
+        }
+    }
+}
+
+/** Loaded negative caches, by their file. */
+private val NEGATIVE_CACHES = HashMap<Path, Lazy<NegativeCache>>()
+
+/**
+ * File in which the negative cache of [repository] is stored, or null if it does not have any.
+ * Delete it to make Wemi look for the files which were not found again.
+ */
+internal fun negativeCacheFile(repository: Repository): Path? {
+    if (repository.local || repository.missingCacheSeconds <= 0L) {
+        return null
+    }
+    return repository.cache?.url?.toPath()?.resolve(".wemi-missing-${repository.name}")
+}
+
+/** @return negative cache of the [repository], or null if it does not have any */
+private fun negativeCacheFor(repository: Repository): NegativeCache? {
+    val file = negativeCacheFile(repository) ?: return null
+    // Loaded outside of the NEGATIVE_CACHES lock, once
+    val cache = synchronized(NEGATIVE_CACHES) {
+        NEGATIVE_CACHES.getOrPut(file) {
+            lazy {
+                val cache = NegativeCache(file, TimeUnit.SECONDS.toMillis(repository.missingCacheSeconds))
+                cache.loadAndCompact()
+                cache
+            }
+        }
+    }
+    return cache.value
+}
+
+/**
+ * Check whether the file at [path] in the [repository] was recently found to be missing.
+ * Always false for local repositories and for [snapshot] files, which may be published at any time.
+ */
+internal fun isKnownMissing(repository: Repository, path: String, snapshot: Boolean): Boolean {
+    if (snapshot) {
+        return false
+    }
+    return negativeCacheFor(repository)?.isMissing(path) ?: false
+}
+
+/**
+ * Remember that the file at [path] is not present in the [repository].
+ * Does nothing for local repositories and for [snapshot] files, which may be published at any time.
+ */
+internal fun markKnownMissing(repository: Repository, path: String, snapshot: Boolean) {
+    if (snapshot) {
+        return
+    }
+    negativeCacheFor(repository)?.markMissing(path)
+}
@@ -48,17 +48,25 @@ class Repository(
          * WARNING: Making non-local repository local will throw [WemiException].
          * Marking local repository as non-local can be useful, if, for example, the repository is actually on
          * a slow network drive, external drive which may not be present, etc. */
-        val local:Boolean = url.isLocal()) {
+        val local:Boolean = url.isLocal(),
+        /** When a file is not found in this (non-local) repository, do not look for it again for this amount of seconds.
+         * Misses are remembered in the [cache] directory, in the `.wemi-missing-<name>` file, so they survive restarts.
+         * Delete that file to look for the missing files again sooner. Snapshot files are never remembered as missing.
+         * 0 (default) disables this, short times (minutes) are recommended, because releases, which are not published yet,
+         * can't be resolved until the time passes. */
+        val missingCacheSeconds:Long = 0L) {
 
     /** Same as default constructor, but takes [path] instead of [url]. Useful for local repositories. */
     constructor(name: String, path: Path, cache: Repository? = null, releases: Boolean = true, snapshots: Boolean = true,
-                snapshotUpdateDelaySeconds: Long = SnapshotCheckDaily, tolerateChecksumMismatch: Boolean = false, local:Boolean = true)
-            : this(name, path.toUri().toURL(), cache, releases, snapshots, snapshotUpdateDelaySeconds, tolerateChecksumMismatch, local)
+                snapshotUpdateDelaySeconds: Long = SnapshotCheckDaily, tolerateChecksumMismatch: Boolean = false, local:Boolean = true,
+                missingCacheSeconds:Long = 0L)
+            : this(name, path.toUri().toURL(), cache, releases, snapshots, snapshotUpdateDelaySeconds, tolerateChecksumMismatch, local, missingCacheSeconds)
 
     /** Same as default constructor, but takes [url] as a [String] instead of [URL]. */
     constructor(name: String, url: String, cache: Repository? = null, releases: Boolean = true, snapshots: Boolean = true,
-                snapshotUpdateDelaySeconds: Long = SnapshotCheckDaily, tolerateChecksumMismatch: Boolean = false, local:Boolean = url.startsWith("file:", ignoreCase = true))
-            : this(name, URL(url), cache, releases, snapshots, snapshotUpdateDelaySeconds, tolerateChecksumMismatch, local)
+                snapshotUpdateDelaySeconds: Long = SnapshotCheckDaily, tolerateChecksumMismatch: Boolean = false, local:Boolean = url.startsWith("file:", ignoreCase = true),
+                missingCacheSeconds:Long = 0L)
+            : this(name, URL(url), cache, releases, snapshots, snapshotUpdateDelaySeconds, tolerateChecksumMismatch, local, missingCacheSeconds)
 
     /** Repository acting as a cache for this repository, if [local]` == false`, otherwise not used.
      * Must be [local]. Resolved dependencies will be stored here. */
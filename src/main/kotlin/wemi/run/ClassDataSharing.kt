@@ -0,0 +1,149 @@
+package wemi.run
+
+import org.slf4j.LoggerFactory
+import wemi.util.*
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.TimeUnit
+
+private val LOG = LoggerFactory.getLogger("ClassDataSharing")
+
+/**
+ * Options for the JVM, which make it use the class data sharing [archive].
+ * When the archive does not exist or does not match the classpath, JVM silently starts without it.
+ */
+fun classDataSharingOptions(archive: Path): List<String> {
+    return listOf("-XX:+UnlockDiagnosticVMOptions", "-XX:SharedArchiveFile=${archive.absolutePath}", "-Xshare:auto")
+}
+
+/**
+ * Part of the [classpath] which can be archived by class data sharing.
+ * JVM can archive only classes from jar files and the classpath used at runtime must start with the archived one.
+ */
+fun classDataSharingClasspath(classpath: Collection<Path>): List<Path> {
+    return classpath.takeWhile { it.name.pathHasExtension("jar") && it.isRegularFile() }
+}
+
+/**
+ * Fingerprint of the [classpath] entries (their path, size and modification time), [javaExecutable] and [mainClass].
+ * Class data sharing archive created for one fingerprint is not valid for a different one.
+ */
+fun classDataSharingFingerprint(javaExecutable: Path, classpath: Collection<Path>, mainClass: String): String {
+    val fingerprint = Fingerprint()
+
+    fingerprint.add(javaExecutable.absolutePath)
+    fingerprint.add(javaExecutable.lastModifiedMillis().toString())
+    fingerprint.add(mainClass)
+    for (entry in classpath) {
+        fingerprint.addFile(entry)
+    }
+    return fingerprint.finish()
+}
+
+/**
+ * Create class data sharing archive at [archiveFile] for running [mainClass] with [classpath].
+ *
+ * The [mainClass] is first started in a training run, with [trainingArguments], which records the loaded classes.
+ * Then the classes, which come from the [classDataSharingClasspath] of the [classpath], are dumped into the archive.
+ * Training run should be short, it is stopped after [trainingTimeoutSeconds].
+ *
+ * When the classes can't be dumped (for example because the JVM does not support it), marker file is created
+ * next to the [archiveFile], so that the slow training run is not attempted again for the same [archiveFile].
+ * Training run which does not record any classes (for example because it got wrong [trainingArguments])
+ * is attempted again next time.
+ *
+ * @param javaOptions options of the training run, JVM agents are not used, because they may interfere with it
+ * @return true if the archive was created
+ */
+fun createClassDataSharingArchive(javaExecutable: Path, workingDirectory: Path, classpath: Collection<Path>,
+                                  mainClass: String, javaOptions: Collection<String>, trainingArguments: Collection<String>,
+                                  archiveFile: Path, trainingTimeoutSeconds: Long = 60): Boolean {
+    val failedMarker = archiveFile.resolveSibling("${archiveFile.name}.failed")
+    if (failedMarker.exists()) {
+        LOG.debug("Not creating class data sharing archive {}, previous attempt failed", archiveFile)
+        return false
+    }
+
+    val archivedClasspath = classDataSharingClasspath(classpath)
+    if (archivedClasspath.isEmpty()) {
+        LOG.debug("Not creating class data sharing archive {}, classpath does not start with any jars", archiveFile)
+        return false
+    }
+
+    val pathSeparator = System.getProperty("path.separator", ":")
+    Files.createDirectories(archiveFile.parent)
+    val classList = Files.createTempFile(archiveFile.parent, archiveFile.name, ".classlist")
+    // Log of the last attempt
+    val processLog = archiveFile.resolveSibling("${archiveFile.name}.log")
+    val partialArchive = archiveFile.resolveSibling("${archiveFile.name}.part")
+
+    try {
+        val startNs = System.nanoTime()
+
+        // Training run
+        val trainCommand = ArrayList<String>()
+        trainCommand.add(javaExecutable.absolutePath)
+        trainCommand.add("-Xshare:off")
+        trainCommand.add("-XX:DumpLoadedClassList=${classList.absolutePath}")
+        trainCommand.add("-cp")
+        trainCommand.add(classpath.joinToString(pathSeparator) { it.absolutePath })
+        javaOptions.filterTo(trainCommand) { !it.startsWith("-agentlib:") && !it.startsWith("-agentpath:") && !it.startsWith("-javaagent:") }
+        trainCommand.add(mainClass)
+        trainCommand.addAll(trainingArguments)
+
+        LOG.info("Creating class data sharing archive for {} by a training run, which is stopped after {} seconds", mainClass, trainingTimeoutSeconds)
+        LOG.debug("Class data sharing training run {}", trainCommand)
+        val training = superviseProcess(ProcessBuilder(trainCommand)
+                .directory(workingDirectory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(processLog.toFile()), "ClassDataSharingTraining")
+        training.process.outputStream.close()
+        if (!training.waitFor(trainingTimeoutSeconds, TimeUnit.SECONDS)) {
+            LOG.debug("Class data sharing training run did not end in {} seconds, stopping it", trainingTimeoutSeconds)
+            training.destroy()
+            training.waitFor()
+        }
+
+        if (Files.size(classList) == 0L) {
+            // Not marked as failed, the training run may succeed with different arguments
+            LOG.warn("Class data sharing training run of {} did not record any classes ({}), see {}", mainClass, training.process.exitValue(), processLog)
+            return false
+        }
+
+        // Dump
+        val dumpCommand = listOf(javaExecutable.absolutePath,
+                "-Xshare:dump",
+                "-XX:SharedClassListFile=${classList.absolutePath}",
+                "-XX:SharedArchiveFile=${partialArchive.absolutePath}",
+                "-cp", archivedClasspath.joinToString(pathSeparator) { it.absolutePath })
+
+        LOG.debug("Class data sharing dump {}", dumpCommand)
+        val dump = superviseProcess(ProcessBuilder(dumpCommand)
+                .directory(workingDirectory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(processLog.toFile())), "ClassDataSharingDump")
+        dump.process.outputStream.close()
+        val dumpResult = dump.waitFor()
+        if (dumpResult != 0 || !partialArchive.exists()) {
+            LOG.warn("Failed to create class data sharing archive for {} ({}), see {}", mainClass, dumpResult, processLog)
+            Files.createFile(failedMarker)
+            return false
+        }
+
+        Files.move(partialArchive, archiveFile, StandardCopyOption.REPLACE_EXISTING)
+        Files.deleteIfExists(processLog)
+        LOG.info("Created class data sharing archive {} in {} ms", archiveFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs))
+        return true
+    } catch (e: IOException) {
+        LOG.warn("Failed to create class data sharing archive {}", archiveFile, e)
+        return false
+    } finally {
+        try {
+            Files.deleteIfExists(classList)
+            Files.deleteIfExists(partialArchive)
+        } catch (ignored: IOException) {
+        }
+    }
+}
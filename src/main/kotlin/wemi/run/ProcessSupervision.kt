@@ -0,0 +1,139 @@
+package wemi.run
+
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+private val LOG = LoggerFactory.getLogger("ProcessSupervision")
+
+private val supervisedProcessCounter = AtomicInteger(0)
+
+/**
+ * Start process from [builder] and supervise it.
+ *
+ * When [stdout] or [stderr] is given, the respective output of the process is piped into it, as soon as it is produced,
+ * by a dedicated thread (typically into a [wemi.util.LineReadingOutputStream], to process it line by line).
+ * The stream is closed when the process closes its output. Other outputs are left as configured in the [builder].
+ *
+ * [onExit] is called (from a different thread) when the process ends and all of its output was processed.
+ *
+ * @param name of the process, for logging and thread names
+ */
+fun superviseProcess(builder: ProcessBuilder, name: String,
+                     stdout: OutputStream? = null, stderr: OutputStream? = null,
+                     onExit: ((exitCode: Int) -> Unit)? = null): SupervisedProcess {
+    if (stdout != null) {
+        builder.redirectOutput(ProcessBuilder.Redirect.PIPE)
+    }
+    if (stderr != null) {
+        builder.redirectErrorStream(false)
+        builder.redirectError(ProcessBuilder.Redirect.PIPE)
+    }
+
+    val process = builder.start()
+    val threadName = "$name-${supervisedProcessCounter.incrementAndGet()}"
+    val pumps = ArrayList<Thread>(2)
+    if (stdout != null) {
+        pumps.add(startPump(process.inputStream, stdout, "$threadName-stdout"))
+    }
+    if (stderr != null) {
+        pumps.add(startPump(process.errorStream, stderr, "$threadName-stderr"))
+    }
+
+    return SupervisedProcess(process, name, threadName, pumps, onExit)
+}
+
+/** Start thread which copies [from] to [to], until the end of [from]. */
+private fun startPump(from: InputStream, to: OutputStream, threadName: String): Thread {
+    val thread = Thread({
+        val buffer = ByteArray(8192)
+        try {
+            while (true) {
+                // Blocks until there is something to read
+                val read = from.read(buffer)
+                if (read < 0) {
+                    break
+                }
+                to.write(buffer, 0, read)
+                to.flush()
+            }
+        } catch (e: IOException) {
+            LOG.debug("Failed to read output of {}", threadName, e)
+        } finally {
+            try {
+                to.close()
+            } catch (e: Exception) {
+                LOG.debug("Failed to close output of {}", threadName, e)
+            }
+        }
+    }, threadName)
+    thread.isDaemon = true
+    thread.start()
+    return thread
+}
+
+/**
+ * Process started by [superviseProcess].
+ */
+class SupervisedProcess internal constructor(
+        /** The supervised process */
+        val process: Process,
+        private val name: String,
+        threadName: String,
+        private val pumps: List<Thread>,
+        private val onExit: ((exitCode: Int) -> Unit)?) {
+
+    private val ended = CountDownLatch(1)
+
+    init {
+        val watcher = Thread({
+            var exitCode = -1
+            try {
+                exitCode = process.waitFor()
+                for (pump in pumps) {
+                    pump.join()
+                }
+                LOG.debug("{} ended with status {}", name, exitCode)
+            } catch (e: InterruptedException) {
+                LOG.debug("Interrupted while waiting for {}", name)
+            } finally {
+                ended.countDown()
+            }
+
+            try {
+                onExit?.invoke(exitCode)
+            } catch (e: Exception) {
+                LOG.warn("Exit listener of {} failed", name, e)
+            }
+        }, "$threadName-watcher")
+        watcher.isDaemon = true
+        watcher.start()
+    }
+
+    /** True until the process ends. Its output may still be processed for a while, after that. */
+    val isAlive: Boolean
+        get() = process.isAlive
+
+    /** Wait until the process ends and all of its output is processed. */
+    fun waitFor(): Int {
+        ended.await()
+        return process.exitValue()
+    }
+
+    /**
+     * Wait until the process ends and all of its output is processed, but at most [timeout].
+     * @return true if it ended
+     */
+    fun waitFor(timeout: Long, unit: TimeUnit): Boolean {
+        return ended.await(timeout, unit)
+    }
+
+    /** Kill the process. */
+    fun destroy() {
+        process.destroy()
+    }
+}
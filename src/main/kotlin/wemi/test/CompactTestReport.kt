@@ -0,0 +1,308 @@
+package wemi.test
+
+import wemi.WithExitCode
+import wemi.boot.Main
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInput
+import java.io.DataOutput
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+
+/** Entry flag of [CompactTestReport], [TestIdentifier.isTest] */
+private const val FLAG_TEST = 1
+/** Entry flag of [CompactTestReport], [TestIdentifier.isContainer] */
+private const val FLAG_CONTAINER = 2
+
+/** No string, for string indices of [CompactTestReport] */
+private const val NO_STRING = -1
+
+/**
+ * Compact, immutable form of [TestReport], for keeping and storing reports of huge test suites.
+ *
+ * Each distinct string (id, display name, source, tag...) is stored only once, in a shared table.
+ * Entries are stored in parallel arrays, in the order of the report, and form a tree,
+ * each entry refers to the index of its parent entry. Stack traces stay compressed,
+ * until they are requested by [stackTrace] or by [TestData.stackTrace] of the expanded report.
+ *
+ * Created by [compact], expanded back by [toTestReport].
+ */
+class CompactTestReport private constructor(
+        private val strings: Array<String>,
+        /** Distinct tag sets, as indices into [strings] */
+        private val tagSets: Array<IntArray>,
+        private val ids: IntArray,
+        /** Index of the parent entry, [NO_STRING] if there is no parent,
+         * or `-2 - string index` of the parent id, if the parent is not in the report */
+        private val parents: IntArray,
+        private val displayNames: IntArray,
+        private val flags: ByteArray,
+        /** Indices into [tagSets] */
+        private val tags: IntArray,
+        private val sources: IntArray,
+        private val statuses: ByteArray,
+        private val durations: LongArray,
+        private val skipReasons: IntArray,
+        /** Compressed by [deflateText] */
+        private val stackTraces: Array<ByteArray?>,
+        /** Null when no entry has any reports */
+        private val reports: Array<Array<TestData.ReportEntry>?>?) : WithExitCode {
+
+    /** Amount of entries in the report */
+    val size: Int
+        get() = ids.size
+
+    /** [TestIdentifier.id] of the entry at [index] */
+    fun id(index: Int): String = strings[ids[index]]
+
+    /** Index of the parent entry of the entry at [index], or -1 if it has no parent in this report */
+    fun parentIndex(index: Int): Int = Math.max(parents[index], -1)
+
+    /** [TestData.status] of the entry at [index] */
+    fun status(index: Int): TestStatus = TestStatus.values()[statuses[index].toInt()]
+
+    /** [TestData.stackTrace] of the entry at [index], decompressed on each call */
+    fun stackTrace(index: Int): String? = stackTraces[index]?.let { inflateText(it) }
+
+    /** Same as [TestReport.processExitCode] */
+    override fun processExitCode(): Int {
+        for (status in statuses) {
+            if (status.toInt() != TestStatus.SUCCESSFUL.ordinal && status.toInt() != TestStatus.SKIPPED.ordinal) {
+                return Main.EXIT_CODE_TASK_FAILURE
+            }
+        }
+        return Main.EXIT_CODE_SUCCESS
+    }
+
+    /**
+     * Expand into a full [TestReport]. Identifiers of the expanded report share equal strings and tag sets
+     * and stack traces stay compressed until they are accessed.
+     */
+    fun toTestReport(): TestReport {
+        val tagSets = Array<Set<String>>(tagSets.size) { i ->
+            val tagIndices = tagSets[i]
+            when (tagIndices.size) {
+                0 -> emptySet()
+                1 -> setOf(strings[tagIndices[0]])
+                else -> tagIndices.mapTo(LinkedHashSet(tagIndices.size)) { strings[it] }
+            }
+        }
+        val statuses = TestStatus.values()
+
+        val report = TestReport()
+        for (i in ids.indices) {
+            val parent = parents[i]
+            val parentId = when {
+                parent >= 0 -> strings[ids[parent]]
+                parent == NO_STRING -> null
+                else -> strings[-2 - parent]
+            }
+            val flags = flags[i].toInt()
+            val identifier = TestIdentifier(strings[ids[i]], parentId, strings[displayNames[i]],
+                    flags and FLAG_TEST != 0, flags and FLAG_CONTAINER != 0, tagSets[tags[i]], string(sources[i]))
+
+            val data = TestData()
+            data.status = statuses[this.statuses[i].toInt()]
+            data.duration = durations[i]
+            data.skipReason = string(skipReasons[i])
+            data.compressedStackTrace = stackTraces[i]
+            reports?.get(i)?.let { data.reports.addAll(it) }
+            report[identifier] = data
+        }
+        return report
+    }
+
+    private fun string(index: Int): String? = if (index == NO_STRING) null else strings[index]
+
+    /** Write this report, to be read by [read]. */
+    internal fun write(out: DataOutput) {
+        out.writeInt(strings.size)
+        for (string in strings) {
+            out.writeText(string)
+        }
+        out.writeInt(tagSets.size)
+        for (tagSet in tagSets) {
+            out.writeIntArray(tagSet)
+        }
+
+        out.writeInt(size)
+        for (column in arrayOf(ids, parents, displayNames, tags, sources, skipReasons)) {
+            for (value in column) {
+                out.writeInt(value)
+            }
+        }
+        out.write(flags)
+        out.write(statuses)
+        for (duration in durations) {
+            out.writeLong(duration)
+        }
+        for (stackTrace in stackTraces) {
+            if (stackTrace == null) {
+                out.writeInt(-1)
+            } else {
+                out.writeInt(stackTrace.size)
+                out.write(stackTrace)
+            }
+        }
+
+        out.writeBoolean(reports != null)
+        if (reports != null) {
+            for (entries in reports) {
+                out.writeInt(entries?.size ?: 0)
+                for (entry in entries ?: continue) {
+                    out.writeLong(entry.timestamp)
+                    out.writeText(entry.key)
+                    out.writeText(entry.value)
+                }
+            }
+        }
+    }
+
+    override fun toString(): String {
+        return "CompactTestReport(${ids.size} entries, ${strings.size} strings)"
+    }
+
+    internal companion object {
+
+        /** Read report written by [write]. */
+        fun read(input: DataInput): CompactTestReport {
+            val strings = Array(input.readInt()) { input.readText() }
+            val tagSets = Array(input.readInt()) { input.readIntArray() }
+
+            val size = input.readInt()
+            val ids = IntArray(size) { input.readInt() }
+            val parents = IntArray(size) { input.readInt() }
+            val displayNames = IntArray(size) { input.readInt() }
+            val tags = IntArray(size) { input.readInt() }
+            val sources = IntArray(size) { input.readInt() }
+            val skipReasons = IntArray(size) { input.readInt() }
+            val flags = ByteArray(size)
+            input.readFully(flags)
+            val statuses = ByteArray(size)
+            input.readFully(statuses)
+            val durations = LongArray(size) { input.readLong() }
+            val stackTraces = Array(size) {
+                val length = input.readInt()
+                if (length < 0) null else ByteArray(length).also { input.readFully(it) }
+            }
+
+            val reports = if (input.readBoolean()) {
+                Array(size) {
+                    val count = input.readInt()
+                    if (count == 0) null else Array(count) {
+                        TestData.ReportEntry(input.readLong(), input.readText(), input.readText())
+                    }
+                }
+            } else null
+
+            return CompactTestReport(strings, tagSets, ids, parents, displayNames, flags, tags, sources,
+                    statuses, durations, skipReasons, stackTraces, reports)
+        }
+
+        /** Create a compact copy of [report]. */
+        fun of(report: TestReport): CompactTestReport {
+            val strings = ArrayList<String>()
+            val stringIndices = HashMap<String, Int>()
+            fun intern(string: String?): Int {
+                if (string == null) {
+                    return NO_STRING
+                }
+                return stringIndices.getOrPut(string) {
+                    strings.add(string)
+                    strings.size - 1
+                }
+            }
+
+            val tagSets = ArrayList<IntArray>()
+            val tagSetIndices = HashMap<Set<String>, Int>()
+
+            val size = report.size
+            val entryIndices = HashMap<String, Int>(size * 2)
+            var index = 0
+            for (identifier in report.keys) {
+                entryIndices.putIfAbsent(identifier.id, index++)
+            }
+
+            val ids = IntArray(size)
+            val parents = IntArray(size)
+            val displayNames = IntArray(size)
+            val flags = ByteArray(size)
+            val tags = IntArray(size)
+            val sources = IntArray(size)
+            val statuses = ByteArray(size)
+            val durations = LongArray(size)
+            val skipReasons = IntArray(size)
+            val stackTraces = arrayOfNulls<ByteArray>(size)
+            var reports: Array<Array<TestData.ReportEntry>?>? = null
+
+            index = 0
+            for ((identifier, data) in report) {
+                ids[index] = intern(identifier.id)
+                val parentId = identifier.parentId
+                parents[index] = when (parentId) {
+                    null -> NO_STRING
+                    else -> entryIndices[parentId] ?: -2 - intern(parentId)
+                }
+                displayNames[index] = intern(identifier.displayName)
+                flags[index] = ((if (identifier.isTest) FLAG_TEST else 0) or (if (identifier.isContainer) FLAG_CONTAINER else 0)).toByte()
+                tags[index] = tagSetIndices.getOrPut(identifier.tags) {
+                    tagSets.add(identifier.tags.map { intern(it) }.toIntArray())
+                    tagSets.size - 1
+                }
+                sources[index] = intern(identifier.testSource)
+
+                statuses[index] = data.status.ordinal.toByte()
+                durations[index] = data.duration
+                skipReasons[index] = intern(data.skipReason)
+                stackTraces[index] = data.compressedStackTrace
+                if (data.reports.isNotEmpty()) {
+                    if (reports == null) {
+                        reports = arrayOfNulls(size)
+                    }
+                    reports[index] = data.reports.toTypedArray()
+                }
+                index++
+            }
+
+            return CompactTestReport(strings.toTypedArray(), tagSets.toTypedArray(), ids, parents, displayNames,
+                    flags, tags, sources, statuses, durations, skipReasons, stackTraces, reports)
+        }
+    }
+}
+
+/** Create [CompactTestReport] of this report. */
+fun TestReport.compact(): CompactTestReport = CompactTestReport.of(this)
+
+/** Compress [text] for [inflateText]. */
+internal fun deflateText(text: String): ByteArray {
+    val out = ByteArrayOutputStream(text.length / 4 + 16)
+    DeflaterOutputStream(out).use { it.write(text.toByteArray(Charsets.UTF_8)) }
+    return out.toByteArray()
+}
+
+/** Decompress text compressed by [deflateText]. */
+internal fun inflateText(compressed: ByteArray): String {
+    return InflaterInputStream(ByteArrayInputStream(compressed)).use { it.readBytes() }.toString(Charsets.UTF_8)
+}
+
+/** Like [DataOutput.writeUTF], but without the length limit. */
+private fun DataOutput.writeText(text: String) {
+    val bytes = text.toByteArray(Charsets.UTF_8)
+    writeInt(bytes.size)
+    write(bytes)
+}
+
+private fun DataInput.readText(): String {
+    val bytes = ByteArray(readInt())
+    readFully(bytes)
+    return String(bytes, Charsets.UTF_8)
+}
+
+private fun DataOutput.writeIntArray(array: IntArray) {
+    writeInt(array.size)
+    for (value in array) {
+        writeInt(value)
+    }
+}
+
+private fun DataInput.readIntArray(): IntArray = IntArray(readInt()) { readInt() }
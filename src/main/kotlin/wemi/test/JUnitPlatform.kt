@@ -6,13 +6,13 @@ import wemi.boot.CLI
 import wemi.dependency.Dependency
 import wemi.dependency.DependencyId
 import wemi.dependency.MavenCentral
+import wemi.run.superviseProcess
 import wemi.test.TestStatus.*
 import wemi.util.*
 import java.io.OutputStreamWriter
 import java.time.Instant
 import java.time.ZoneId
 import java.util.*
-import java.util.concurrent.TimeUnit
 
 private val LOG = LoggerFactory.getLogger("JUnitPlatform")
 private val TEST_OUTPUT_LOG = LoggerFactory.getLogger("TestOutput")
@@ -74,84 +74,51 @@ internal val JUnitPlatformLauncher = DependencyId(
 
 /**
  * Handle running the process that does testing.
- * In particular, this sends the process [testParameters], logs its output and receives and returns
- * created [TestReport].
+ * In particular, this sends the process [testParameters], logs its output and builds [TestReport]
+ * from the test events it sends. The process is stopped early, when [progress] says so.
  */
-internal fun handleProcessForTesting(builder: ProcessBuilder, testParameters: TestParameters): TestReport? {
-    builder.redirectErrorStream(false)
-    builder.redirectError(ProcessBuilder.Redirect.PIPE)
-    builder.redirectOutput(ProcessBuilder.Redirect.PIPE)
+internal fun handleProcessForTesting(builder: ProcessBuilder, testParameters: TestParameters, progress: TestProgress?): TestReport? {
     builder.redirectInput(ProcessBuilder.Redirect.PIPE)
 
+    val collector = TestReportCollector(progress)
+
     LOG.debug("Starting test process")
-    val process = builder.start()
+    val process = superviseProcess(builder, "TestProcess",
+            TestProcessOutput { event -> collector.event(event) }, TestProcessOutput(null))
+    progress?.onStop { process.destroy() }
 
-    OutputStreamWriter(process.outputStream, Charsets.UTF_8).use {
+    OutputStreamWriter(process.process.outputStream, Charsets.UTF_8).use {
         it.writeJson(testParameters, TestParameters::class.java)
     }
 
-    var outputJson = ""
-
-    val stdout = object : LineReadingOutputStream() {
-        override fun onLineRead(line: CharSequence) {
-            if (line.startsWith(TEST_LAUNCHER_OUTPUT_PREFIX)) {
-                outputJson = line.substring(TEST_LAUNCHER_OUTPUT_PREFIX.length)
-                LOG.trace("Test process returned json: {}", outputJson)
-            } else {
-                val trimmedLine = line.dropLastWhile { it.isWhitespace() }
-                if (trimmedLine.isNotEmpty()) {
-                    TEST_OUTPUT_LOG.info("{}", trimmedLine)
-                }
-            }
-        }
-    }
-    val stderr = object : LineReadingOutputStream() {
-        override fun onLineRead(line: CharSequence) {
-            val trimmedLine = line.dropLastWhile { it.isWhitespace() }
-            if (trimmedLine.isNotEmpty()) {
-                TEST_OUTPUT_LOG.info("{}", trimmedLine)
-            }
-        }
-    }
-
-    val procStdout = process.inputStream
-    val procStderr = process.errorStream
-
-    try {
-        while (true) {
-            val exited = process.waitFor(10, TimeUnit.MILLISECONDS)
-            readFully(stdout, procStdout)
-            readFully(stderr, procStderr)
-
-            if (exited) {
-                break
-            }
-        }
-    } finally {
-        stdout.close()
-        stderr.close()
-    }
-
-    val status = process.exitValue()
+    val status = process.waitFor()
     if (status == 0) {
         LOG.debug("Test process ended with status 0")
     } else {
         LOG.warn("Test process ended with status {}", status)
     }
 
-    return try {
-        val report = fromJson<TestReport>(outputJson)
-        LOG.debug("Test process returned report: {}", report)
-        report
-    } catch (e: Exception) {
-        LOG.error("Malformed test report output:\n{}", outputJson, e)
-        null
+    return collector.result("Test process")
+}
+
+/**
+ * Logs output of test processes, except for test events, which are given to [onEvent] (without [TEST_LAUNCHER_OUTPUT_PREFIX]).
+ * When [onEvent] is null, everything is logged.
+ */
+internal class TestProcessOutput(private val onEvent: ((CharSequence) -> Unit)?) : LineReadingOutputStream() {
+    override fun onLineRead(line: CharSequence) {
+        val trimmedLine = line.dropLastWhile { it.isWhitespace() }
+        if (onEvent != null && trimmedLine.startsWith(TEST_LAUNCHER_OUTPUT_PREFIX)) {
+            onEvent.invoke(trimmedLine.subSequence(TEST_LAUNCHER_OUTPUT_PREFIX.length, trimmedLine.length))
+        } else if (trimmedLine.isNotEmpty()) {
+            TEST_OUTPUT_LOG.info("{}", trimmedLine)
+        }
     }
 }
 
 /**
  * Creates a human readable, ANSI-colored (if supported), tree with TestReport execution overview,
- * including a summary at the end.
+ * including a summary at the end, which also tells when the report is [TestReport.cached].
  */
 fun TestReport.prettyPrint(): CharSequence {
     val keys = keys.toMutableList()
@@ -295,7 +262,11 @@ fun TestReport.prettyPrint(): CharSequence {
         }
     }
 
-    result.append("\n           - Summary -           \n")
+    if (this.cached) {
+        result.append("\n       - Summary (cached) -       \n")
+    } else {
+        result.append("\n           - Summary -           \n")
+    }
     result.appendReport(containersFound, "container", "found", false)
     result.appendReport(containersSkipped, "container", "skipped", null)
     result.appendReport(containersAborted, "container", "aborted", null)
@@ -306,6 +277,10 @@ fun TestReport.prettyPrint(): CharSequence {
     result.appendReport(testsAborted, "test", "aborted", null)
     result.appendReport(testsSuccessful, "test", "successful", false)
     result.appendReport(testsFailed, "test", "failed", true)
+    if (this.cached) {
+        result.format(Color.Magenta).append("Tests were not run, this is the cached report of a previous run with the same inputs.")
+                .append("\nUse rerun=true to run them again.").format()
+    }
     return result
 }
 
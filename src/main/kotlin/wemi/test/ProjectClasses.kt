@@ -0,0 +1,141 @@
+package wemi.test
+
+import org.slf4j.LoggerFactory
+import wemi.util.forEachReferencedClass
+import wemi.util.readConstantPoolStrings
+import wemi.util.toHexString
+import java.io.ByteArrayInputStream
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.security.MessageDigest
+import java.util.*
+
+private val LOG = LoggerFactory.getLogger("ProjectClasses")
+
+/**
+ * Class file of the project, as seen by [scanProjectClasses].
+ *
+ * @param hash of the class file content
+ * @param references internal names of other project classes, which this class refers to in its constant pool
+ */
+internal class ProjectClass(val size: Long, val modified: Long, val hash: String, val references: Array<String>)
+
+/**
+ * Find all classes in [classpath] directories (jars are ignored) and the project classes they refer to.
+ * Class files which have the same size and modification time as in [previous] are not read again.
+ *
+ * @return internal name of the class -> its class file
+ */
+internal fun scanProjectClasses(classpath: List<Path>, previous: Map<String, ProjectClass>): Map<String, ProjectClass> {
+    val files = LinkedHashMap<String, Pair<Path, BasicFileAttributes>>()
+    for (root in classpath) {
+        if (!Files.isDirectory(root)) {
+            continue
+        }
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Int.MAX_VALUE, object : SimpleFileVisitor<Path>() {
+            override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                val path = root.relativize(file).toString().replace(file.fileSystem.separator, "/")
+                if (attrs.isRegularFile && path.endsWith(".class")) {
+                    // First class on the classpath wins
+                    files.putIfAbsent(path.substring(0, path.length - ".class".length), file to attrs)
+                }
+                return FileVisitResult.CONTINUE
+            }
+        })
+    }
+
+    val digest = MessageDigest.getInstance("SHA-1")
+    val classes = LinkedHashMap<String, ProjectClass>(files.size)
+    for ((name, fileAndAttributes) in files) {
+        val (file, attrs) = fileAndAttributes
+        val size = attrs.size()
+        val modified = attrs.lastModifiedTime().toMillis()
+        val previousClass = previous[name]
+        if (previousClass != null && previousClass.size == size && previousClass.modified == modified) {
+            classes[name] = previousClass
+            continue
+        }
+
+        val content = Files.readAllBytes(file)
+        val references = TreeSet<String>()
+        try {
+            readConstantPoolStrings(ByteArrayInputStream(content)) { constant ->
+                forEachReferencedClass(constant, files) { reference ->
+                    if (reference != name) {
+                        references.add(reference)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            LOG.debug("Can't read constant pool of {}", file, e)
+        }
+        classes[name] = ProjectClass(size, modified, toHexString(digest.digest(content)), references.toTypedArray())
+    }
+    return classes
+}
+
+/**
+ * Find [classes] which were added or whose content has changed since [previous]
+ * and all classes which depend on them, directly or transitively.
+ *
+ * @return internal names of the found classes
+ */
+internal fun changedAndDependentClasses(classes: Map<String, ProjectClass>, previous: Map<String, ProjectClass>): Set<String> {
+    // Who refers to each class
+    val referencedBy = HashMap<String, ArrayList<String>>()
+    for ((name, projectClass) in classes) {
+        for (reference in projectClass.references) {
+            referencedBy.getOrPut(reference) { ArrayList() }.add(name)
+        }
+    }
+
+    val result = HashSet<String>()
+    val pending = ArrayDeque<String>()
+    for ((name, projectClass) in classes) {
+        if (previous[name]?.hash != projectClass.hash && result.add(name)) {
+            pending.add(name)
+        }
+    }
+    while (pending.isNotEmpty()) {
+        val name = pending.removeFirst()
+        for (dependent in referencedBy[name] ?: continue) {
+            if (result.add(dependent)) {
+                pending.add(dependent)
+            }
+        }
+    }
+    return result
+}
+
+/** Write [classes] found by [scanProjectClasses], to be read by [readProjectClasses]. */
+internal fun DataOutput.writeProjectClasses(classes: Map<String, ProjectClass>) {
+    writeInt(classes.size)
+    for ((name, projectClass) in classes) {
+        writeUTF(name)
+        writeLong(projectClass.size)
+        writeLong(projectClass.modified)
+        writeUTF(projectClass.hash)
+        writeInt(projectClass.references.size)
+        for (reference in projectClass.references) {
+            writeUTF(reference)
+        }
+    }
+}
+
+/** Read classes written by [writeProjectClasses]. */
+internal fun DataInput.readProjectClasses(): Map<String, ProjectClass> {
+    val count = readInt()
+    val classes = HashMap<String, ProjectClass>(count)
+    for (i in 0 until count) {
+        val name = readUTF()
+        val size = readLong()
+        val modified = readLong()
+        val hash = readUTF()
+        val references = Array(readInt()) { readUTF() }
+        classes[name] = ProjectClass(size, modified, hash, references)
+    }
+    return classes
+}
@@ -0,0 +1,126 @@
+package wemi.test
+
+import org.slf4j.LoggerFactory
+import wemi.util.writeFileAtomically
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.Path
+
+private val LOG = LoggerFactory.getLogger("TestDiscoveryCache")
+
+private const val DISCOVERY_MAGIC = 0x54444953 // TDIS
+private const val DISCOVERY_VERSION = 1
+
+/**
+ * Remembers which top-level classes contain tests (directly or in their nested classes), so that JUnit does not have to load and scan
+ * all classes of the test classpath roots on each run, only the classes which contain tests or which have changed.
+ *
+ * Class has to be discovered again when it, or any class it depends on (for example its superclass), has changed.
+ * All classes have to be discovered again when the environment (libraries, test parameters...) changes.
+ *
+ * @param stateFile where the state is stored
+ * @param environment fingerprint of everything else the discovery depends on, see [testImpactEnvironment]
+ */
+internal class TestDiscoveryCache private constructor(
+        private val stateFile: Path,
+        private val environment: String,
+        private val classes: Map<String, ProjectClass>,
+        /** Fully qualified name of the top-level class -> whether it contains tests */
+        private val knownClasses: Map<String, Boolean>) {
+
+    /** @return false if top-level class [className] is known to not contain any tests */
+    fun mayHaveTests(className: String): Boolean {
+        return knownClasses[className] != false
+    }
+
+    /**
+     * Remember which of [selectedClasses] contain tests, according to the [report] of their run.
+     * All tests of [selectedClasses] must have been run. Failure to store the state is not fatal.
+     *
+     * Tests of nested classes belong to their top-level class, so a class without tests of its own,
+     * which only holds nested test classes, contains tests as well.
+     * When the report contains tests, whose class is not known (for example from test engines which are
+     * not based on classes), no class is remembered as not containing tests, because any of them may contain them.
+     */
+    fun record(selectedClasses: Collection<String>, report: TestReport) {
+        val reportedClasses = HashSet<String>()
+        var unknownClasses = false
+        for (identifier in report.keys) {
+            val className = identifier.topLevelClassName
+            if (className != null) {
+                reportedClasses.add(className)
+            } else if (identifier.isTest) {
+                unknownClasses = true
+            }
+        }
+
+        val knownClasses = HashMap(knownClasses)
+        for (className in selectedClasses) {
+            if (className in reportedClasses) {
+                knownClasses[className] = true
+            } else if (!unknownClasses) {
+                knownClasses[className] = false
+            }
+        }
+
+        try {
+            writeFileAtomically(stateFile) { tempFile ->
+                DataOutputStream(BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024)).use { out ->
+                    out.writeInt(DISCOVERY_MAGIC)
+                    out.writeInt(DISCOVERY_VERSION)
+                    out.writeUTF(environment)
+                    out.writeProjectClasses(classes)
+                    out.writeInt(knownClasses.size)
+                    for ((className, hasTests) in knownClasses) {
+                        out.writeUTF(className)
+                        out.writeBoolean(hasTests)
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            LOG.debug("Failed to store test discovery state {}", stateFile, e)
+        }
+    }
+
+    companion object {
+
+        /**
+         * Load the state recorded with the same [stateFile] and forget about classes,
+         * which have changed since then in the [classpath].
+         *
+         * @param classpath internal classpath of the tests, only its directories are checked for changes
+         */
+        fun load(stateFile: Path, environment: String, classpath: List<Path>): TestDiscoveryCache {
+            var previousClasses: Map<String, ProjectClass> = emptyMap()
+            val knownClasses = HashMap<String, Boolean>()
+            try {
+                if (Files.exists(stateFile)) {
+                    DataInputStream(BufferedInputStream(Files.newInputStream(stateFile), 64 * 1024)).use { input ->
+                        if (input.readInt() == DISCOVERY_MAGIC && input.readInt() == DISCOVERY_VERSION
+                                && input.readUTF() == environment) {
+                            previousClasses = input.readProjectClasses()
+                            for (i in 0 until input.readInt()) {
+                                knownClasses[input.readUTF()] = input.readBoolean()
+                            }
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                LOG.debug("Failed to load test discovery state {}", stateFile, e)
+                previousClasses = emptyMap()
+                knownClasses.clear()
+            }
+
+            val classes = scanProjectClasses(classpath, previousClasses)
+            if (knownClasses.isNotEmpty()) {
+                for (changed in changedAndDependentClasses(classes, previousClasses)) {
+                    knownClasses.remove(changed.substringBefore('$').replace('/', '.'))
+                }
+                // Removed classes
+                knownClasses.keys.retainAll(classes.keys.mapTo(HashSet()) { it.substringBefore('$').replace('/', '.') })
+            }
+            LOG.debug("Known whether {} top-level classes contain tests", knownClasses.size)
+            return TestDiscoveryCache(stateFile, environment, classes, knownClasses)
+        }
+    }
+}
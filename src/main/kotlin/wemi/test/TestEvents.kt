@@ -0,0 +1,205 @@
+package wemi.test
+
+import com.esotericsoftware.jsonbeans.JsonReader
+import com.esotericsoftware.jsonbeans.JsonValue
+import org.slf4j.LoggerFactory
+import wemi.boot.CLI
+import wemi.util.field
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+private val LOG = LoggerFactory.getLogger("TestEvents")
+
+/** Test or container started, has `identifier`. */
+internal const val TEST_EVENT_STARTED = "started"
+/** Test or container was skipped, has `identifier` and `reason`. */
+internal const val TEST_EVENT_SKIPPED = "skipped"
+/** Started test or container finished, has `id`, `status`, `duration` and `stackTrace`. */
+internal const val TEST_EVENT_FINISHED = "finished"
+/** Test or container published report entry, has `id`, `timestamp`, `key` and `value`. */
+internal const val TEST_EVENT_REPORTED = "reported"
+/** Whole test plan was executed. */
+internal const val TEST_EVENT_COMPLETED = "completed"
+/** Test run ended, no more events will come, has `error`. */
+internal const val TEST_EVENT_ENDED = "ended"
+
+/**
+ * Builds [TestReport] from test events, as they arrive from the test process.
+ * Not thread safe, events must be given in order.
+ */
+internal class TestReportCollector(private val progress: TestProgress?) {
+
+    val report = TestReport()
+    private val identifiers = HashMap<String, TestIdentifier>()
+    /** Equal tag sets of different identifiers are shared */
+    private val tagSets = HashMap<Set<String>, Set<String>>()
+    private val jsonReader = JsonReader()
+
+    /** The whole test plan was executed */
+    var complete = false
+        private set
+    /** Test run ended, [failed] is valid */
+    var ended = false
+        private set
+    /** Test run failed */
+    var failed = false
+        private set
+
+    private fun data(id: String): TestData? {
+        val identifier = identifiers[id]
+        if (identifier == null) {
+            LOG.warn("Event for unknown test {}", id)
+            return null
+        }
+        return report.getOrPut(identifier) { TestData() }
+    }
+
+    /**
+     * Make [identifier] share its parent id and tags with the identifiers known so far,
+     * so that huge reports don't keep the same strings many times.
+     */
+    private fun intern(identifier: TestIdentifier): TestIdentifier {
+        val parentId = identifier.parentId?.let { identifiers[it]?.id ?: it }
+        val tags = if (identifier.tags.isEmpty()) emptySet() else tagSets.getOrPut(identifier.tags) { identifier.tags }
+        if (parentId === identifier.parentId && tags === identifier.tags) {
+            return identifier
+        }
+        return TestIdentifier(identifier.id, parentId, identifier.displayName,
+                identifier.isTest, identifier.isContainer, tags, identifier.testSource)
+    }
+
+    /** Process [event], which is a line of output without [TEST_LAUNCHER_OUTPUT_PREFIX] and line ending. */
+    fun event(event: CharSequence) {
+        val value: JsonValue = try {
+            jsonReader.parse(event.toString())
+        } catch (e: Exception) {
+            LOG.error("Malformed test event:\n{}", event, e)
+            return
+        }
+
+        when (value.getString("event", null)) {
+            TEST_EVENT_STARTED -> {
+                val identifier = intern(value.field("identifier"))
+                identifiers[identifier.id] = identifier
+            }
+            TEST_EVENT_SKIPPED -> {
+                val identifier = intern(value.field("identifier"))
+                identifiers[identifier.id] = identifier
+                data(identifier.id)?.apply {
+                    status = TestStatus.SKIPPED
+                    skipReason = value.field("reason")
+                }
+            }
+            TEST_EVENT_FINISHED -> {
+                val id = value.field<String>("id")
+                data(id)?.apply {
+                    status = value.field("status")
+                    duration = value.field("duration")
+                    stackTrace = value.field("stackTrace")
+
+                    if (identifiers[id]?.isTest == true) {
+                        progress?.testFinished(status)
+                    }
+                }
+            }
+            TEST_EVENT_REPORTED -> {
+                data(value.field("id"))?.reports?.add(TestData.ReportEntry(
+                        value.getLong("timestamp"),
+                        value.getString("key"),
+                        value.getString("value")))
+            }
+            TEST_EVENT_COMPLETED -> complete = true
+            TEST_EVENT_ENDED -> {
+                ended = true
+                failed = value.getBoolean("error", true)
+            }
+            else -> LOG.warn("Unknown test event: {}", event)
+        }
+    }
+
+    /**
+     * @param process description of the process for logging
+     * @return [report] if the test run ended successfully or it was stopped by [progress], null otherwise
+     */
+    fun result(process: String): TestReport? {
+        if (progress != null && progress.stopped) {
+            return report
+        }
+        if (!ended || failed) {
+            LOG.error("{} failed", process)
+            return null
+        }
+        if (!complete) {
+            LOG.warn("{} did not report all tests", process)
+        }
+        LOG.debug("{} returned report: {}", process, report)
+        return report
+    }
+}
+
+/** How often should [TestProgress] update the CLI status */
+private const val PROGRESS_UPDATE_INTERVAL_MS = 100L
+
+/**
+ * Progress of a test run, shared by all processes which run its tests. Thread safe.
+ * Shows the number of finished and failed tests in the CLI status.
+ *
+ * @param failFast stop the test run after this many failed tests, 0 to never stop
+ */
+internal class TestProgress(private val failFast: Int) {
+
+    private val finished = AtomicInteger(0)
+    private val failed = AtomicInteger(0)
+    private val lastUpdate = AtomicLong(0L)
+    private val stopListeners = ArrayList<() -> Unit>()
+
+    /** Test processes should be stopped, because [failFast] limit was reached */
+    val stopped: Boolean
+        get() = failFast > 0 && failed.get() >= failFast
+
+    fun testFinished(status: TestStatus) {
+        val finished = finished.incrementAndGet()
+        val failed = if (status == TestStatus.FAILED) failed.incrementAndGet() else failed.get()
+        if (failFast > 0 && failed == failFast && status == TestStatus.FAILED) {
+            LOG.warn("Stopping tests after {} failed tests", failed)
+            val listeners = synchronized(stopListeners) {
+                val listeners = ArrayList(stopListeners)
+                stopListeners.clear()
+                listeners
+            }
+            for (listener in listeners) {
+                listener()
+            }
+        }
+
+        // Status is not updated for each test, that would be too slow
+        val now = System.currentTimeMillis()
+        val last = lastUpdate.get()
+        if (now - last >= PROGRESS_UPDATE_INTERVAL_MS && lastUpdate.compareAndSet(last, now)) {
+            CLI.showProgress(if (failed == 0) "$finished tests" else "$finished tests, $failed failed")
+        }
+    }
+
+    /** Call [listener] when the tests should be [stopped], or right away if they should be already. */
+    fun onStop(listener: () -> Unit) {
+        synchronized(stopListeners) {
+            if (!stopped) {
+                stopListeners.add(listener)
+                return
+            }
+        }
+        listener()
+    }
+
+    /** Don't call [listener] registered by [onStop] anymore. */
+    fun removeOnStop(listener: () -> Unit) {
+        synchronized(stopListeners) {
+            stopListeners.remove(listener)
+        }
+    }
+
+    /** Hide the progress, when the test run is over. */
+    fun end() {
+        CLI.showProgress(null)
+    }
+}
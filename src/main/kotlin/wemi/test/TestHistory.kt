@@ -0,0 +1,203 @@
+package wemi.test
+
+import com.esotericsoftware.jsonbeans.JsonException
+import com.esotericsoftware.jsonbeans.JsonValue
+import com.esotericsoftware.jsonbeans.JsonWriter
+import org.slf4j.LoggerFactory
+import wemi.util.*
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.*
+
+private val LOG = LoggerFactory.getLogger("TestHistory")
+
+/**
+ * History of test runs of a project, for each top-level test class.
+ *
+ * Used to run the classes, which are most likely to fail or which take the longest, first (see [executionOrder])
+ * and to split the classes between test processes evenly (see [durations]).
+ */
+@Json(TestHistory.Serializer::class)
+class TestHistory {
+
+    /** Fully qualified name of the top-level test class -> its history */
+    val classes: MutableMap<String, ClassHistory> = TreeMap()
+
+    /**
+     * History of a single top-level test class, including its nested classes.
+     */
+    class ClassHistory {
+        /** Total duration of its tests in the last run, in ms */
+        var duration = 0L
+        /** [TestStatus.FAILED] if any of its tests failed in the last run, [TestStatus.SUCCESSFUL] if any succeeded,
+         * status of its other tests otherwise */
+        var lastStatus = TestStatus.NOT_RUN
+        /** How many times were its tests run */
+        var runs = 0
+        /** In how many of the [runs] did any of its tests fail */
+        var failures = 0
+        /** How many times did the [lastStatus] change between failed and successful.
+         * High number relative to [runs] suggests flaky tests. */
+        var statusChanges = 0
+
+        override fun toString(): String {
+            return "$lastStatus in $duration ms, failed $failures of $runs runs, $statusChanges status changes"
+        }
+    }
+
+    /** Class name -> [ClassHistory.duration], for [shardTestClasses] */
+    fun durations(): Map<String, Long> {
+        val durations = HashMap<String, Long>(classes.size)
+        for ((className, history) in classes) {
+            durations[className] = history.duration
+        }
+        return durations
+    }
+
+    /**
+     * Sort [classNames] in the order in which they should run: classes which failed in their last run first,
+     * then classes without history (new classes), then the rest, slowest first.
+     */
+    fun executionOrder(classNames: Collection<String>): List<String> {
+        return classNames.sortedWith(Comparator { first, second ->
+            val firstHistory = classes[first]
+            val secondHistory = classes[second]
+            val byRank = executionRank(firstHistory).compareTo(executionRank(secondHistory))
+            if (byRank != 0) {
+                return@Comparator byRank
+            }
+            val byDuration = (secondHistory?.duration ?: 0L).compareTo(firstHistory?.duration ?: 0L)
+            if (byDuration != 0) byDuration else first.compareTo(second)
+        })
+    }
+
+    private fun executionRank(history: ClassHistory?): Int {
+        return when {
+            history == null -> 1
+            history.lastStatus == TestStatus.FAILED -> 0
+            else -> 2
+        }
+    }
+
+    /** Add results of the tests in [report] to the history. Classes whose tests were not run are not changed. */
+    internal fun record(report: TestReport) {
+        val durations = HashMap<String, Long>()
+        val statuses = HashMap<String, TestStatus>()
+        for ((identifier, data) in report) {
+            if (!identifier.isTest || data.status == TestStatus.NOT_RUN) {
+                continue
+            }
+            val className = identifier.topLevelClassName ?: continue
+            durations[className] = (durations[className] ?: 0L) + Math.max(data.duration, 0L)
+            val status = statuses[className]
+            if (status != TestStatus.FAILED && (data.status == TestStatus.FAILED || status != TestStatus.SUCCESSFUL)) {
+                statuses[className] = data.status
+            }
+        }
+
+        for ((className, status) in statuses) {
+            val history = classes.getOrPut(className) { ClassHistory() }
+            val failed = status == TestStatus.FAILED
+            if (history.runs > 0 && (history.lastStatus == TestStatus.FAILED) != failed) {
+                history.statusChanges++
+            }
+            history.duration = durations[className] ?: 0L
+            history.lastStatus = status
+            history.runs++
+            if (failed) {
+                history.failures++
+            }
+        }
+    }
+
+    override fun toString(): String {
+        val sb = StringBuilder()
+        for ((className, history) in classes) {
+            sb.append(className).append(": ").append(history).append('\n')
+        }
+        return sb.toString()
+    }
+
+    internal class Serializer : JsonSerializer<TestHistory> {
+        override fun JsonWriter.write(value: TestHistory) {
+            writeArray {
+                for ((className, history) in value.classes) {
+                    writeObject {
+                        field("class", className)
+                        field("duration", history.duration)
+                        field("lastStatus", history.lastStatus)
+                        field("runs", history.runs)
+                        field("failures", history.failures)
+                        field("statusChanges", history.statusChanges)
+                    }
+                }
+            }
+        }
+
+        override fun read(value: JsonValue): TestHistory {
+            val result = TestHistory()
+            for (entry in value) {
+                result.classes[entry.field("class")] = ClassHistory().apply {
+                    duration = entry.field("duration")
+                    lastStatus = entry.field("lastStatus")
+                    runs = entry.field("runs")
+                    failures = entry.field("failures")
+                    statusChanges = entry.field("statusChanges")
+                }
+            }
+            return result
+        }
+    }
+}
+
+/**
+ * Fully qualified name of the top-level class, in which this test was found, if known.
+ * Parsed from the [TestIdentifier.testSource], which is the string form of JUnit's class or method source.
+ */
+internal val TestIdentifier.topLevelClassName: String?
+    get() {
+        val source = testSource ?: return null
+        val start = source.indexOf("className = '")
+        if (start == -1) {
+            return null
+        }
+        val nameStart = start + "className = '".length
+        val end = source.indexOf('\'', nameStart)
+        if (end == -1) {
+            return null
+        }
+        return source.substring(nameStart, end).substringBefore('$')
+    }
+
+/** Load [TestHistory] stored by [storeTestHistory], or create an empty one. */
+internal fun loadTestHistory(historyFile: Path): TestHistory {
+    if (!Files.exists(historyFile)) {
+        return TestHistory()
+    }
+
+    try {
+        return Files.newBufferedReader(historyFile, Charsets.UTF_8).use { it.readJson<TestHistory>() }
+    } catch (e: IOException) {
+        LOG.debug("Failed to load test history {}", historyFile, e)
+    } catch (e: JsonException) {
+        LOG.debug("Failed to load test history {}", historyFile, e)
+    }
+    return TestHistory()
+}
+
+/**
+ * Store [history] to [historyFile]. It is written to a temporary file first,
+ * so that other processes never see it half-written. Failure is not fatal.
+ */
+internal fun storeTestHistory(historyFile: Path, history: TestHistory) {
+    try {
+        writeFileAtomically(historyFile) { tempFile ->
+            Files.newBufferedWriter(tempFile, Charsets.UTF_8).use { writer ->
+                writer.writeJson(history, TestHistory::class.java)
+            }
+        }
+    } catch (e: IOException) {
+        LOG.debug("Failed to store test history {}", historyFile, e)
+    }
+}
@@ -0,0 +1,142 @@
+package wemi.test
+
+import org.slf4j.LoggerFactory
+import wemi.util.*
+import java.io.*
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
+
+private val LOG = LoggerFactory.getLogger("TestImpact")
+
+private const val IMPACT_MAGIC = 0x54494D50 // TIMP
+private const val IMPACT_VERSION = 1
+
+/**
+ * Test impact analysis. Finds tests, which may be affected by the changes of project classes since the last
+ * successful test run, so that the other tests don't have to be run again.
+ *
+ * Dependencies between classes are found statically, from the constant pools of their class files.
+ * Test class is affected, when it depends (transitively) on a class which was added or which has changed.
+ * Anything which can't be analyzed this way (libraries, resources, test parameters, JVM options...)
+ * is a part of the environment fingerprint and all tests are affected when it changes.
+ *
+ * @param stateFile where the state of the last successful test run is stored
+ * @param environment fingerprint of everything else the tests depend on, see [testImpactEnvironment]
+ */
+internal class TestImpact private constructor(
+        private val stateFile: Path,
+        private val environment: String,
+        private val classes: Map<String, ProjectClass>,
+        /** Fully qualified names of the affected top-level test classes, or null if all tests are affected */
+        val affectedClasses: Set<String>?) {
+
+    /** Remember the current state as the state of the last successful test run. Failure is not fatal. */
+    fun testsSucceeded() {
+        try {
+            writeFileAtomically(stateFile) { tempFile ->
+                DataOutputStream(BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024)).use { out ->
+                    out.writeInt(IMPACT_MAGIC)
+                    out.writeInt(IMPACT_VERSION)
+                    out.writeUTF(environment)
+                    out.writeProjectClasses(classes)
+                }
+            }
+        } catch (e: IOException) {
+            LOG.debug("Failed to store test impact state {}", stateFile, e)
+        }
+    }
+
+    companion object {
+
+        /**
+         * Analyze which tests from [testRoots] are affected by changes of classes in [classpath] directories,
+         * since the last [testsSucceeded] with the same [stateFile].
+         *
+         * @param classpath internal classpath of the tests, only its directories are analyzed
+         * @param testRoots directories from which the tests are discovered
+         */
+        fun analyze(stateFile: Path, environment: String, classpath: List<Path>, testRoots: List<Path>): TestImpact {
+            val previous = loadState(stateFile)
+            val previousClasses = if (previous != null && previous.first == environment) previous.second else null
+            val classes = scanProjectClasses(classpath, previousClasses ?: emptyMap())
+
+            if (previousClasses == null) {
+                LOG.debug("Environment of the tests has changed, all tests are affected")
+                return TestImpact(stateFile, environment, classes, null)
+            }
+
+            val affected = changedAndDependentClasses(classes, previousClasses)
+
+            // Nested classes are run by their top-level class
+            val affectedTestClasses = affected.mapTo(TreeSet()) { it.substringBefore('$').replace('/', '.') }
+            affectedTestClasses.retainAll(findTopLevelClasses(testRoots).keys)
+
+            LOG.debug("{} classes are affected by changes, including {} top-level test classes",
+                    affected.size, affectedTestClasses.size)
+            return TestImpact(stateFile, environment, classes, affectedTestClasses)
+        }
+
+        /** Load the state stored by [testsSucceeded], if any. */
+        private fun loadState(stateFile: Path): Pair<String, Map<String, ProjectClass>>? {
+            if (!Files.exists(stateFile)) {
+                return null
+            }
+
+            try {
+                DataInputStream(BufferedInputStream(Files.newInputStream(stateFile), 64 * 1024)).use { input ->
+                    if (input.readInt() != IMPACT_MAGIC || input.readInt() != IMPACT_VERSION) {
+                        return null
+                    }
+                    val environment = input.readUTF()
+                    return environment to input.readProjectClasses()
+                }
+            } catch (e: IOException) {
+                LOG.debug("Failed to load test impact state {}", stateFile, e)
+                return null
+            }
+        }
+    }
+}
+
+/**
+ * Fingerprint of everything that [TestImpact] can't analyze. That is the [javaExecutable] and [javaOptions] of the
+ * test process, [testParameters], [externalClasspath] and jars of the [internalClasspath] (by their path, size and
+ * modification time) and resources (non-class files) in the directories of the [internalClasspath].
+ */
+internal fun testImpactEnvironment(javaExecutable: Path, javaOptions: List<String>, testParameters: TestParameters,
+                                   externalClasspath: List<Path>, internalClasspath: List<Path>): String {
+    val fingerprint = Fingerprint()
+
+    fingerprint.add(javaExecutable.absolutePath)
+    for (option in javaOptions) {
+        fingerprint.add(option)
+    }
+    fingerprint.add("")
+    val parameters = StringWriter()
+    parameters.writeJson(testParameters, TestParameters::class.java)
+    fingerprint.add(parameters.toString())
+
+    for (entry in externalClasspath + internalClasspath) {
+        if (!Files.isDirectory(entry)) {
+            fingerprint.addFile(entry)
+            continue
+        }
+        fingerprint.add(entry.absolutePath)
+
+        val resources = TreeMap<String, String>()
+        Files.walkFileTree(entry, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Int.MAX_VALUE, object : SimpleFileVisitor<Path>() {
+            override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                if (attrs.isRegularFile && !file.name.endsWith(".class")) {
+                    resources[entry.relativize(file).toString()] = "${attrs.size()}:${attrs.lastModifiedTime().toMillis()}"
+                }
+                return FileVisitResult.CONTINUE
+            }
+        })
+        for ((resource, sizeAndModified) in resources) {
+            fingerprint.add(resource)
+            fingerprint.add(sizeAndModified)
+        }
+    }
+    return fingerprint.finish()
+}
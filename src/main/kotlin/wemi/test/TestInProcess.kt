@@ -0,0 +1,115 @@
+package wemi.test
+
+import org.slf4j.LoggerFactory
+import wemi.util.Fingerprint
+import wemi.util.writeJson
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.io.StringWriter
+import java.io.Writer
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.net.URL
+import java.net.URLClassLoader
+import java.nio.file.Path
+
+private val LOG = LoggerFactory.getLogger("TestInProcess")
+
+/**
+ * Fully qualified class name of the file that contains the entry point of in-process test runs.
+ */
+internal const val TEST_IN_PROCESS_CLASS = "wemi.test.forked.InProcessKt"
+
+/**
+ * Run tests inside the Wemi process, see [wemi.test.forked.runTestsInProcess].
+ *
+ * [libraryClasspath] (libraries, Wemi and JUnit) is loaded by a class loader, which is isolated from the classes of Wemi
+ * and which is kept between the runs, until the content of the [libraryClasspath] changes.
+ * The [projectClasspath] is loaded again for each run. Only one in-process test run can happen at a time,
+ * because the output of the tests is captured by replacing [System.out] and [System.err].
+ *
+ * Unlike the test processes, in-process test run can't be stopped by the [progress].
+ *
+ * @return report or null when the tests could not be run
+ */
+internal fun handleTestsInProcess(libraryClasspath: List<Path>, projectClasspath: List<Path>,
+                                  testParameters: TestParameters, progress: TestProgress?): TestReport? {
+    val parametersJson = StringWriter()
+    parametersJson.writeJson(testParameters, TestParameters::class.java)
+    val projectUrls = Array<URL>(projectClasspath.size) { projectClasspath[it].toUri().toURL() }
+
+    val collector = TestReportCollector(progress)
+    synchronized(InProcessTestLauncher) {
+        val entryPoint = try {
+            InProcessTestLauncher.obtain(libraryClasspath)
+        } catch (e: ReflectiveOperationException) {
+            LOG.error("Failed to load in-process test launcher", e)
+            return null
+        }
+
+        LOG.debug("Running tests in process")
+        OutputStreamWriter(TestProcessOutput { event -> collector.event(event) }, Charsets.UTF_8).use { events ->
+            try {
+                entryPoint.invoke(null, projectUrls, parametersJson.toString(), events)
+            } catch (e: InvocationTargetException) {
+                LOG.error("In-process test run failed", e.targetException)
+            }
+        }
+    }
+
+    return collector.result("In-process test run")
+}
+
+/**
+ * Keeps the isolated class loader of the library classpath of the last in-process test run.
+ */
+private object InProcessTestLauncher {
+
+    private var classpath: List<Path> = emptyList()
+    private var fingerprint = ""
+    private var classLoader: URLClassLoader? = null
+    private var entryPoint: Method? = null
+
+    /** @return [wemi.test.forked.runTestsInProcess] loaded from [libraryClasspath] */
+    fun obtain(libraryClasspath: List<Path>): Method {
+        val fingerprint = classpathFingerprint(libraryClasspath)
+        val cachedEntryPoint = entryPoint
+        if (cachedEntryPoint != null && classpath == libraryClasspath && this.fingerprint == fingerprint) {
+            return cachedEntryPoint
+        }
+
+        close()
+        LOG.debug("Creating class loader for in-process tests: {}", libraryClasspath)
+        // Parent is the extension class loader, so that no classes of the Wemi process leak in
+        val classLoader = URLClassLoader(Array(libraryClasspath.size) { libraryClasspath[it].toUri().toURL() },
+                ClassLoader.getSystemClassLoader().parent)
+        this.classLoader = classLoader
+        val entryPoint = Class.forName(TEST_IN_PROCESS_CLASS, true, classLoader)
+                .getMethod("runTestsInProcess", Array<URL>::class.java, String::class.java, Writer::class.java)
+        this.classpath = libraryClasspath
+        this.fingerprint = fingerprint
+        this.entryPoint = entryPoint
+        return entryPoint
+    }
+
+    private fun close() {
+        val classLoader = classLoader ?: return
+        this.classLoader = null
+        entryPoint = null
+        try {
+            classLoader.close()
+        } catch (e: IOException) {
+            LOG.debug("Failed to close class loader of in-process tests", e)
+        }
+    }
+
+    /** Fingerprint of the content of [classpath], by path, size and modification time of its entries. */
+    private fun classpathFingerprint(classpath: List<Path>): String {
+        val fingerprint = Fingerprint()
+
+        for (entry in classpath) {
+            fingerprint.addFile(entry)
+        }
+        return fingerprint.finish()
+    }
+}
@@ -26,6 +26,29 @@ class TestParameters {
 
     val filter = Filters()
 
+    /** Create a copy of these parameters, which can be modified without changing these. */
+    fun copy(): TestParameters {
+        val result = TestParameters()
+        result.configuration.putAll(configuration)
+        result.filterStackTraces = filterStackTraces
+
+        result.select.packages.addAll(select.packages)
+        result.select.classes.addAll(select.classes)
+        result.select.methods.addAll(select.methods)
+        result.select.resources.addAll(select.resources)
+        result.select.classpathRoots.addAll(select.classpathRoots)
+        result.select.firstClasses.addAll(select.firstClasses)
+
+        result.filter.classNamePatterns.included.addAll(filter.classNamePatterns.included)
+        result.filter.classNamePatterns.excluded.addAll(filter.classNamePatterns.excluded)
+        result.filter.packages.included.addAll(filter.packages.included)
+        result.filter.packages.excluded.addAll(filter.packages.excluded)
+        result.filter.tags.included.addAll(filter.tags.included)
+        result.filter.tags.excluded.addAll(filter.tags.excluded)
+        result.filter.topLevelClasses.addAll(filter.topLevelClasses)
+        return result
+    }
+
     override fun toString(): String {
         return "TestParameters(configuration=$configuration, select=$select, filter=$filter)"
     }
@@ -44,6 +67,10 @@ class TestParameters {
          * Managed by Wemi. */
         internal val classpathRoots:MutableList<String> = ArrayList()
 
+        /** A list of fully classified classes that are discovered and executed before all other selected tests,
+         * in this order. Managed by Wemi. */
+        internal val firstClasses:MutableList<String> = ArrayList()
+
         fun isEmpty(): Boolean {
             return packages.isEmpty()
                     && classes.isEmpty()
@@ -52,7 +79,7 @@ class TestParameters {
         }
 
         override fun toString(): String {
-            return "(packages=$packages, classes=$classes, methods=$methods, resources=$resources, classpathRoots=$classpathRoots)"
+            return "(packages=$packages, classes=$classes, methods=$methods, resources=$resources, classpathRoots=$classpathRoots, firstClasses=$firstClasses)"
         }
     }
 
@@ -73,8 +100,28 @@ class TestParameters {
         /** A list of tags to be included/excluded when building the test plan. */
         val tags:IncludeExcludeList = IncludeExcludeList()
 
+        /** A list of fully classified top-level classes, only classes which are (or are nested in) one of them
+         * are discovered. Not used when empty. Managed by Wemi. */
+        internal val topLevelClasses:MutableList<String> = ArrayList()
+
+        /** Whether the class with fully classified [className] passes [classNamePatterns] and [packages],
+         * used by Wemi before it selects classes directly. */
+        internal fun includesClass(className: String): Boolean {
+            if (classNamePatterns.included.isNotEmpty() && classNamePatterns.included.none { className.matches(Regex(it)) }) {
+                return false
+            }
+            if (classNamePatterns.excluded.any { className.matches(Regex(it)) }) {
+                return false
+            }
+            fun inPackage(packageName: String): Boolean = className.startsWith("$packageName.")
+            if (packages.included.isNotEmpty() && packages.included.none(::inPackage)) {
+                return false
+            }
+            return packages.excluded.none(::inPackage)
+        }
+
         override fun toString(): String {
-            return "(classNamePatterns=$classNamePatterns, packages=$packages, tags=$tags)"
+            return "(classNamePatterns=$classNamePatterns, packages=$packages, tags=$tags, topLevelClasses=$topLevelClasses)"
         }
     }
 
@@ -93,6 +140,7 @@ class TestParameters {
                     fieldCollection("methods", value.select.methods)
                     fieldCollection("resources", value.select.resources)
                     fieldCollection("classpathRoots", value.select.classpathRoots)
+                    fieldCollection("firstClasses", value.select.firstClasses)
                 }
 
                 // Filter
@@ -100,6 +148,7 @@ class TestParameters {
                     field("classNamePatterns", value.filter.classNamePatterns)
                     field("packages", value.filter.packages)
                     field("tags", value.filter.tags)
+                    fieldCollection("topLevelClasses", value.filter.topLevelClasses)
                 }
             }
         }
@@ -119,6 +168,7 @@ class TestParameters {
                 selectorValue.fieldToCollection("methods", result.select.methods)
                 selectorValue.fieldToCollection("resources", result.select.resources)
                 selectorValue.fieldToCollection("classpathRoots", result.select.classpathRoots)
+                selectorValue.fieldToCollection("firstClasses", result.select.firstClasses)
             }
 
             // Filter
@@ -126,6 +176,7 @@ class TestParameters {
                 filterValue.fieldTo("classNamePatterns", result.filter.classNamePatterns)
                 filterValue.fieldTo("packages", result.filter.packages)
                 filterValue.fieldTo("tags", result.filter.tags)
+                filterValue.fieldToCollection("topLevelClasses", result.filter.topLevelClasses)
             }
 
             return result
@@ -7,7 +7,7 @@ import wemi.boot.Main
 import wemi.util.*
 
 /**
- * Arbitrary string that is outputted by the test harness, before outputting the TestReport JSON.
+ * Arbitrary string that is outputted by the test harness, before outputting each test event JSON.
  * This is done because debug tools might inject messages that would break the output.
  */
 internal const val TEST_LAUNCHER_OUTPUT_PREFIX = "WEMI-TEST-HARNESS-OUTPUT: "
@@ -20,6 +20,12 @@ internal const val TEST_LAUNCHER_OUTPUT_PREFIX = "WEMI-TEST-HARNESS-OUTPUT: "
 @Json(TestReport.Serializer::class)
 class TestReport : LinkedHashMap<TestIdentifier, TestData>(), WithExitCode {
 
+    /**
+     * True when the tests were not run, because this report of the previous run with the same inputs was cached.
+     * Not serialized, shown by [prettyPrint].
+     */
+    var cached = false
+
     /**
      * Returns [wemi.boot.Main.EXIT_CODE_SUCCESS] when all tests are either successful or skipped.
      * [wemi.boot.Main.EXIT_CODE_TASK_FAILURE] otherwise.
@@ -182,8 +188,31 @@ class TestData {
 
     /**
      * If [status] is [TestStatus.FAILED], this may contain the (possibly filtered) stack trace of the error
+     *
+     * Long stack traces are kept compressed and are decompressed on each access.
      */
-    var stackTrace: String? = null
+    var stackTrace: String?
+        get() = plainStackTrace ?: packedStackTrace?.let { inflateText(it) }
+        set(value) {
+            if (value != null && value.length >= STACK_TRACE_COMPRESSION_THRESHOLD) {
+                plainStackTrace = null
+                packedStackTrace = deflateText(value)
+            } else {
+                plainStackTrace = value
+                packedStackTrace = null
+            }
+        }
+
+    private var plainStackTrace: String? = null
+    private var packedStackTrace: ByteArray? = null
+
+    /** [stackTrace] compressed by [deflateText] */
+    internal var compressedStackTrace: ByteArray?
+        get() = packedStackTrace ?: plainStackTrace?.let { deflateText(it) }
+        set(value) {
+            plainStackTrace = null
+            packedStackTrace = value
+        }
 
     /**
      * Custom reports made by the test execution.
@@ -266,6 +295,9 @@ class TestData {
     }
 }
 
+/** Stack traces of at least this many characters are kept compressed by [TestData] */
+private const val STACK_TRACE_COMPRESSION_THRESHOLD = 512
+
 /**
  * Status of the [TestData].
  */
@@ -0,0 +1,110 @@
+package wemi.test
+
+import org.slf4j.LoggerFactory
+import wemi.util.*
+import java.io.*
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
+
+private val LOG = LoggerFactory.getLogger("TestResultCache")
+
+private const val RESULT_CACHE_MAGIC = 0x54524553 // TRES
+private const val RESULT_CACHE_VERSION = 1
+
+/**
+ * Fingerprint of everything the test run depends on: [javaExecutable], [javaOptions], [testParameters],
+ * [externalClasspath] (by path, size and modification time) and the content of [internalClasspath].
+ *
+ * Content of the [internalClasspath] is used instead of the modification times, so that the fingerprint does not
+ * change when the project is only recompiled, for example in a fresh checkout on a continuous integration server.
+ */
+internal fun testResultFingerprint(javaExecutable: Path, javaOptions: List<String>, testParameters: TestParameters,
+                                   externalClasspath: List<Path>, internalClasspath: List<Path>): String {
+    val fingerprint = Fingerprint()
+
+    fingerprint.add(javaExecutable.absolutePath)
+    for (option in javaOptions) {
+        fingerprint.add(option)
+    }
+    fingerprint.add("")
+    val parameters = StringWriter()
+    parameters.writeJson(testParameters, TestParameters::class.java)
+    fingerprint.add(parameters.toString())
+
+    for (entry in externalClasspath) {
+        fingerprint.addFile(entry)
+    }
+    fingerprint.add("")
+
+    for (entry in internalClasspath) {
+        if (!Files.isDirectory(entry)) {
+            fingerprint.add(entry.name)
+            if (Files.isRegularFile(entry)) {
+                fingerprint.addContent(entry)
+            }
+            continue
+        }
+
+        val files = TreeMap<String, Path>()
+        Files.walkFileTree(entry, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Int.MAX_VALUE, object : SimpleFileVisitor<Path>() {
+            override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                if (attrs.isRegularFile) {
+                    files[entry.relativize(file).toString().replace(file.fileSystem.separator, "/")] = file
+                }
+                return FileVisitResult.CONTINUE
+            }
+        })
+        fingerprint.add(files.size.toString())
+        for ((path, file) in files) {
+            fingerprint.add(path)
+            fingerprint.addContent(file)
+        }
+    }
+    return fingerprint.finish()
+}
+
+/**
+ * Load [TestReport] stored in [cacheFile] by [storeCachedTestReport], if it was stored with the same [fingerprint].
+ * Loaded report is marked as [TestReport.cached].
+ */
+internal fun loadCachedTestReport(cacheFile: Path, fingerprint: String): TestReport? {
+    if (!Files.exists(cacheFile)) {
+        return null
+    }
+
+    try {
+        DataInputStream(BufferedInputStream(Files.newInputStream(cacheFile), 64 * 1024)).use { input ->
+            if (input.readInt() != RESULT_CACHE_MAGIC || input.readInt() != RESULT_CACHE_VERSION
+                    || input.readUTF() != fingerprint) {
+                return null
+            }
+            val report = CompactTestReport.read(input).toTestReport()
+            report.cached = true
+            return report
+        }
+    } catch (e: IOException) {
+        LOG.debug("Failed to load cached test report {}", cacheFile, e)
+    }
+    return null
+}
+
+/**
+ * Store [report] to [cacheFile], to be loaded by [loadCachedTestReport] when the tests have the same [fingerprint].
+ * The report is stored in the form of [CompactTestReport], which is much smaller and faster to read than JSON.
+ * It is written to a temporary file first, so that other processes never see it half-written. Failure is not fatal.
+ */
+internal fun storeCachedTestReport(cacheFile: Path, fingerprint: String, report: TestReport) {
+    try {
+        writeFileAtomically(cacheFile) { tempFile ->
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024)).use { out ->
+                out.writeInt(RESULT_CACHE_MAGIC)
+                out.writeInt(RESULT_CACHE_VERSION)
+                out.writeUTF(fingerprint)
+                report.compact().write(out)
+            }
+        }
+    } catch (e: IOException) {
+        LOG.debug("Failed to store test report {}", cacheFile, e)
+    }
+}
@@ -0,0 +1,177 @@
+package wemi.test
+
+import org.slf4j.LoggerFactory
+import wemi.util.WorkerPool
+import java.io.IOException
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.zip.ZipFile
+
+private val LOG = LoggerFactory.getLogger("TestSharding")
+
+/**
+ * Find all top-level classes in [classpathRoots] directories and jars.
+ * Nested classes are not listed, because their tests run together with their top-level class.
+ *
+ * @return fully qualified class name -> total size of its class files (including nested classes), sorted by name
+ */
+internal fun findTopLevelClasses(classpathRoots: Collection<Path>): SortedMap<String, Long> {
+    val classes = TreeMap<String, Long>()
+    fun addClassFile(path: String, size: Long) {
+        if (!path.endsWith(".class")) {
+            return
+        }
+        val className = path.substring(0, path.length - ".class".length).replace('/', '.').substringBefore('$')
+        if (!className.endsWith("module-info") && !className.endsWith("package-info")) {
+            classes[className] = (classes[className] ?: 0L) + size
+        }
+    }
+
+    for (root in classpathRoots) {
+        if (Files.isRegularFile(root)) {
+            try {
+                ZipFile(root.toFile()).use { zip ->
+                    for (entry in zip.entries()) {
+                        if (!entry.isDirectory) {
+                            addClassFile(entry.name, Math.max(entry.size, 0L))
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                LOG.warn("Can't read {} to find test classes", root, e)
+            }
+            continue
+        } else if (!Files.isDirectory(root)) {
+            continue
+        }
+
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Int.MAX_VALUE, object : SimpleFileVisitor<Path>() {
+            override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                if (attrs.isRegularFile) {
+                    addClassFile(root.relativize(file).toString().replace(file.fileSystem.separator, "/"), attrs.size())
+                }
+                return FileVisitResult.CONTINUE
+            }
+
+            override fun visitFileFailed(file: Path, exc: IOException): FileVisitResult {
+                LOG.warn("Can't visit {} to find test classes", file, exc)
+                return FileVisitResult.CONTINUE
+            }
+        })
+    }
+    return classes
+}
+
+/**
+ * Split [classes] into (at most) [shards] groups, which should take about the same time to run.
+ *
+ * Classes are weighted by their run time in [durations]. When [durations] are empty, size of their class files
+ * is used instead, as a rough estimate. Result depends only on the arguments.
+ *
+ * @param classes class name -> size of its class files, as returned by [findTopLevelClasses]
+ * @param durations class name -> duration of its tests in ms, classes which are not in it get the average duration
+ * @return non-empty groups of class names, each sorted by name
+ */
+internal fun shardTestClasses(classes: Map<String, Long>, shards: Int, durations: Map<String, Long>): List<List<String>> {
+    val averageDuration = if (durations.isEmpty()) 0L else Math.max(durations.values.sum() / durations.size, 1L)
+    val weighted = classes.entries.map { (className, size) ->
+        className to if (durations.isEmpty()) size else (durations[className] ?: averageDuration)
+    }.sortedWith(Comparator { (firstName, firstWeight), (secondName, secondWeight) ->
+        // Heaviest first, so that the light ones can even out the groups
+        val byWeight = secondWeight.compareTo(firstWeight)
+        if (byWeight != 0) byWeight else firstName.compareTo(secondName)
+    })
+
+    val groups = Array(Math.max(shards, 1)) { ArrayList<String>() }
+    val loads = LongArray(groups.size)
+    for ((className, weight) in weighted) {
+        var lightest = 0
+        for (i in 1 until loads.size) {
+            if (loads[i] < loads[lightest]) {
+                lightest = i
+            }
+        }
+        groups[lightest].add(className)
+        loads[lightest] += weight
+    }
+
+    return groups.filter { it.isNotEmpty() }.map { it.sort(); it }
+}
+
+/**
+ * Run each of [shards] through [handleProcessForTesting], all at the same time.
+ *
+ * @param shards process to start and parameters for it
+ * @param progress shared by all shards
+ * @return merged reports (see [mergeTestReports]), or null if any of the processes failed
+ */
+internal fun handleShardedProcessesForTesting(shards: List<Pair<ProcessBuilder, TestParameters>>, progress: TestProgress?): TestReport? {
+    LOG.debug("Running tests in {} processes", shards.size)
+    val futures = shards.drop(1).map { (builder, parameters) ->
+        WorkerPool.submit<TestReport?> { handleProcessForTesting(builder, parameters, progress) }
+    }
+
+    val reports = ArrayList<TestReport?>(shards.size)
+    try {
+        reports.add(handleProcessForTesting(shards[0].first, shards[0].second, progress))
+    } finally {
+        for (future in futures) {
+            try {
+                reports.add(future.get())
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+
+    if (reports.any { it == null }) {
+        return null
+    }
+    @Suppress("UNCHECKED_CAST")
+    return mergeTestReports(reports as List<TestReport>)
+}
+
+/**
+ * Merge [reports] of processes, which ran different tests of the same test plan.
+ *
+ * Entries are in the order of [reports]. Containers which are present in more reports (such as test engines)
+ * have the worst status of them, the longest duration and all of their report entries.
+ */
+internal fun mergeTestReports(reports: List<TestReport>): TestReport {
+    val result = TestReport()
+    for (report in reports) {
+        for ((identifier, data) in report) {
+            val existing = result[identifier]
+            if (existing == null) {
+                result[identifier] = data
+                continue
+            }
+
+            if (statusSeverity(data.status) > statusSeverity(existing.status)) {
+                existing.status = data.status
+            }
+            existing.duration = Math.max(existing.duration, data.duration)
+            if (existing.skipReason == null) {
+                existing.skipReason = data.skipReason
+            }
+            if (existing.stackTrace == null) {
+                existing.stackTrace = data.stackTrace
+            }
+            existing.reports.addAll(data.reports)
+        }
+    }
+    return result
+}
+
+/** Status with higher severity wins when merging the same [TestIdentifier] from different reports. */
+private fun statusSeverity(status: TestStatus): Int {
+    return when (status) {
+        TestStatus.NOT_RUN -> 0
+        TestStatus.SKIPPED -> 1
+        TestStatus.SUCCESSFUL -> 2
+        TestStatus.ABORTED -> 3
+        TestStatus.FAILED -> 4
+    }
+}
@@ -0,0 +1,175 @@
+package wemi.test
+
+import org.slf4j.LoggerFactory
+import wemi.util.*
+import wemi.run.superviseProcess
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.nio.file.Path
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+private val LOG = LoggerFactory.getLogger("TestWorker")
+
+/**
+ * Fully qualified class name of the file that contains the main method of [TestWorker] process.
+ */
+internal const val TEST_WORKER_MAIN_CLASS = "wemi.test.forked.TestWorkerKt"
+
+/**
+ * Run tests in a persistent [TestWorker] process, which is started with [workerClasspath] (libraries, Wemi and JUnit)
+ * and which loads the [projectClasspath] again for each run.
+ *
+ * One worker is kept for each [projectClasspath]. It is restarted when anything it was started with changes,
+ * including the content of its [workerClasspath]. When a worker for a different [projectClasspath] of the same
+ * [project] is started, the old workers of the [project] are stopped, so that they don't pile up.
+ *
+ * @param project name of the project whose tests are run
+ * @return report or null when the tests could not be run
+ */
+internal fun handleTestWorker(project: String, javaExecutable: Path, workingDirectory: Path, workerClasspath: List<Path>,
+                              javaOptions: List<String>, projectClasspath: List<Path>,
+                              testParameters: TestParameters, progress: TestProgress?): TestReport? {
+    val owner = projectClasspath.joinToString(System.getProperty("path.separator", ":")) { it.absolutePath }
+    val fingerprint = testWorkerFingerprint(javaExecutable, workingDirectory, workerClasspath, javaOptions)
+    val worker = TestWorker.obtain(project, owner, fingerprint) {
+        wemi.run.prepareJavaProcess(javaExecutable, workingDirectory, workerClasspath,
+                TEST_WORKER_MAIN_CLASS, javaOptions, emptyList())
+    }
+    return worker.runTests(projectClasspath, testParameters, progress)
+}
+
+/** Fingerprint of everything that [TestWorker] process is started with. */
+private fun testWorkerFingerprint(javaExecutable: Path, workingDirectory: Path,
+                                  classpath: List<Path>, javaOptions: List<String>): String {
+    val fingerprint = Fingerprint()
+
+    fingerprint.add(javaExecutable.absolutePath)
+    fingerprint.add(workingDirectory.absolutePath)
+    for (option in javaOptions) {
+        fingerprint.add(option)
+    }
+    fingerprint.add("")
+    for (entry in classpath) {
+        fingerprint.addFile(entry)
+    }
+    return fingerprint.finish()
+}
+
+/**
+ * Process which runs tests repeatedly, see [wemi.test.forked.main].
+ * Classes of libraries stay loaded between the runs, so only the first run pays for their loading.
+ */
+internal class TestWorker private constructor(private val project: String, private val fingerprint: String,
+                                              builder: ProcessBuilder) {
+
+    /** Test events (without prefix) and [WORKER_EXITED] */
+    private val events = LinkedBlockingQueue<Any>()
+    private val process = superviseProcess(builder, "TestWorker",
+            TestProcessOutput { event -> events.add(event.toString()) }, TestProcessOutput(null),
+            onExit = { events.add(WORKER_EXITED) })
+    private val input = OutputStreamWriter(process.process.outputStream, Charsets.UTF_8)
+
+    /**
+     * Run tests of [projectClasspath], which are specified by [testParameters].
+     * When [progress] says so, the worker is stopped and the report of tests that were run so far is returned.
+     * @return report or null when the tests could not be run
+     */
+    @Synchronized
+    fun runTests(projectClasspath: List<Path>, testParameters: TestParameters, progress: TestProgress?): TestReport? {
+        try {
+            input.append(projectClasspath.joinToString(System.getProperty("path.separator", ":")) { it.absolutePath }).append('\n')
+            input.writeJson(testParameters, TestParameters::class.java)
+            input.append('\n')
+            input.flush()
+        } catch (e: IOException) {
+            LOG.warn("Failed to send test parameters to the test worker", e)
+            return null
+        }
+
+        val collector = TestReportCollector(progress)
+        // Worker can't be used after it is stopped, a new one will be started next time
+        val stopListener: () -> Unit = { process.destroy() }
+        progress?.onStop(stopListener)
+        try {
+            while (!collector.ended) {
+                val event = events.take()
+                if (event === WORKER_EXITED) {
+                    LOG.warn("Test worker ended with status {}", process.process.exitValue())
+                    break
+                }
+                collector.event(event as String)
+            }
+        } finally {
+            // Worker may be used again, it must not be stopped by the progress of this run
+            progress?.removeOnStop(stopListener)
+        }
+        return collector.result("Test worker")
+    }
+
+    /** Stop the worker process. */
+    fun close() {
+        try {
+            // Worker ends when its input is closed
+            input.close()
+        } catch (ignored: IOException) {
+        }
+        if (!process.waitFor(1, TimeUnit.SECONDS)) {
+            process.destroy()
+        }
+    }
+
+    companion object {
+        private val workers = HashMap<String, TestWorker>()
+
+        /** Put into [events] when the worker process ends */
+        private val WORKER_EXITED = Any()
+
+        init {
+            Runtime.getRuntime().addShutdownHook(Thread({
+                synchronized(workers) {
+                    for (worker in workers.values) {
+                        worker.process.destroy()
+                    }
+                    workers.clear()
+                }
+            }, "TestWorkerStopper"))
+        }
+
+        /**
+         * Get running worker of [owner] with the same [fingerprint],
+         * or start a new one with [processBuilder] (and stop the old one, if any).
+         * Starting a worker for a new [owner] stops the workers of other owners of the same [project].
+         */
+        fun obtain(project: String, owner: String, fingerprint: String, processBuilder: () -> ProcessBuilder): TestWorker {
+            synchronized(workers) {
+                val existing = workers[owner]
+                if (existing != null) {
+                    if (existing.fingerprint == fingerprint && existing.process.isAlive) {
+                        return existing
+                    }
+                    LOG.debug("Restarting test worker of {}", owner)
+                    existing.close()
+                } else {
+                    val iterator = workers.entries.iterator()
+                    while (iterator.hasNext()) {
+                        val (otherOwner, other) = iterator.next()
+                        if (other.project == project) {
+                            LOG.debug("Stopping test worker of {}, {} has a new one", otherOwner, project)
+                            other.close()
+                            iterator.remove()
+                        }
+                    }
+                }
+
+                val builder = processBuilder()
+                builder.redirectInput(ProcessBuilder.Redirect.PIPE)
+
+                LOG.debug("Starting test worker of {}", owner)
+                val worker = TestWorker(project, fingerprint, builder)
+                workers[owner] = worker
+                return worker
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package wemi.test.forked
+
+import org.junit.platform.engine.TestExecutionResult
+import org.junit.platform.launcher.TestExecutionListener
+import org.junit.platform.launcher.TestIdentifier
+import wemi.test.TestData
+import wemi.test.TestParameters
+import wemi.util.fromJson
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.io.PrintStream
+import java.io.Writer
+import java.net.URL
+import java.net.URLClassLoader
+import java.util.*
+
+/**
+ * Runs tests inside the Wemi process, see [wemi.test.handleTestsInProcess].
+ *
+ * Called reflectively, this file is loaded by an isolated class loader of libraries, Wemi and JUnit,
+ * so it takes only JDK types. Project classes are loaded by a new class loader for each run,
+ * so that changed project classes are used, while the library classes stay loaded.
+ *
+ * Output of each test (and container) to [System.out] and [System.err] is captured and reported
+ * as its report entry with `stdout` or `stderr` key.
+ *
+ * @param projectClasspath of the project classes
+ * @param testParametersJson [TestParameters] json
+ * @param eventOutput to which the test events are written, see [TestEventWriter], the last one is always `ended` event
+ */
+@Suppress("unused")
+fun runTestsInProcess(projectClasspath: Array<URL>, testParametersJson: String, eventOutput: Writer) {
+    val events = TestEventWriter(eventOutput)
+    val thread = Thread.currentThread()
+    val originalOut = System.out
+    val originalErr = System.err
+
+    var error = true
+    try {
+        val testParameters = fromJson<TestParameters>(testParametersJson)
+        URLClassLoader(projectClasspath, TestEventWriter::class.java.classLoader).use { projectClassLoader ->
+            val out = TestOutputCapture(originalOut, thread)
+            val err = TestOutputCapture(originalErr, thread)
+            val originalClassLoader = thread.contextClassLoader
+            thread.contextClassLoader = projectClassLoader
+            System.setOut(PrintStream(out, true, "UTF-8"))
+            System.setErr(PrintStream(err, true, "UTF-8"))
+            try {
+                executeTests(testParameters, events, OutputCapturingListener(out, err, events))
+                error = false
+            } finally {
+                System.setOut(originalOut)
+                System.setErr(originalErr)
+                thread.contextClassLoader = originalClassLoader
+            }
+        }
+    } catch (e: Throwable) {
+        originalErr.println("Exception while running tests")
+        e.printStackTrace(originalErr)
+    } finally {
+        originalErr.flush()
+    }
+
+    events.ended(error)
+}
+
+/**
+ * Replaces [original] stream during an in-process test run.
+ * Output of the [testThread] goes to the buffer of the innermost running test or container, if any.
+ * Output of other threads (for example of Wemi itself) goes to the [original] stream.
+ */
+private class TestOutputCapture(private val original: PrintStream, private val testThread: Thread) : OutputStream() {
+
+    private val buffers = ArrayDeque<ByteArrayOutputStream>()
+
+    private fun target(): OutputStream {
+        if (Thread.currentThread() !== testThread) {
+            return original
+        }
+        return buffers.peekFirst() ?: original
+    }
+
+    override fun write(b: Int) {
+        synchronized(this) {
+            target().write(b)
+        }
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        synchronized(this) {
+            target().write(b, off, len)
+        }
+    }
+
+    override fun flush() {
+        original.flush()
+    }
+
+    /** Start capturing output of a test */
+    fun push() {
+        synchronized(this) {
+            buffers.addFirst(ByteArrayOutputStream())
+        }
+    }
+
+    /** Stop capturing output of the test started by the last [push]
+     * @return its output, or null if there was none */
+    fun pop(): String? {
+        synchronized(this) {
+            val output = buffers.pollFirst()?.toString("UTF-8")?.trimEnd('\n', '\r') ?: return null
+            return if (output.isEmpty()) null else output
+        }
+    }
+}
+
+/**
+ * Reports output captured by [out] and [err] during each test (or container) to [events].
+ */
+private class OutputCapturingListener(private val out: TestOutputCapture, private val err: TestOutputCapture,
+                                      private val events: TestEventWriter) : TestExecutionListener {
+
+    override fun executionStarted(testIdentifier: TestIdentifier) {
+        out.push()
+        err.push()
+    }
+
+    override fun executionFinished(testIdentifier: TestIdentifier, testExecutionResult: TestExecutionResult) {
+        val timestamp = System.currentTimeMillis()
+        out.pop()?.let { events.reported(testIdentifier.uniqueId, TestData.ReportEntry(timestamp, "stdout", it)) }
+        err.pop()?.let { events.reported(testIdentifier.uniqueId, TestData.ReportEntry(timestamp, "stderr", it)) }
+    }
+}
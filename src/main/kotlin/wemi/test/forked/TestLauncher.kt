@@ -1,8 +1,11 @@
 package wemi.test.forked
 
 import com.darkyen.tproll.util.StringBuilderWriter
+import com.esotericsoftware.jsonbeans.JsonWriter
+import com.esotericsoftware.jsonbeans.OutputType
 import org.junit.platform.engine.*
 import org.junit.platform.engine.TestExecutionResult.Status.*
+import org.junit.platform.engine.discovery.ClassNameFilter
 import org.junit.platform.engine.discovery.ClassNameFilter.excludeClassNamePatterns
 import org.junit.platform.engine.discovery.ClassNameFilter.includeClassNamePatterns
 import org.junit.platform.engine.discovery.DiscoverySelectors.*
@@ -19,10 +22,12 @@ import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder
 import org.junit.platform.launcher.core.LauncherFactory
 import wemi.test.*
 import wemi.util.appendWithStackTrace
+import wemi.util.field
 import wemi.util.readJson
-import wemi.util.writeJson
+import wemi.util.writeObject
 import java.io.InputStreamReader
 import java.io.OutputStreamWriter
+import java.io.Writer
 import java.nio.file.Path
 import java.nio.file.Paths
 import java.time.ZoneId
@@ -36,62 +41,25 @@ import java.util.*
  *
  * Reads WHOLE stdin as [TestParameters] json.
  * Program stdout is redirected to stderr, which is also where errors are printed.
- * Whole [TestReport] json is printed into stdout.
+ * Test events are printed into stdout as they happen, see [TestEventWriter].
  */
 fun main(args: Array<String>) {
     var exitCode: Int
 
+    val events = TestEventWriter(OutputStreamWriter(System.out, Charsets.UTF_8))
     try {
-        val out = System.out
         System.setOut(System.err)
 
         val testParameters: TestParameters = InputStreamReader(System.`in`, Charsets.UTF_8).readJson()
 
-        val launcher = LauncherFactory.create()
-        val reportBuilder = ReportBuildingListener(testParameters.filterStackTraces)
-        launcher.registerTestExecutionListeners(reportBuilder)
-
-        val discoveryRequest = LauncherDiscoveryRequestBuilder().apply {
-            val selectors = mutableListOf<DiscoverySelector>()
-            selectors.addMapped(testParameters.select.packages, ::selectPackage)
-            selectors.addMapped(testParameters.select.classes, ::selectClass)
-            selectors.addMapped(testParameters.select.methods, ::selectMethod)
-            selectors.addMapped(testParameters.select.resources, ::selectClasspathResource)
-            val classpathRoots = HashSet<Path>()
-            for (root in testParameters.select.classpathRoots) {
-                classpathRoots.add(Paths.get(root))
-            }
-            selectors.addAll(selectClasspathRoots(classpathRoots))
-            selectors(selectors)
-
-            val filters = mutableListOf<Filter<*>>()
-            testParameters.filter.classNamePatterns.included.ifNotEmpty { filters.add(includeClassNamePatterns(*it.toTypedArray())) }
-            testParameters.filter.classNamePatterns.excluded.ifNotEmpty { filters.add(excludeClassNamePatterns(*it.toTypedArray())) }
-            testParameters.filter.packages.included.ifNotEmpty { filters.add(includePackageNames(it)) }
-            testParameters.filter.packages.excluded.ifNotEmpty { filters.add(excludePackageNames(it)) }
-            testParameters.filter.tags.included.ifNotEmpty { filters.add(includeTags(it)) }
-            testParameters.filter.tags.excluded.ifNotEmpty { filters.add(excludeTags(it)) }
-            filters(*filters.toTypedArray())
-        }.build()
-
-        launcher.execute(discoveryRequest)
-
-        // Output
-        if (!reportBuilder.complete) {
-            System.err.println("Test report is not complete!")
-        }
-        val report = reportBuilder.testReport()
-
-        OutputStreamWriter(out, Charsets.UTF_8).use { writer ->
-            writer.append(TEST_LAUNCHER_OUTPUT_PREFIX)
-            writer.writeJson(report, TestReport::class.java)
-            writer.flush()
-        }
+        executeTests(testParameters, events)
+        events.ended(false)
 
         exitCode = 0
     } catch (e: Throwable) {
         System.err.println("Exception while running tests")
         e.printStackTrace(System.err)
+        events.ended(true)
 
         exitCode = 1
     } finally {
@@ -103,32 +71,171 @@ fun main(args: Array<String>) {
 }
 
 /**
- * JUnit Platform [TestExecutionListener] for collecting test execution data for Wemi.
+ * Discover and execute tests specified by [testParameters], report what happens to [events].
+ * Classes are loaded through the context class loader of the current thread.
+ *
+ * [TestParameters.Selectors.firstClasses] are discovered and executed by a request of their own, before the rest.
+ * Engines resolve classpath roots before individual classes, so in a single request the classes would run
+ * in the order in which they are found in the classpath roots, not in the given order.
+ *
+ * @param listeners notified after the listener which reports to [events]
  */
-private class ReportBuildingListener(val filterStackTraces: Boolean) : TestExecutionListener {
+internal fun executeTests(testParameters: TestParameters, events: TestEventWriter, vararg listeners: TestExecutionListener) {
+    val launcher = LauncherFactory.create()
+    launcher.registerTestExecutionListeners(EventWritingListener(testParameters.filterStackTraces, events), *listeners)
 
-    private val testReport = LinkedHashMap<TestIdentifier, TestData>()
-    private val startTimes = HashMap<TestIdentifier, Long>()
-    var complete = false
-        private set
+    val firstClasses = testParameters.select.firstClasses
+    if (firstClasses.isNotEmpty()) {
+        val firstRequest = LauncherDiscoveryRequestBuilder()
+                .selectors(firstClasses.map { selectClass(it) })
+                .filters(*testFilters(testParameters).toTypedArray())
+                .build()
+        launcher.execute(firstRequest)
+    }
+
+    val discoveryRequest = LauncherDiscoveryRequestBuilder().apply {
+        val selectors = mutableListOf<DiscoverySelector>()
+        selectors.addMapped(testParameters.select.packages, ::selectPackage)
+        selectors.addMapped(testParameters.select.classes, ::selectClass)
+        selectors.addMapped(testParameters.select.methods, ::selectMethod)
+        selectors.addMapped(testParameters.select.resources, ::selectClasspathResource)
+        val classpathRoots = HashSet<Path>()
+        for (root in testParameters.select.classpathRoots) {
+            classpathRoots.add(Paths.get(root))
+        }
+        selectors.addAll(selectClasspathRoots(classpathRoots))
+        selectors(selectors)
+
+        val filters = testFilters(testParameters)
+        // Already executed by the first request, but their static nested classes are found only by the root scan
+        firstClasses.ifNotEmpty { filters.add(ExcludedClassNameFilter(HashSet(it))) }
+        filters(*filters.toTypedArray())
+    }.build()
+
+    launcher.execute(discoveryRequest)
+    events.completed()
+}
+
+/** Create discovery filters of [testParameters]. */
+private fun testFilters(testParameters: TestParameters): MutableList<Filter<*>> {
+    val filters = mutableListOf<Filter<*>>()
+    testParameters.filter.classNamePatterns.included.ifNotEmpty { filters.add(includeClassNamePatterns(*it.toTypedArray())) }
+    testParameters.filter.classNamePatterns.excluded.ifNotEmpty { filters.add(excludeClassNamePatterns(*it.toTypedArray())) }
+    testParameters.filter.packages.included.ifNotEmpty { filters.add(includePackageNames(it)) }
+    testParameters.filter.packages.excluded.ifNotEmpty { filters.add(excludePackageNames(it)) }
+    testParameters.filter.tags.included.ifNotEmpty { filters.add(includeTags(it)) }
+    testParameters.filter.tags.excluded.ifNotEmpty { filters.add(excludeTags(it)) }
+    testParameters.filter.topLevelClasses.ifNotEmpty { filters.add(TopLevelClassNameFilter(HashSet(it))) }
+    return filters
+}
+
+/**
+ * Includes only classes, which are (or are nested in) one of the [topLevelClasses].
+ * Used instead of selecting the classes directly, because that would not find tests in their nested classes.
+ */
+private class TopLevelClassNameFilter(private val topLevelClasses: Set<String>) : ClassNameFilter {
 
-    override fun testPlanExecutionFinished(testPlan: TestPlan?) {
-        complete = true
+    override fun apply(className: String): FilterResult {
+        return FilterResult.includedIf(className.substringBefore('$') in topLevelClasses)
     }
 
-    private fun TestIdentifier.data(): TestData {
-        return testReport.getOrPut(this) { TestData() }
+    override fun toString(): String {
+        return "TopLevelClassNameFilter(${topLevelClasses.size} classes)"
     }
+}
 
-    override fun executionSkipped(testIdentifier: TestIdentifier, reason: String?) {
-        testIdentifier.data().apply {
-            status = TestStatus.SKIPPED
-            skipReason = reason
+/**
+ * Excludes exactly the [excludedClasses], but not their nested classes.
+ */
+private class ExcludedClassNameFilter(private val excludedClasses: Set<String>) : ClassNameFilter {
+
+    override fun apply(className: String): FilterResult {
+        return FilterResult.includedIf(className !in excludedClasses)
+    }
+
+    override fun toString(): String {
+        return "ExcludedClassNameFilter(${excludedClasses.size} classes)"
+    }
+}
+
+/**
+ * Writes test events into [out], each on a single line, prefixed by [TEST_LAUNCHER_OUTPUT_PREFIX].
+ * Event is a json object, whose `event` field is one of the `TEST_EVENT_` constants, see [TestReportCollector].
+ */
+internal class TestEventWriter(private val out: Writer) {
+
+    private inline fun event(event: String, content: JsonWriter.() -> Unit) {
+        synchronized(this) {
+            out.append(TEST_LAUNCHER_OUTPUT_PREFIX)
+            val json = JsonWriter(out)
+            json.setOutputType(OutputType.json)
+            json.setQuoteLongValues(false)
+            json.writeObject {
+                field("event", event)
+                content()
+            }
+            out.append('\n')
+            out.flush()
         }
     }
 
+    fun started(identifier: wemi.test.TestIdentifier) {
+        event(TEST_EVENT_STARTED) {
+            field("identifier", identifier)
+        }
+    }
+
+    fun skipped(identifier: wemi.test.TestIdentifier, reason: String?) {
+        event(TEST_EVENT_SKIPPED) {
+            field("identifier", identifier)
+            field("reason", reason)
+        }
+    }
+
+    fun finished(id: String, status: TestStatus, duration: Long, stackTrace: String?) {
+        event(TEST_EVENT_FINISHED) {
+            field("id", id)
+            field("status", status)
+            field("duration", duration)
+            field("stackTrace", stackTrace)
+        }
+    }
+
+    fun reported(id: String, entry: TestData.ReportEntry) {
+        event(TEST_EVENT_REPORTED) {
+            field("id", id)
+            field("timestamp", entry.timestamp)
+            field("key", entry.key)
+            field("value", entry.value)
+        }
+    }
+
+    fun completed() {
+        event(TEST_EVENT_COMPLETED) {}
+    }
+
+    /** Last event of a test run, [error] when the run failed. */
+    fun ended(error: Boolean) {
+        event(TEST_EVENT_ENDED) {
+            field("error", error)
+        }
+    }
+}
+
+/**
+ * JUnit Platform [TestExecutionListener] for sending test execution data to Wemi, through [events].
+ */
+private class EventWritingListener(val filterStackTraces: Boolean, val events: TestEventWriter) : TestExecutionListener {
+
+    private val startTimes = HashMap<TestIdentifier, Long>()
+
+    override fun executionSkipped(testIdentifier: TestIdentifier, reason: String?) {
+        events.skipped(testIdentifier.toWemi(), reason)
+    }
+
     override fun executionStarted(testIdentifier: TestIdentifier) {
         startTimes[testIdentifier] = System.currentTimeMillis()
+        events.started(testIdentifier.toWemi())
     }
 
     private fun createStackTraceMapper(source: TestSource): ((Array<StackTraceElement>) -> List<StackTraceElement>)? {
@@ -155,51 +262,42 @@ private class ReportBuildingListener(val filterStackTraces: Boolean) : TestExecu
     }
 
     override fun executionFinished(testIdentifier: TestIdentifier, testExecutionResult: TestExecutionResult) {
-        testIdentifier.data().apply {
-            duration = startTimes.remove(testIdentifier)?.let { System.currentTimeMillis() - it } ?: -1L
-            status = when (testExecutionResult.status) {
-                SUCCESSFUL -> TestStatus.SUCCESSFUL
-                ABORTED -> TestStatus.ABORTED
-                FAILED -> TestStatus.FAILED
-                else -> throw IllegalArgumentException("unknown status: ${testExecutionResult.status}")
-            }
-            val throwable = testExecutionResult.throwable.orElse(null)
-            if (throwable != null) {
-                val filter = if (filterStackTraces && testIdentifier.source.isPresent)
-                    createStackTraceMapper(testIdentifier.source.get())
-                else null
-
-                val stackTrace = StringBuilder()
-                if (filter == null) {
-                    throwable.printStackTrace(StringBuilderWriter(stackTrace))
-                } else {
-                    stackTrace.appendWithStackTrace(throwable, filter)
-                }
-                // Drop trailing newline/whitespace
-                while (stackTrace.isNotEmpty() && stackTrace.last().isWhitespace()) {
-                    stackTrace.setLength(stackTrace.length - 1)
-                }
-                this.stackTrace = stackTrace.toString()
-            }
+        val duration = startTimes.remove(testIdentifier)?.let { System.currentTimeMillis() - it } ?: -1L
+        val status = when (testExecutionResult.status) {
+            SUCCESSFUL -> TestStatus.SUCCESSFUL
+            ABORTED -> TestStatus.ABORTED
+            FAILED -> TestStatus.FAILED
+            else -> throw IllegalArgumentException("unknown status: ${testExecutionResult.status}")
         }
-    }
 
-    override fun reportingEntryPublished(testIdentifier: TestIdentifier, entry: ReportEntry) {
-        testIdentifier.data().apply {
-            val timestamp = entry.timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
-            reports.ensureCapacity(entry.keyValuePairs.size)
-            for ((k, v) in entry.keyValuePairs) {
-                reports.add(TestData.ReportEntry(timestamp, k, v))
+        var stackTrace: String? = null
+        val throwable = testExecutionResult.throwable.orElse(null)
+        if (throwable != null) {
+            val filter = if (filterStackTraces && testIdentifier.source.isPresent)
+                createStackTraceMapper(testIdentifier.source.get())
+            else null
+
+            val stackTraceBuilder = StringBuilder()
+            if (filter == null) {
+                throwable.printStackTrace(StringBuilderWriter(stackTraceBuilder))
+            } else {
+                stackTraceBuilder.appendWithStackTrace(throwable, filter)
+            }
+            // Drop trailing newline/whitespace
+            while (stackTraceBuilder.isNotEmpty() && stackTraceBuilder.last().isWhitespace()) {
+                stackTraceBuilder.setLength(stackTraceBuilder.length - 1)
             }
+            stackTrace = stackTraceBuilder.toString()
         }
+
+        events.finished(testIdentifier.uniqueId, status, duration, stackTrace)
     }
 
-    fun testReport(): TestReport {
-        val result = TestReport()
-        testReport.forEach { k, v ->
-            result[k.toWemi()] = v
+    override fun reportingEntryPublished(testIdentifier: TestIdentifier, entry: ReportEntry) {
+        val timestamp = entry.timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+        for ((k, v) in entry.keyValuePairs) {
+            events.reported(testIdentifier.uniqueId, TestData.ReportEntry(timestamp, k, v))
         }
-        return result
     }
 
     private fun TestIdentifier.toWemi(): wemi.test.TestIdentifier {
@@ -0,0 +1,63 @@
+package wemi.test.forked
+
+import wemi.test.TestParameters
+import wemi.util.fromJson
+import java.io.BufferedReader
+import java.io.InputStreamReader
+import java.io.OutputStreamWriter
+import java.net.URL
+import java.net.URLClassLoader
+import java.nio.file.Paths
+
+/**
+ * Launched by test task as a persistent worker process, see [wemi.test.TestWorker].
+ * Forked process has a classpath of libraries combined with Wemi jar and JUnit launcher, but without project classes.
+ *
+ * Takes no arguments.
+ *
+ * Reads requests from stdin, each on two lines: project classpath (separated by the path separator)
+ * and [TestParameters] json. Tests of each request are run with a new class loader of the project classpath,
+ * so that changed project classes are used, while the library classes stay loaded.
+ * Program stdout is redirected to stderr, which is also where errors are printed.
+ * Test events of each request are printed into stdout, see [TestEventWriter], the last one is always `ended` event.
+ * Ends when stdin is closed.
+ */
+fun main(args: Array<String>) {
+    val events = TestEventWriter(OutputStreamWriter(System.out, Charsets.UTF_8))
+    System.setOut(System.err)
+
+    val pathSeparator = System.getProperty("path.separator", ":")
+    val input = BufferedReader(InputStreamReader(System.`in`, Charsets.UTF_8))
+
+    while (true) {
+        val classpath = input.readLine() ?: break
+        val testParametersJson = input.readLine() ?: break
+
+        var error = true
+        try {
+            val testParameters = fromJson<TestParameters>(testParametersJson)
+            val urls = classpath.split(pathSeparator).filter { it.isNotEmpty() }.map { Paths.get(it).toUri().toURL() }
+
+            URLClassLoader(urls.toTypedArray<URL>(), ClassLoader.getSystemClassLoader()).use { projectClassLoader ->
+                val thread = Thread.currentThread()
+                val originalClassLoader = thread.contextClassLoader
+                thread.contextClassLoader = projectClassLoader
+                try {
+                    executeTests(testParameters, events)
+                    error = false
+                } finally {
+                    thread.contextClassLoader = originalClassLoader
+                }
+            }
+        } catch (e: Throwable) {
+            System.err.println("Exception while running tests")
+            e.printStackTrace(System.err)
+        } finally {
+            System.err.flush()
+        }
+
+        events.ended(error)
+    }
+
+    System.exit(0)
+}
@@ -0,0 +1,89 @@
+package wemi.util
+
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Call [action] with each class name (in internal form) that [constant] refers to,
+ * either as a name or through type descriptors. Only names which are keys of [classes] are considered.
+ */
+internal inline fun forEachReferencedClass(constant: String, classes: Map<String, *>, action: (String) -> Unit) {
+    // Class constants and class names in strings (possibly with dots)
+    val asName = constant.replace('.', '/')
+    if (asName in classes) {
+        action(asName)
+    }
+
+    // Descriptors and signatures: Lcom/example/Foo; or Lcom/example/Foo<...>;
+    var start = constant.indexOf('L')
+    while (start != -1) {
+        var end = start + 1
+        while (end < constant.length) {
+            val c = constant[end]
+            if (c == ';' || c == '<') {
+                break
+            }
+            end++
+        }
+        if (end < constant.length && end > start + 1) {
+            val name = constant.substring(start + 1, end)
+            if (name in classes) {
+                action(name)
+            }
+        }
+        start = constant.indexOf('L', start + 1)
+    }
+}
+
+private const val CONSTANT_Utf8 = 1
+
+/**
+ * Read the constant pool of the class file in [input] and give each UTF-8 constant to [consumer].
+ * All class references in the constant pool are through UTF-8 constants.
+ *
+ * @throws IOException if the class file is malformed
+ */
+internal inline fun readConstantPoolStrings(input: InputStream, consumer: (String) -> Unit) {
+    val data = DataInputStream(BufferedInputStream(input))
+    if (data.readInt() != 0xCAFEBABE.toInt()) {
+        throw IOException("Not a class file")
+    }
+    data.readUnsignedShort() // Minor version
+    data.readUnsignedShort() // Major version
+    val count = data.readUnsignedShort()
+    var i = 1
+    while (i < count) {
+        val tag = data.readUnsignedByte()
+        when (tag) {
+            CONSTANT_Utf8 -> consumer(data.readUTF())
+            // Integer, Float, Fieldref, Methodref, InterfaceMethodref, NameAndType, Dynamic, InvokeDynamic
+            3, 4, 9, 10, 11, 12, 17, 18 -> data.skipFully(4)
+            // Long, Double take two entries
+            5, 6 -> {
+                data.skipFully(8)
+                i++
+            }
+            // Class, String, MethodType, Module, Package
+            7, 8, 16, 19, 20 -> data.skipFully(2)
+            // MethodHandle
+            15 -> data.skipFully(3)
+            else -> throw IOException("Unknown constant pool tag $tag")
+        }
+        i++
+    }
+}
+
+internal fun DataInputStream.skipFully(bytes: Int) {
+    var remaining = bytes
+    while (remaining > 0) {
+        val skipped = skipBytes(remaining)
+        if (skipped <= 0) {
+            readByte()
+            remaining--
+        } else {
+            remaining -= skipped
+        }
+    }
+}
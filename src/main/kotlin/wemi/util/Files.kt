@@ -461,6 +461,33 @@ fun Path.writeText(text: CharSequence) {
     }
 }
 
+/**
+ * Replace [file] atomically, so that other processes never see it half-written.
+ *
+ * [write] writes the new content into the given temporary file next to the [file], which then replaces the [file].
+ * Parent directories are created when missing. When anything fails, the temporary file is deleted
+ * and the exception is rethrown.
+ */
+fun writeFileAtomically(file: Path, write: (temporaryFile: Path) -> Unit) {
+    Files.createDirectories(file.parent)
+    // Not Files.createTempFile, because that would create the file readable only by its owner
+    val temporaryFile = file.resolveSibling("${file.name}.${java.lang.Long.toHexString(Random().nextLong())}.part")
+    try {
+        Files.newOutputStream(temporaryFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close()
+        write(temporaryFile)
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING)
+        }
+    } catch (e: Exception) {
+        try {
+            Files.deleteIfExists(temporaryFile)
+        } catch (ignored: IOException) {}
+        throw e
+    }
+}
+
 /**
  * Used by [deleteRecursively]
  */
@@ -653,8 +680,6 @@ private val LOCKED_PATHS = WeakHashMap<Path, Semaphore>()
  * @param onWait optional callback that will be called once it is determined that waiting for the
  */
 fun <Result> directorySynchronized(directory: Path, onWait:(()->Unit)? = null, action:() -> Result):Result {
-    // Implementation of this is not trivial as all OSes have own quirks and differences
-
     if (!Files.exists(directory)) {
         // Otherwise toRealPath will crash
         Files.createDirectories(directory)
@@ -666,14 +691,28 @@ fun <Result> directorySynchronized(directory: Path, onWait:(()->Unit)? = null, a
         throw IllegalArgumentException("$lockedPath is not a directory")
     }
 
+    return fileSynchronized(lockedPath.resolve(".wemi-lock"), onWait, action)
+}
+
+/**
+ * Works like [synchronized], but the synchronization is done on a [lockFile] and is coordinated with other processes
+ * as well. The [lockFile] is created for the duration of the [action] and should not be used for anything else.
+ * Unlike [directorySynchronized], this allows to have more locks in one directory.
+ *
+ * @param onWait optional callback that will be called once it is determined that waiting for the
+ */
+fun <Result> fileSynchronized(lockFile: Path, onWait:(()->Unit)? = null, action:() -> Result):Result {
+    // Implementation of this is not trivial as all OSes have own quirks and differences
+
+    val lockPath = lockFile.toAbsolutePath().normalize()
+    lockPath.parent?.let { Files.createDirectories(it) }
+
     // Semaphore for path locking for this process
     val semaphore =
             synchronized(LOCKED_PATHS) {
-                LOCKED_PATHS.getOrPut(lockedPath) { Semaphore(1) }
+                LOCKED_PATHS.getOrPut(lockPath) { Semaphore(1) }
             }
 
-    val lockPath = lockedPath.resolve(".wemi-lock")
-
     var onWaitCalled = false
 
     // Coordinate with other threads
@@ -1,5 +1,8 @@
 package wemi.util
 
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
 import java.util.*
 import kotlin.collections.ArrayList
 
@@ -227,3 +230,47 @@ fun createHashSum(hash:ByteArray, fileName:String?):CharSequence {
     }
     return sb.append('\n')
 }
+
+/**
+ * Builds a fingerprint of a sequence of values, for checking whether anything in the sequence has changed.
+ * Each value is terminated, so different sequences never produce the same input of the digest.
+ */
+class Fingerprint {
+
+    private val digest = MessageDigest.getInstance("SHA-1")
+    private var buffer: ByteArray? = null
+
+    /** Add [value] to the fingerprint. */
+    fun add(value: String): Fingerprint {
+        digest.update(value.toByteArray(Charsets.UTF_8))
+        digest.update(0)
+        return this
+    }
+
+    /** Add the path, size and modification time of [file]. Cheaper than [addContent], but not as precise. */
+    fun addFile(file: Path): Fingerprint {
+        add(file.absolutePath)
+        add(if (Files.isRegularFile(file)) Files.size(file).toString() else "")
+        add(file.lastModifiedMillis().toString())
+        return this
+    }
+
+    /** Add the content of [file]. */
+    fun addContent(file: Path): Fingerprint {
+        val buffer = buffer ?: ByteArray(8192).also { buffer = it }
+        Files.newInputStream(file).use { input ->
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0) {
+                    break
+                }
+                digest.update(buffer, 0, read)
+            }
+        }
+        digest.update(0)
+        return this
+    }
+
+    /** @return the fingerprint as a hexadecimal string, the [Fingerprint] can't be used after that */
+    fun finish(): String = toHexString(digest.digest())
+}
@@ -0,0 +1,22 @@
+package wemi.util
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Pool of daemon threads for background work, which does not evaluate keys,
+ * such as concurrent network requests.
+ *
+ * Threads are created on demand and discarded when not used for a while.
+ */
+internal val WorkerPool: ExecutorService = Executors.newCachedThreadPool(object : ThreadFactory {
+    private val counter = AtomicInteger(0)
+
+    override fun newThread(r: Runnable): Thread {
+        val thread = Thread(r, "WemiWorker-${counter.incrementAndGet()}")
+        thread.isDaemon = true
+        return thread
+    }
+})
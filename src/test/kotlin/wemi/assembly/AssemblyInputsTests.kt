@@ -0,0 +1,78 @@
+package wemi.assembly
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.createJar
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Files
+import java.nio.file.attribute.FileTime
+
+/**
+ * Tests [AssemblyInputs], their writing and matching.
+ */
+class AssemblyInputsTests {
+
+    @Test
+    fun match() {
+        withTempDirectory("assemblyInputs") { temp ->
+            val output = temp / "output.jar"
+            createJar(output, "a.txt", "b.txt")
+            val inputsFile = assemblyInputsFile(output)
+            assertEquals(temp / "output.jar.inputs", inputsFile)
+
+            val inputs = AssemblyInputs("true 9 0 0", listOf("a.txt\t1 5", "b.txt\t2 5"))
+            assertFalse(assemblyInputsMatch(inputsFile, inputs, output))
+            writeAssemblyInputs(inputsFile, inputs, output)
+            assertTrue(assemblyInputsMatch(inputsFile, inputs, output))
+            assertTrue(assemblyInputsMatch(inputsFile, AssemblyInputs("true 9 0 0", listOf("a.txt\t1 5", "b.txt\t2 5")), output))
+
+            // Different inputs
+            assertFalse(assemblyInputsMatch(inputsFile, AssemblyInputs("false 9 0 0", inputs.entries), output))
+            assertFalse(assemblyInputsMatch(inputsFile, AssemblyInputs(inputs.settings, listOf("a.txt\t1 5", "b.txt\t3 5")), output))
+            assertFalse(assemblyInputsMatch(inputsFile, AssemblyInputs(inputs.settings, listOf("b.txt\t2 5", "a.txt\t1 5")), output))
+            assertFalse(assemblyInputsMatch(inputsFile, AssemblyInputs(inputs.settings, listOf("a.txt\t1 5")), output))
+            assertFalse(assemblyInputsMatch(inputsFile, AssemblyInputs(inputs.settings, listOf("a.txt\t1 5", "b.txt\t2 5", "c.txt\t3 5")), output))
+            assertTrue(assemblyInputsMatch(inputsFile, inputs, output))
+        }
+    }
+
+    @Test
+    fun outputChanged() {
+        withTempDirectory("assemblyInputs") { temp ->
+            val output = temp / "output.jar"
+            val inputsFile = assemblyInputsFile(output)
+            val inputs = AssemblyInputs("true 9 0 0", listOf("a.txt\t1 5", "b.txt\t2 5"))
+
+            // Modified
+            createJar(output, "a.txt", "b.txt")
+            writeAssemblyInputs(inputsFile, inputs, output)
+            Files.setLastModifiedTime(output, FileTime.fromMillis(2000_000L))
+            assertFalse(assemblyInputsMatch(inputsFile, inputs, output))
+
+            // Entry count does not match, for example when the output was replaced by a file with the same size and time
+            createJar(output, "a.txt", "b.txt", "c.txt")
+            writeAssemblyInputs(inputsFile, inputs, output)
+            assertFalse(assemblyInputsMatch(inputsFile, inputs, output))
+
+            // Not a zip
+            Files.write(output, ByteArray(100))
+            writeAssemblyInputs(inputsFile, inputs, output)
+            assertFalse(assemblyInputsMatch(inputsFile, inputs, output))
+
+            // Deleted
+            createJar(output, "a.txt", "b.txt")
+            writeAssemblyInputs(inputsFile, inputs, output)
+            assertTrue(assemblyInputsMatch(inputsFile, inputs, output))
+            Files.delete(output)
+            assertFalse(assemblyInputsMatch(inputsFile, inputs, output))
+
+            // Invalid inputs file
+            createJar(output, "a.txt", "b.txt")
+            Files.write(inputsFile, "wemi-assembly-inputs 1\nnot numbers\n".toByteArray())
+            assertFalse(assemblyInputsMatch(inputsFile, inputs, output))
+            Files.write(inputsFile, "wemi-assembly-inputs 0\n".toByteArray())
+            assertFalse(assemblyInputsMatch(inputsFile, inputs, output))
+        }
+    }
+}
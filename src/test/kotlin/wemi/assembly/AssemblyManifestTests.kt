@@ -0,0 +1,94 @@
+package wemi.assembly
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Files
+import java.nio.file.attribute.FileTime
+
+/**
+ * Tests [AssemblyManifest], its reading and writing.
+ */
+class AssemblyManifestTests {
+
+    @Test
+    fun roundTrip() {
+        withTempDirectory("assemblyManifest") { temp ->
+            val output = temp / "output.jar"
+            Files.write(output, ByteArray(100))
+            Files.setLastModifiedTime(output, FileTime.fromMillis(1000_000L))
+            val manifestFile = assemblyManifestFile(output)
+            assertEquals(temp / "output.jar.manifest", manifestFile)
+
+            val entries = linkedMapOf(
+                    "META-INF/MANIFEST.MF" to ZipIndexEntry("META-INF/MANIFEST.MF", ZIP_DEFLATED, 0, 0xFFFFFFFFL, 50L, 70L, 10L),
+                    "com/example/Main.class" to ZipIndexEntry("com/example/Main.class", ZIP_STORED, 0, 123L, 600L, 600L, 100L),
+                    "weird\tname" to ZipIndexEntry("weird\tname", ZIP_STORED, 0, 1L, 1L, 1L, 800L))
+            writeAssemblyManifest(manifestFile, AssemblyManifest(true, 9, 100L, 1000_000L, entries))
+
+            val manifest = readAssemblyManifest(manifestFile)!!
+            assertTrue(manifest.compress)
+            assertEquals(9, manifest.compressionLevel)
+            assertEquals(100L, manifest.outputSize)
+            assertEquals(1000_000L, manifest.outputModifiedMs)
+            // Names which can't be stored are left out
+            assertEquals(setOf("META-INF/MANIFEST.MF", "com/example/Main.class"), manifest.entries.keys)
+            for ((path, entry) in manifest.entries) {
+                val expected = entries[path]!!
+                assertEquals(path, entry.name)
+                assertEquals(expected.method, entry.method)
+                assertEquals(expected.crc, entry.crc)
+                assertEquals(expected.compressedSize, entry.compressedSize)
+                assertEquals(expected.size, entry.size)
+                assertEquals(expected.localHeaderOffset, entry.localHeaderOffset)
+            }
+        }
+    }
+
+    @Test
+    fun describes() {
+        withTempDirectory("assemblyManifest") { temp ->
+            val output = temp / "output.jar"
+            Files.write(output, ByteArray(100))
+            Files.setLastModifiedTime(output, FileTime.fromMillis(1000_000L))
+
+            val manifest = AssemblyManifest(true, 5, 100L, 1000_000L, emptyMap())
+            assertTrue(manifest.describes(output, true, 5))
+            // Different settings
+            assertFalse(manifest.describes(output, true, 6))
+            assertFalse(manifest.describes(output, false, 5))
+            // Compression level does not matter when not compressing
+            assertTrue(AssemblyManifest(false, 5, 100L, 1000_000L, emptyMap()).describes(output, false, 9))
+
+            // Output was changed
+            Files.setLastModifiedTime(output, FileTime.fromMillis(2000_000L))
+            assertFalse(manifest.describes(output, true, 5))
+            Files.write(output, ByteArray(101))
+            Files.setLastModifiedTime(output, FileTime.fromMillis(1000_000L))
+            assertFalse(manifest.describes(output, true, 5))
+            Files.delete(output)
+            assertFalse(manifest.describes(output, true, 5))
+        }
+    }
+
+    @Test
+    fun invalid() {
+        withTempDirectory("assemblyManifest") { temp ->
+            val manifestFile = temp / "output.jar.manifest"
+            assertNull(readAssemblyManifest(manifestFile))
+
+            fun readManifest(vararg lines: String): AssemblyManifest? {
+                Files.write(manifestFile, lines.joinToString("\n").toByteArray())
+                return readAssemblyManifest(manifestFile)
+            }
+            assertNotNull(readManifest("wemi-assembly-manifest 1", "true 9 100 1000", "a.txt\t8\t1\t2\t3\t4"))
+            assertNull(readManifest("wemi-assembly-manifest 0", "true 9 100 1000", "a.txt\t8\t1\t2\t3\t4"))
+            assertNull(readManifest("wemi-assembly-manifest 1"))
+            assertNull(readManifest("wemi-assembly-manifest 1", "true 9 100"))
+            assertNull(readManifest("wemi-assembly-manifest 1", "true 9 100 1000", "a.txt\t8\t1\t2\t3"))
+            assertNull(readManifest("wemi-assembly-manifest 1", "true 9 100 1000", "a.txt\t8\t1\tx\t3\t4"))
+            assertNull(readManifest("wemi-assembly-manifest 1", "true nine 100 1000"))
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package wemi.assembly
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.LocatedPath
+import wemi.util.createJar
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.*
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/**
+ * Tests [AssemblyOperation.assembly], by reading the assembled archives with [ZipFile].
+ */
+class AssemblyTests {
+
+    private val TEXT = (0 until 1000).joinToString("\n") { "Line number $it of the text" }.toByteArray()
+    private val BINARY = ByteArray(5000).also { Random(1L).nextBytes(it) }
+
+    private fun crc(data: ByteArray): Long {
+        val crc = CRC32()
+        crc.update(data)
+        return crc.value
+    }
+
+    private fun compressedSizeIn(jar: Path, name: String): Long {
+        return ZipFile(jar.toFile()).use { it.getEntry(name).compressedSize }
+    }
+
+    private fun assembly(output: Path, compress: Boolean = true, prependData: ByteArray = NoPrependData,
+                         incremental: Boolean = false, mapFilter: AssemblyMapFilter = DefaultAssemblyMapFilter,
+                         mergeStrategy: MergeStrategyChooser = NoConflictStrategyChooser, compressionThreads: Int = 1,
+                         addSources: AssemblyOperation.() -> Unit) {
+        AssemblyOperation().use { operation ->
+            operation.addSources()
+            operation.assembly(mergeStrategy, DefaultRenameFunction, mapFilter, output,
+                    prependData, compress, compressionLevel = Deflater.BEST_COMPRESSION,
+                    compressionThreads = compressionThreads, incremental = incremental)
+        }
+    }
+
+    private fun assertContent(output: Path, expected: Map<String, ByteArray>) {
+        ZipFile(output.toFile()).use { zip ->
+            assertEquals(expected.keys.toList(), zip.entries().toList().map { it.name })
+            for ((name, data) in expected) {
+                val entry = zip.getEntry(name)
+                assertEquals(crc(data), entry.crc, name)
+                assertEquals(data.size.toLong(), entry.size, name)
+                assertArrayEquals(data, zip.getInputStream(entry).use { it.readBytes() }, name)
+            }
+        }
+    }
+
+    @Test
+    fun rawPassthrough() {
+        withTempDirectory("assemblyRaw") { temp ->
+            val jar = temp / "library.jar"
+            // Compressed with a different level than the assembly, to see which entries were compressed again
+            createJar(jar, linkedMapOf("com/example/text.txt" to TEXT, "com/example/binary.bin" to BINARY), Deflater.BEST_SPEED)
+            val ownFile = Files.createDirectories(temp / "own") / "own.txt"
+            Files.write(ownFile, TEXT)
+
+            val compressed = temp / "compressed.jar"
+            assembly(compressed) {
+                addSource(LocatedPath(jar), false)
+                addSource(LocatedPath(ownFile), true)
+                addSource("custom.bin", BINARY, true)
+            }
+            val expected = linkedMapOf("com/example/text.txt" to TEXT, "com/example/binary.bin" to BINARY,
+                    "own.txt" to TEXT, "custom.bin" to BINARY)
+            assertContent(compressed, expected)
+            ZipFile(compressed.toFile()).use { zip ->
+                for (entry in zip.entries()) {
+                    assertEquals(ZipEntry.DEFLATED, entry.method, entry.name)
+                }
+                // Copied without recompression
+                assertEquals(compressedSizeIn(jar, "com/example/text.txt"), zip.getEntry("com/example/text.txt").compressedSize)
+                assertEquals(compressedSizeIn(jar, "com/example/binary.bin"), zip.getEntry("com/example/binary.bin").compressedSize)
+                // Compressed by the assembly
+                assertNotEquals(compressedSizeIn(jar, "com/example/text.txt"), zip.getEntry("own.txt").compressedSize)
+            }
+
+            // Deflated entries are decompressed when the output is not compressed
+            val stored = temp / "stored.jar"
+            assembly(stored, compress = false) {
+                addSource(LocatedPath(jar), false)
+                addSource(LocatedPath(ownFile), true)
+                addSource("custom.bin", BINARY, true)
+            }
+            assertContent(stored, expected)
+            ZipFile(stored.toFile()).use { zip ->
+                for (entry in zip.entries()) {
+                    assertEquals(ZipEntry.STORED, entry.method, entry.name)
+                }
+            }
+
+            // Stored entries are copied when the output is not compressed
+            val copy = temp / "copy.jar"
+            assembly(copy, compress = false) {
+                addSource(LocatedPath(stored), false)
+            }
+            assertContent(copy, expected)
+        }
+    }
+
+    @Test
+    fun prependedData() {
+        withTempDirectory("assemblyPrepended") { temp ->
+            val jar = temp / "library.jar"
+            createJar(jar, linkedMapOf("text.txt" to TEXT), Deflater.BEST_SPEED)
+
+            val output = temp / "executable.jar"
+            assembly(output, prependData = PREPEND_SCRIPT_EXEC_JAR) {
+                addSource(LocatedPath(jar), false)
+                addSource("custom.bin", BINARY, true)
+            }
+            assertArrayEquals(PREPEND_SCRIPT_EXEC_JAR, Files.readAllBytes(output).copyOf(PREPEND_SCRIPT_EXEC_JAR.size))
+            assertContent(output, linkedMapOf("text.txt" to TEXT, "custom.bin" to BINARY))
+
+            // Assembly with prepended data can be a source of other assembly
+            val copy = temp / "copy.jar"
+            assembly(copy) {
+                addSource(LocatedPath(output), false)
+            }
+            assertContent(copy, linkedMapOf("text.txt" to TEXT, "custom.bin" to BINARY))
+            ZipFile(copy.toFile()).use { zip ->
+                assertEquals(compressedSizeIn(jar, "text.txt"), zip.getEntry("text.txt").compressedSize)
+            }
+        }
+    }
+
+    @Test
+    fun incremental() {
+        withTempDirectory("assemblyIncremental") { temp ->
+            val jar = temp / "library.jar"
+            createJar(jar, linkedMapOf("text.txt" to TEXT), Deflater.BEST_SPEED)
+            val jarCompressedSize = compressedSizeIn(jar, "text.txt")
+
+            val output = temp / "output.jar"
+            assembly(output, incremental = true) {
+                addSource(LocatedPath(jar), false)
+                addSource("custom.bin", BINARY, true)
+            }
+            val manifest = readAssemblyManifest(assemblyManifestFile(output))!!
+            assertTrue(manifest.describes(output, true, Deflater.BEST_COMPRESSION))
+            assertEquals(setOf("text.txt", "custom.bin"), manifest.entries.keys)
+
+            // Unchanged entry is reused, even when it comes from a different source, changed entry is compressed again
+            val changedBinary = BINARY.copyOf(BINARY.size + 10)
+            assembly(output, incremental = true) {
+                addSource("text.txt", TEXT, false)
+                addSource("custom.bin", changedBinary, true)
+            }
+            assertContent(output, linkedMapOf("text.txt" to TEXT, "custom.bin" to changedBinary))
+            assertEquals(jarCompressedSize, compressedSizeIn(output, "text.txt"))
+            val updatedManifest = readAssemblyManifest(assemblyManifestFile(output))!!
+            assertTrue(updatedManifest.describes(output, true, Deflater.BEST_COMPRESSION))
+            assertEquals(changedBinary.size.toLong(), updatedManifest.entries["custom.bin"]!!.size)
+
+            // Without incremental assembly, everything is compressed again
+            assembly(output) {
+                addSource("text.txt", TEXT, false)
+                addSource("custom.bin", BINARY, true)
+            }
+            assertContent(output, linkedMapOf("text.txt" to TEXT, "custom.bin" to BINARY))
+            assertNotEquals(jarCompressedSize, compressedSizeIn(output, "text.txt"))
+            assertFalse(Files.exists(assemblyManifestFile(output)))
+        }
+    }
+
+    @Test
+    fun skipUnchanged() {
+        withTempDirectory("assemblySkip") { temp ->
+            val fastJar = temp / "fast.jar"
+            createJar(fastJar, linkedMapOf("text.txt" to TEXT), Deflater.BEST_SPEED)
+            // Same content, different compressed data
+            val bestJar = temp / "best.jar"
+            createJar(bestJar, linkedMapOf("text.txt" to TEXT), Deflater.BEST_COMPRESSION)
+            assertNotEquals(compressedSizeIn(fastJar, "text.txt"), compressedSizeIn(bestJar, "text.txt"))
+
+            val output = temp / "output.jar"
+            assembly(output) {
+                addSource(LocatedPath(fastJar), false)
+                addSource("custom.bin", BINARY, true)
+            }
+            assertTrue(Files.exists(assemblyInputsFile(output)))
+
+            // Inputs have the same content, so the output is not written again
+            assembly(output) {
+                addSource(LocatedPath(bestJar), false)
+                addSource("custom.bin", BINARY, true)
+            }
+            assertEquals(compressedSizeIn(fastJar, "text.txt"), compressedSizeIn(output, "text.txt"))
+
+            // Custom filters can do anything, so the output is always written
+            assembly(output, mapFilter = { _, source -> source.data }) {
+                addSource(LocatedPath(bestJar), false)
+                addSource("custom.bin", BINARY, true)
+            }
+            assertEquals(compressedSizeIn(bestJar, "text.txt"), compressedSizeIn(output, "text.txt"))
+            assertFalse(Files.exists(assemblyInputsFile(output)))
+
+            // Without stored inputs, the output is written
+            assembly(output) {
+                addSource(LocatedPath(fastJar), false)
+                addSource("custom.bin", BINARY, true)
+            }
+            assertEquals(compressedSizeIn(fastJar, "text.txt"), compressedSizeIn(output, "text.txt"))
+
+            // Changed content
+            val changedBinary = BINARY.copyOf(BINARY.size - 10)
+            assembly(output) {
+                addSource(LocatedPath(bestJar), false)
+                addSource("custom.bin", changedBinary, true)
+            }
+            assertContent(output, linkedMapOf("text.txt" to TEXT, "custom.bin" to changedBinary))
+            assertEquals(compressedSizeIn(bestJar, "text.txt"), compressedSizeIn(output, "text.txt"))
+
+            // Changed output
+            Files.write(output, ByteArray(10))
+            assembly(output) {
+                addSource(LocatedPath(bestJar), false)
+                addSource("custom.bin", changedBinary, true)
+            }
+            assertContent(output, linkedMapOf("text.txt" to TEXT, "custom.bin" to changedBinary))
+        }
+    }
+
+    @Test
+    fun compressionThreads() {
+        withTempDirectory("assemblyThreads") { temp ->
+            val modified = 1500000000_000L
+            val ownRoot = temp / "own"
+            val ownFiles = LinkedHashMap<String, ByteArray>()
+            for (i in 0 until 50) {
+                ownFiles["com/example/file$i.txt"] = (if (i % 2 == 0) TEXT else BINARY).copyOf(1000 + i * 97)
+            }
+            ownFiles["META-INF/services/com.example.Service"] = "com.example.OwnService\n".toByteArray()
+            ownFiles["concatenated.txt"] = "own\n".toByteArray()
+            for ((name, data) in ownFiles) {
+                val file = ownRoot / name
+                Files.createDirectories(file.parent)
+                Files.write(file, data)
+                Files.setLastModifiedTime(file, FileTime.fromMillis(modified))
+            }
+            val jar = temp / "library.jar"
+            createJar(jar, linkedMapOf("META-INF/services/com.example.Service" to "com.example.LibraryService\n".toByteArray(),
+                    "concatenated.txt" to "library\n".toByteArray(), "text.txt" to TEXT))
+            Files.setLastModifiedTime(jar, FileTime.fromMillis(modified + 4000L))
+
+            val mergeStrategy: MergeStrategyChooser = { path ->
+                when (path) {
+                    "META-INF/services/com.example.Service" -> MergeStrategy.Lines
+                    "concatenated.txt" -> MergeStrategy.Concatenate
+                    else -> MergeStrategy.Deduplicate
+                }
+            }
+            fun assemblyWith(threads: Int): ByteArray {
+                val output = temp / "output-$threads.jar"
+                assembly(output, mergeStrategy = mergeStrategy, compressionThreads = threads) {
+                    for (name in ownFiles.keys) {
+                        addSource(LocatedPath(ownRoot, ownRoot / name), true)
+                    }
+                    addSource(LocatedPath(jar), false)
+                }
+                return Files.readAllBytes(output)
+            }
+
+            val singleThreaded = assemblyWith(1)
+            // Merged entries have the time of their newest source, not the time of the assembly
+            Thread.sleep(2100L)
+            assertArrayEquals(singleThreaded, assemblyWith(4))
+            assertArrayEquals(singleThreaded, assemblyWith(64))
+
+            ZipFile((temp / "output-4.jar").toFile()).use { zip ->
+                assertEquals(modified + 4000L, zip.getEntry("META-INF/services/com.example.Service").time)
+                assertEquals(modified + 4000L, zip.getEntry("concatenated.txt").time)
+                assertEquals("own\nlibrary\n", zip.getInputStream(zip.getEntry("concatenated.txt")).use { String(it.readBytes()) })
+                assertEquals(modified, zip.getEntry("com/example/file0.txt").time)
+            }
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package wemi.assembly
 
 import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Disabled
 import org.junit.jupiter.api.Test
 import org.opentest4j.AssertionFailedError
+import kotlin.system.measureNanoTime
 
 /**
  *
@@ -162,6 +164,57 @@ class MergeStrategyTests {
         }))
     }
 
+    @Test
+    fun parallelMergesKeepOrder() {
+        val operation = AssemblyOperation()
+        for (i in 0 until 100) {
+            operation.addSource("foo$i", "$i\nshared\n".toByteArray(), false)
+            operation.addSource("foo$i", "shared\n$i".toByteArray(), false)
+        }
+        val expected = LinkedHashMap<String, AssemblySource>()
+        for (i in 0 until 100) {
+            expected["foo$i"] = source("$i\nshared\n".toByteArray())
+        }
+
+        val resolved = operation.resolve({MergeStrategy.UniqueLines}, DefaultRenameFunction, threads = 4)
+        assertMapEquals(expected, resolved)
+        assertEquals(expected.keys.toList(), resolved!!.keys.toList())
+    }
+
+    @Disabled("Development only")
+    @Test
+    fun mergeStrategiesBenchmark() {
+        println("-- mergeStrategiesBenchmark --")
+
+        val paths = 5000
+        val strategies = arrayOf(MergeStrategy.Lines, MergeStrategy.UniqueLines, MergeStrategy.Deduplicate, MergeStrategy.Concatenate)
+        val lines = (0 until 200).joinToString("\n") { "com.example.service.Implementation$it" }.toByteArray()
+
+        fun bench(strategy:MergeStrategy, threads:Int):Long {
+            val operation = AssemblyOperation()
+            for (i in 0 until paths) {
+                for (value in VALUES) {
+                    operation.addSource("foo$i", if (strategy == MergeStrategy.Deduplicate) lines else lines + value, false)
+                }
+            }
+            return measureNanoTime {
+                assertNotNull(operation.resolve({strategy}, DefaultRenameFunction, threads))
+            }
+        }
+
+        for (strategy in strategies) {
+            for (threads in intArrayOf(1, Runtime.getRuntime().availableProcessors()).distinct()) {
+                // Warmup
+                for (i in 1..3) {
+                    bench(strategy, threads)
+                }
+
+                val rounds = LongArray(10) { bench(strategy, threads) }
+                println("$strategy with $threads threads: ${rounds.average() / 1000_000.0} ms (${rounds.min()!! / 1000_000.0} ms min) for $paths paths")
+            }
+        }
+    }
+
     private fun source(bytes:ByteArray):AssemblySource {
         return AssemblySource("test-source", null, -1, false, bytes)
     }
@@ -0,0 +1,150 @@
+package wemi.assembly
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.classFileBytes
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Files
+import java.util.zip.ZipFile
+
+/**
+ * Tests [shrinkAssemblySources].
+ */
+class ShrinkingTests {
+
+    private fun sources(vararg entries: Pair<String, ByteArray>): MutableMap<String, AssemblySource> {
+        val sources = LinkedHashMap<String, AssemblySource>()
+        for ((path, data) in entries) {
+            sources[path] = AssemblySource(path, null, -1L, true, data)
+        }
+        return sources
+    }
+
+    private fun classSource(path: String, vararg constants: String): Pair<String, ByteArray> {
+        return path to classFileBytes(path.removeSuffix(".class").substringAfter("META-INF/versions/9/"), *constants)
+    }
+
+    @Test
+    fun reachability() {
+        withTempDirectory("shrinking") { temp ->
+            val mappingFile = temp / "output.jar.shrink-mapping"
+            val sources = sources(
+                    "META-INF/MANIFEST.MF" to "Manifest-Version: 1.0\nMain-Class: com.example.Main\n\n".toByteArray(),
+                    "META-INF/services/com.example.Service" to "# Comment\ncom.service.Impl # Inline comment\n\n".toByteArray(),
+                    classSource("com/example/Main.class", "java/lang/Object", "com/example/Used", "(Lcom/example/Param;)V"),
+                    classSource("com/example/Used.class", "com.example.Reflected"),
+                    classSource("com/example/Param.class", "Ljava/util/List<Lcom/example/Generic;>;"),
+                    classSource("com/example/Generic.class"),
+                    classSource("com/example/Reflected.class"),
+                    classSource("com/example/Unused.class", "com/example/Main"),
+                    classSource("com/example/package-info.class"),
+                    classSource("com/service/Impl.class"),
+                    classSource("com/other/Unused.class", "com/other/AlsoUnused"),
+                    classSource("com/other/AlsoUnused.class"),
+                    classSource("com/other/package-info.class"),
+                    "com/other/data.txt" to "data".toByteArray(),
+                    classSource("module-info.class", "com/other/Unused"),
+                    // Multi-release classes are reachable through their class name
+                    classSource("META-INF/versions/9/com/example/Used.class", "com/example/Java9Only"),
+                    classSource("META-INF/versions/9/com/example/Java9Only.class"),
+                    classSource("META-INF/versions/9/com/other/Unused.class"))
+            val originalSources = LinkedHashMap(sources)
+
+            assertTrue(shrinkAssemblySources(sources, emptyList(), mappingFile))
+            val removed = listOf(
+                    "META-INF/versions/9/com/other/Unused.class",
+                    "com/example/Unused.class",
+                    "com/other/AlsoUnused.class",
+                    "com/other/Unused.class",
+                    "com/other/package-info.class")
+            assertEquals(originalSources.keys - removed, sources.keys)
+            for ((path, source) in sources) {
+                assertSame(originalSources[path], source)
+            }
+
+            val mappingLines = Files.readAllLines(mappingFile)
+            assertEquals("# Entries removed by shrinking, with their uncompressed size and source", mappingLines[0])
+            assertEquals(removed.map { "$it\t${originalSources[it]!!.data.size}\t$it" }, mappingLines.drop(1))
+        }
+    }
+
+    @Test
+    fun rootPatterns() {
+        withTempDirectory("shrinking") { temp ->
+            val mappingFile = temp / "output.jar.shrink-mapping"
+            fun shrink(vararg rootPatterns: String): Set<String> {
+                val sources = sources(
+                        classSource("Root.class"),
+                        classSource("com/lib/A.class"),
+                        classSource("com/lib/sub/B.class"),
+                        classSource("com/lib2/C.class"),
+                        classSource("com/lib2/sub/D.class"),
+                        classSource("com/lib2sub/E.class"),
+                        classSource("com/x/Exact.class", "com/x/Referenced"),
+                        classSource("com/x/Exact\$Inner.class"),
+                        classSource("com/x/Referenced.class"))
+                assertTrue(shrinkAssemblySources(sources, rootPatterns.toList(), mappingFile))
+                return sources.keys
+            }
+
+            assertEquals(setOf("Root.class"), shrink("Root"))
+            assertEquals(setOf("com/lib/A.class"), shrink("com.lib.*"))
+            assertEquals(setOf("com/lib/A.class", "com/lib/sub/B.class"), shrink("com.lib.**"))
+            assertEquals(setOf("com/lib2/C.class", "com/lib2/sub/D.class"), shrink("com/lib2/**"))
+            assertEquals(setOf("com/x/Exact.class", "com/x/Referenced.class"), shrink(" com.x.Exact "))
+            assertEquals(setOf("com/x/Exact\$Inner.class"), shrink("com.x.Exact\$Inner"))
+            assertEquals(setOf("Root.class", "com/lib/A.class"), shrink("Root", "com.lib.*", "com.unknown.Class"))
+        }
+    }
+
+    @Test
+    fun notShrunk() {
+        withTempDirectory("shrinking") { temp ->
+            val mappingFile = temp / "output.jar.shrink-mapping"
+
+            // No roots
+            val sources = sources(
+                    "META-INF/MANIFEST.MF" to "Manifest-Version: 1.0\n\n".toByteArray(),
+                    classSource("com/example/Main.class"),
+                    classSource("com/example/Other.class"))
+            val originalSources = LinkedHashMap(sources)
+            assertFalse(shrinkAssemblySources(sources, emptyList(), mappingFile))
+            assertFalse(shrinkAssemblySources(sources, listOf("com.unknown.*"), mappingFile))
+            assertEquals(originalSources, sources)
+            assertFalse(Files.exists(mappingFile))
+
+            // Malformed reachable class
+            sources["com/example/Broken.class"] = AssemblySource("com/example/Broken.class", null, -1L, true, ByteArray(10))
+            sources["com/example/Main.class"] = AssemblySource("com/example/Main.class", null, -1L, true,
+                    classFileBytes("com/example/Main", "com/example/Broken"))
+            val brokenSources = LinkedHashMap(sources)
+            assertFalse(shrinkAssemblySources(sources, listOf("com.example.Main"), mappingFile))
+            assertEquals(brokenSources, sources)
+            assertFalse(Files.exists(mappingFile))
+        }
+    }
+
+    @Test
+    fun assemblyWithShrinking() {
+        withTempDirectory("shrinking") { temp ->
+            val output = temp / "output.jar"
+            AssemblyOperation().use { operation ->
+                operation.addSource("com/example/Main.class", classFileBytes("com/example/Main", "com/example/Used"), true)
+                operation.addSource("com/example/Used.class", classFileBytes("com/example/Used"), true)
+                operation.addSource("com/example/Unused.class", classFileBytes("com/example/Unused"), true)
+                operation.addSource("com/example/data.txt", "data".toByteArray(), true)
+                operation.assembly(NoConflictStrategyChooser, DefaultRenameFunction, DefaultAssemblyMapFilter, output,
+                        NoPrependData, true, shrinkRoots = listOf("com.example.Main"))
+            }
+            ZipFile(output.toFile()).use { zip ->
+                assertEquals(setOf("com/example/Main.class", "com/example/Used.class", "com/example/data.txt"),
+                        zip.entries().toList().map { it.name }.toSet())
+            }
+            assertEquals(temp / "output.jar.shrink-mapping", assemblyShrinkMappingFile(output))
+            val mappingLines = Files.readAllLines(assemblyShrinkMappingFile(output))
+            assertEquals(2, mappingLines.size)
+            assertTrue(mappingLines[1].startsWith("com/example/Unused.class\t"))
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package wemi.assembly
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.LocatedPath
+import wemi.util.createJar
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+import java.util.zip.ZipFile
+
+/**
+ * Tests [cachedZipIndex].
+ */
+class ZipIndexCacheTests {
+
+    /** [cachedZipIndex] which counts how many times was the [file] actually read into [reads]. */
+    private fun index(file: Path, cacheDirectory: Path?, reads: IntArray): List<ZipIndexEntry> {
+        val opened = ArrayList<FileChannel>()
+        try {
+            return cachedZipIndex(file, cacheDirectory) {
+                reads[0]++
+                FileChannel.open(file, StandardOpenOption.READ).also { opened.add(it) }
+            }
+        } finally {
+            for (channel in opened) {
+                channel.close()
+            }
+        }
+    }
+
+    private fun assertIndexEquals(expected: List<ZipIndexEntry>, actual: List<ZipIndexEntry>) {
+        assertEquals(expected.size, actual.size)
+        for ((expectedEntry, actualEntry) in expected.zip(actual)) {
+            assertEquals(expectedEntry.name, actualEntry.name)
+            assertEquals(expectedEntry.method, actualEntry.method)
+            assertEquals(expectedEntry.flags, actualEntry.flags)
+            assertEquals(expectedEntry.crc, actualEntry.crc)
+            assertEquals(expectedEntry.compressedSize, actualEntry.compressedSize)
+            assertEquals(expectedEntry.size, actualEntry.size)
+            assertEquals(expectedEntry.localHeaderOffset, actualEntry.localHeaderOffset)
+        }
+    }
+
+    @Test
+    fun cache() {
+        withTempDirectory("zipIndexCache") { temp ->
+            val cache = temp / "cache"
+            val jar = temp / "lib" / "library.jar"
+            createJar(jar, "a.txt", "b/c.txt")
+            val reads = IntArray(1)
+
+            // Without cache, always read
+            val index = index(jar, null, reads)
+            assertEquals(listOf("a.txt", "b/c.txt"), index.map { it.name })
+            index(jar, null, reads)
+            assertEquals(2, reads[0])
+            reads[0] = 0
+
+            // Read once, then loaded from the cache
+            assertIndexEquals(index, index(jar, cache, reads))
+            assertEquals(1, reads[0])
+            assertIndexEquals(index, index(jar, cache, reads))
+            assertIndexEquals(index, index(jar, cache, reads))
+            assertEquals(1, reads[0])
+
+            // Different file with the same name has its own index
+            val otherJar = temp / "other" / "library.jar"
+            createJar(otherJar, "d.txt")
+            assertEquals(listOf("d.txt"), index(otherJar, cache, reads).map { it.name })
+            assertEquals(2, reads[0])
+            assertIndexEquals(index, index(jar, cache, reads))
+            assertEquals(2, reads[0])
+        }
+    }
+
+    @Test
+    fun invalidation() {
+        withTempDirectory("zipIndexCache") { temp ->
+            val cache = temp / "cache"
+            val jar = temp / "library.jar"
+            createJar(jar, "a.txt")
+            val reads = IntArray(1)
+            index(jar, cache, reads)
+            assertEquals(1, reads[0])
+
+            // Modified
+            Files.setLastModifiedTime(jar, FileTime.fromMillis(2000_000L))
+            assertEquals(listOf("a.txt"), index(jar, cache, reads).map { it.name })
+            assertEquals(2, reads[0])
+
+            // Changed with the same modification time, but different size
+            createJar(jar, "a.txt", "b.txt")
+            Files.setLastModifiedTime(jar, FileTime.fromMillis(2000_000L))
+            assertEquals(listOf("a.txt", "b.txt"), index(jar, cache, reads).map { it.name })
+            assertEquals(3, reads[0])
+            index(jar, cache, reads)
+            assertEquals(3, reads[0])
+
+            // Corrupted cache is read again
+            Files.list(cache).use { files ->
+                for (file in files) {
+                    Files.write(file, byteArrayOf(1, 2, 3))
+                }
+            }
+            assertEquals(listOf("a.txt", "b.txt"), index(jar, cache, reads).map { it.name })
+            assertEquals(4, reads[0])
+            index(jar, cache, reads)
+            assertEquals(4, reads[0])
+        }
+    }
+
+    @Test
+    fun assemblyWithCache() {
+        withTempDirectory("zipIndexCache") { temp ->
+            val cache = temp / "cache"
+            val jar = temp / "library.jar"
+            createJar(jar, "a.txt", "b/c.txt")
+
+            for (i in 0 until 2) {
+                val output = temp / "output$i.jar"
+                AssemblyOperation(cache).use { operation ->
+                    operation.addSource(LocatedPath(jar), false)
+                    operation.assembly(NoConflictStrategyChooser, DefaultRenameFunction, DefaultAssemblyMapFilter, output,
+                            NoPrependData, true)
+                }
+                ZipFile(output.toFile()).use { zip ->
+                    assertEquals(listOf("a.txt", "b/c.txt"), zip.entries().toList().map { it.name })
+                    assertArrayEquals("b/c.txt".toByteArray(), zip.getInputStream(zip.getEntry("b/c.txt")).use { it.readBytes() })
+                }
+                assertEquals(1L, Files.list(cache).use { it.count() })
+            }
+        }
+    }
+}
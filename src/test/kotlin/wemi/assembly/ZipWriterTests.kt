@@ -0,0 +1,349 @@
+package wemi.assembly
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.*
+import java.util.zip.*
+
+/**
+ * Tests [ZipWriter], [EntryBuffer] and [readZipIndex], by reading the written archives with [ZipFile].
+ */
+class ZipWriterTests {
+
+    /** Even seconds, because MS-DOS time has 2 second precision */
+    private val TIME = GregorianCalendar(2018, Calendar.JULY, 14, 12, 30, 42).timeInMillis
+
+    private fun randomData(size: Int, seed: Long): ByteArray {
+        val data = ByteArray(size)
+        Random(seed).nextBytes(data)
+        return data
+    }
+
+    private fun textData(lines: Int): ByteArray {
+        return (0 until lines).joinToString("\n") { "Line number $it of the text" }.toByteArray()
+    }
+
+    private fun deflate(data: ByteArray): ByteArray {
+        val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+        val out = ByteArrayOutputStream()
+        DeflaterOutputStream(out, deflater).use { it.write(data) }
+        deflater.end()
+        return out.toByteArray()
+    }
+
+    private fun ZipWriter.writeStored(name: String, data: ByteArray) {
+        writeEntry(name, TIME, ZIP_STORED, crc32(data), data.size.toLong(), data)
+    }
+
+    private fun ZipWriter.writeDeflated(name: String, data: ByteArray) {
+        writeEntry(name, TIME, ZIP_DEFLATED, crc32(data), data.size.toLong(), deflate(data))
+    }
+
+    /** Write archive to [file] with [prependData] before it. */
+    private fun writeZip(file: Path, prependData: ByteArray? = null, write: ZipWriter.() -> Unit) {
+        FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use { channel ->
+            val out = Channels.newOutputStream(channel)
+            if (prependData != null) {
+                out.write(prependData)
+            }
+            val writer = ZipWriter(out, channel)
+            writer.write()
+            writer.finish()
+        }
+    }
+
+    private fun assertEntry(zip: ZipFile, name: String, method: Int, data: ByteArray) {
+        val entry = zip.getEntry(name)
+        assertNotNull(entry, name)
+        assertEquals(method, entry.method)
+        assertEquals(data.size.toLong(), entry.size)
+        assertEquals(crc32(data), entry.crc)
+        assertEquals(TIME, entry.time)
+        assertArrayEquals(data, zip.getInputStream(entry).use { it.readBytes() }, name)
+    }
+
+    private fun readIndex(file: Path): List<ZipIndexEntry> {
+        return FileChannel.open(file, StandardOpenOption.READ).use { readZipIndex(it) }
+    }
+
+    @Test
+    fun roundTrip() {
+        withTempDirectory("zipRoundTrip") { temp ->
+            val stored = randomData(1000, 1L)
+            val deflated = textData(1000)
+            val buffered = textData(5000)
+            val empty = ByteArray(0)
+            val source = temp / "source.bin"
+            Files.write(source, stored)
+
+            val zipFile = temp / "test.jar"
+            writeZip(zipFile) {
+                writeEntry("META-INF/", TIME, ZIP_STORED, 0L, 0L, empty)
+                writeStored("stored.bin", stored)
+                writeDeflated("dir/deflated.txt", deflated)
+                writeStored("empty.txt", empty)
+                // Non-ASCII names are UTF-8
+                writeDeflated("dir/žluťoučký kůň.txt", deflated)
+                EntryBuffer().use { buffer ->
+                    buffer.load(buffered.inputStream(), Deflater(Deflater.BEST_COMPRESSION, true))
+                    assertEquals(crc32(buffered), buffer.crcValue)
+                    assertEquals(buffered.size.toLong(), buffer.size)
+                    writeEntry("buffered.txt", TIME, ZIP_DEFLATED, buffer.crcValue, buffer.size, buffer.compressedSize) { buffer.writeTo(it) }
+                }
+                FileChannel.open(source, StandardOpenOption.READ).use { channel ->
+                    writeEntry("transferred.bin", TIME, ZIP_STORED, crc32(stored), stored.size.toLong(), stored.size.toLong(), channel, 0L)
+                }
+                assertEquals(7, entryCount)
+            }
+
+            ZipFile(zipFile.toFile()).use { zip ->
+                assertEquals(listOf("META-INF/", "stored.bin", "dir/deflated.txt", "empty.txt", "dir/žluťoučký kůň.txt",
+                        "buffered.txt", "transferred.bin"), zip.entries().toList().map { it.name })
+                assertTrue(zip.getEntry("META-INF/").isDirectory)
+                assertEntry(zip, "stored.bin", ZipEntry.STORED, stored)
+                assertEntry(zip, "dir/deflated.txt", ZipEntry.DEFLATED, deflated)
+                assertEntry(zip, "empty.txt", ZipEntry.STORED, empty)
+                assertEntry(zip, "dir/žluťoučký kůň.txt", ZipEntry.DEFLATED, deflated)
+                assertEntry(zip, "buffered.txt", ZipEntry.DEFLATED, buffered)
+                assertEntry(zip, "transferred.bin", ZipEntry.STORED, stored)
+            }
+
+            // Written as a jar, readable by streaming readers, which use only the local headers
+            ZipInputStream(Files.newInputStream(zipFile)).use { zip ->
+                var count = 0
+                while (true) {
+                    val entry = zip.nextEntry ?: break
+                    if (entry.name == "dir/deflated.txt") {
+                        assertArrayEquals(deflated, zip.readBytes())
+                    }
+                    count++
+                }
+                assertEquals(7, count)
+            }
+
+            val index = readIndex(zipFile)
+            assertEquals(7, index.size)
+            FileChannel.open(zipFile, StandardOpenOption.READ).use { channel ->
+                for (entry in index) {
+                    assertTrue(entry.canCopyRaw)
+                    val expected = ZipFile(zipFile.toFile()).use { zip -> zip.getInputStream(zip.getEntry(entry.name)).use { it.readBytes() } }
+                    assertEquals(crc32(expected), entry.crc)
+                    assertEquals(expected.size.toLong(), entry.size)
+                    assertArrayEquals(expected, entry.openStream(channel).use { it.readBytes() }, entry.name)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun entryBufferSpill() {
+        withTempDirectory("entryBuffer") { temp ->
+            val data = randomData(100_000, 2L)
+            val zipFile = temp / "test.zip"
+            writeZip(zipFile) {
+                // Only 1000 bytes are kept in memory, rest goes to a temporary file
+                EntryBuffer(1000).use { buffer ->
+                    buffer.load(data.inputStream(), null)
+                    assertEquals(data.size.toLong(), buffer.compressedSize)
+                    writeEntry("stored.bin", TIME, ZIP_STORED, buffer.crcValue, buffer.size, buffer.compressedSize) { buffer.writeTo(it) }
+
+                    // Buffer is reused
+                    buffer.load(data.inputStream(), Deflater(Deflater.DEFAULT_COMPRESSION, true))
+                    writeEntry("deflated.bin", TIME, ZIP_DEFLATED, buffer.crcValue, buffer.size, buffer.compressedSize) { buffer.writeTo(it) }
+                }
+            }
+
+            ZipFile(zipFile.toFile()).use { zip ->
+                assertEntry(zip, "stored.bin", ZipEntry.STORED, data)
+                assertEntry(zip, "deflated.bin", ZipEntry.DEFLATED, data)
+            }
+        }
+    }
+
+    @Test
+    fun prependedData() {
+        withTempDirectory("zipPrepended") { temp ->
+            val script = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".toByteArray()
+            val data = textData(100)
+            val zipFile = temp / "executable.jar"
+            writeZip(zipFile, script) {
+                // Offsets are relative to the start of the archive
+                assertEquals(0L, writeEntry("first.txt", TIME, ZIP_DEFLATED, crc32(data), data.size.toLong(), deflate(data)))
+                writeStored("second.txt", data)
+            }
+
+            assertArrayEquals(script, Files.readAllBytes(zipFile).copyOf(script.size))
+            ZipFile(zipFile.toFile()).use { zip ->
+                assertEntry(zip, "first.txt", ZipEntry.DEFLATED, data)
+                assertEntry(zip, "second.txt", ZipEntry.STORED, data)
+            }
+
+            // Index has absolute offsets
+            val index = readIndex(zipFile)
+            assertEquals(script.size.toLong(), index[0].localHeaderOffset)
+            FileChannel.open(zipFile, StandardOpenOption.READ).use { channel ->
+                for (entry in index) {
+                    assertArrayEquals(data, entry.openStream(channel).use { it.readBytes() })
+                }
+            }
+        }
+    }
+
+    @Test
+    fun rawCopy() {
+        withTempDirectory("zipRawCopy") { temp ->
+            val stored = randomData(5000, 3L)
+            val deflated = textData(1000)
+
+            // Written by the JDK
+            val sourceFile = temp / "source.jar"
+            ZipOutputStream(Files.newOutputStream(sourceFile)).use { zip ->
+                zip.putNextEntry(ZipEntry("stored.bin").apply {
+                    method = ZipEntry.STORED
+                    size = stored.size.toLong()
+                    compressedSize = stored.size.toLong()
+                    crc = crc32(stored)
+                    time = TIME
+                })
+                zip.write(stored)
+                zip.closeEntry()
+                zip.putNextEntry(ZipEntry("deflated.txt").apply { time = TIME })
+                zip.write(deflated)
+                zip.closeEntry()
+            }
+
+            val copyFile = temp / "copy.jar"
+            FileChannel.open(sourceFile, StandardOpenOption.READ).use { source ->
+                val index = readZipIndex(source)
+                assertEquals(listOf("stored.bin", "deflated.txt"), index.map { it.name })
+                val deflatedEntry = index[1]
+                assertEquals(ZIP_DEFLATED, deflatedEntry.method)
+                assertEquals(crc32(deflated), deflatedEntry.crc)
+                assertEquals(deflated.size.toLong(), deflatedEntry.size)
+                assertTrue(deflatedEntry.compressedSize < deflatedEntry.size)
+
+                // Both with and without the target channel
+                for (useChannel in listOf(true, false)) {
+                    FileChannel.open(copyFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use { channel ->
+                        val out = Channels.newOutputStream(channel)
+                        val writer = if (useChannel) ZipWriter(out, channel) else ZipWriter(BufferedOutputStream(out))
+                        for (entry in index) {
+                            writer.writeEntry(entry.name, TIME, entry.method, entry.crc, entry.size, entry.compressedSize,
+                                    source, entry.dataOffset(source))
+                        }
+                        writer.finish()
+                    }
+
+                    ZipFile(copyFile.toFile()).use { zip ->
+                        assertEntry(zip, "stored.bin", ZipEntry.STORED, stored)
+                        assertEntry(zip, "deflated.txt", ZipEntry.DEFLATED, deflated)
+                        // Compressed data are not compressed again
+                        assertEquals(deflatedEntry.compressedSize, zip.getEntry("deflated.txt").compressedSize)
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun zip64EntryCount() {
+        withTempDirectory("zip64Count") { temp ->
+            val count = ZIP64_MAGIC_COUNT + 10
+            val zipFile = temp / "many.zip"
+            val data = "data".toByteArray()
+            writeZip(zipFile) {
+                for (i in 0 until count) {
+                    writeStored("entry$i", data)
+                }
+            }
+
+            ZipFile(zipFile.toFile()).use { zip ->
+                assertEquals(count, zip.size())
+                assertEntry(zip, "entry0", ZipEntry.STORED, data)
+                assertEntry(zip, "entry${count - 1}", ZipEntry.STORED, data)
+            }
+            val index = readIndex(zipFile)
+            assertEquals(count, index.size)
+            assertEquals("entry${count - 1}", index.last().name)
+
+            // Just under the limit, no zip64 records are needed
+            val smallFile = temp / "few.zip"
+            writeZip(smallFile) {
+                for (i in 0 until ZIP64_MAGIC_COUNT - 1) {
+                    writeStored("entry$i", data)
+                }
+            }
+            val smallBytes = Files.readAllBytes(smallFile)
+            val locatorPosition = smallBytes.size - END_HEADER_SIZE - ZIP64_LOCATOR_SIZE
+            assertNotEquals(ZIP64_LOCATOR_SIGNATURE, littleEndianInt(smallBytes, locatorPosition))
+            assertEquals(ZIP64_MAGIC_COUNT - 1, readIndex(smallFile).size)
+            assertEquals(ZIP64_LOCATOR_SIGNATURE, littleEndianInt(Files.readAllBytes(zipFile),
+                    Files.size(zipFile).toInt() - END_HEADER_SIZE - ZIP64_LOCATOR_SIZE))
+        }
+    }
+
+    private fun littleEndianInt(bytes: ByteArray, position: Int): Int {
+        return (bytes[position].toInt() and 0xFF) or
+                ((bytes[position + 1].toInt() and 0xFF) shl 8) or
+                ((bytes[position + 2].toInt() and 0xFF) shl 16) or
+                ((bytes[position + 3].toInt() and 0xFF) shl 24)
+    }
+
+    @Test
+    fun zip64Offsets() {
+        withTempDirectory("zip64Offsets") { temp ->
+            val hugeSize = ZIP64_MAGIC + 1000L
+            val data = textData(100)
+
+            for (prepended in listOf(ByteArray(0), "prepended".toByteArray())) {
+                val zipFile = temp / "huge${prepended.size}.zip"
+                FileChannel.open(zipFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE).use { channel ->
+                    val out = Channels.newOutputStream(channel)
+                    out.write(prepended)
+                    val writer = ZipWriter(out, channel)
+                    writer.writeStored("first.txt", data)
+                    // Data of the huge entry are a hole in a sparse file, only its headers and size matter
+                    writer.writeEntry("huge.bin", TIME, ZIP_STORED, 0L, hugeSize, hugeSize) { _ ->
+                        channel.position(channel.position() + hugeSize)
+                    }
+                    // Local header offset, central directory offset and size of the huge entry overflow
+                    assertTrue(writer.writeEntry("last.txt", TIME, ZIP_DEFLATED, crc32(data), data.size.toLong(), deflate(data)) > ZIP64_MAGIC)
+                    writer.finish()
+                }
+                assertTrue(Files.size(zipFile) > hugeSize)
+
+                // ZipFile takes the zip64 end record offset as absolute, so it can't read zip64 archives with prepended data
+                if (prepended.isEmpty()) {
+                    ZipFile(zipFile.toFile()).use { zip ->
+                        assertEquals(3, zip.size())
+                        assertEntry(zip, "first.txt", ZipEntry.STORED, data)
+                        assertEquals(hugeSize, zip.getEntry("huge.bin").size)
+                        assertEquals(hugeSize, zip.getEntry("huge.bin").compressedSize)
+                        assertEntry(zip, "last.txt", ZipEntry.DEFLATED, data)
+                    }
+                }
+
+                val index = readIndex(zipFile)
+                assertEquals(listOf("first.txt", "huge.bin", "last.txt"), index.map { it.name })
+                assertEquals(prepended.size.toLong(), index[0].localHeaderOffset)
+                assertEquals(hugeSize, index[1].size)
+                assertEquals(hugeSize, index[1].compressedSize)
+                assertTrue(index[2].localHeaderOffset > hugeSize)
+                FileChannel.open(zipFile, StandardOpenOption.READ).use { channel ->
+                    assertArrayEquals(data, index[0].openStream(channel).use { it.readBytes() })
+                    assertArrayEquals(data, index[2].openStream(channel).use { it.readBytes() })
+                }
+                Files.delete(zipFile)
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package wemi.dependency
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Path
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests [resolveDependencies] with concurrent lookup of release dependencies.
+ */
+class ConcurrentLookupTests {
+
+    private fun repository(name: String, remote: TestRemoteRepository, temp: Path): Repository {
+        return Repository(name, remote.url, Repository("$name-cache", temp / "cache" / name))
+    }
+
+    private fun resolve(vararg repositories: Repository): ResolvedDependency {
+        val resolved = LinkedHashMap<DependencyId, ResolvedDependency>()
+        val id = DependencyId("com.example", "lib", "1.0")
+        resolveDependencies(resolved, listOf(Dependency(id)), repositories.toList(), concurrentLookup = true)
+        return resolved[id]!!
+    }
+
+    @Test
+    fun slowRepositoryDoesNotDelay() {
+        withTempDirectory("concurrent-lookup") { temp ->
+            TestRemoteRepository(temp / "first").use { first ->
+                TestRemoteRepository(temp / "second").use { second ->
+                    second.publishRelease("lib", "1.0", null)
+                    // First repository in order answers only after the resolution
+                    val resolvedLatch = CountDownLatch(1)
+                    first.onRequest = { resolvedLatch.await(10, TimeUnit.SECONDS) }
+
+                    val secondRepository = repository("second", second, temp)
+                    val start = System.nanoTime()
+                    val resolved = resolve(repository("first", first, temp), secondRepository)
+                    val duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    resolvedLatch.countDown()
+
+                    assertFalse(resolved.hasError)
+                    assertEquals(secondRepository, resolved.resolvedFrom)
+                    assertTrue(duration < 5000L, "Resolution took $duration ms")
+                    // Probed POM is kept, not downloaded again
+                    assertEquals(listOf("com/example/lib/1.0/lib-1.0.pom"), second.requests)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun firstCompletedProbeWins() {
+        withTempDirectory("concurrent-lookup") { temp ->
+            TestRemoteRepository(temp / "first").use { first ->
+                TestRemoteRepository(temp / "second").use { second ->
+                    first.publishRelease("lib", "1.0", null)
+                    second.publishRelease("lib", "1.0", null)
+                    // First repository in order has it too, but it answers after the second one
+                    val secondAnswered = CountDownLatch(1)
+                    first.onRequest = { secondAnswered.await(10, TimeUnit.SECONDS) }
+                    second.onRequest = { path -> if (path.endsWith(".sha1")) secondAnswered.countDown() }
+
+                    val secondRepository = repository("second", second, temp)
+                    val resolved = resolve(repository("first", first, temp), secondRepository)
+                    assertFalse(resolved.hasError)
+                    assertEquals(secondRepository, resolved.resolvedFrom)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun localRepositoryFirst() {
+        withTempDirectory("concurrent-lookup") { temp ->
+            TestRemoteRepository(temp / "local").use { localContent ->
+                TestRemoteRepository(temp / "first").use { first ->
+                    TestRemoteRepository(temp / "second").use { second ->
+                        localContent.publishRelease("lib", "1.0", null)
+                        first.publishRelease("lib", "1.0", null)
+                        second.publishRelease("lib", "1.0", null)
+
+                        val local = Repository("local", temp / "local")
+                        val resolved = resolve(repository("first", first, temp), repository("second", second, temp), local)
+                        assertFalse(resolved.hasError)
+                        assertEquals(local, resolved.resolvedFrom)
+                        // Remote repositories are not asked at all
+                        assertEquals(emptyList<String>(), first.requests)
+                        assertEquals(emptyList<String>(), second.requests)
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun missingEverywhere() {
+        withTempDirectory("concurrent-lookup") { temp ->
+            TestRemoteRepository(temp / "first").use { first ->
+                TestRemoteRepository(temp / "second").use { second ->
+                    val resolved = resolve(repository("first", first, temp), repository("second", second, temp))
+                    assertTrue(resolved.hasError)
+                    assertTrue("first" in resolved.log.toString())
+                    assertTrue("second" in resolved.log.toString())
+                    // Each repository is asked once
+                    assertEquals(listOf("com/example/lib/1.0/lib-1.0.pom"), first.requests)
+                    assertEquals(listOf("com/example/lib/1.0/lib-1.0.pom"), second.requests)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package wemi.dependency
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests that [resolveDependencies] resolves only the dependency graph and artifacts are retrieved when needed.
+ */
+class LazyArtifactTests {
+
+    private val JAR = byteArrayOf(0x50, 0x4B, 5, 6)
+
+    private fun repository(name: String, remote: TestRemoteRepository, temp: Path): Repository {
+        return Repository(name, remote.url, Repository("$name-cache", temp / "cache" / name))
+    }
+
+    private fun resolve(id: DependencyId, vararg repositories: Repository): Map<DependencyId, ResolvedDependency> {
+        val resolved = LinkedHashMap<DependencyId, ResolvedDependency>()
+        assertTrue(resolveDependencies(resolved, listOf(Dependency(id)), repositories.toList()))
+        return resolved
+    }
+
+    @Test
+    fun retrievedWhenNeeded() {
+        withTempDirectory("lazy-artifacts") { temp ->
+            TestRemoteRepository(temp / "remote").use { remote ->
+                remote.publishRelease("a", "1.0", JAR, "b")
+                remote.publishRelease("b", "1.0", JAR)
+                val resolved = resolve(DependencyId("com.example", "a", "1.0"), repository("remote", remote, temp))
+
+                // Only the graph
+                assertEquals(listOf("a", "b"), resolved.keys.map { it.name })
+                assertEquals(listOf("com/example/a/1.0/a-1.0.pom", "com/example/b/1.0/b-1.0.pom"), remote.requests.sorted())
+                for (dependency in resolved.values) {
+                    assertTrue(dependency.artifactPending)
+                    assertFalse(dependency.toString().contains("artifact="))
+                }
+
+                // All at once
+                val artifacts = resolved.artifacts()
+                assertEquals(2, artifacts.size)
+                for (artifact in artifacts) {
+                    assertArrayEquals(JAR, Files.readAllBytes(artifact))
+                }
+                assertEquals(listOf("com/example/a/1.0/a-1.0.jar", "com/example/a/1.0/a-1.0.pom",
+                        "com/example/b/1.0/b-1.0.jar", "com/example/b/1.0/b-1.0.pom"), remote.requests.sorted())
+                for (dependency in resolved.values) {
+                    assertFalse(dependency.artifactPending)
+                    assertFalse(dependency.artifactMissing)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun jarInOtherRepository() {
+        withTempDirectory("lazy-artifacts") { temp ->
+            TestRemoteRepository(temp / "first").use { first ->
+                TestRemoteRepository(temp / "second").use { second ->
+                    first.publishRelease("a", "1.0", null)
+                    second.publishRelease("a", "1.0", JAR)
+                    val firstRepository = repository("first", first, temp)
+                    val resolved = resolve(DependencyId("com.example", "a", "1.0"), firstRepository, repository("second", second, temp))
+
+                    val dependency = resolved.values.single()
+                    assertEquals(firstRepository, dependency.resolvedFrom)
+                    assertArrayEquals(JAR, Files.readAllBytes(dependency.artifact!!.path))
+                    assertEquals(listOf("com/example/a/1.0/a-1.0.jar", "com/example/a/1.0/a-1.0.pom"), first.requests.sorted())
+                    assertEquals(listOf("com/example/a/1.0/a-1.0.jar"), second.requests)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun missingJar() {
+        withTempDirectory("lazy-artifacts") { temp ->
+            TestRemoteRepository(temp / "remote").use { remote ->
+                remote.publishRelease("a", "1.0", null)
+                val resolved = resolve(DependencyId("com.example", "a", "1.0"), repository("remote", remote, temp))
+
+                // Missing jar does not fail the resolution, only the retrieval
+                val dependency = resolved.values.single()
+                assertFalse(dependency.hasError)
+                assertEquals(listOf(dependency), resolved.values.retrieveArtifacts())
+                assertTrue(dependency.artifactMissing)
+                assertNull(dependency.artifact)
+                assertFalse(dependency.artifactPending)
+            }
+        }
+    }
+
+    @Test
+    fun sourcesRetrievedInBackground() {
+        withTempDirectory("lazy-artifacts") { temp ->
+            TestRemoteRepository(temp / "remote").use { remote ->
+                remote.publishRelease("a", "1.0", JAR)
+                // Request for the sources is answered only after the resolution
+                val resolvedLatch = CountDownLatch(1)
+                val requested = CountDownLatch(1)
+                remote.onRequest = { path ->
+                    if (path == "com/example/a/1.0/a-1.0-sources.jar") {
+                        requested.countDown()
+                        resolvedLatch.await(10, TimeUnit.SECONDS)
+                    }
+                }
+
+                val sources = DependencyId("com.example", "a", "1.0", classifier = SourcesClassifier)
+                val start = System.nanoTime()
+                val resolved = resolve(sources, repository("remote", remote, temp))
+                val duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                resolvedLatch.countDown()
+                // Requested already, but not waited for
+                assertTrue(requested.await(10, TimeUnit.SECONDS))
+                assertTrue(duration < 5000L, "Resolution took $duration ms")
+
+                // Missing sources are not an error
+                val dependency = resolved.values.single()
+                assertFalse(dependency.hasError)
+                assertTrue(dependency.artifactMissing)
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package wemi.dependency
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import java.nio.file.Paths
+
+/**
+ * Tests [retrievalLockFile].
+ */
+class Maven2Tests {
+
+    @Test
+    fun retrievalLockFiles() {
+        val root = Paths.get("/cache")
+        val pom = retrievalLockFile(root, "com/example/foo/1.0/foo-1.0.pom")
+        assertEquals(root / ".wemi-locks", pom.parent)
+        assertTrue(pom.fileName.toString().endsWith(".lock"))
+
+        // Files of one artifact share the lock, in any cache repository
+        assertEquals(pom, retrievalLockFile(root, "com/example/foo/1.0/foo-1.0.jar"))
+        assertEquals(pom, retrievalLockFile(root, "com/example/foo/1.0/foo-1.0.jar.sha1"))
+        assertEquals(Paths.get("/other") / ".wemi-locks" / pom.fileName.toString(),
+                retrievalLockFile(Paths.get("/other"), "com/example/foo/1.0/foo-1.0.pom"))
+
+        // Same in every process and version
+        assertEquals(root / ".wemi-locks" / "28.lock", pom)
+        assertEquals(root / ".wemi-locks" / "0.lock", retrievalLockFile(root, "file-in-root"))
+
+        // Amount of lock files is bounded
+        val lockFiles = HashSet<String>()
+        for (i in 0 until 10_000) {
+            lockFiles.add(retrievalLockFile(root, "com/example/artifact$i/1.$i/artifact$i-1.$i.pom").fileName.toString())
+        }
+        assertEquals(64, lockFiles.size)
+    }
+}
@@ -0,0 +1,131 @@
+package wemi.dependency
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Tests [isKnownMissing] and [markKnownMissing].
+ */
+class NegativeCacheTests {
+
+    private fun remote(cacheDirectory: Path, missingCacheSeconds: Long): Repository {
+        return Repository("remote", "https://repository.example.com/maven2/", Repository("cache", cacheDirectory),
+                missingCacheSeconds = missingCacheSeconds)
+    }
+
+    @Test
+    fun disabled() {
+        withTempDirectory("negative-cache") { temp ->
+            val disabled = remote(temp, 0L)
+            assertNull(negativeCacheFile(disabled))
+            markKnownMissing(disabled, "com/example/a/1.0/a-1.0.pom", false)
+            assertFalse(isKnownMissing(disabled, "com/example/a/1.0/a-1.0.pom", false))
+
+            val local = Repository("local", temp / "local", missingCacheSeconds = 60L)
+            assertNull(negativeCacheFile(local))
+            markKnownMissing(local, "com/example/a/1.0/a-1.0.pom", false)
+            assertFalse(isKnownMissing(local, "com/example/a/1.0/a-1.0.pom", false))
+
+            assertFalse(Files.exists(temp / ".wemi-missing-remote"))
+            assertFalse(Files.exists(temp / ".wemi-missing-local"))
+        }
+    }
+
+    @Test
+    fun markAndCheck() {
+        withTempDirectory("negative-cache") { temp ->
+            val repository = remote(temp, 3600L)
+            val file = negativeCacheFile(repository)!!
+            assertEquals(temp / ".wemi-missing-remote", file)
+
+            assertFalse(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false))
+            markKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false)
+            assertTrue(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false))
+            assertFalse(isKnownMissing(repository, "com/example/b/1.0/b-1.0.pom", false))
+
+            // Snapshots are neither remembered nor reported
+            markKnownMissing(repository, "com/example/s/1.0-SNAPSHOT/s-1.0-SNAPSHOT.pom", true)
+            assertFalse(isKnownMissing(repository, "com/example/s/1.0-SNAPSHOT/s-1.0-SNAPSHOT.pom", true))
+            assertFalse(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", true))
+
+            val lines = Files.readAllLines(file)
+            assertEquals(1, lines.size)
+            assertTrue(lines[0].endsWith(" com/example/a/1.0/a-1.0.pom"))
+            // Lock file is removed after each use
+            assertFalse(Files.exists(temp / ".wemi-missing-remote.lock"))
+        }
+    }
+
+    @Test
+    fun expiry() {
+        withTempDirectory("negative-cache") { temp ->
+            val repository = remote(temp, 1L)
+            markKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false)
+            assertTrue(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false))
+            Thread.sleep(1100L)
+            assertFalse(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false))
+        }
+    }
+
+    @Test
+    fun loadAndCompact() {
+        withTempDirectory("negative-cache") { temp ->
+            val repository = remote(temp, 3600L)
+            val file = negativeCacheFile(repository)!!
+            val now = System.currentTimeMillis()
+            val fresh = now - 10_000L
+            Files.write(file, listOf(
+                    "${now - 7200_000L} expired",
+                    "${now - 3000_000L} overridden",
+                    "$fresh overridden",
+                    "$fresh fresh",
+                    "${now + 3600_000L} future",
+                    "garbage",
+                    ""))
+
+            assertTrue(isKnownMissing(repository, "fresh", false))
+            assertTrue(isKnownMissing(repository, "overridden", false))
+            assertFalse(isKnownMissing(repository, "expired", false))
+            assertFalse(isKnownMissing(repository, "future", false))
+            assertFalse(isKnownMissing(repository, "garbage", false))
+
+            // Only the live entries are kept
+            assertEquals(setOf("$fresh fresh", "$fresh overridden"), Files.readAllLines(file).toSet())
+        }
+    }
+
+    @Test
+    fun notCompacted() {
+        withTempDirectory("negative-cache") { temp ->
+            val repository = remote(temp, 3600L)
+            val file = negativeCacheFile(repository)!!
+            val now = System.currentTimeMillis()
+            val lines = listOf("${now - 7200_000L} expired", "${now - 10_000L} a", "${now - 20_000L} b")
+            Files.write(file, lines)
+
+            assertTrue(isKnownMissing(repository, "a", false))
+            assertFalse(isKnownMissing(repository, "expired", false))
+            // Not enough garbage to rewrite the file
+            assertEquals(lines, Files.readAllLines(file))
+        }
+    }
+
+    @Test
+    fun deletingFileForgets() {
+        withTempDirectory("negative-cache") { temp ->
+            val repository = remote(temp, 3600L)
+            markKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false)
+            assertTrue(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false))
+
+            Files.delete(negativeCacheFile(repository)!!)
+            assertFalse(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false))
+
+            markKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false)
+            assertTrue(isKnownMissing(repository, "com/example/a/1.0/a-1.0.pom", false))
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package wemi.dependency
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Tests how snapshot dependencies are checked for changes by [resolveDependencies].
+ */
+class SnapshotResolutionTests {
+
+    private val published = 1577880000_000L // 2020-01-01 12:00:00
+
+    private fun snapshot(name: String): Dependency = Dependency(DependencyId("com.example", name, "1.0-SNAPSHOT"))
+
+    private fun resolve(repository: Repository, vararg names: String): Map<DependencyId, ResolvedDependency> {
+        val resolved = LinkedHashMap<DependencyId, ResolvedDependency>()
+        assertTrue(resolveDependencies(resolved, names.map { snapshot(it) }, listOf(repository)))
+        return resolved
+    }
+
+    @Test
+    fun metadataFirst() {
+        withTempDirectory("snapshot-resolution") { temp ->
+            TestRemoteRepository(temp / "remote").use { remote ->
+                remote.publish("a", "20200101.120000", published, "b")
+                remote.publish("b", "20200101.120000", published, "c")
+                remote.publish("c", "20200101.120000", published)
+                remote.publish("x", "20200101.120000", published)
+                val repository = Repository("remote", remote.url, Repository("cache", temp / "cache"),
+                        snapshotUpdateDelaySeconds = SnapshotCheckAlways)
+                val metadata = listOf("a", "b", "c", "x").map { "com/example/$it/1.0-SNAPSHOT/maven-metadata.xml" }
+
+                // Non-unique poms, which are not there, are not requested
+                val resolved = resolve(repository, "a", "x")
+                assertEquals(listOf("a", "b", "c", "x"), resolved.keys.map { it.name }.sorted())
+                for (dependency in resolved.values) {
+                    assertFalse(dependency.hasError)
+                    assertEquals("20200101.120000-1", dependency.id.snapshotVersion)
+                }
+                assertEquals((metadata + listOf("a", "b", "c", "x").map { "com/example/$it/1.0-SNAPSHOT/$it-1.0-20200101.120000-1.pom" }).sorted(),
+                        remote.requests.sorted())
+
+                // Unchanged snapshots need one conditional request each
+                remote.requests.clear()
+                resolve(repository, "a", "x")
+                assertEquals(metadata.map { "?$it" }.sorted(), remote.requests.sorted())
+
+                // Only the changed pom is downloaded
+                remote.requests.clear()
+                remote.publish("c", "20200102.120000", published + 86400_000L)
+                val updated = resolve(repository, "a", "x")
+                assertEquals("20200102.120000-1", updated.values.first { it.id.name == "c" }.id.snapshotVersion)
+                assertEquals((metadata.map { "?$it" } + "com/example/c/1.0-SNAPSHOT/c-1.0-20200102.120000-1.pom").sorted(),
+                        remote.requests.sorted())
+            }
+        }
+    }
+
+    @Test
+    fun transitiveSnapshotsCheckedConcurrently() {
+        withTempDirectory("snapshot-resolution") { temp ->
+            TestRemoteRepository(temp / "remote").use { remote ->
+                remote.publish("a", "20200101.120000", published, "b")
+                remote.publish("b", "20200101.120000", published)
+                remote.publish("x", "20200101.120000", published)
+                val repository = Repository("remote", remote.url, Repository("cache", temp / "cache"),
+                        snapshotUpdateDelaySeconds = SnapshotCheckAlways)
+
+                // Metadata of b, found through a, and of root x, must be requested at the same time,
+                // even though the resolution waits for x first
+                val barrier = CyclicBarrier(2)
+                val overlapped = AtomicBoolean(true)
+                remote.onRequest = { path ->
+                    if (path == "com/example/b/1.0-SNAPSHOT/maven-metadata.xml" || path == "com/example/x/1.0-SNAPSHOT/maven-metadata.xml") {
+                        try {
+                            barrier.await(10, TimeUnit.SECONDS)
+                        } catch (e: Exception) {
+                            overlapped.set(false)
+                        }
+                    }
+                }
+
+                val resolved = resolve(repository, "x", "a")
+                assertEquals(listOf("a", "b", "x"), resolved.keys.map { it.name }.sorted())
+                assertTrue(overlapped.get())
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package wemi.dependency
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import wemi.util.createHashSum
+import wemi.util.div
+import wemi.util.name
+import java.io.Closeable
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.time.Instant
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.util.*
+import java.util.concurrent.Executors
+
+/*
+ * Repositories for tests.
+ */
+
+/** Remote repository served from [root] over HTTP, which remembers the requests for poms, metadata and jars. */
+internal class TestRemoteRepository(private val root: Path) : Closeable {
+    private val executor = Executors.newCachedThreadPool()
+    private val server = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+
+    /** Requested paths, conditional requests are prefixed with `?` */
+    val requests: MutableList<String> = Collections.synchronizedList(ArrayList())
+
+    /** Called with the path of each request, before it is answered. */
+    @Volatile
+    var onRequest: (String) -> Unit = {}
+
+    val url: String
+        get() = "http://${server.address.hostString}:${server.address.port}/"
+
+    init {
+        server.executor = executor
+        server.createContext("/") { exchange ->
+            try {
+                answer(exchange)
+            } finally {
+                exchange.close()
+            }
+        }
+        server.start()
+    }
+
+    private fun answer(exchange: HttpExchange) {
+        val path = exchange.requestURI.path.removePrefix("/")
+        val ifModifiedSince = exchange.requestHeaders.getFirst("If-Modified-Since")
+        if (path.endsWith(".pom") || path.endsWith(".xml") || path.endsWith(".jar")) {
+            requests.add(if (ifModifiedSince != null) "?$path" else path)
+        }
+        onRequest(path)
+
+        val file = root / path
+        if (!Files.isRegularFile(file)) {
+            exchange.sendResponseHeaders(404, -1)
+            return
+        }
+        val modified = Files.getLastModifiedTime(file).toMillis()
+        if (ifModifiedSince != null
+                && modified / 1000 <= ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond()) {
+            exchange.sendResponseHeaders(304, -1)
+            return
+        }
+        val data = Files.readAllBytes(file)
+        exchange.responseHeaders.add("Last-Modified",
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(modified), ZoneOffset.UTC)))
+        exchange.sendResponseHeaders(200, data.size.toLong())
+        exchange.responseBody.write(data)
+    }
+
+    private fun pom(name: String, version: String, dependencies: Array<out String>): ByteArray {
+        return """<?xml version="1.0" encoding="UTF-8"?>
+            <project>
+                <modelVersion>4.0.0</modelVersion>
+                <groupId>com.example</groupId>
+                <artifactId>$name</artifactId>
+                <version>$version</version>
+                <dependencies>${dependencies.joinToString("") {
+                    "<dependency><groupId>com.example</groupId><artifactId>$it</artifactId><version>$version</version></dependency>"
+                }}</dependencies>
+            </project>""".toByteArray()
+    }
+
+    /** Write [file] with its checksums. */
+    private fun writeWithChecksums(file: Path, data: ByteArray) {
+        Files.createDirectories(file.parent)
+        Files.write(file, data)
+        for (checksum in CHECKSUMS) {
+            Files.write(file.resolveSibling(file.name + checksum.suffix),
+                    createHashSum(checksum.checksum(data), file.name).toString().toByteArray())
+        }
+    }
+
+    /**
+     * Publish release [name] [version], with checksums, which depends on [dependencies] of the same [version].
+     * Its jar has content [jar], or it has no jar if null.
+     */
+    fun publishRelease(name: String, version: String, jar: ByteArray?, vararg dependencies: String) {
+        val directory = root / "com/example/$name/$version"
+        writeWithChecksums(directory / "$name-$version.pom", pom(name, version, dependencies))
+        if (jar != null) {
+            writeWithChecksums(directory / "$name-$version.jar", jar)
+        }
+    }
+
+    /** Publish unique snapshot [name] 1.0-SNAPSHOT with [timestamp], which depends on snapshots [dependencies]. */
+    fun publish(name: String, timestamp: String, modified: Long, vararg dependencies: String) {
+        val directory = root / "com/example/$name/1.0-SNAPSHOT"
+        Files.createDirectories(directory)
+        val pom = directory / "$name-1.0-$timestamp-1.pom"
+        Files.write(pom, pom(name, "1.0-SNAPSHOT", dependencies))
+        val metadata = directory / "maven-metadata.xml"
+        Files.write(metadata, """<?xml version="1.0" encoding="UTF-8"?>
+            <metadata>
+                <groupId>com.example</groupId>
+                <artifactId>$name</artifactId>
+                <version>1.0-SNAPSHOT</version>
+                <versioning>
+                    <snapshot><timestamp>$timestamp</timestamp><buildNumber>1</buildNumber></snapshot>
+                </versioning>
+            </metadata>""".toByteArray())
+        Files.setLastModifiedTime(pom, FileTime.fromMillis(modified))
+        Files.setLastModifiedTime(metadata, FileTime.fromMillis(modified))
+    }
+
+    override fun close() {
+        server.stop(0)
+        executor.shutdownNow()
+    }
+}
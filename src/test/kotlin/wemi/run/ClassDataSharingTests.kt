@@ -0,0 +1,120 @@
+package wemi.run
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Tests [createClassDataSharingArchive], with a script instead of `java`.
+ */
+class ClassDataSharingTests {
+
+    /**
+     * Script which records its runs into `runs` in the working directory.
+     * Training run records classes only with training argument `record`, and it then ends only with `exit`.
+     * Dump fails when file `dump-fails` exists in the working directory.
+     */
+    private val JAVA = """#!/bin/sh
+        echo "${'$'}@" >> runs
+        record=false
+        exit=false
+        for arg in "${'$'}@"; do
+            [ "${'$'}arg" = record ] && record=true
+            [ "${'$'}arg" = exit ] && exit=true
+        done
+        for arg in "${'$'}@"; do
+            case "${'$'}arg" in
+                -XX:DumpLoadedClassList=*)
+                    ${'$'}record && echo com/example/Main > "${'$'}{arg#*=}"
+                    ${'$'}exit || exec sleep 60
+                    exit 1 ;;
+                -XX:SharedArchiveFile=*)
+                    [ -e dump-fails ] && exit 1
+                    echo archive > "${'$'}{arg#*=}"
+                    exit 0 ;;
+            esac
+        done
+        """.trimIndent()
+
+    private fun withJava(action: (java: Path, directory: Path) -> Unit) {
+        assumeTrue(File.separatorChar == '/', "Needs a shell")
+        withTempDirectory("class-data-sharing") { temp ->
+            val java = temp / "java"
+            Files.write(java, JAVA.toByteArray())
+            java.toFile().setExecutable(true)
+            Files.write(temp / "library.jar", ByteArray(0))
+            action(java, temp)
+        }
+    }
+
+    private fun create(java: Path, directory: Path, vararg trainingArguments: String, timeoutSeconds: Long = 60): Boolean {
+        return createClassDataSharingArchive(java, directory, listOf(directory / "library.jar"), "com.example.Main",
+                listOf("-javaagent:agent.jar", "-Xmx1G"), trainingArguments.toList(), directory / "archive" / "main.jsa", timeoutSeconds)
+    }
+
+    private fun runs(directory: Path): List<String> {
+        val runs = directory / "runs"
+        return if (Files.exists(runs)) Files.readAllLines(runs) else emptyList()
+    }
+
+    @Test
+    fun created() {
+        withJava { java, directory ->
+            assertTrue(create(java, directory, "record", "exit"))
+            assertEquals("archive", String(Files.readAllBytes(directory / "archive" / "main.jsa")).trim())
+
+            val runs = runs(directory)
+            assertEquals(2, runs.size)
+            assertTrue(runs[0].endsWith("-Xmx1G com.example.Main record exit"))
+            assertFalse("-javaagent:agent.jar" in runs[0])
+            assertTrue(runs[1].startsWith("-Xshare:dump "))
+            // Only the archive is left
+            assertEquals(listOf("main.jsa"), (directory / "archive").toFile().list().toList())
+        }
+    }
+
+    @Test
+    fun trainingFailureIsRetried() {
+        withJava { java, directory ->
+            assertFalse(create(java, directory, "exit"))
+            assertEquals(1, runs(directory).size)
+            assertFalse(Files.exists(directory / "archive" / "main.jsa.failed"))
+            assertTrue(Files.exists(directory / "archive" / "main.jsa.log"))
+
+            // With different arguments
+            assertTrue(create(java, directory, "record", "exit"))
+            assertEquals(3, runs(directory).size)
+        }
+    }
+
+    @Test
+    fun dumpFailureIsRemembered() {
+        withJava { java, directory ->
+            Files.createFile(directory / "dump-fails")
+            assertFalse(create(java, directory, "record", "exit"))
+            assertEquals(2, runs(directory).size)
+            assertTrue(Files.exists(directory / "archive" / "main.jsa.failed"))
+
+            // Not attempted again
+            Files.delete(directory / "dump-fails")
+            assertFalse(create(java, directory, "record", "exit"))
+            assertEquals(2, runs(directory).size)
+            assertFalse(Files.exists(directory / "archive" / "main.jsa"))
+        }
+    }
+
+    @Test
+    fun trainingTimeout() {
+        withJava { java, directory ->
+            val start = System.nanoTime()
+            assertTrue(create(java, directory, "record", timeoutSeconds = 1))
+            assertTrue(System.nanoTime() - start < 30_000_000_000L)
+            assertEquals(2, runs(directory).size)
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package wemi.run
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests [superviseProcess] and [SupervisedProcess].
+ */
+class ProcessSupervisionTests {
+
+    /** Output which remembers whether it was closed. */
+    private class Output : ByteArrayOutputStream() {
+        @Volatile
+        var closed = false
+
+        override fun close() {
+            closed = true
+        }
+
+        fun lines(): List<String> = synchronized(this) { toString().lines().filter { it.isNotEmpty() } }
+    }
+
+    private fun shell(script: String): ProcessBuilder {
+        assumeTrue(File.separatorChar == '/', "Needs a shell")
+        return ProcessBuilder("/bin/sh", "-c", script)
+    }
+
+    @Test
+    fun exitAfterOutput() {
+        val stdout = Output()
+        val stderr = Output()
+        val exited = CountDownLatch(1)
+        var exitCode = 0
+        var linesOnExit = -1
+        var errorLinesOnExit = -1
+        var closedOnExit = false
+
+        val process = superviseProcess(shell("i=0; while [ \$i -lt 2000 ]; do echo out \$i; echo err \$i >&2; i=\$((i+1)); done; exit 3"),
+                "Test", stdout, stderr) { code ->
+            exitCode = code
+            linesOnExit = stdout.lines().size
+            errorLinesOnExit = stderr.lines().size
+            closedOnExit = stdout.closed && stderr.closed
+            exited.countDown()
+        }
+
+        // Output is processed before the exit is reported
+        assertEquals(3, process.waitFor())
+        assertEquals(2000, stdout.lines().size)
+        assertEquals("out 1999", stdout.lines().last())
+        assertEquals(2000, stderr.lines().size)
+        assertEquals("err 1999", stderr.lines().last())
+        assertFalse(process.isAlive)
+
+        assertTrue(exited.await(10, TimeUnit.SECONDS))
+        assertEquals(3, exitCode)
+        assertEquals(2000, linesOnExit)
+        assertEquals(2000, errorLinesOnExit)
+        assertTrue(closedOnExit)
+    }
+
+    @Test
+    fun outputLeftToBuilder() {
+        val stdout = Output()
+        // Error output goes to stdout, as configured
+        val process = superviseProcess(shell("echo out; echo err >&2").redirectErrorStream(true), "Test", stdout)
+        assertEquals(0, process.waitFor())
+        assertEquals(listOf("out", "err"), stdout.lines())
+    }
+
+    @Test
+    fun destroy() {
+        val exited = CountDownLatch(1)
+        val process = superviseProcess(shell("exec sleep 60"), "Test") { exited.countDown() }
+
+        assertFalse(process.waitFor(100, TimeUnit.MILLISECONDS))
+        assertTrue(process.isAlive)
+        assertEquals(1L, exited.count)
+
+        process.destroy()
+        assertTrue(process.waitFor(10, TimeUnit.SECONDS))
+        assertNotEquals(0, process.waitFor())
+        assertFalse(process.isAlive)
+        assertTrue(exited.await(10, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun failingExitListener() {
+        val process = superviseProcess(shell("exit 0"), "Test") { throw IllegalStateException("Listener failure") }
+        assertEquals(0, process.waitFor())
+    }
+}
@@ -0,0 +1,158 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Disabled
+import org.junit.jupiter.api.Test
+import wemi.util.readJson
+import wemi.util.writeJson
+import java.io.*
+import kotlin.system.measureNanoTime
+
+/**
+ * Tests [CompactTestReport].
+ */
+class CompactTestReportTests {
+
+    private fun generateReport(tests: Int): TestReport {
+        val report = TestReport()
+        val engineId = "[engine:junit-jupiter]"
+        report[TestIdentifier(engineId, null, "JUnit Jupiter", false, true, emptySet(), null)] = TestData().apply {
+            status = TestStatus.SUCCESSFUL
+            duration = 100
+        }
+
+        for (c in 0 until (tests + 9) / 10) {
+            val className = "com.example.service.Service${c}Tests"
+            val classId = "$engineId/[class:$className]"
+            report[TestIdentifier(classId, engineId, "Service${c}Tests", false, true, setOf("service"),
+                    "ClassSource [className = '$className', filePosition = null]")] = TestData().apply {
+                status = TestStatus.SUCCESSFUL
+                duration = 10
+            }
+
+            for (m in 0 until 10) {
+                report[TestIdentifier("$classId/[method:test$m()]", classId, "test$m()", true, false,
+                        if (m % 2 == 0) setOf("service", "fast") else emptySet(),
+                        "MethodSource [className = '$className', methodName = 'test$m', methodParameterTypes = '']")] = TestData().apply {
+                    when (m) {
+                        3 -> {
+                            status = TestStatus.FAILED
+                            stackTrace = "org.opentest4j.AssertionFailedError: expected: <$c> but was: <$m>\n" +
+                                    (0 until 40).joinToString("\n") { "\tat $className.test$m($className.java:$it)" }
+                        }
+                        5 -> {
+                            status = TestStatus.SKIPPED
+                            skipReason = "Not implemented yet"
+                        }
+                        else -> status = TestStatus.SUCCESSFUL
+                    }
+                    duration = m.toLong()
+                    if (m == 7) {
+                        reports.add(TestData.ReportEntry(1000L + c, "key", "value $c"))
+                    }
+                }
+            }
+        }
+        return report
+    }
+
+    private fun assertReportEquals(expected: TestReport, actual: TestReport) {
+        assertEquals(expected.size, actual.size)
+        for ((expectedEntry, actualEntry) in expected.entries.zip(actual.entries)) {
+            val (expectedIdentifier, expectedData) = expectedEntry
+            val (actualIdentifier, actualData) = actualEntry
+            assertEquals(expectedIdentifier.id, actualIdentifier.id)
+            assertEquals(expectedIdentifier.parentId, actualIdentifier.parentId)
+            assertEquals(expectedIdentifier.displayName, actualIdentifier.displayName)
+            assertEquals(expectedIdentifier.isTest, actualIdentifier.isTest)
+            assertEquals(expectedIdentifier.isContainer, actualIdentifier.isContainer)
+            assertEquals(expectedIdentifier.tags, actualIdentifier.tags)
+            assertEquals(expectedIdentifier.testSource, actualIdentifier.testSource)
+
+            assertEquals(expectedData.status, actualData.status)
+            assertEquals(expectedData.duration, actualData.duration)
+            assertEquals(expectedData.skipReason, actualData.skipReason)
+            assertEquals(expectedData.stackTrace, actualData.stackTrace)
+            assertEquals(expectedData.reports, actualData.reports)
+        }
+    }
+
+    private fun CompactTestReport.writeToBytes(): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { write(it) }
+        return bytes.toByteArray()
+    }
+
+    @Test
+    fun roundTrip() {
+        val report = generateReport(100)
+        report[TestIdentifier("orphan", "unknown-parent", "Orphan", true, false, emptySet(), null)] = TestData().apply {
+            stackTrace = "short"
+        }
+
+        val compact = report.compact()
+        assertEquals(report.size, compact.size)
+        assertEquals(report.processExitCode(), compact.processExitCode())
+        assertReportEquals(report, compact.toTestReport())
+
+        val read = CompactTestReport.read(DataInputStream(ByteArrayInputStream(compact.writeToBytes())))
+        assertReportEquals(report, read.toTestReport())
+    }
+
+    @Test
+    fun tree() {
+        val compact = generateReport(10).compact()
+        assertEquals(-1, compact.parentIndex(0))
+        assertEquals(0, compact.parentIndex(1))
+        for (i in 2 until compact.size) {
+            assertEquals(1, compact.parentIndex(i))
+        }
+        assertEquals(TestStatus.FAILED, compact.status(5))
+        assertTrue(compact.stackTrace(5)!!.startsWith("org.opentest4j.AssertionFailedError"))
+        assertNull(compact.stackTrace(4))
+    }
+
+    @Disabled("Development only")
+    @Test
+    fun compactReportBenchmark() {
+        println("-- compactReportBenchmark --")
+        val runtime = Runtime.getRuntime()
+        fun usedMemory(): Long {
+            for (i in 0 until 3) {
+                System.gc()
+            }
+            return runtime.totalMemory() - runtime.freeMemory()
+        }
+
+        val baseMemory = usedMemory()
+        var report: TestReport? = generateReport(50_000)
+        val reportMemory = usedMemory() - baseMemory
+
+        lateinit var json: String
+        val jsonWriteNs = measureNanoTime {
+            json = StringWriter().also { it.writeJson(report!!, TestReport::class.java) }.toString()
+        }
+        val jsonReadNs = measureNanoTime {
+            StringReader(json).readJson<TestReport>()
+        }
+
+        lateinit var compact: CompactTestReport
+        val compactNs = measureNanoTime {
+            compact = report!!.compact()
+        }
+        report = null
+        val compactMemory = usedMemory() - baseMemory
+
+        lateinit var bytes: ByteArray
+        val writeNs = measureNanoTime {
+            bytes = compact.writeToBytes()
+        }
+        val readNs = measureNanoTime {
+            CompactTestReport.read(DataInputStream(ByteArrayInputStream(bytes))).toTestReport()
+        }
+
+        println("Memory: report ${reportMemory / 1024} kB, compact ${compactMemory / 1024} kB")
+        println("JSON: ${json.length / 1024} kB, written in ${jsonWriteNs / 1000_000} ms, read in ${jsonReadNs / 1000_000} ms")
+        println("Compact: ${bytes.size / 1024} kB, compacted in ${compactNs / 1000_000} ms, written in ${writeNs / 1000_000} ms, read and expanded in ${readNs / 1000_000} ms")
+    }
+}
@@ -0,0 +1,107 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import wemi.test.forked.TestEventWriter
+import wemi.util.Magic
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.attribute.FileTime
+
+/** Set while [InProcessTests] runs [InProcessFixture], which records the identity of its library class loader into it. */
+private const val IN_PROCESS_FIXTURE_PROPERTY = "wemi.test.InProcessFixture"
+
+/** Runs only in [InProcessTests]. */
+class InProcessFixture {
+    @Test
+    fun output() {
+        // Executed only by InProcessTests
+        assumeTrue(System.getProperty(IN_PROCESS_FIXTURE_PROPERTY) != null)
+        println("Captured out")
+        System.err.println("Captured err")
+        System.setProperty(IN_PROCESS_FIXTURE_PROPERTY, System.identityHashCode(TestParameters::class.java.classLoader).toString())
+    }
+
+    @Test
+    fun failing() {
+        assumeTrue(System.getProperty(IN_PROCESS_FIXTURE_PROPERTY) != null)
+        System.err.println("Failure")
+        fail<Unit>("Failing")
+    }
+}
+
+/**
+ * Tests [handleTestsInProcess], with the classpath of these tests.
+ */
+class InProcessTests {
+
+    private val projectClasspath = listOf(Magic.classpathFileOf(InProcessFixture::class.java)!!.toAbsolutePath())
+
+    /** Classpath of these tests without the [projectClasspath], so that the project classes are loaded again by each run. */
+    private fun libraryClasspath(): List<Path> {
+        val classpath = System.getProperty("java.class.path").split(File.pathSeparatorChar)
+                .filter { it.isNotEmpty() }.map { Paths.get(it).toAbsolutePath() }
+        val libraryClasspath = classpath.filter { it !in projectClasspath }
+        assumeTrue(Magic.classpathFileOf(TestEventWriter::class.java)?.toAbsolutePath() in libraryClasspath
+                && Magic.classpathFileOf(org.junit.platform.launcher.Launcher::class.java)?.toAbsolutePath() in libraryClasspath,
+                "Needs Wemi and JUnit launcher on the plain classpath")
+        return libraryClasspath
+    }
+
+    /** Run [InProcessFixture] in process.
+     * @return the report and identity of the library class loader of the run */
+    private fun run(libraryClasspath: List<Path>): Pair<TestReport, String> {
+        val parameters = TestParameters()
+        parameters.select.classes.add(InProcessFixture::class.java.name)
+        System.setProperty(IN_PROCESS_FIXTURE_PROPERTY, "")
+        try {
+            val report = handleTestsInProcess(libraryClasspath, projectClasspath, parameters, null)!!
+            return report to System.getProperty(IN_PROCESS_FIXTURE_PROPERTY)
+        } finally {
+            System.clearProperty(IN_PROCESS_FIXTURE_PROPERTY)
+        }
+    }
+
+    private fun TestReport.of(method: String): TestData {
+        return entries.first { it.key.isTest && it.key.id.endsWith("[method:$method()]") }.value
+    }
+
+    @Test
+    fun outputCaptured() {
+        val (report, _) = run(libraryClasspath())
+
+        val output = report.of("output")
+        assertEquals(TestStatus.SUCCESSFUL, output.status)
+        assertEquals(listOf("stdout" to "Captured out", "stderr" to "Captured err"), output.reports.map { it.key to it.value })
+
+        val failing = report.of("failing")
+        assertEquals(TestStatus.FAILED, failing.status)
+        assertTrue(failing.stackTrace!!.contains("Failing"))
+        assertEquals(listOf("stderr" to "Failure"), failing.reports.map { it.key to it.value })
+    }
+
+    @Test
+    fun libraryClassLoaderCached() {
+        withTempDirectory("in-process") { temp ->
+            val extra = Files.createDirectory(temp / "extra")
+            val libraryClasspath = libraryClasspath() + extra
+
+            val (_, first) = run(libraryClasspath)
+            assertNotEquals("", first)
+            // Isolated from the classes of Wemi
+            assertNotEquals(System.identityHashCode(TestParameters::class.java.classLoader).toString(), first)
+            assertEquals(first, run(libraryClasspath).second)
+
+            // Changed library
+            Files.setLastModifiedTime(extra, FileTime.fromMillis(Files.getLastModifiedTime(extra).toMillis() - 60_000L))
+            val changed = run(libraryClasspath).second
+            assertNotEquals(first, changed)
+            assertEquals(changed, run(libraryClasspath).second)
+        }
+    }
+}
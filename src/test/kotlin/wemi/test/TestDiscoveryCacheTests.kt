@@ -0,0 +1,102 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import wemi.util.writeClassFile
+import java.nio.file.Files
+
+/**
+ * Tests [TestDiscoveryCache].
+ */
+class TestDiscoveryCacheTests {
+
+    private val ENGINE = TestIdentifier("[engine:junit-jupiter]", null, "JUnit Jupiter", false, true, emptySet(), null)
+
+    private fun testOf(className: String, method: String): TestIdentifier {
+        val classId = "${ENGINE.id}/[class:$className]"
+        return TestIdentifier("$classId/[method:$method()]", classId, "$method()", true, false, emptySet(),
+                "MethodSource [className = '$className', methodName = '$method', methodParameterTypes = '']")
+    }
+
+    private fun reportOf(vararg identifiers: TestIdentifier): TestReport {
+        val report = TestReport()
+        for (identifier in identifiers) {
+            report[identifier] = TestData().apply { status = TestStatus.SUCCESSFUL }
+        }
+        return report
+    }
+
+    private val CLASSES = listOf("a.ServiceTests", "a.NoTests", "a.Holder", "a.Util")
+
+    private fun TestDiscoveryCache.classesWithTests(): List<String> = CLASSES.filter { mayHaveTests(it) }
+
+    @Test
+    fun invalidation() {
+        withTempDirectory("testDiscoveryCache") { temp ->
+            val main = temp / "main"
+            val test = temp / "test"
+            val stateFile = temp / "state" / "discovery.bin"
+            writeClassFile(main, "a/Base")
+            writeClassFile(main, "a/Helper")
+            writeClassFile(test, "a/ServiceTests", "a/Base")
+            writeClassFile(test, "a/NoTests", "a/Helper")
+            writeClassFile(test, "a/Holder\$NestedTests", "a/Base")
+            writeClassFile(test, "a/Util")
+            val classpath = listOf(test, main)
+
+            // Nothing is known at first
+            val first = TestDiscoveryCache.load(stateFile, "environment", classpath)
+            assertEquals(CLASSES, first.classesWithTests())
+            first.record(CLASSES, reportOf(ENGINE, testOf("a.ServiceTests", "one"), testOf("a.Holder\$NestedTests", "two")))
+
+            // Holder without tests of its own contains nested tests
+            assertEquals(listOf("a.ServiceTests", "a.Holder"),
+                    TestDiscoveryCache.load(stateFile, "environment", classpath).classesWithTests())
+
+            // Change of a class forgets the classes which depend on it
+            writeClassFile(main, "a/Helper", "changed", modified = 2000L)
+            val changed = TestDiscoveryCache.load(stateFile, "environment", classpath)
+            assertEquals(listOf("a.ServiceTests", "a.NoTests", "a.Holder"), changed.classesWithTests())
+            changed.record(listOf("a.NoTests"), reportOf(ENGINE))
+            assertEquals(listOf("a.ServiceTests", "a.Holder"),
+                    TestDiscoveryCache.load(stateFile, "environment", classpath).classesWithTests())
+
+            // Removed classes are forgotten
+            Files.delete(test / "a/Util.class")
+            assertEquals(listOf("a.ServiceTests", "a.Holder", "a.Util"), TestDiscoveryCache.load(stateFile, "environment", classpath).classesWithTests())
+
+            // Different environment forgets everything
+            assertEquals(CLASSES, TestDiscoveryCache.load(stateFile, "other environment", classpath).classesWithTests())
+
+            // Corrupted state forgets everything
+            Files.write(stateFile, byteArrayOf(1, 2, 3))
+            assertEquals(CLASSES, TestDiscoveryCache.load(stateFile, "environment", classpath).classesWithTests())
+        }
+    }
+
+    @Test
+    fun unknownSources() {
+        withTempDirectory("testDiscoveryCache") { temp ->
+            val test = temp / "test"
+            val stateFile = temp / "discovery.bin"
+            writeClassFile(test, "a/ServiceTests")
+            writeClassFile(test, "a/NoTests")
+            writeClassFile(test, "a/Holder\$NestedTests")
+            writeClassFile(test, "a/Util")
+
+            // Test without a known class may be in any of the classes, so none is remembered as without tests
+            val unknownTest = TestIdentifier("[engine:custom]/[test:one]", "[engine:custom]", "one", true, false, emptySet(),
+                    "FileSource [file = 'tests.txt']")
+            TestDiscoveryCache.load(stateFile, "environment", listOf(test))
+                    .record(CLASSES, reportOf(ENGINE, testOf("a.ServiceTests", "one"), unknownTest))
+            val loaded = TestDiscoveryCache.load(stateFile, "environment", listOf(test))
+            assertEquals(CLASSES, loaded.classesWithTests())
+
+            // Once all tests have known classes, the other classes are remembered as without tests
+            loaded.record(CLASSES, reportOf(ENGINE, testOf("a.ServiceTests", "one")))
+            assertEquals(listOf("a.ServiceTests"), TestDiscoveryCache.load(stateFile, "environment", listOf(test)).classesWithTests())
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+/**
+ * Tests [TestHistory].
+ */
+class TestHistoryTests {
+
+    private val ENGINE = TestIdentifier("[engine:junit-jupiter]", null, "JUnit Jupiter", false, true, emptySet(), null)
+
+    private fun testOf(className: String, method: String): TestIdentifier {
+        val classId = "${ENGINE.id}/[class:$className]"
+        return TestIdentifier("$classId/[method:$method()]", classId, "$method()", true, false, emptySet(),
+                "MethodSource [className = '$className', methodName = '$method', methodParameterTypes = '']")
+    }
+
+    private fun classOf(className: String): TestIdentifier {
+        return TestIdentifier("${ENGINE.id}/[class:$className]", ENGINE.id, className, false, true, emptySet(),
+                "ClassSource [className = '$className', filePosition = null]")
+    }
+
+    private fun data(status: TestStatus, duration: Long): TestData {
+        return TestData().apply {
+            this.status = status
+            this.duration = duration
+        }
+    }
+
+    @Test
+    fun topLevelClassName() {
+        assertEquals("a.A", testOf("a.A", "one").topLevelClassName)
+        assertEquals("a.A", testOf("a.A\$Nested\$Deeper", "one").topLevelClassName)
+        assertEquals("a.A", classOf("a.A").topLevelClassName)
+        assertNull(ENGINE.topLevelClassName)
+        assertNull(TestIdentifier("id", null, "Test", true, false, emptySet(), "FileSource [file = 'a.txt']").topLevelClassName)
+    }
+
+    @Test
+    fun record() {
+        val history = TestHistory()
+
+        val first = TestReport()
+        first[ENGINE] = data(TestStatus.SUCCESSFUL, 1000L)
+        first[classOf("a.A")] = data(TestStatus.SUCCESSFUL, 1000L)
+        first[testOf("a.A", "one")] = data(TestStatus.SUCCESSFUL, 5L)
+        first[testOf("a.A", "two")] = data(TestStatus.SUCCESSFUL, 7L)
+        first[testOf("a.A\$Nested", "three")] = data(TestStatus.SUCCESSFUL, 3L)
+        first[testOf("a.B", "one")] = data(TestStatus.FAILED, 20L)
+        first[testOf("a.B", "two")] = data(TestStatus.SUCCESSFUL, 10L)
+        first[testOf("a.C", "one")] = data(TestStatus.NOT_RUN, 0L)
+        first[testOf("a.D", "one")] = data(TestStatus.SKIPPED, 0L)
+        first[testOf("a.E", "one")] = data(TestStatus.SUCCESSFUL, 4L)
+        first[testOf("a.E", "two")] = data(TestStatus.SKIPPED, 0L)
+        history.record(first)
+
+        // Containers and tests which were not run are not recorded, nested classes count for their top-level class
+        assertEquals(listOf("a.A", "a.B", "a.D", "a.E"), history.classes.keys.toList())
+        history.classes["a.A"]!!.apply {
+            assertEquals(15L, duration)
+            assertEquals(TestStatus.SUCCESSFUL, lastStatus)
+            assertEquals(1, runs)
+            assertEquals(0, failures)
+            assertEquals(0, statusChanges)
+        }
+        history.classes["a.B"]!!.apply {
+            assertEquals(30L, duration)
+            assertEquals(TestStatus.FAILED, lastStatus)
+            assertEquals(1, runs)
+            assertEquals(1, failures)
+            assertEquals(0, statusChanges)
+        }
+        assertEquals(TestStatus.SKIPPED, history.classes["a.D"]!!.lastStatus)
+        assertEquals(TestStatus.SUCCESSFUL, history.classes["a.E"]!!.lastStatus)
+
+        val second = TestReport()
+        second[testOf("a.B", "one")] = data(TestStatus.SUCCESSFUL, 2L)
+        second[testOf("a.D", "one")] = data(TestStatus.FAILED, 8L)
+        history.record(second)
+
+        // Classes which were not run keep their history
+        history.classes["a.A"]!!.apply {
+            assertEquals(15L, duration)
+            assertEquals(1, runs)
+        }
+        history.classes["a.B"]!!.apply {
+            assertEquals(2L, duration)
+            assertEquals(TestStatus.SUCCESSFUL, lastStatus)
+            assertEquals(2, runs)
+            assertEquals(1, failures)
+            assertEquals(1, statusChanges)
+        }
+        history.classes["a.D"]!!.apply {
+            assertEquals(TestStatus.FAILED, lastStatus)
+            assertEquals(2, runs)
+            assertEquals(1, failures)
+            assertEquals(1, statusChanges)
+        }
+
+        assertEquals(mapOf("a.A" to 15L, "a.B" to 2L, "a.D" to 8L, "a.E" to 4L), history.durations())
+    }
+
+    @Test
+    fun executionOrder() {
+        val history = TestHistory()
+        val report = TestReport()
+        report[testOf("a.Fast", "one")] = data(TestStatus.SUCCESSFUL, 1L)
+        report[testOf("a.Slow", "one")] = data(TestStatus.SUCCESSFUL, 100L)
+        report[testOf("a.Medium", "one")] = data(TestStatus.SUCCESSFUL, 10L)
+        report[testOf("a.Skipped", "one")] = data(TestStatus.SKIPPED, 0L)
+        report[testOf("a.Failed", "one")] = data(TestStatus.FAILED, 1L)
+        report[testOf("a.FailedSlow", "one")] = data(TestStatus.FAILED, 50L)
+        history.record(report)
+
+        // Failed first, then new classes, then the rest, slowest first, ties by name
+        assertEquals(listOf("a.FailedSlow", "a.Failed", "a.New", "a.Other", "a.Slow", "a.Medium", "a.Fast", "a.Skipped"),
+                history.executionOrder(listOf("a.Fast", "a.Other", "a.Skipped", "a.Medium", "a.Failed", "a.New",
+                        "a.Slow", "a.FailedSlow")))
+        // Classes which are not asked for are not returned
+        assertEquals(listOf("a.Medium", "a.Fast"), history.executionOrder(setOf("a.Fast", "a.Medium")))
+        assertEquals(emptyList<String>(), history.executionOrder(emptyList()))
+    }
+}
@@ -0,0 +1,132 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import wemi.util.writeClassFile
+import java.nio.file.Files
+
+/**
+ * Tests [TestImpact], [scanProjectClasses] and [changedAndDependentClasses].
+ */
+class TestImpactTests {
+
+    private fun projectClass(hash: String, vararg references: String): ProjectClass {
+        return ProjectClass(1L, 1L, hash, arrayOf(*references))
+    }
+
+    @Test
+    fun changedAndDependent() {
+        val previous = mapOf(
+                "a/Base" to projectClass("1"),
+                "a/Service" to projectClass("1", "a/Base"),
+                "a/ServiceTests" to projectClass("1", "a/Service"),
+                "a/Other" to projectClass("1"),
+                "a/OtherTests" to projectClass("1", "a/Other"),
+                "a/Cycle" to projectClass("1", "a/CycleTests"),
+                "a/CycleTests" to projectClass("1", "a/Cycle"),
+                "a/Removed" to projectClass("1"))
+
+        // Nothing changed, removed classes don't affect anything
+        val same = previous - "a/Removed"
+        assertEquals(emptySet<String>(), changedAndDependentClasses(same, previous))
+
+        // Changed class affects its dependents, transitively
+        val changed = same + ("a/Base" to projectClass("2"))
+        assertEquals(setOf("a/Base", "a/Service", "a/ServiceTests"), changedAndDependentClasses(changed, previous))
+
+        // Added class affects its dependents, even those which didn't change
+        val added = same + ("a/New" to projectClass("1")) + ("a/Other" to projectClass("1", "a/New"))
+        assertEquals(setOf("a/New", "a/Other", "a/OtherTests"), changedAndDependentClasses(added, previous))
+
+        // Cycles are fine
+        val cycle = same + ("a/Cycle" to projectClass("2", "a/CycleTests"))
+        assertEquals(setOf("a/Cycle", "a/CycleTests"), changedAndDependentClasses(cycle, previous))
+
+        // Without previous state, everything is changed
+        assertEquals(same.keys, changedAndDependentClasses(same, emptyMap()))
+    }
+
+    @Test
+    fun scan() {
+        withTempDirectory("scanProjectClasses") { temp ->
+            val main = temp / "main"
+            val test = temp / "test"
+            writeClassFile(main, "a/Base", "java/lang/Object")
+            writeClassFile(main, "a/Service", "a/Base", "(La/Base;Ljava/util/List<La/Other;>;)V", "a/Service")
+            writeClassFile(main, "a/Other", "a.Service")
+            writeClassFile(main, "a/Shadowed")
+            writeClassFile(test, "a/ServiceTests", "a/Service", "Lorg/junit/jupiter/api/Test;")
+            writeClassFile(test, "a/Shadowed", "a/Base")
+            Files.write(main / "a/resource.txt", byteArrayOf(1, 2, 3))
+
+            val classes = scanProjectClasses(listOf(test, main, temp / "missing"), emptyMap())
+            assertEquals(setOf("a/Base", "a/Service", "a/Other", "a/Shadowed", "a/ServiceTests"), classes.keys)
+            // Only references to project classes, by name, descriptor, signature or string, not to itself
+            assertArrayEquals(arrayOf<String>(), classes["a/Base"]!!.references)
+            assertArrayEquals(arrayOf("a/Base", "a/Other"), classes["a/Service"]!!.references)
+            assertArrayEquals(arrayOf("a/Service"), classes["a/Other"]!!.references)
+            assertArrayEquals(arrayOf("a/Service"), classes["a/ServiceTests"]!!.references)
+            // First class on the classpath wins
+            assertArrayEquals(arrayOf("a/Base"), classes["a/Shadowed"]!!.references)
+            assertNotEquals(classes["a/Base"]!!.hash, classes["a/Other"]!!.hash)
+
+            // Unchanged class files are not read again
+            val rescanned = scanProjectClasses(listOf(test, main), classes)
+            assertSame(classes["a/Base"], rescanned["a/Base"])
+            writeClassFile(main, "a/Base", "java/lang/Object", "a/Other", modified = 2000L)
+            val changed = scanProjectClasses(listOf(test, main), classes)
+            assertNotSame(classes["a/Base"], changed["a/Base"])
+            assertArrayEquals(arrayOf("a/Other"), changed["a/Base"]!!.references)
+            assertSame(classes["a/Service"], changed["a/Service"])
+        }
+    }
+
+    @Test
+    fun analyze() {
+        withTempDirectory("testImpact") { temp ->
+            val main = temp / "main"
+            val test = temp / "test"
+            val stateFile = temp / "state" / "impact.bin"
+            writeClassFile(main, "a/Base")
+            writeClassFile(main, "a/Service", "a/Base")
+            writeClassFile(main, "a/Other")
+            writeClassFile(test, "a/ServiceTests", "a/Service")
+            writeClassFile(test, "a/ServiceTests\$Nested", "a/ServiceTests")
+            writeClassFile(test, "a/OtherTests", "a/Other")
+            writeClassFile(test, "a/Holder\$BaseTests", "a/Base")
+            val classpath = listOf(test, main)
+
+            // No state yet, everything is affected
+            val first = TestImpact.analyze(stateFile, "environment", classpath, listOf(test))
+            assertNull(first.affectedClasses)
+            first.testsSucceeded()
+            assertTrue(Files.exists(stateFile))
+
+            // Nothing changed
+            assertEquals(emptySet<String>(), TestImpact.analyze(stateFile, "environment", classpath, listOf(test)).affectedClasses)
+
+            // Tests are affected by a change of a class they depend on, nested classes are run by their top-level class
+            writeClassFile(main, "a/Base", "changed", modified = 2000L)
+            val changed = TestImpact.analyze(stateFile, "environment", classpath, listOf(test))
+            assertEquals(setOf("a.Holder", "a.ServiceTests"), changed.affectedClasses)
+            // Until the tests succeed, the change is still there
+            assertEquals(setOf("a.Holder", "a.ServiceTests"),
+                    TestImpact.analyze(stateFile, "environment", classpath, listOf(test)).affectedClasses)
+            changed.testsSucceeded()
+            assertEquals(emptySet<String>(), TestImpact.analyze(stateFile, "environment", classpath, listOf(test)).affectedClasses)
+
+            // Change of a test class affects only that test class
+            writeClassFile(test, "a/OtherTests", "a/Other", "changed", modified = 2000L)
+            assertEquals(setOf("a.OtherTests"), TestImpact.analyze(stateFile, "environment", classpath, listOf(test)).affectedClasses)
+
+            // Different environment affects everything
+            assertNull(TestImpact.analyze(stateFile, "other environment", classpath, listOf(test)).affectedClasses)
+
+            // Corrupted state affects everything
+            Files.write(stateFile, byteArrayOf(1, 2, 3))
+            assertNull(TestImpact.analyze(stateFile, "environment", classpath, listOf(test)).affectedClasses)
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.test.forked.TestEventWriter
+import java.io.StringWriter
+
+/**
+ * Tests [TestReportCollector] with events written by [TestEventWriter].
+ */
+class TestReportCollectorTests {
+
+    private val ENGINE = TestIdentifier("[engine:junit-jupiter]", null, "JUnit Jupiter", false, true, emptySet(), null)
+    private val CLASS = TestIdentifier("${ENGINE.id}/[class:a.A]", ENGINE.id, "A", false, true, setOf("slow"),
+            "ClassSource [className = 'a.A', filePosition = null]")
+
+    private fun testOf(method: String, tags: Set<String> = emptySet()): TestIdentifier {
+        return TestIdentifier("${CLASS.id}/[method:$method()]", CLASS.id, "$method()", true, false, tags,
+                "MethodSource [className = 'a.A', methodName = '$method', methodParameterTypes = '']")
+    }
+
+    /** Write events by [writeEvents] and give them to [collector], like the test process output would. */
+    private fun collect(collector: TestReportCollector, writeEvents: TestEventWriter.() -> Unit) {
+        val output = StringWriter()
+        TestEventWriter(output).writeEvents()
+        for (line in output.toString().lineSequence()) {
+            if (line.isEmpty()) {
+                continue
+            }
+            assertTrue(line.startsWith(TEST_LAUNCHER_OUTPUT_PREFIX))
+            collector.event(line.substring(TEST_LAUNCHER_OUTPUT_PREFIX.length))
+        }
+    }
+
+    @Test
+    fun events() {
+        val collector = TestReportCollector(null)
+        collect(collector) {
+            started(ENGINE)
+            started(CLASS)
+            started(testOf("one", setOf("slow")))
+            reported(testOf("one").id, TestData.ReportEntry(123L, "stdout", "Hello"))
+            finished(testOf("one").id, TestStatus.SUCCESSFUL, 5L, null)
+            started(testOf("two"))
+            finished(testOf("two").id, TestStatus.FAILED, 7L, "java.lang.AssertionError: two")
+            skipped(testOf("three"), "Not implemented")
+            finished(CLASS.id, TestStatus.SUCCESSFUL, 20L, null)
+            finished(ENGINE.id, TestStatus.SUCCESSFUL, 30L, null)
+            completed()
+        }
+        assertTrue(collector.complete)
+        assertFalse(collector.ended)
+        // Not ended yet
+        assertNull(collector.result("Test process"))
+
+        collect(collector) {
+            ended(false)
+        }
+        assertTrue(collector.ended)
+        assertFalse(collector.failed)
+
+        val report = collector.result("Test process")!!
+        assertSame(collector.report, report)
+        // Entries are in the order of their first data, so containers come after their tests
+        assertEquals(listOf(testOf("one"), testOf("two"), testOf("three"), CLASS, ENGINE), report.keys.toList())
+
+        report[testOf("one")]!!.apply {
+            assertEquals(TestStatus.SUCCESSFUL, status)
+            assertEquals(5L, duration)
+            assertNull(stackTrace)
+            assertEquals(listOf(TestData.ReportEntry(123L, "stdout", "Hello")), reports)
+        }
+        report[testOf("two")]!!.apply {
+            assertEquals(TestStatus.FAILED, status)
+            assertEquals(7L, duration)
+            assertEquals("java.lang.AssertionError: two", stackTrace)
+        }
+        report[testOf("three")]!!.apply {
+            assertEquals(TestStatus.SKIPPED, status)
+            assertEquals("Not implemented", skipReason)
+        }
+        assertEquals(30L, report[ENGINE]!!.duration)
+
+        // Identifiers share the parent ids and tag sets of the identifiers found before them
+        val identifiers = report.keys.toList()
+        assertEquals(setOf("slow"), identifiers[0].tags)
+        assertSame(identifiers[3].tags, identifiers[0].tags)
+        assertSame(identifiers[3].id, identifiers[0].parentId)
+        assertSame(identifiers[3].id, identifiers[1].parentId)
+        assertSame(identifiers[4].id, identifiers[3].parentId)
+        assertEquals(CLASS.testSource, identifiers[3].testSource)
+    }
+
+    @Test
+    fun badEvents() {
+        val collector = TestReportCollector(null)
+        collector.event("not json")
+        collector.event("{\"event\":\"unknown\"}")
+        collect(collector) {
+            started(ENGINE)
+            // Events of tests which were not started are ignored
+            finished(testOf("one").id, TestStatus.SUCCESSFUL, 5L, null)
+            reported(testOf("one").id, TestData.ReportEntry(123L, "stdout", "Hello"))
+            finished(ENGINE.id, TestStatus.SUCCESSFUL, 30L, null)
+            ended(false)
+        }
+        assertFalse(collector.complete)
+        assertFalse(collector.failed)
+        // Incomplete report is still returned
+        val report = collector.result("Test process")!!
+        assertEquals(listOf(ENGINE), report.keys.toList())
+    }
+
+    @Test
+    fun failedRun() {
+        val collector = TestReportCollector(null)
+        collect(collector) {
+            started(ENGINE)
+            ended(true)
+        }
+        assertTrue(collector.ended)
+        assertTrue(collector.failed)
+        assertNull(collector.result("Test process"))
+    }
+
+    @Test
+    fun stoppedRun() {
+        val progress = TestProgress(1)
+        val collector = TestReportCollector(progress)
+        collect(collector) {
+            started(ENGINE)
+            started(CLASS)
+            started(testOf("one"))
+            finished(CLASS.id, TestStatus.FAILED, 1L, null)
+        }
+        // Finished containers are not counted as tests
+        assertFalse(progress.stopped)
+
+        collect(collector) {
+            finished(testOf("one").id, TestStatus.FAILED, 1L, null)
+        }
+        assertTrue(progress.stopped)
+        assertFalse(collector.ended)
+        // Run stopped by the progress returns what was collected so far
+        val report = collector.result("Test process")!!
+        assertEquals(TestStatus.FAILED, report[testOf("one")]!!.status)
+    }
+}
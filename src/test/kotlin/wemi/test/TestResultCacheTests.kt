@@ -0,0 +1,119 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.attribute.FileTime
+
+/**
+ * Tests [testResultFingerprint], [loadCachedTestReport], [storeCachedTestReport] and how [prettyPrint] shows cached reports.
+ */
+class TestResultCacheTests {
+
+    private val java = Paths.get("/usr/bin/java")
+
+    private fun report(): TestReport {
+        val report = TestReport()
+        val classId = "[engine:junit-jupiter]/[class:com.example.FooTests]"
+        report[TestIdentifier(classId, null, "FooTests", false, true, emptySet(), null)] = TestData().apply {
+            status = TestStatus.SUCCESSFUL
+            duration = 10
+        }
+        report[TestIdentifier("$classId/[method:test()]", classId, "test()", true, false, setOf("fast"), null)] = TestData().apply {
+            status = TestStatus.SKIPPED
+            skipReason = "Not implemented yet"
+        }
+        return report
+    }
+
+    @Test
+    fun fingerprint() {
+        withTempDirectory("test-result-cache") { temp ->
+            val library = temp / "library.jar"
+            Files.write(library, byteArrayOf(1, 2, 3))
+            Files.setLastModifiedTime(library, FileTime.fromMillis(1000L))
+            val classes = temp / "classes"
+            Files.createDirectories(classes / "com/example")
+            Files.write(classes / "com/example/Foo.class", byteArrayOf(1))
+
+            fun fingerprint(javaOptions: List<String> = listOf("-Xmx1G"), parameters: TestParameters = TestParameters()): String {
+                return testResultFingerprint(java, javaOptions, parameters, listOf(library), listOf(classes))
+            }
+
+            val original = fingerprint()
+            assertEquals(original, fingerprint())
+            assertNotEquals(original, fingerprint(javaOptions = listOf("-Xmx2G")))
+            assertNotEquals(original, testResultFingerprint(Paths.get("/opt/java"), listOf("-Xmx1G"), TestParameters(), listOf(library), listOf(classes)))
+            assertNotEquals(original, fingerprint(parameters = TestParameters().apply { filter.tags.include("fast") }))
+
+            // Internal classpath is compared by content, not by modification time
+            Files.setLastModifiedTime(classes / "com/example/Foo.class", FileTime.fromMillis(5000L))
+            assertEquals(original, fingerprint())
+            Files.write(classes / "com/example/Foo.class", byteArrayOf(2))
+            val changedClass = fingerprint()
+            assertNotEquals(original, changedClass)
+            Files.write(classes / "com/example/Bar.class", byteArrayOf(2))
+            assertNotEquals(changedClass, fingerprint())
+            Files.delete(classes / "com/example/Bar.class")
+            assertEquals(changedClass, fingerprint())
+
+            // External classpath is compared by modification time
+            Files.setLastModifiedTime(library, FileTime.fromMillis(2000L))
+            assertNotEquals(changedClass, fingerprint())
+        }
+    }
+
+    @Test
+    fun storeAndLoad() {
+        withTempDirectory("test-result-cache") { temp ->
+            val cacheFile = temp / "cache" / "test-result"
+            assertNull(loadCachedTestReport(cacheFile, "fingerprint"))
+
+            val report = report()
+            storeCachedTestReport(cacheFile, "fingerprint", report)
+            assertFalse(report.cached)
+
+            val loaded = loadCachedTestReport(cacheFile, "fingerprint")!!
+            assertTrue(loaded.cached)
+            assertEquals(report.keys.toList(), loaded.keys.toList())
+            for ((identifier, data) in report) {
+                val loadedData = loaded[identifier]!!
+                assertEquals(data.status, loadedData.status)
+                assertEquals(data.duration, loadedData.duration)
+                assertEquals(data.skipReason, loadedData.skipReason)
+            }
+            assertEquals(listOf(setOf(), setOf("fast")), loaded.keys.map { it.tags })
+
+            // Different inputs
+            assertNull(loadCachedTestReport(cacheFile, "other fingerprint"))
+
+            // Overwritten
+            storeCachedTestReport(cacheFile, "other fingerprint", TestReport())
+            assertNull(loadCachedTestReport(cacheFile, "fingerprint"))
+            assertEquals(0, loadCachedTestReport(cacheFile, "other fingerprint")!!.size)
+
+            // Corrupted
+            Files.write(cacheFile, Files.readAllBytes(cacheFile).copyOf(10))
+            assertNull(loadCachedTestReport(cacheFile, "other fingerprint"))
+            Files.write(cacheFile, "{}".toByteArray())
+            assertNull(loadCachedTestReport(cacheFile, "other fingerprint"))
+        }
+    }
+
+    @Test
+    fun prettyPrintCached() {
+        val report = report()
+        val printed = report.prettyPrint().toString()
+        assertTrue("FooTests" in printed)
+        assertFalse("cached" in printed)
+
+        report.cached = true
+        val printedCached = report.prettyPrint().toString()
+        assertTrue("- Summary (cached) -" in printedCached)
+        assertTrue("rerun=true" in printedCached)
+        assertEquals(printed.substringBefore("- Summary").trimEnd(), printedCached.substringBefore("- Summary").trimEnd())
+    }
+}
@@ -0,0 +1,214 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import wemi.test.forked.TestEventWriter
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Tests for [shardTestClasses], [mergeTestReports], [handleShardedProcessesForTesting] and [findTopLevelClasses].
+ */
+class TestShardingTests {
+
+    private val ENGINE = TestIdentifier("[engine:junit-jupiter]", null, "JUnit Jupiter", false, true, emptySet(), null)
+
+    private fun testOf(className: String, method: String): TestIdentifier {
+        val classId = "${ENGINE.id}/[class:$className]"
+        return TestIdentifier("$classId/[method:$method()]", classId, "$method()", true, false, emptySet(),
+                "MethodSource [className = '$className', methodName = '$method', methodParameterTypes = '']")
+    }
+
+    private fun data(status: TestStatus, duration: Long = 1L): TestData {
+        return TestData().apply {
+            this.status = status
+            this.duration = duration
+        }
+    }
+
+    @Test
+    fun shardBySize() {
+        val classes = mapOf("a.A" to 100L, "a.B" to 60L, "a.C" to 50L, "a.D" to 10L)
+        // Heaviest first, each into the lightest shard
+        assertEquals(listOf(listOf("a.A", "a.D"), listOf("a.B", "a.C")), shardTestClasses(classes, 2, emptyMap()))
+    }
+
+    @Test
+    fun shardByDuration() {
+        // Sizes are not used when durations are known
+        val classes = mapOf("a.A" to 1000L, "a.B" to 1L, "a.C" to 1L, "a.D" to 1L)
+        // a.D has no duration, so it gets the average, (10 + 300 + 100) / 3 = 136
+        val durations = mapOf("a.A" to 10L, "a.B" to 300L, "a.C" to 100L)
+        assertEquals(listOf(listOf("a.B"), listOf("a.A", "a.C", "a.D")), shardTestClasses(classes, 2, durations))
+    }
+
+    @Test
+    fun shardEdgeCases() {
+        val classes = mapOf("a.A" to 10L, "a.B" to 10L, "a.C" to 10L)
+        // Empty shards are dropped
+        assertEquals(listOf(listOf("a.A"), listOf("a.B"), listOf("a.C")), shardTestClasses(classes, 5, emptyMap()))
+        assertEquals(listOf(listOf("a.A", "a.B", "a.C")), shardTestClasses(classes, 1, emptyMap()))
+        assertEquals(listOf(listOf("a.A", "a.B", "a.C")), shardTestClasses(classes, 0, emptyMap()))
+        assertEquals(emptyList<List<String>>(), shardTestClasses(emptyMap(), 3, emptyMap()))
+
+        // Result depends only on the arguments, not on the order of the classes
+        val reversed = LinkedHashMap<String, Long>()
+        for (className in classes.keys.reversed()) {
+            reversed[className] = classes[className]!!
+        }
+        assertEquals(shardTestClasses(classes, 2, emptyMap()), shardTestClasses(reversed, 2, emptyMap()))
+    }
+
+    @Test
+    fun mergeOrder() {
+        val first = TestReport()
+        first[ENGINE] = data(TestStatus.SUCCESSFUL)
+        first[testOf("a.A", "one")] = data(TestStatus.SUCCESSFUL)
+        first[testOf("a.A", "two")] = data(TestStatus.SUCCESSFUL)
+
+        val second = TestReport()
+        second[ENGINE] = data(TestStatus.SUCCESSFUL)
+        second[testOf("a.B", "one")] = data(TestStatus.SUCCESSFUL)
+
+        val third = TestReport()
+        third[ENGINE] = data(TestStatus.SUCCESSFUL)
+        third[testOf("a.C", "one")] = data(TestStatus.SKIPPED)
+
+        val merged = mergeTestReports(listOf(first, second, third))
+        // Entries are in the order of the reports, the engine only once, where it was first found
+        assertEquals(listOf(ENGINE, testOf("a.A", "one"), testOf("a.A", "two"), testOf("a.B", "one"), testOf("a.C", "one")),
+                merged.keys.toList())
+        assertEquals(TestStatus.SKIPPED, merged[testOf("a.C", "one")]!!.status)
+    }
+
+    @Test
+    fun mergeContainerStatus() {
+        fun mergedEngine(vararg statuses: TestStatus): TestData {
+            return mergeTestReports(statuses.mapIndexed { index, status ->
+                val report = TestReport()
+                report[ENGINE] = data(status, index * 10L)
+                report
+            })[ENGINE]!!
+        }
+
+        assertEquals(TestStatus.SUCCESSFUL, mergedEngine(TestStatus.SUCCESSFUL, TestStatus.SUCCESSFUL).status)
+        assertEquals(TestStatus.SUCCESSFUL, mergedEngine(TestStatus.NOT_RUN, TestStatus.SKIPPED, TestStatus.SUCCESSFUL).status)
+        assertEquals(TestStatus.SUCCESSFUL, mergedEngine(TestStatus.SUCCESSFUL, TestStatus.SKIPPED).status)
+        assertEquals(TestStatus.ABORTED, mergedEngine(TestStatus.SUCCESSFUL, TestStatus.ABORTED).status)
+        assertEquals(TestStatus.FAILED, mergedEngine(TestStatus.FAILED, TestStatus.ABORTED, TestStatus.SUCCESSFUL).status)
+        assertEquals(TestStatus.FAILED, mergedEngine(TestStatus.SUCCESSFUL, TestStatus.FAILED).status)
+        // Longest duration
+        assertEquals(20L, mergedEngine(TestStatus.SUCCESSFUL, TestStatus.SUCCESSFUL, TestStatus.SUCCESSFUL).duration)
+
+        // Failure details and report entries of all reports are kept
+        val first = TestReport()
+        first[ENGINE] = data(TestStatus.SUCCESSFUL).apply {
+            reports.add(TestData.ReportEntry(1L, "key", "first"))
+        }
+        val second = TestReport()
+        second[ENGINE] = data(TestStatus.FAILED).apply {
+            stackTrace = "java.lang.IllegalStateException"
+            reports.add(TestData.ReportEntry(2L, "key", "second"))
+        }
+        val merged = mergeTestReports(listOf(first, second))[ENGINE]!!
+        assertEquals(TestStatus.FAILED, merged.status)
+        assertEquals("java.lang.IllegalStateException", merged.stackTrace)
+        assertEquals(listOf("first", "second"), merged.reports.map { it.value })
+    }
+
+    /** Process which ignores its input and prints test events written by [writeEvents] into [directory]. */
+    private fun shardProcess(directory: Path, name: String, writeEvents: TestEventWriter.() -> Unit): Pair<ProcessBuilder, TestParameters> {
+        val events = directory / "$name.events"
+        Files.newBufferedWriter(events).use { TestEventWriter(it).writeEvents() }
+        return ProcessBuilder("/bin/sh", "-c", "cat > /dev/null; cat '$events'") to TestParameters()
+    }
+
+    @Test
+    fun mergeShardedProcesses() {
+        assumeTrue(File.separatorChar == '/', "Needs a shell")
+        withTempDirectory("test-sharding") { temp ->
+            val first = shardProcess(temp, "first") {
+                started(ENGINE)
+                started(testOf("a.A", "one"))
+                finished(testOf("a.A", "one").id, TestStatus.SUCCESSFUL, 5L, null)
+                finished(ENGINE.id, TestStatus.SUCCESSFUL, 10L, null)
+                completed()
+                ended(false)
+            }
+            val second = shardProcess(temp, "second") {
+                started(ENGINE)
+                started(testOf("a.B", "one"))
+                finished(testOf("a.B", "one").id, TestStatus.FAILED, 5L, "java.lang.AssertionError")
+                finished(ENGINE.id, TestStatus.SUCCESSFUL, 20L, null)
+                completed()
+                ended(false)
+            }
+
+            val merged = handleShardedProcessesForTesting(listOf(first, second), null)!!
+            // Containers come after their tests, engine is where the first shard has it
+            assertEquals(listOf(testOf("a.A", "one"), ENGINE, testOf("a.B", "one")), merged.keys.toList())
+            assertEquals(TestStatus.FAILED, merged[testOf("a.B", "one")]!!.status)
+            assertEquals(TestStatus.SUCCESSFUL, merged[ENGINE]!!.status)
+            assertEquals(20L, merged[ENGINE]!!.duration)
+
+            // Any failed shard fails the whole run
+            val failed = shardProcess(temp, "failed") {
+                ended(true)
+            }
+            assertNull(handleShardedProcessesForTesting(listOf(first, failed), null))
+            assertNull(handleShardedProcessesForTesting(listOf(failed, second), null))
+        }
+    }
+
+    private fun createClassFiles(root: Path, vararg paths: String) {
+        for (path in paths) {
+            val file = root / path
+            Files.createDirectories(file.parent)
+            Files.write(file, ByteArray(10))
+        }
+    }
+
+    @Test
+    fun topLevelClasses() {
+        withTempDirectory("topLevelClasses") { temp ->
+            val directory = Files.createDirectories(temp / "classes")
+            createClassFiles(directory,
+                    "com/example/Outer.class",
+                    "com/example/Outer\$Inner.class",
+                    "com/example/Outer\$Inner\$Deeper.class",
+                    "com/example/Outer\$1.class",
+                    // Holder without class file of its own, such as Kotlin file with only nested classes
+                    "com/example/Holder\$NestedTests.class",
+                    "com/example/package-info.class",
+                    "com/example/resource.txt",
+                    "module-info.class",
+                    "Default.class")
+
+            val jar = temp / "tests.jar"
+            ZipOutputStream(Files.newOutputStream(jar)).use { zip ->
+                for (name in listOf("META-INF/", "META-INF/MANIFEST.MF", "org/example/", "org/example/JarTests.class",
+                        "org/example/JarTests\$Nested.class", "module-info.class")) {
+                    zip.putNextEntry(ZipEntry(name))
+                    if (!name.endsWith('/')) {
+                        zip.write(ByteArray(7))
+                    }
+                    zip.closeEntry()
+                }
+            }
+
+            val classes = findTopLevelClasses(listOf(directory, jar, temp / "missing"))
+            assertEquals(listOf("Default", "com.example.Holder", "com.example.Outer", "org.example.JarTests"),
+                    classes.keys.toList())
+            // Sizes of nested classes are included
+            assertEquals(40L, classes["com.example.Outer"])
+            assertEquals(10L, classes["com.example.Holder"])
+            assertEquals(14L, classes["org.example.JarTests"])
+        }
+    }
+}
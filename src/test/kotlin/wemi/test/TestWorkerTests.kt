@@ -0,0 +1,173 @@
+package wemi.test
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import wemi.test.forked.TestEventWriter
+import wemi.util.div
+import wemi.util.withTempDirectory
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+
+/**
+ * Tests [TestWorker], with a script which replays prepared test events instead of the worker JVM.
+ */
+class TestWorkerTests {
+
+    /**
+     * Worker script, which reads requests like the real worker and answers each with the events of file `events`
+     * in its working directory. Its starts and requests are recorded in file `runs`.
+     * Ends when the classpath contains `crash` and stops answering when it contains `hang`.
+     */
+    private val WORKER = """#!/bin/sh
+        echo start >> runs
+        while read classpath && read parameters; do
+            echo "${'$'}classpath" >> runs
+            case "${'$'}classpath" in *crash*) exit 7 ;; esac
+            cat events
+            case "${'$'}classpath" in *hang*) exec sleep 60 ;; esac
+        done
+        """.trimIndent()
+
+    private val ENGINE = TestIdentifier("[engine:junit-jupiter]", null, "JUnit Jupiter", false, true, emptySet(), null)
+
+    private fun testOf(method: String): TestIdentifier {
+        return TestIdentifier("${ENGINE.id}/[method:$method()]", ENGINE.id, "$method()", true, false, emptySet(), null)
+    }
+
+    private class Worker(val directory: Path, val project: String) {
+        private val script = directory / "worker.sh"
+
+        fun obtain(owner: String, fingerprint: String = "fingerprint"): TestWorker {
+            return TestWorker.obtain(project, owner, fingerprint) {
+                ProcessBuilder("/bin/sh", script.toString()).directory(directory.toFile())
+            }
+        }
+
+        fun events(writeEvents: TestEventWriter.() -> Unit) {
+            Files.newBufferedWriter(directory / "events").use { TestEventWriter(it).writeEvents() }
+        }
+
+        fun runs(): List<String> = Files.readAllLines(directory / "runs")
+    }
+
+    private fun withWorker(project: String, action: (Worker) -> Unit) {
+        assumeTrue(File.separatorChar == '/', "Needs a shell")
+        withTempDirectory("test-worker") { temp ->
+            Files.write(temp / "worker.sh", WORKER.toByteArray())
+            action(Worker(temp, project))
+        }
+    }
+
+    private fun TestWorker.run(vararg classpath: String, progress: TestProgress? = null): TestReport? {
+        return runTests(classpath.map { Paths.get(it) }, TestParameters(), progress)
+    }
+
+    @Test
+    fun reused() {
+        withWorker("reused") { worker ->
+            val testWorker = worker.obtain("/one")
+            worker.events {
+                started(ENGINE)
+                started(testOf("a"))
+                finished(testOf("a").id, TestStatus.SUCCESSFUL, 5L, null)
+                finished(ENGINE.id, TestStatus.SUCCESSFUL, 10L, null)
+                completed()
+                ended(false)
+            }
+            val first = testWorker.run("/one")!!
+            assertEquals(listOf(testOf("a"), ENGINE), first.keys.toList())
+            assertEquals(TestStatus.SUCCESSFUL, first[testOf("a")]!!.status)
+
+            // Each run has its own report
+            worker.events {
+                started(ENGINE)
+                started(testOf("b"))
+                finished(testOf("b").id, TestStatus.FAILED, 5L, "java.lang.AssertionError")
+                finished(ENGINE.id, TestStatus.SUCCESSFUL, 10L, null)
+                completed()
+                ended(false)
+            }
+            assertSame(testWorker, worker.obtain("/one"))
+            val second = testWorker.run("/one")!!
+            assertEquals(listOf(testOf("b"), ENGINE), second.keys.toList())
+            assertEquals(TestStatus.FAILED, second[testOf("b")]!!.status)
+
+            // Failed run
+            worker.events {
+                ended(true)
+            }
+            assertNull(testWorker.run("/one"))
+
+            testWorker.close()
+            assertEquals(listOf("start", "/one", "/one", "/one"), worker.runs())
+        }
+    }
+
+    @Test
+    fun restarted() {
+        withWorker("restarted") { worker ->
+            worker.events {
+                completed()
+                ended(false)
+            }
+            val original = worker.obtain("/one")
+            assertNotNull(original.run("/one"))
+
+            // Changed fingerprint
+            val changed = worker.obtain("/one", "changed fingerprint")
+            assertNotSame(original, changed)
+            assertNotNull(changed.run("/one"))
+
+            // Worker of a different owner of the same project replaces it
+            val other = worker.obtain("/two", "changed fingerprint")
+            assertNotSame(changed, other)
+            assertNotNull(other.run("/two"))
+            assertSame(other, worker.obtain("/two", "changed fingerprint"))
+            val last = worker.obtain("/one", "changed fingerprint")
+            assertNotSame(changed, last)
+            last.close()
+
+            assertEquals(listOf("start", "/one", "start", "/one", "start", "/two", "start"), worker.runs())
+        }
+    }
+
+    @Test
+    fun crashed() {
+        withWorker("crashed") { worker ->
+            worker.events {
+                completed()
+                ended(false)
+            }
+            val crashed = worker.obtain("/crash")
+            assertNull(crashed.run("/crash"))
+
+            // Dead worker is not reused
+            val restarted = worker.obtain("/crash")
+            assertNotSame(crashed, restarted)
+            restarted.close()
+            assertEquals(listOf("start", "/crash", "start"), worker.runs())
+        }
+    }
+
+    @Test
+    fun stopped() {
+        withWorker("stopped") { worker ->
+            worker.events {
+                started(ENGINE)
+                started(testOf("a"))
+                finished(testOf("a").id, TestStatus.FAILED, 5L, "java.lang.AssertionError")
+            }
+            val progress = TestProgress(1)
+            val testWorker = worker.obtain("/hang")
+            // Worker does not end the run, but it is stopped after the first failure
+            val report = testWorker.run("/hang", progress = progress)!!
+            assertTrue(progress.stopped)
+            assertEquals(TestStatus.FAILED, report[testOf("a")]!!.status)
+            assertNotSame(testWorker, worker.obtain("/hang"))
+            worker.obtain("/hang").close()
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package wemi.test.forked
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import wemi.test.TEST_LAUNCHER_OUTPUT_PREFIX
+import wemi.test.TestParameters
+import wemi.test.TestReportCollector
+import wemi.test.TestStatus
+import wemi.util.Magic
+import java.io.StringWriter
+
+/** Records which [ExecutionOrderFixture] classes were executed, when [executed] is not null. */
+internal object ExecutionOrderRecorder {
+    var executed: MutableList<String>? = null
+
+    fun record(name: String) {
+        val executed = executed
+        // Not executed by TestLauncherTests
+        assumeTrue(executed != null)
+        executed!!.add(name)
+    }
+}
+
+class ExecutionOrderFixtureA {
+    @Test
+    fun test() = ExecutionOrderRecorder.record("A")
+
+    class Static {
+        @Test
+        fun test() = ExecutionOrderRecorder.record("A\$Static")
+    }
+}
+
+class ExecutionOrderFixtureB {
+    @Test
+    fun test() = ExecutionOrderRecorder.record("B")
+}
+
+class ExecutionOrderFixtureC {
+    @Test
+    fun test() = ExecutionOrderRecorder.record("C")
+}
+
+/**
+ * Tests [executeTests].
+ */
+class TestLauncherTests {
+
+    private val A = ExecutionOrderFixtureA::class.java.name
+    private val B = ExecutionOrderFixtureB::class.java.name
+    private val C = ExecutionOrderFixtureC::class.java.name
+
+    /** Execute tests of [parameters], return which fixtures were executed, in order, and the collected report. */
+    private fun execute(parameters: TestParameters): Pair<List<String>, TestReportCollector> {
+        val executed = ArrayList<String>()
+        val output = StringWriter()
+        ExecutionOrderRecorder.executed = executed
+        try {
+            executeTests(parameters, TestEventWriter(output))
+        } finally {
+            ExecutionOrderRecorder.executed = null
+        }
+
+        val collector = TestReportCollector(null)
+        for (line in output.toString().lineSequence()) {
+            if (line.isNotEmpty()) {
+                collector.event(line.removePrefix(TEST_LAUNCHER_OUTPUT_PREFIX))
+            }
+        }
+        return executed to collector
+    }
+
+    private fun fixtureParameters(): TestParameters {
+        val parameters = TestParameters()
+        parameters.select.classpathRoots.add(Magic.classpathFileOf(javaClass)!!.toAbsolutePath().toString())
+        parameters.filter.topLevelClasses.addAll(listOf(A, B, C))
+        return parameters
+    }
+
+    @Test
+    fun firstClasses() {
+        val (scanOrder, _) = execute(fixtureParameters())
+        assertEquals(setOf("A", "A\$Static", "B", "C"), scanOrder.toSet())
+        assertEquals(4, scanOrder.size)
+
+        // At least one of the orders differs from the order of the classpath root scan
+        for (firstClasses in listOf(listOf(C, B, A), listOf(B, C, A))) {
+            val parameters = fixtureParameters()
+            parameters.select.firstClasses.addAll(firstClasses)
+            val (executed, collector) = execute(parameters)
+
+            // First classes in their order, each only once, then their nested classes found by the scan
+            val expected = firstClasses.map { it.removePrefix("wemi.test.forked.ExecutionOrderFixture") } + "A\$Static"
+            assertEquals(expected, executed)
+
+            assertTrue(collector.complete)
+            val tests = collector.report.filterKeys { it.isTest }
+            assertEquals(4, tests.size)
+            for (data in tests.values) {
+                assertEquals(TestStatus.SUCCESSFUL, data.status)
+            }
+        }
+    }
+
+    @Test
+    fun firstClassesFiltered() {
+        val parameters = fixtureParameters()
+        parameters.select.firstClasses.addAll(listOf(C, A))
+        parameters.filter.classNamePatterns.exclude(".*FixtureC")
+        val (executed, _) = execute(parameters)
+        // Filters apply to the first classes as well
+        assertEquals("A", executed.first())
+        assertEquals(setOf("A", "A\$Static", "B"), executed.toSet())
+        assertEquals(3, executed.size)
+    }
+}
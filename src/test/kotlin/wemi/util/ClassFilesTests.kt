@@ -0,0 +1,110 @@
+package wemi.util
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.IOException
+
+/**
+ * Tests [readConstantPoolStrings] and [forEachReferencedClass].
+ */
+class ClassFilesTests {
+
+    private fun strings(classFile: ByteArray): List<String> {
+        val result = ArrayList<String>()
+        readConstantPoolStrings(ByteArrayInputStream(classFile)) { result.add(it) }
+        return result
+    }
+
+    @Test
+    fun allTags() {
+        val data = classFileBytes {
+            writeByte(1); writeUTF("com/example/Foo")
+            writeByte(7); writeShort(1) // Class
+            writeByte(8); writeShort(1) // String
+            writeByte(3); writeInt(-1) // Integer
+            writeByte(4); writeFloat(1f) // Float
+            writeByte(5); writeLong(-1L) // Long
+            writeByte(1); writeUTF("after long")
+            writeByte(6); writeDouble(1.0) // Double
+            writeByte(9); writeShort(2); writeShort(11) // Fieldref
+            writeByte(10); writeShort(2); writeShort(11) // Methodref
+            writeByte(11); writeShort(2); writeShort(11) // InterfaceMethodref
+            writeByte(12); writeShort(1); writeShort(1) // NameAndType
+            writeByte(15); writeByte(1); writeShort(9) // MethodHandle
+            writeByte(16); writeShort(1) // MethodType
+            writeByte(17); writeShort(0); writeShort(12) // Dynamic
+            writeByte(18); writeShort(0); writeShort(12) // InvokeDynamic
+            writeByte(19); writeShort(1) // Module
+            writeByte(20); writeShort(1) // Package
+            writeByte(1); writeUTF("(Lcom/example/Bar;)V")
+            writeByte(1); writeUTF("\u00FCnicode")
+            22
+        }
+        assertEquals(listOf("com/example/Foo", "after long", "(Lcom/example/Bar;)V", "\u00FCnicode"), strings(data))
+    }
+
+    @Test
+    fun realClassFile() {
+        val data = ClassFilesTests::class.java.getResourceAsStream("ClassFilesTests.class").use { it.readBytes() }
+        val constants = strings(data)
+        assertTrue("wemi/util/ClassFilesTests" in constants)
+        assertTrue("java/lang/Object" in constants)
+        assertTrue("after long" in constants)
+    }
+
+    private fun assertMalformed(classFile: ByteArray) {
+        try {
+            strings(classFile)
+            fail<Unit>("Class file should be malformed")
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    @Test
+    fun malformed() {
+        val valid = classFileBytes { writeByte(1); writeUTF("a"); 1 }
+        assertEquals(listOf("a"), strings(valid))
+
+        assertMalformed(classFileBytes(magic = 0xCAFED00D.toInt()) { writeByte(1); writeUTF("a"); 1 })
+        assertMalformed(classFileBytes { writeByte(2); writeShort(0); 1 })
+        // Truncated
+        assertMalformed(valid.copyOf(valid.size - 1))
+        assertMalformed(classFileBytes { writeByte(5); writeInt(0); 2 })
+        assertMalformed(ByteArray(0))
+    }
+
+    @Test
+    fun referencedClasses() {
+        val classes = mapOf("com/example/Foo" to 1, "com/example/Bar" to 2, "Baz" to 3, "com/example/Foo\$Inner" to 4)
+        fun referenced(constant: String): List<String> {
+            val result = ArrayList<String>()
+            forEachReferencedClass(constant, classes) { result.add(it) }
+            return result
+        }
+
+        // Names
+        assertEquals(listOf("com/example/Foo"), referenced("com/example/Foo"))
+        assertEquals(listOf("com/example/Foo"), referenced("com.example.Foo"))
+        assertEquals(listOf("com/example/Foo\$Inner"), referenced("com.example.Foo\$Inner"))
+        assertEquals(listOf("Baz"), referenced("Baz"))
+        assertEquals(emptyList<String>(), referenced("com/example/Unknown"))
+        assertEquals(emptyList<String>(), referenced("com/example"))
+        assertEquals(emptyList<String>(), referenced(""))
+
+        // Descriptors
+        assertEquals(listOf("com/example/Foo"), referenced("Lcom/example/Foo;"))
+        assertEquals(listOf("com/example/Foo", "com/example/Bar"), referenced("(Lcom/example/Foo;I[Lcom/example/Bar;)V"))
+        assertEquals(listOf("Baz"), referenced("()LBaz;"))
+        assertEquals(emptyList<String>(), referenced("(Ljava/lang/String;J)Lcom/example/Unknown;"))
+
+        // Signatures
+        assertEquals(listOf("com/example/Foo", "com/example/Bar"), referenced("Lcom/example/Foo<Lcom/example/Bar;>;"))
+        assertEquals(listOf("com/example/Bar", "Baz"), referenced("<T:Lcom/example/Bar;>(TT;)Ljava/util/List<LBaz;>;"))
+
+        // Incomplete descriptors
+        assertEquals(emptyList<String>(), referenced("Lcom/example/Foo"))
+        assertEquals(emptyList<String>(), referenced("L;"))
+    }
+}
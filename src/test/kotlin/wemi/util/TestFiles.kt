@@ -0,0 +1,84 @@
+package wemi.util
+
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.zip.Deflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/*
+ * Files for tests.
+ */
+
+/** Run [action] with a new temporary directory, which is deleted afterwards. */
+internal inline fun <T> withTempDirectory(prefix: String, action: (Path) -> T): T {
+    val directory = Files.createTempDirectory(prefix)
+    try {
+        return action(directory)
+    } finally {
+        directory.deleteRecursively()
+    }
+}
+
+/**
+ * Class file header with a constant pool, whose entries are written by [constants], which returns their count.
+ * There is nothing after the constant pool, which is enough for [readConstantPoolStrings].
+ */
+internal fun classFileBytes(magic: Int = 0xCAFEBABE.toInt(), constants: DataOutputStream.() -> Int): ByteArray {
+    val pool = ByteArrayOutputStream()
+    val count = DataOutputStream(pool).use { it.constants() }
+    val bytes = ByteArrayOutputStream()
+    DataOutputStream(bytes).use { out ->
+        out.writeInt(magic)
+        out.writeShort(0)
+        out.writeShort(52)
+        out.writeShort(count + 1)
+        out.write(pool.toByteArray())
+    }
+    return bytes.toByteArray()
+}
+
+/** Minimal class file of [className] (internal name), with UTF-8 [constants] in its constant pool. */
+internal fun classFileBytes(className: String, vararg constants: String): ByteArray {
+    return classFileBytes {
+        for (constant in arrayOf(className) + constants) {
+            writeByte(1) // CONSTANT_Utf8
+            writeUTF(constant)
+        }
+        constants.size + 1
+    }
+}
+
+/** Write class file [name] (internal name) into [root], with a constant pool of [constants], see [classFileBytes]. */
+internal fun writeClassFile(root: Path, name: String, vararg constants: String, modified: Long = 1000L) {
+    val file = root / "$name.class"
+    Files.createDirectories(file.parent)
+    Files.write(file, classFileBytes(name, *constants))
+    Files.setLastModifiedTime(file, FileTime.fromMillis(modified))
+}
+
+/** Create jar [file] with deflated [entries], compressed with [level]. */
+internal fun createJar(file: Path, entries: Map<String, ByteArray>, level: Int = Deflater.DEFAULT_COMPRESSION) {
+    file.parent?.let { Files.createDirectories(it) }
+    ZipOutputStream(Files.newOutputStream(file)).use { zip ->
+        zip.setLevel(level)
+        for ((name, data) in entries) {
+            zip.putNextEntry(ZipEntry(name))
+            zip.write(data)
+            zip.closeEntry()
+        }
+    }
+}
+
+/** Create jar [file] with entries of [names], whose content is their name. Its modification time is always the same. */
+internal fun createJar(file: Path, vararg names: String) {
+    val entries = LinkedHashMap<String, ByteArray>()
+    for (name in names) {
+        entries[name] = name.toByteArray()
+    }
+    createJar(file, entries)
+    Files.setLastModifiedTime(file, FileTime.fromMillis(1000_000L))
+}